@@ -17,7 +17,7 @@ public class blaze {
 
         // redis
         exec("docker", "run", "--name", "test-redis",
-            "-p", "26379:6379", "-d", "redis:3.2.10")
+            "-p", "26379:6379", "-d", "redis:6.2")
             .exitValues(0, 125)
             .run();
         
@@ -0,0 +1,132 @@
+package com.fizzed.jedis.benchmark;
+
+import com.fizzed.jedis.BinaryReader;
+import com.fizzed.jedis.BinaryWriter;
+import com.fizzed.jedis.CompactCodec;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares java serialization with the compact codec for a map of common JDK
+ * types ("map") and a registered application type ("user").  Encoded sizes are
+ * printed once during setup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    static public class User implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private long id;
+        private String email;
+        private boolean active;
+        private List<String> roles;
+
+        public User() {
+        }
+
+        public User(long id, String email, boolean active, List<String> roles) {
+            this.id = id;
+            this.email = email;
+            this.active = active;
+            this.roles = roles;
+        }
+
+    }
+
+    @Param({ "map", "user" })
+    public String type;
+
+    private CompactCodec compact;
+    private Object value;
+    private byte[] javaBytes;
+    private byte[] compactBytes;
+
+    @Setup
+    public void setup() {
+        this.compact = new CompactCodec()
+            .register(1, User.class, new CompactCodec.Serializer<User>() {
+                @Override
+                public void write(BinaryWriter writer, User user) {
+                    writer.writeZigZagLong(user.id).writeString(user.email).writeByte(user.active ? 1 : 0);
+                    writer.writeVarInt(user.roles.size());
+                    for (String role : user.roles) {
+                        writer.writeString(role);
+                    }
+                }
+                @Override
+                public User read(BinaryReader reader) {
+                    User user = new User();
+                    user.id = reader.readZigZagLong();
+                    user.email = reader.readString();
+                    user.active = reader.readByte() != 0;
+                    int size = reader.readVarInt();
+                    user.roles = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        user.roles.add(reader.readString());
+                    }
+                    return user;
+                }
+            });
+
+        if ("map".equals(this.type)) {
+            Map<String,Object> map = new LinkedHashMap<>();
+            map.put("id", 123456789L);
+            map.put("name", "Joe Lauer");
+            map.put("active", true);
+            map.put("score", 98.6d);
+            map.put("tags", new ArrayList<>(Arrays.asList("admin", "beta", "ops")));
+            this.value = map;
+        } else {
+            this.value = new User(123456789L, "joe@example.com", true, new ArrayList<>(Arrays.asList("admin", "ops")));
+        }
+
+        this.javaBytes = CompactCodec.javaSerialize(this.value);
+        this.compactBytes = this.compact.encode(this.value);
+
+        System.out.println("\n" + this.type + ": java=" + this.javaBytes.length
+            + " bytes, compact=" + this.compactBytes.length + " bytes");
+    }
+
+    @Benchmark
+    public byte[] javaEncode() {
+        return CompactCodec.javaSerialize(this.value);
+    }
+
+    @Benchmark
+    public Object javaDecode() {
+        return CompactCodec.javaDeserialize(this.javaBytes, 0, this.javaBytes.length);
+    }
+
+    @Benchmark
+    public byte[] compactEncode() {
+        return this.compact.encode(this.value);
+    }
+
+    @Benchmark
+    public Object compactDecode() {
+        return this.compact.decode(this.compactBytes);
+    }
+
+}
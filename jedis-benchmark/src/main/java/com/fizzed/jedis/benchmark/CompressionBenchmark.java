@@ -0,0 +1,99 @@
+package com.fizzed.jedis.benchmark;
+
+import com.fizzed.jedis.CompressingCodec;
+import com.fizzed.jedis.JedisCodec;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * CPU vs. bytes tradeoff of compressing JSON payloads: "none" is the cost of
+ * copying the raw bytes, "deflate1"/"deflate6" are deflate at levels 1 and 6,
+ * and "lz4" requires org.lz4:lz4-java.  Compressed sizes are printed once
+ * during setup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CompressionBenchmark {
+
+    @Param({ "none", "deflate1", "deflate6", "lz4" })
+    public String algorithm;
+
+    @Param({ "1024", "51200", "512000" })
+    public int size;
+
+    private JedisCodec<byte[]> codec;
+    private byte[] value;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() {
+        final JedisCodec<byte[]> bytes = JedisCodec.of(v -> v.clone(), v -> v.clone());
+
+        switch (this.algorithm) {
+            case "none":
+                this.codec = bytes;
+                break;
+            case "deflate1":
+                this.codec = CompressingCodec.deflate(bytes).setThreshold(0).setLevel(Deflater.BEST_SPEED);
+                break;
+            case "deflate6":
+                this.codec = CompressingCodec.deflate(bytes).setThreshold(0).setLevel(6);
+                break;
+            case "lz4":
+                this.codec = CompressingCodec.lz4(bytes).setThreshold(0);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported algorithm " + this.algorithm);
+        }
+
+        this.value = json(this.size);
+        this.encoded = this.codec.encode(this.value);
+
+        System.out.println("\n" + this.algorithm + "/" + this.size + ": " + this.value.length
+            + " -> " + this.encoded.length + " bytes ("
+            + String.format("%.1f", (double)this.value.length / this.encoded.length) + "x)");
+    }
+
+    static private byte[] json(int size) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; sb.length() < size - 1; i++) {
+            if (i > 0) {
+                sb.append(",");
+            }
+            sb.append("{\"id\":").append(i * 7919)
+                .append(",\"type\":\"").append(i % 3 == 0 ? "email" : "sms")
+                .append("\",\"to\":\"user").append(i).append("@example.com\"")
+                .append(",\"attempts\":").append(i % 5)
+                .append(",\"payload\":\"").append(Long.toHexString(i * 0x9E3779B97F4A7C15L)).append("\"}");
+        }
+        sb.setLength(size - 1);
+        return sb.append("]").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return this.codec.encode(this.value);
+    }
+
+    @Benchmark
+    public byte[] decode() {
+        return this.codec.decode(this.encoded);
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.fizzed.jedis.benchmark;
+
+import com.fizzed.jedis.JedisFactory;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+/**
+ * Borrow/return throughput of the "commons" (GenericObjectPool) vs. the
+ * "concurrent" (lock-free) pool at increasing thread counts, with a pool of
+ * 32 connections that is prewarmed so no connection is opened while measuring.
+ * No command is sent, so only the pool itself is measured.  Requires redis at
+ * the url of the system property redis.url (default redis://localhost:6379).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PoolBenchmark {
+
+    @Param({ "commons", "concurrent" })
+    public String type;
+
+    private JedisPool jedisPool;
+
+    @Setup
+    public void setup() {
+        final String url = System.getProperty("redis.url", "redis://localhost:6379");
+
+        this.jedisPool = JedisFactory.createJedisPool(url + (url.contains("?") ? "&" : "?")
+            + "pool_type=" + this.type + "&pool_min_size=32&pool_max_size=32&pool_wait_timeout=60000");
+
+        JedisFactory.prewarmJedisPool(this.jedisPool, 32, 10, TimeUnit.SECONDS);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.jedisPool.close();
+    }
+
+    private Jedis borrowAndReturn() {
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            return jedis;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Jedis threads1() {
+        return this.borrowAndReturn();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Jedis threads8() {
+        return this.borrowAndReturn();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public Jedis threads64() {
+        return this.borrowAndReturn();
+    }
+
+    @Benchmark
+    @Threads(256)
+    public Jedis threads256() {
+        return this.borrowAndReturn();
+    }
+
+}
@@ -0,0 +1,125 @@
+package com.fizzed.jedis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads what a BinaryWriter wrote from a byte[] without copying it.
+ */
+public class BinaryReader {
+
+    private final byte[] buffer;
+    private final int limit;
+    private int position;
+
+    public BinaryReader(byte[] buffer) {
+        this(buffer, 0, buffer.length);
+    }
+
+    public BinaryReader(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    public int position() {
+        return this.position;
+    }
+
+    public int remaining() {
+        return this.limit - this.position;
+    }
+
+    private void require(int length) {
+        if (length < 0 || this.position + length > this.limit) {
+            throw new IllegalArgumentException("Unexpected end of data (needed " + length
+                + " bytes at position " + this.position + " but only " + this.remaining() + " remain)");
+        }
+    }
+
+    public int readByte() {
+        this.require(1);
+        return this.buffer[this.position++];
+    }
+
+    public int peekByte() {
+        this.require(1);
+        return this.buffer[this.position];
+    }
+
+    public byte[] readBytes(int length) {
+        this.require(length);
+        byte[] bytes = Arrays.copyOfRange(this.buffer, this.position, this.position + length);
+        this.position += length;
+        return bytes;
+    }
+
+    public byte[] readLengthPrefixed() {
+        return this.readBytes(this.readVarInt());
+    }
+
+    public int readInt() {
+        this.require(4);
+        int value = ((this.buffer[this.position] & 0xFF) << 24)
+            | ((this.buffer[this.position+1] & 0xFF) << 16)
+            | ((this.buffer[this.position+2] & 0xFF) << 8)
+            | (this.buffer[this.position+3] & 0xFF);
+        this.position += 4;
+        return value;
+    }
+
+    public long readLong() {
+        return ((long)this.readInt() << 32) | (this.readInt() & 0xFFFFFFFFL);
+    }
+
+    public float readFloat() {
+        return Float.intBitsToFloat(this.readInt());
+    }
+
+    public double readDouble() {
+        return Double.longBitsToDouble(this.readLong());
+    }
+
+    public int readVarInt() {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = this.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    public long readVarLong() {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = this.readByte();
+            value |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varlong");
+    }
+
+    public int readZigZagInt() {
+        int value = this.readVarInt();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public long readZigZagLong() {
+        long value = this.readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public String readString() {
+        int length = this.readVarInt();
+        this.require(length);
+        String value = new String(this.buffer, this.position, length, StandardCharsets.UTF_8);
+        this.position += length;
+        return value;
+    }
+
+}
@@ -0,0 +1,185 @@
+package com.fizzed.jedis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer with length-prefixed primitives and varints.  Writers
+ * are meant to be reused: acquire() hands out a per-thread writer (or a fresh
+ * one if the thread's writer is already in use, e.g. a nested encode) and
+ * release() makes it available again, so steady-state encoding only allocates
+ * the final byte[].
+ */
+public class BinaryWriter {
+
+    static private final int INITIAL_CAPACITY = 256;
+    // writers that grew beyond this are not retained by their thread
+    static private final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    static private final ThreadLocal<BinaryWriter> WRITERS = ThreadLocal.withInitial(BinaryWriter::new);
+
+    private byte[] buffer;
+    private int position;
+    private boolean acquired;
+
+    public BinaryWriter() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public BinaryWriter(int capacity) {
+        this.buffer = new byte[capacity];
+    }
+
+    /**
+     * Acquires an empty writer for the current thread.  Must be followed by
+     * release() once the encoded bytes were copied out.
+     * @return The writer
+     */
+    static public BinaryWriter acquire() {
+        BinaryWriter writer = WRITERS.get();
+        if (writer.acquired) {
+            // nested use on the same thread
+            writer = new BinaryWriter();
+        }
+        writer.acquired = true;
+        writer.position = 0;
+        return writer;
+    }
+
+    static public void release(BinaryWriter writer) {
+        writer.acquired = false;
+        if (writer.buffer.length > MAX_RETAINED_CAPACITY && WRITERS.get() == writer) {
+            WRITERS.remove();
+        }
+    }
+
+    public int size() {
+        return this.position;
+    }
+
+    public BinaryWriter reset() {
+        this.position = 0;
+        return this;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(this.buffer, this.position);
+    }
+
+    private void ensure(int more) {
+        int required = this.position + more;
+        if (required > this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, Math.max(required, this.buffer.length << 1));
+        }
+    }
+
+    public BinaryWriter writeByte(int value) {
+        this.ensure(1);
+        this.buffer[this.position++] = (byte)value;
+        return this;
+    }
+
+    public BinaryWriter writeBytes(byte[] bytes, int offset, int length) {
+        this.ensure(length);
+        System.arraycopy(bytes, offset, this.buffer, this.position, length);
+        this.position += length;
+        return this;
+    }
+
+    public BinaryWriter writeBytes(byte[] bytes) {
+        return this.writeBytes(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Writes the bytes prefixed with their length as a varint.
+     * @param bytes The bytes
+     * @return This writer
+     */
+    public BinaryWriter writeLengthPrefixed(byte[] bytes) {
+        this.writeVarInt(bytes.length);
+        return this.writeBytes(bytes);
+    }
+
+    public BinaryWriter writeInt(int value) {
+        this.ensure(4);
+        this.buffer[this.position++] = (byte)(value >>> 24);
+        this.buffer[this.position++] = (byte)(value >>> 16);
+        this.buffer[this.position++] = (byte)(value >>> 8);
+        this.buffer[this.position++] = (byte)value;
+        return this;
+    }
+
+    public BinaryWriter writeLong(long value) {
+        this.writeInt((int)(value >>> 32));
+        return this.writeInt((int)value);
+    }
+
+    public BinaryWriter writeFloat(float value) {
+        return this.writeInt(Float.floatToIntBits(value));
+    }
+
+    public BinaryWriter writeDouble(double value) {
+        return this.writeLong(Double.doubleToLongBits(value));
+    }
+
+    /**
+     * Writes an unsigned varint (7 bits per byte, 1 to 5 bytes).  Negative
+     * values always take 5 bytes -- use writeZigZagInt for signed values.
+     * @param value The value
+     * @return This writer
+     */
+    public BinaryWriter writeVarInt(int value) {
+        this.ensure(5);
+        while ((value & ~0x7F) != 0) {
+            this.buffer[this.position++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        this.buffer[this.position++] = (byte)value;
+        return this;
+    }
+
+    public BinaryWriter writeVarLong(long value) {
+        this.ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            this.buffer[this.position++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        this.buffer[this.position++] = (byte)value;
+        return this;
+    }
+
+    public BinaryWriter writeZigZagInt(int value) {
+        return this.writeVarInt((value << 1) ^ (value >> 31));
+    }
+
+    public BinaryWriter writeZigZagLong(long value) {
+        return this.writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Writes the string as UTF-8 prefixed with its byte length as a varint.
+     * ASCII-only strings are copied directly without an intermediate byte[].
+     * @param value The string
+     * @return This writer
+     */
+    public BinaryWriter writeString(String value) {
+        final int length = value.length();
+        boolean ascii = true;
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) >= 0x80) {
+                ascii = false;
+                break;
+            }
+        }
+        if (!ascii) {
+            return this.writeLengthPrefixed(value.getBytes(StandardCharsets.UTF_8));
+        }
+        this.writeVarInt(length);
+        this.ensure(length);
+        for (int i = 0; i < length; i++) {
+            this.buffer[this.position++] = (byte)value.charAt(i);
+        }
+        return this;
+    }
+
+}
@@ -0,0 +1,413 @@
+package com.fizzed.jedis;
+
+import com.fizzed.crux.uri.MutableUri;
+import com.fizzed.crux.uri.Uri;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisAskDataException;
+import redis.clients.jedis.exceptions.JedisClusterException;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.exceptions.JedisMovedDataException;
+
+/**
+ * A jedis pool for a redis cluster: a pool per master node plus a map of
+ * which node serves each of the 16384 hash slots (discovered with CLUSTER
+ * SLOTS from the seed nodes on first use).
+ *
+ * Commands on a key must borrow a connection to the node serving its slot
+ * with getResource(key), or better execute(key, callable) which also follows
+ * MOVED (the slot map is refreshed) and ASK (the command is retried once on
+ * the importing node after ASKING) redirects while slots are migrated.  A
+ * plain getResource() borrows from any node, which is only fine for commands
+ * on no keys (e.g. PING, INFO or PUBLISH).  Keys of multi-key commands must
+ * be in the same slot (see JedisClusterSlots.hashTagged()).
+ */
+public class ClusterJedisPool extends DefaultJedisPool {
+    static private final Logger log = LoggerFactory.getLogger(ClusterJedisPool.class);
+
+    // min time between refreshes of the slot map caused by redirects
+    static private final long MIN_REFRESH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100L);
+
+    private final List<HostAndPort> seeds;
+    private final int maxRedirects;
+    private final Function<HostAndPort,DefaultJedisPool> nodePoolFactory;
+    private final ConcurrentMap<HostAndPort,DefaultJedisPool> nodes;
+    private final AtomicReferenceArray<DefaultJedisPool> slots;
+    private final Object refreshLock;
+    private volatile boolean discovered;
+    private volatile long refreshedAt;
+    private volatile boolean closed;
+
+    /**
+     * Creates a new cluster pool.  Nothing is connected until first used.
+     * @param seeds The nodes to discover the cluster from
+     * @param maxRedirects The max number of redirects followed per command
+     * @param nodePoolFactory Creates the pool of a node
+     */
+    public ClusterJedisPool(Collection<HostAndPort> seeds, int maxRedirects, Function<HostAndPort,DefaultJedisPool> nodePoolFactory) {
+        super(ConcurrentJedisPool.unusedPoolConfig(), first(seeds).getHost(), first(seeds).getPort(),
+            Protocol.DEFAULT_TIMEOUT, Protocol.DEFAULT_TIMEOUT, null, null);
+        Objects.requireNonNull(nodePoolFactory, "nodePoolFactory was null");
+        this.seeds = new ArrayList<>(seeds);
+        this.maxRedirects = maxRedirects;
+        this.nodePoolFactory = nodePoolFactory;
+        this.nodes = new ConcurrentHashMap<>();
+        this.slots = new AtomicReferenceArray<>(JedisClusterSlots.SLOTS);
+        this.refreshLock = new Object();
+    }
+
+    static private HostAndPort first(Collection<HostAndPort> seeds) {
+        Objects.requireNonNull(seeds, "seeds was null");
+        if (seeds.isEmpty()) {
+            throw new IllegalArgumentException("seeds was empty");
+        }
+        return seeds.iterator().next();
+    }
+
+    @Override
+    public Uri getUri() {
+        final HostAndPort seed = this.seeds.get(0);
+        return new MutableUri()
+            .scheme("redis-cluster")
+            .host(seed.getHost())
+            .port(seed.getPort())
+            .immutable();
+    }
+
+    public List<HostAndPort> getSeeds() {
+        return seeds;
+    }
+
+    public int getMaxRedirects() {
+        return maxRedirects;
+    }
+
+    /**
+     * Gets the pools of the nodes currently serving slots (discovering the
+     * cluster if not yet).
+     * @return The pools of the nodes
+     */
+    public Collection<DefaultJedisPool> getNodes() {
+        this.discover();
+        final Set<DefaultJedisPool> serving = new LinkedHashSet<>();
+        for (int slot = 0; slot < JedisClusterSlots.SLOTS; slot++) {
+            final DefaultJedisPool node = this.slots.get(slot);
+            if (node != null) {
+                serving.add(node);
+            }
+        }
+        return serving;
+    }
+
+    private DefaultJedisPool node(HostAndPort hostAndPort) {
+        DefaultJedisPool node = this.nodes.get(hostAndPort);
+        if (node == null) {
+            if (this.closed) {
+                throw new JedisConnectionException("Could not get a resource from the pool",
+                    new IllegalStateException("Pool not open"));
+            }
+            node = this.nodes.computeIfAbsent(hostAndPort, hp -> {
+                final DefaultJedisPool pool = this.nodePoolFactory.apply(hp);
+                pool.setMetrics(this.getMetrics());
+                return pool;
+            });
+        }
+        return node;
+    }
+
+    /**
+     * Groups keys by the node currently serving their slots, so commands on
+     * the keys of a group may be pipelined on a single connection (see
+     * JedisClients.pipelined()).
+     * @param keys The keys
+     * @return The indexes of the keys by the pool of their node
+     */
+    public Map<DefaultJedisPool,List<Integer>> groupByNode(List<byte[]> keys) {
+        Objects.requireNonNull(keys, "keys was null");
+        final Map<DefaultJedisPool,List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            groups.computeIfAbsent(this.nodeOf(JedisClusterSlots.slot(keys.get(i))), node -> new ArrayList<>()).add(i);
+        }
+        return groups;
+    }
+
+    private DefaultJedisPool nodeOf(int slot) {
+        this.discover();
+        final DefaultJedisPool node = this.slots.get(slot);
+        if (node == null) {
+            throw new JedisClusterException("No node serves slot " + slot);
+        }
+        return node;
+    }
+
+    private void discover() {
+        if (!this.discovered) {
+            synchronized (this.refreshLock) {
+                if (!this.discovered) {
+                    this.refreshSlots();
+                }
+            }
+        }
+    }
+
+    /**
+     * Discovers which node serves each slot with CLUSTER SLOTS (asking the
+     * known nodes, then the seeds, until one answers).
+     */
+    public void refreshSlots() {
+        synchronized (this.refreshLock) {
+            final Set<HostAndPort> candidates = new LinkedHashSet<>(this.nodes.keySet());
+            candidates.addAll(this.seeds);
+
+            JedisException failure = null;
+            for (HostAndPort candidate : candidates) {
+                try (Jedis jedis = this.node(candidate).getResource()) {
+                    this.applySlots(candidate, jedis.clusterSlots());
+                    this.refreshedAt = System.nanoTime();
+                    this.discovered = true;
+                    return;
+                } catch (JedisException e) {
+                    if (this.closed) {
+                        throw e;
+                    }
+                    log.debug("Unable to get cluster slots from {}: {}", candidate, e.getMessage());
+                    failure = e;
+                }
+            }
+
+            throw new JedisConnectionException("Unable to discover cluster slots from " + candidates, failure);
+        }
+    }
+
+    private void applySlots(HostAndPort answeredBy, List<Object> reply) {
+        final DefaultJedisPool[] assigned = new DefaultJedisPool[JedisClusterSlots.SLOTS];
+
+        for (Object range : reply) {
+            // [start, end, [host, port, id], replicas...]
+            final List<?> fields = (List<?>)range;
+            final int start = ((Long)fields.get(0)).intValue();
+            final int end = ((Long)fields.get(1)).intValue();
+            final List<?> master = (List<?>)fields.get(2);
+            String host = new String((byte[])master.get(0), StandardCharsets.UTF_8);
+            if (host.isEmpty()) {
+                // the node answering does not know its own address
+                host = answeredBy.getHost();
+            }
+            final int port = ((Long)master.get(1)).intValue();
+            final DefaultJedisPool node = this.node(new HostAndPort(host, port));
+            for (int slot = start; slot <= end; slot++) {
+                assigned[slot] = node;
+            }
+        }
+
+        for (int slot = 0; slot < assigned.length; slot++) {
+            this.slots.set(slot, assigned[slot]);
+        }
+    }
+
+    /**
+     * Refreshes the slot map unless it was refreshed very recently (by
+     * another thread redirected for the same reason).
+     */
+    private void refreshSlotsSoon() {
+        if (System.nanoTime() - this.refreshedAt < MIN_REFRESH_INTERVAL_NANOS) {
+            return;
+        }
+        try {
+            this.refreshSlots();
+        } catch (JedisException e) {
+            log.warn("Unable to refresh cluster slots: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Borrows a connection to the node serving the slot of the key.  Unlike
+     * execute() redirects are not followed.
+     * @param key The key
+     * @return The connection (closed to return it to its node)
+     */
+    public Jedis getResource(byte[] key) {
+        return this.nodeOf(JedisClusterSlots.slot(key)).getResource();
+    }
+
+    public Jedis getResource(String key) {
+        return this.nodeOf(JedisClusterSlots.slot(key)).getResource();
+    }
+
+    /**
+     * Borrows a connection to any node.
+     * @return The connection (closed to return it to its node)
+     */
+    @Override
+    public Jedis getResource() {
+        // each node measures its own borrows
+        return this.nodeOf(ThreadLocalRandom.current().nextInt(JedisClusterSlots.SLOTS)).getResource();
+    }
+
+    /**
+     * Executes commands on a key with a connection to the node serving its
+     * slot, following MOVED and ASK redirects up to max redirects.  A redirect
+     * means the command was not executed, so it is safe to call the callable
+     * again.
+     * @param <R> The result type
+     * @param <E> The checked exception of the callable
+     * @param key The key (or any key in the same slot)
+     * @param callable The commands
+     * @return The result of the callable
+     * @throws E If the callable throws it
+     */
+    public <R,E extends Exception> R execute(byte[] key, JedisCallable<R,E> callable) throws E {
+        final int slot = JedisClusterSlots.slot(key);
+        DefaultJedisPool node = this.nodeOf(slot);
+        boolean asking = false;
+
+        for (int redirects = 0; ; redirects++) {
+            try (Jedis jedis = node.getResource()) {
+                if (asking) {
+                    jedis.asking();
+                }
+                return callable.call(jedis);
+            } catch (JedisMovedDataException e) {
+                if (redirects >= this.maxRedirects) {
+                    throw e;
+                }
+                // the slot moved for good, so the slot map is stale
+                node = this.node(e.getTargetNode());
+                this.slots.set(e.getSlot(), node);
+                this.refreshSlotsSoon();
+                asking = false;
+            } catch (JedisAskDataException e) {
+                if (redirects >= this.maxRedirects) {
+                    throw e;
+                }
+                // the slot is being migrated and the key is already on the target
+                node = this.node(e.getTargetNode());
+                asking = true;
+            } catch (JedisConnectionException e) {
+                // e.g. the node failed over (not retried: the command may have run)
+                if (!this.closed) {
+                    this.refreshSlotsSoon();
+                }
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void setMetrics(JedisMetrics metrics) {
+        super.setMetrics(metrics);
+        for (DefaultJedisPool node : this.nodes.values()) {
+            node.setMetrics(metrics);
+        }
+    }
+
+    @Override
+    public int prewarm() {
+        int idle = 0;
+        for (DefaultJedisPool node : this.getNodes()) {
+            idle += node.prewarm();
+        }
+        return idle;
+    }
+
+    @Override
+    public int getNumActive() {
+        int count = 0;
+        for (DefaultJedisPool node : this.nodes.values()) {
+            count += node.getNumActive();
+        }
+        return count;
+    }
+
+    @Override
+    public int getNumIdle() {
+        int count = 0;
+        for (DefaultJedisPool node : this.nodes.values()) {
+            count += node.getNumIdle();
+        }
+        return count;
+    }
+
+    @Override
+    public int getNumWaiters() {
+        int count = 0;
+        for (DefaultJedisPool node : this.nodes.values()) {
+            count += node.getNumWaiters();
+        }
+        return count;
+    }
+
+    @Override
+    public int getMaxTotal() {
+        int count = 0;
+        for (DefaultJedisPool node : this.nodes.values()) {
+            count += node.getMaxTotal();
+        }
+        return count;
+    }
+
+    @Override
+    public long getCreatedCount() {
+        long count = 0;
+        for (DefaultJedisPool node : this.nodes.values()) {
+            count += node.getCreatedCount();
+        }
+        return count;
+    }
+
+    @Override
+    public long getDestroyedCount() {
+        long count = 0;
+        for (DefaultJedisPool node : this.nodes.values()) {
+            count += node.getDestroyedCount();
+        }
+        return count;
+    }
+
+    @Override
+    public long getBorrowedCount() {
+        long count = 0;
+        for (DefaultJedisPool node : this.nodes.values()) {
+            count += node.getBorrowedCount();
+        }
+        return count;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    @Override
+    protected void closePool() {
+        this.closed = true;
+
+        // pools of nodes no longer serving slots are only closed here
+        for (DefaultJedisPool node : this.nodes.values()) {
+            node.close();
+        }
+
+        // the underlying (empty) commons pool
+        super.closePool();
+    }
+
+}
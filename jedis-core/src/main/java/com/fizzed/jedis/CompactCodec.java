@@ -0,0 +1,402 @@
+package com.fizzed.jedis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact binary codec for arbitrary objects.  Common JDK types (primitives,
+ * strings, byte arrays, lists, sets, maps, UUIDs, dates, etc.) are written as
+ * a single tag byte followed by varints or length-prefixed values, so they
+ * encode much faster and smaller than with Java serialization.  Application
+ * types are written by serializers registered with a small numeric id (which
+ * must never be reused for a different type once values are stored in redis).
+ * Anything else that is Serializable falls back to Java serialization.
+ *
+ * Only an ArrayList, HashSet, LinkedHashSet, HashMap or LinkedHashMap is
+ * written compactly (and read back as an ArrayList, LinkedHashSet or
+ * LinkedHashMap), since every other collection (e.g. a TreeMap, an
+ * unmodifiable list or a subclass) would not be read back as the same type.
+ * They fall back to Java serialization, or if not Serializable, are written
+ * compactly as a last resort.
+ *
+ * The first byte of a value is always a tag in the range 0x00-0x1F, so ASCII
+ * digits (used by counters) and 0xF0-0xFF (reserved for wrapping codecs) are
+ * never a first byte. Values starting with 0xAC (the magic of a plain Java
+ * serialization stream) were written by earlier versions and still decode.
+ */
+public class CompactCodec implements JedisCodec<Object> {
+
+    /**
+     * Writes and reads one registered application type.
+     * @param <T> The type
+     */
+    public interface Serializer<T> {
+
+        void write(BinaryWriter writer, T value);
+
+        T read(BinaryReader reader);
+
+    }
+
+    static private final int NULL = 0x00;
+    static private final int TRUE = 0x01;
+    static private final int FALSE = 0x02;
+    static private final int INT = 0x03;
+    static private final int LONG = 0x04;
+    static private final int DOUBLE = 0x05;
+    static private final int FLOAT = 0x06;
+    static private final int SHORT = 0x07;
+    static private final int BYTE = 0x08;
+    static private final int CHAR = 0x09;
+    static private final int STRING = 0x0A;
+    static private final int BYTES = 0x0B;
+    static private final int LIST = 0x0C;
+    static private final int SET = 0x0D;
+    static private final int MAP = 0x0E;
+    static private final int UUID_ = 0x0F;
+    static private final int DATE = 0x10;
+    static private final int INSTANT = 0x11;
+    static private final int BIG_INTEGER = 0x12;
+    static private final int BIG_DECIMAL = 0x13;
+    static private final int REGISTERED = 0x1E;
+    static private final int JAVA = 0x1F;
+    static private final int LEGACY_JAVA = 0xAC;     // first byte of java serialization stream magic
+
+    static private class Registration<T> {
+
+        private final int id;
+        private final Class<T> type;
+        private final Serializer<T> serializer;
+
+        public Registration(int id, Class<T> type, Serializer<T> serializer) {
+            this.id = id;
+            this.type = type;
+            this.serializer = serializer;
+        }
+
+    }
+
+    private final Map<Class<?>,Registration<?>> registrationsByType;
+    private final Map<Integer,Registration<?>> registrationsById;
+
+    public CompactCodec() {
+        this.registrationsByType = new ConcurrentHashMap<>();
+        this.registrationsById = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Registers a serializer for an application type.  Registrations should
+     * be done once at startup, before any values are encoded or decoded.
+     * @param <T> The type
+     * @param id The id written with every value (must be >= 0)
+     * @param type The exact class (subclasses are not matched)
+     * @param serializer The serializer
+     * @return This codec
+     */
+    public <T> CompactCodec register(int id, Class<T> type, Serializer<T> serializer) {
+        Objects.requireNonNull(type, "type was null");
+        Objects.requireNonNull(serializer, "serializer was null");
+        if (id < 0) {
+            throw new IllegalArgumentException("id must be >= 0");
+        }
+        Registration<T> registration = new Registration<>(id, type, serializer);
+        if (this.registrationsById.putIfAbsent(id, registration) != null) {
+            throw new IllegalArgumentException("Serializer id " + id + " already registered");
+        }
+        if (this.registrationsByType.putIfAbsent(type, registration) != null) {
+            this.registrationsById.remove(id);
+            throw new IllegalArgumentException("Serializer for " + type.getName() + " already registered");
+        }
+        return this;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        final BinaryWriter writer = BinaryWriter.acquire();
+        try {
+            this.write(writer, value);
+            return writer.toByteArray();
+        } finally {
+            BinaryWriter.release(writer);
+        }
+    }
+
+    @Override
+    public Object decode(byte[] bytes) {
+        if (bytes == null) {
+            return null;
+        }
+        if (bytes.length > 0 && (bytes[0] & 0xFF) == LEGACY_JAVA) {
+            return javaDeserialize(bytes, 0, bytes.length);
+        }
+        return this.read(new BinaryReader(bytes));
+    }
+
+    /**
+     * Writes a value (including its tag) so serializers of registered types
+     * can write nested objects.
+     * @param writer The writer
+     * @param value The value
+     */
+    @SuppressWarnings("unchecked")
+    public void write(BinaryWriter writer, Object value) {
+        if (value == null) {
+            writer.writeByte(NULL);
+        } else if (value instanceof String) {
+            writer.writeByte(STRING).writeString((String)value);
+        } else if (value instanceof Integer) {
+            writer.writeByte(INT).writeZigZagInt((Integer)value);
+        } else if (value instanceof Long) {
+            writer.writeByte(LONG).writeZigZagLong((Long)value);
+        } else if (value instanceof Boolean) {
+            writer.writeByte((Boolean)value ? TRUE : FALSE);
+        } else if (value instanceof Double) {
+            writer.writeByte(DOUBLE).writeDouble((Double)value);
+        } else if (value instanceof Float) {
+            writer.writeByte(FLOAT).writeFloat((Float)value);
+        } else if (value instanceof Short) {
+            writer.writeByte(SHORT).writeZigZagInt((Short)value);
+        } else if (value instanceof Byte) {
+            writer.writeByte(BYTE).writeByte((Byte)value);
+        } else if (value instanceof Character) {
+            writer.writeByte(CHAR).writeVarInt((Character)value);
+        } else if (value instanceof byte[]) {
+            writer.writeByte(BYTES).writeLengthPrefixed((byte[])value);
+        } else if (value instanceof UUID) {
+            UUID uuid = (UUID)value;
+            writer.writeByte(UUID_).writeLong(uuid.getMostSignificantBits()).writeLong(uuid.getLeastSignificantBits());
+        } else if (value.getClass() == Date.class) {
+            writer.writeByte(DATE).writeZigZagLong(((Date)value).getTime());
+        } else if (value instanceof Instant) {
+            Instant instant = (Instant)value;
+            writer.writeByte(INSTANT).writeZigZagLong(instant.getEpochSecond()).writeVarInt(instant.getNano());
+        } else if (value instanceof BigInteger) {
+            writer.writeByte(BIG_INTEGER).writeLengthPrefixed(((BigInteger)value).toByteArray());
+        } else if (value instanceof BigDecimal) {
+            BigDecimal decimal = (BigDecimal)value;
+            writer.writeByte(BIG_DECIMAL).writeZigZagInt(decimal.scale())
+                .writeLengthPrefixed(decimal.unscaledValue().toByteArray());
+        } else {
+            Registration<Object> registration = (Registration<Object>)this.registrationsByType.get(value.getClass());
+            if (registration != null) {
+                writer.writeByte(REGISTERED).writeVarInt(registration.id);
+                registration.serializer.write(writer, value);
+            } else if (isCompactCollection(value.getClass())) {
+                this.writeCollection(writer, value);
+            } else if (value instanceof Serializable) {
+                writer.writeByte(JAVA).writeLengthPrefixed(javaSerialize(value));
+            } else if (value instanceof List || value instanceof Set || value instanceof Map) {
+                this.writeCollection(writer, value);
+            } else {
+                throw new IllegalArgumentException("Unable to encode " + value.getClass().getName()
+                    + " (not registered and not serializable)");
+            }
+        }
+    }
+
+    /**
+     * Whether the type of a collection is read back as the same (or an equal
+     * and compatible) type if written compactly.
+     * @param type The exact class
+     * @return True if written compactly
+     */
+    static private boolean isCompactCollection(Class<?> type) {
+        return type == ArrayList.class
+            || type == HashSet.class || type == LinkedHashSet.class
+            || type == HashMap.class || type == LinkedHashMap.class;
+    }
+
+    private void writeCollection(BinaryWriter writer, Object value) {
+        if (value instanceof List) {
+            writer.writeByte(LIST);
+            this.writeElements(writer, (Collection<?>)value);
+        } else if (value instanceof Set) {
+            writer.writeByte(SET);
+            this.writeElements(writer, (Collection<?>)value);
+        } else {
+            Map<?,?> map = (Map<?,?>)value;
+            writer.writeByte(MAP).writeVarInt(map.size());
+            for (Map.Entry<?,?> entry : map.entrySet()) {
+                this.write(writer, entry.getKey());
+                this.write(writer, entry.getValue());
+            }
+        }
+    }
+
+    private void writeElements(BinaryWriter writer, Collection<?> values) {
+        writer.writeVarInt(values.size());
+        for (Object value : values) {
+            this.write(writer, value);
+        }
+    }
+
+    /**
+     * Reads a value written by write().
+     * @param reader The reader
+     * @return The value
+     */
+    public Object read(BinaryReader reader) {
+        final int tag = reader.readByte() & 0xFF;
+        switch (tag) {
+            case NULL:
+                return null;
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case INT:
+                return reader.readZigZagInt();
+            case LONG:
+                return reader.readZigZagLong();
+            case DOUBLE:
+                return reader.readDouble();
+            case FLOAT:
+                return reader.readFloat();
+            case SHORT:
+                return (short)reader.readZigZagInt();
+            case BYTE:
+                return (byte)reader.readByte();
+            case CHAR:
+                return (char)reader.readVarInt();
+            case STRING:
+                return reader.readString();
+            case BYTES:
+                return reader.readLengthPrefixed();
+            case LIST: {
+                int size = readSize(reader);
+                List<Object> list = new ArrayList<>(Math.min(size, reader.remaining()));
+                for (int i = 0; i < size; i++) {
+                    list.add(this.read(reader));
+                }
+                return list;
+            }
+            case SET: {
+                int size = readSize(reader);
+                Set<Object> set = new LinkedHashSet<>(capacity(size, reader));
+                for (int i = 0; i < size; i++) {
+                    set.add(this.read(reader));
+                }
+                return set;
+            }
+            case MAP: {
+                int size = readSize(reader);
+                Map<Object,Object> map = new LinkedHashMap<>(capacity(size, reader));
+                for (int i = 0; i < size; i++) {
+                    map.put(this.read(reader), this.read(reader));
+                }
+                return map;
+            }
+            case UUID_:
+                return new UUID(reader.readLong(), reader.readLong());
+            case DATE:
+                return new Date(reader.readZigZagLong());
+            case INSTANT:
+                return Instant.ofEpochSecond(reader.readZigZagLong(), reader.readVarInt());
+            case BIG_INTEGER:
+                return new BigInteger(reader.readLengthPrefixed());
+            case BIG_DECIMAL: {
+                int scale = reader.readZigZagInt();
+                return new BigDecimal(new BigInteger(reader.readLengthPrefixed()), scale);
+            }
+            case JAVA: {
+                int length = reader.readVarInt();
+                byte[] bytes = reader.readBytes(length);
+                return javaDeserialize(bytes, 0, length);
+            }
+            case REGISTERED: {
+                int id = reader.readVarInt();
+                Registration<?> registration = this.registrationsById.get(id);
+                if (registration == null) {
+                    throw new IllegalArgumentException("No serializer registered for id " + id);
+                }
+                return registration.serializer.read(reader);
+            }
+            default:
+                throw new IllegalArgumentException("Unsupported tag 0x" + Integer.toHexString(tag)
+                    + " at position " + (reader.position() - 1));
+        }
+    }
+
+    static private int readSize(BinaryReader reader) {
+        final int position = reader.position();
+        final int size = reader.readVarInt();
+        if (size < 0) {
+            throw new IllegalArgumentException("Negative size " + size + " at position " + position);
+        }
+        return size;
+    }
+
+    // every element takes at least a byte, so a corrupt size cannot allocate
+    // more than the remaining input would fill
+    static private int capacity(int size, BinaryReader reader) {
+        return (int)(Math.min(size, reader.remaining()) / 0.75f) + 1;
+    }
+
+    static public byte[] javaSerialize(Object value) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(baos)) {
+                out.writeObject(value);
+            }
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Deserializes a value with classes resolved by the context class loader of
+     * the calling thread or, if it has none (or they are not visible to it),
+     * the class loader of this codec.
+     * @param bytes The bytes
+     * @param offset The offset of the value
+     * @param length The length of the value
+     * @return The value
+     */
+    static public Object javaDeserialize(byte[] bytes, int offset, int length) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes, offset, length)) {
+            @Override
+            protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                ClassLoader loader = Thread.currentThread().getContextClassLoader();
+                if (loader == null) {
+                    loader = CompactCodec.class.getClassLoader();
+                }
+                try {
+                    return Class.forName(desc.getName(), false, loader);
+                } catch (ClassNotFoundException e) {
+                    // also resolves primitive types
+                    return super.resolveClass(desc);
+                }
+            }
+        }) {
+            return in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException(e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+}
@@ -0,0 +1,350 @@
+package com.fizzed.jedis;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+
+/**
+ * Wraps a codec and compresses its encoded bytes once they reach a size
+ * threshold.  Compressed values start with a header byte followed by the
+ * uncompressed length as a varint:
+ *
+ * <pre>
+ *   0xF8  value below the threshold whose first byte collided with a header
+ *   0xF9  deflate
+ *   0xFA  deflate with the preset dictionary
+ *   0xFB  lz4 (requires the optional org.lz4:lz4-java dependency)
+ * </pre>
+ *
+ * Values below the threshold are stored exactly as the wrapped codec encoded
+ * them, so values written before compression was enabled (or by the wrapped
+ * codec alone) still decode as long as they do not start with 0xF8-0xFB.
+ * CompactCodec, java serialization and UTF-8 strings/JSON never do (those
+ * bytes are never valid in UTF-8).
+ *
+ * Since the uncompressed length is read from the value itself, values that
+ * declare more than the max length are rejected before anything is allocated
+ * (so a corrupt or hostile value cannot exhaust the heap).
+ *
+ * @param <T> The type of value
+ */
+public class CompressingCodec<T> implements JedisCodec<T> {
+
+    static public final int DEFAULT_THRESHOLD = 1024;
+    static public final int DEFAULT_MAX_LENGTH = 64 * 1024 * 1024;
+
+    static private final int RAW = 0xF8;
+    static private final int DEFLATE = 0xF9;
+    static private final int DEFLATE_DICTIONARY = 0xFA;
+    static private final int LZ4 = 0xFB;
+
+    static private final int CHUNK_SIZE = 8192;
+    static private final ThreadLocal<byte[]> CHUNKS = ThreadLocal.withInitial(() -> new byte[CHUNK_SIZE]);
+
+    public enum Algorithm {
+        DEFLATE,
+        LZ4
+    }
+
+    private final JedisCodec<T> codec;
+    private final Algorithm algorithm;
+    private int threshold;
+    private int maxLength;
+    private int level;
+    private byte[] dictionary;
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters;
+
+    public CompressingCodec(JedisCodec<T> codec, Algorithm algorithm) {
+        Objects.requireNonNull(codec, "codec was null");
+        Objects.requireNonNull(algorithm, "algorithm was null");
+        if (algorithm == Algorithm.LZ4 && !isLz4Available()) {
+            throw new IllegalStateException("LZ4 compression requires org.lz4:lz4-java on the classpath");
+        }
+        this.codec = codec;
+        this.algorithm = algorithm;
+        this.threshold = DEFAULT_THRESHOLD;
+        this.maxLength = DEFAULT_MAX_LENGTH;
+        this.level = Deflater.BEST_SPEED;
+        // deflaters/inflaters hold native memory and are expensive to create
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(this.level));
+        this.inflaters = ThreadLocal.withInitial(Inflater::new);
+    }
+
+    static public <T> CompressingCodec<T> deflate(JedisCodec<T> codec) {
+        return new CompressingCodec<>(codec, Algorithm.DEFLATE);
+    }
+
+    static public <T> CompressingCodec<T> deflate(Function<T,byte[]> encode, Function<byte[],T> decode) {
+        return deflate(JedisCodec.of(encode, decode));
+    }
+
+    static public <T> CompressingCodec<T> lz4(JedisCodec<T> codec) {
+        return new CompressingCodec<>(codec, Algorithm.LZ4);
+    }
+
+    static public <T> CompressingCodec<T> lz4(Function<T,byte[]> encode, Function<byte[],T> decode) {
+        return lz4(JedisCodec.of(encode, decode));
+    }
+
+    static public boolean isLz4Available() {
+        return Lz4Holder.FACTORY != null;
+    }
+
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Sets the min size of an encoded value before it is compressed.
+     * @param threshold The min size in bytes (0 to always compress)
+     * @return This codec
+     */
+    public CompressingCodec<T> setThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must be >= 0");
+        }
+        this.threshold = threshold;
+        return this;
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * Sets the max uncompressed length of a value that is decoded.
+     * @param maxLength The max length in bytes (must be > 0)
+     * @return This codec
+     */
+    public CompressingCodec<T> setMaxLength(int maxLength) {
+        if (maxLength <= 0) {
+            throw new IllegalArgumentException("maxLength must be > 0");
+        }
+        this.maxLength = maxLength;
+        return this;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Sets the deflate level (1 is fastest, 9 is smallest).  Must be set
+     * before the codec is used.
+     * @param level The deflate level
+     * @return This codec
+     */
+    public CompressingCodec<T> setLevel(int level) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("level must be between 1 and 9");
+        }
+        this.level = level;
+        return this;
+    }
+
+    public byte[] getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Sets a preset deflate dictionary: typically a sample of the keys and
+     * values common to many payloads (e.g. JSON field names).  Helps most with
+     * values that are too small to compress well on their own.  Values written
+     * with a dictionary can only be decoded with the same dictionary.  Must be
+     * set before the codec is used.
+     * @param dictionary The dictionary or null for none
+     * @return This codec
+     */
+    public CompressingCodec<T> setDictionary(byte[] dictionary) {
+        if (dictionary != null && this.algorithm != Algorithm.DEFLATE) {
+            throw new IllegalArgumentException("Dictionaries are only supported with deflate");
+        }
+        this.dictionary = dictionary;
+        return this;
+    }
+
+    @Override
+    public byte[] encode(T value) {
+        final byte[] bytes = this.codec.encode(value);
+
+        if (bytes == null) {
+            return null;
+        }
+
+        if (bytes.length >= this.threshold && bytes.length > 0) {
+            byte[] compressed = (this.algorithm == Algorithm.LZ4 ? this.lz4(bytes) : this.deflate(bytes));
+            // incompressible data is stored raw
+            if (compressed.length < bytes.length) {
+                return compressed;
+            }
+        }
+
+        if (bytes.length > 0 && isHeader(bytes[0])) {
+            byte[] escaped = new byte[bytes.length + 1];
+            escaped[0] = (byte)RAW;
+            System.arraycopy(bytes, 0, escaped, 1, bytes.length);
+            return escaped;
+        }
+
+        return bytes;
+    }
+
+    @Override
+    public T decode(byte[] bytes) {
+        if (bytes == null || bytes.length == 0 || !isHeader(bytes[0])) {
+            return this.codec.decode(bytes);
+        }
+
+        final BinaryReader reader = new BinaryReader(bytes);
+        final int header = reader.readByte() & 0xFF;
+
+        if (header == RAW) {
+            return this.codec.decode(reader.readBytes(reader.remaining()));
+        }
+
+        final int length = reader.readVarInt();
+        if (length < 0 || length > this.maxLength) {
+            throw new IllegalArgumentException("Compressed value length " + (length & 0xFFFFFFFFL)
+                + " exceeds max length " + this.maxLength);
+        }
+        final byte[] uncompressed = new byte[length];
+        final int offset = reader.position();
+
+        if (header == LZ4) {
+            if (!isLz4Available()) {
+                throw new IllegalStateException("LZ4 compressed value requires org.lz4:lz4-java on the classpath");
+            }
+            this.lz4Decompress(bytes, offset, uncompressed);
+        } else {
+            this.inflate(header, bytes, offset, uncompressed);
+        }
+
+        return this.codec.decode(uncompressed);
+    }
+
+    static private boolean isHeader(byte b) {
+        int v = b & 0xFF;
+        return v >= RAW && v <= LZ4;
+    }
+
+    private byte[] deflate(byte[] bytes) {
+        final Deflater deflater = this.deflaters.get();
+        final BinaryWriter writer = BinaryWriter.acquire();
+        try {
+            deflater.reset();
+            if (this.dictionary != null) {
+                deflater.setDictionary(this.dictionary);
+            }
+            deflater.setInput(bytes);
+            deflater.finish();
+
+            writer.writeByte(this.dictionary != null ? DEFLATE_DICTIONARY : DEFLATE);
+            writer.writeVarInt(bytes.length);
+
+            final byte[] chunk = CHUNKS.get();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(chunk);
+                writer.writeBytes(chunk, 0, n);
+            }
+
+            return writer.toByteArray();
+        } finally {
+            BinaryWriter.release(writer);
+        }
+    }
+
+    private void inflate(int header, byte[] bytes, int offset, byte[] uncompressed) {
+        final Inflater inflater = this.inflaters.get();
+        try {
+            inflater.reset();
+            inflater.setInput(bytes, offset, bytes.length - offset);
+            int position = 0;
+            while (position < uncompressed.length) {
+                int n = inflater.inflate(uncompressed, position, uncompressed.length - position);
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        if (header != DEFLATE_DICTIONARY || this.dictionary == null) {
+                            throw new IllegalStateException("Compressed value requires a dictionary");
+                        }
+                        try {
+                            inflater.setDictionary(this.dictionary);
+                        } catch (IllegalArgumentException e) {
+                            throw new IllegalStateException("Compressed value requires a different dictionary", e);
+                        }
+                    } else if (inflater.finished() || inflater.needsInput()) {
+                        throw new IllegalArgumentException("Compressed value truncated");
+                    }
+                }
+                position += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Invalid compressed value", e);
+        }
+    }
+
+    private void lz4Decompress(byte[] bytes, int offset, byte[] uncompressed) {
+        final int n;
+        try {
+            // never reads or writes past either array, unlike the fast decompressor
+            n = Lz4Holder.DECOMPRESSOR.decompress(bytes, offset, bytes.length - offset, uncompressed, 0, uncompressed.length);
+        } catch (LZ4Exception e) {
+            throw new IllegalArgumentException("Invalid compressed value", e);
+        }
+        if (n != uncompressed.length) {
+            throw new IllegalArgumentException("Compressed value truncated");
+        }
+    }
+
+    private byte[] lz4(byte[] bytes) {
+        final LZ4Compressor compressor = Lz4Holder.COMPRESSOR;
+        final BinaryWriter header = BinaryWriter.acquire();
+        try {
+            header.writeByte(LZ4).writeVarInt(bytes.length);
+            final int headerLength = header.size();
+            final byte[] compressed = new byte[headerLength + compressor.maxCompressedLength(bytes.length)];
+            System.arraycopy(header.toByteArray(), 0, compressed, 0, headerLength);
+            int n = compressor.compress(bytes, 0, bytes.length, compressed, headerLength, compressed.length - headerLength);
+            return Arrays.copyOf(compressed, headerLength + n);
+        } finally {
+            BinaryWriter.release(header);
+        }
+    }
+
+    // lazily loaded so lz4-java is only required if lz4 is used
+    static private class Lz4Holder {
+
+        static private final LZ4Factory FACTORY;
+        static private final LZ4Compressor COMPRESSOR;
+        static private final LZ4SafeDecompressor DECOMPRESSOR;
+
+        static {
+            LZ4Factory factory = null;
+            LZ4Compressor compressor = null;
+            LZ4SafeDecompressor decompressor = null;
+            try {
+                factory = LZ4Factory.fastestInstance();
+                compressor = factory.fastCompressor();
+                decompressor = factory.safeDecompressor();
+            } catch (Throwable t) {
+                factory = null;
+            }
+            FACTORY = factory;
+            COMPRESSOR = compressor;
+            DECOMPRESSOR = decompressor;
+        }
+
+    }
+
+}
@@ -0,0 +1,520 @@
+package com.fizzed.jedis;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.PooledObjectFactory;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * A jedis pool that borrows and returns connections without locks (in the
+ * style of HikariCP's ConcurrentBag) rather than via commons-pool's
+ * GenericObjectPool, whose locks and deque are contended with hundreds of
+ * threads.
+ *
+ * Each connection is claimed by a compare-and-set of its state.  A borrow
+ * first tries the connections the thread itself returned most recently (which
+ * are usually idle), then any idle connection, then opens a new one if below
+ * the max, and otherwise parks until a returned connection is handed off to
+ * it directly.  A return only hands off (a single non-blocking offer) if a
+ * borrower is parked, otherwise the connection is simply left idle, and a
+ * parked borrower re-checks for idle connections it may have missed every
+ * 10ms.  Returns find their connection in an identity map (copied on write,
+ * since connections are rarely opened or closed) rather than a scan.
+ *
+ * Of the pool config, max total, min idle, max wait, test on borrow, test
+ * while idle, the eviction interval and min evictable idle time are honored.
+ * LIFO is implied by the thread affinity and waiters are always served
+ * fairly, while max idle is not supported (idle connections beyond min idle
+ * are only closed by eviction).
+ *
+ * Closing the pool forcibly closes connections still borrowed from it, the
+ * same as DefaultJedisPool.
+ */
+public class ConcurrentJedisPool extends DefaultJedisPool {
+    static private final Logger log = LoggerFactory.getLogger(ConcurrentJedisPool.class);
+
+    static private final int IDLE = 0;
+    static private final int IN_USE = 1;
+    static private final int REMOVED = 2;
+
+    // max connections each thread remembers having returned
+    static private final int MAX_RECENT = 16;
+    // how often a waiter re-checks for idle connections it may have missed
+    static private final long WAIT_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10L);
+
+    static private final class Entry {
+
+        private final PooledObject<Jedis> pooledObject;
+        private final Jedis jedis;
+        private final AtomicInteger state;
+        // nanoTime when last returned (0 if never)
+        private volatile long returnedAt;
+
+        private Entry(PooledObject<Jedis> pooledObject, int state) {
+            this.pooledObject = pooledObject;
+            this.jedis = pooledObject.getObject();
+            this.state = new AtomicInteger(state);
+        }
+
+    }
+
+    private final PooledObjectFactory<Jedis> factory;
+    private final int maxTotal;
+    private final int minIdle;
+    private final long maxWaitNanos;
+    private final boolean testOnBorrow;
+    private final boolean testWhileIdle;
+    private final long minEvictableIdleNanos;
+    private final CopyOnWriteArrayList<Entry> entries;
+    // by connection, replaced (under the lock) whenever one is added or removed
+    private final Object entriesLock;
+    private volatile Map<Jedis,Entry> entriesByJedis;
+    private final ThreadLocal<List<Entry>> recent;
+    private final SynchronousQueue<Entry> handoff;
+    private final AtomicInteger total;
+    private final AtomicInteger waiters;
+    // borrowers parked waiting for a handoff (a subset of the waiters)
+    private final AtomicInteger parked;
+    private final LongAdder createdCount;
+    private final LongAdder destroyedCount;
+    private final LongAdder borrowedCount;
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed;
+
+    public ConcurrentJedisPool(GenericObjectPoolConfig poolConfig, String host, Integer port, Integer connectionTimeout, Integer soTimeout, String password, Integer database) {
+        // the underlying commons pool stays empty (only its factory is used)
+        super(unusedPoolConfig(), host, port, connectionTimeout, soTimeout, password, database);
+        this.factory = this.internalPool.getFactory();
+        this.maxTotal = (poolConfig.getMaxTotal() > 0 ? poolConfig.getMaxTotal() : Integer.MAX_VALUE);
+        this.minIdle = Math.max(0, Math.min(poolConfig.getMinIdle(), this.maxTotal));
+        this.maxWaitNanos = (poolConfig.getMaxWaitMillis() >= 0 && poolConfig.getBlockWhenExhausted()
+            ? TimeUnit.MILLISECONDS.toNanos(poolConfig.getMaxWaitMillis()) : -1L);
+        this.testOnBorrow = poolConfig.getTestOnBorrow();
+        this.testWhileIdle = poolConfig.getTestWhileIdle();
+        this.minEvictableIdleNanos = (poolConfig.getMinEvictableIdleTimeMillis() > 0
+            ? TimeUnit.MILLISECONDS.toNanos(poolConfig.getMinEvictableIdleTimeMillis()) : Long.MAX_VALUE);
+        this.entries = new CopyOnWriteArrayList<>();
+        this.entriesLock = new Object();
+        this.entriesByJedis = new IdentityHashMap<>();
+        this.recent = ThreadLocal.withInitial(() -> new ArrayList<>(MAX_RECENT));
+        // fair so the longest waiting borrower is handed off to first
+        this.handoff = new SynchronousQueue<>(true);
+        this.total = new AtomicInteger();
+        this.waiters = new AtomicInteger();
+        this.parked = new AtomicInteger();
+        this.createdCount = new LongAdder();
+        this.destroyedCount = new LongAdder();
+        this.borrowedCount = new LongAdder();
+
+        final long evictionInterval = poolConfig.getTimeBetweenEvictionRunsMillis();
+        if (evictionInterval > 0) {
+            this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "jedis-pool-evictor");
+                t.setDaemon(true);
+                return t;
+            });
+            this.evictor.scheduleWithFixedDelay(this::evict, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+        } else {
+            this.evictor = null;
+        }
+    }
+
+    static GenericObjectPoolConfig unusedPoolConfig() {
+        final GenericObjectPoolConfig poolConfig = new GenericObjectPoolConfig();
+        poolConfig.setMinIdle(0);
+        poolConfig.setTimeBetweenEvictionRunsMillis(-1L);
+        return poolConfig;
+    }
+
+    @Override
+    protected Jedis borrowResource() {
+        final long deadline = (this.maxWaitNanos >= 0 ? System.nanoTime() + this.maxWaitNanos : Long.MAX_VALUE);
+
+        while (true) {
+            final Entry entry = this.take(deadline);
+
+            try {
+                this.factory.activateObject(entry.pooledObject);
+                // a connection just opened does not need testing
+                if (this.testOnBorrow && entry.returnedAt != 0L && !this.factory.validateObject(entry.pooledObject)) {
+                    throw new JedisConnectionException("Validation of pooled connection failed");
+                }
+            } catch (Exception e) {
+                this.remove(entry);
+                if (entry.returnedAt == 0L) {
+                    throw new JedisConnectionException("Could not get a resource from the pool", e);
+                }
+                // try another connection
+                continue;
+            }
+
+            entry.jedis.setDataSource(this);
+            this.borrowedCount.increment();
+            return entry.jedis;
+        }
+    }
+
+    private Entry take(long deadline) {
+        this.checkOpen();
+
+        // thread-affine fast path: connections this thread returned recently
+        final List<Entry> recentEntries = this.recent.get();
+        for (int i = recentEntries.size() - 1; i >= 0; i--) {
+            final Entry entry = recentEntries.remove(i);
+            if (entry.state.compareAndSet(IDLE, IN_USE)) {
+                return entry;
+            }
+        }
+
+        this.waiters.incrementAndGet();
+        try {
+            while (true) {
+                // any idle connection
+                for (Entry entry : this.entries) {
+                    if (entry.state.compareAndSet(IDLE, IN_USE)) {
+                        return entry;
+                    }
+                }
+
+                // a new connection (if below max)
+                final Entry created = this.create(IN_USE);
+                if (created != null) {
+                    return created;
+                }
+
+                // one handed off as its returned
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new JedisException("Could not get a resource from the pool",
+                        new NoSuchElementException("Timeout waiting for idle object"));
+                }
+
+                final Entry entry = this.park(Math.min(remaining, WAIT_POLL_NANOS));
+                if (entry != null && entry.state.compareAndSet(IDLE, IN_USE)) {
+                    return entry;
+                }
+
+                this.checkOpen();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JedisException("Could not get a resource from the pool", e);
+        } finally {
+            this.waiters.decrementAndGet();
+        }
+    }
+
+    private Entry park(long nanos) throws InterruptedException {
+        this.parked.incrementAndGet();
+        try {
+            // one may have been returned before this borrower was counted as
+            // parked (and so was not handed off)
+            for (Entry entry : this.entries) {
+                if (entry.state.get() == IDLE) {
+                    return entry;
+                }
+            }
+            return this.handoff.poll(nanos, TimeUnit.NANOSECONDS);
+        } finally {
+            this.parked.decrementAndGet();
+        }
+    }
+
+    private void checkOpen() {
+        if (this.closed) {
+            throw new JedisConnectionException("Could not get a resource from the pool",
+                new IllegalStateException("Pool not open"));
+        }
+    }
+
+    private Entry create(int state) {
+        // reserve a slot
+        int count;
+        do {
+            count = this.total.get();
+            if (count >= this.maxTotal) {
+                return null;
+            }
+        } while (!this.total.compareAndSet(count, count + 1));
+
+        final PooledObject<Jedis> pooledObject;
+        try {
+            pooledObject = this.factory.makeObject();
+        } catch (Exception e) {
+            this.total.decrementAndGet();
+            throw new JedisConnectionException("Could not get a resource from the pool", e);
+        }
+
+        final Entry entry = new Entry(pooledObject, state);
+        synchronized (this.entriesLock) {
+            final Map<Jedis,Entry> byJedis = new IdentityHashMap<>(this.entriesByJedis);
+            byJedis.put(entry.jedis, entry);
+            this.entriesByJedis = byJedis;
+            this.entries.add(entry);
+        }
+        this.createdCount.increment();
+
+        // the pool may have been closed while connecting
+        if (this.closed) {
+            this.remove(entry);
+            this.checkOpen();
+        }
+
+        return entry;
+    }
+
+    private Entry find(Jedis jedis) {
+        return this.entriesByJedis.get(jedis);
+    }
+
+    private void unregister(Entry entry) {
+        synchronized (this.entriesLock) {
+            final Map<Jedis,Entry> byJedis = new IdentityHashMap<>(this.entriesByJedis);
+            byJedis.remove(entry.jedis);
+            this.entriesByJedis = byJedis;
+            this.entries.remove(entry);
+        }
+    }
+
+    private void remove(Entry entry) {
+        if (entry.state.getAndSet(REMOVED) == REMOVED) {
+            return;
+        }
+
+        this.unregister(entry);
+        this.total.decrementAndGet();
+        this.destroyedCount.increment();
+
+        try {
+            this.factory.destroyObject(entry.pooledObject);
+        } catch (Exception e) {
+            log.debug("Unable to cleanly destroy jedis client: {}", e.getMessage());
+        }
+    }
+
+    // deprecated for callers, but still what JedisPool.returnResource (and so
+    // Jedis.close) delegates to
+    @Override
+    @SuppressWarnings("deprecation")
+    public void returnResourceObject(Jedis resource) {
+        final Entry entry = this.find(resource);
+
+        if (entry == null) {
+            // not (or no longer) part of this pool
+            resource.getClient().close();
+            return;
+        }
+
+        if (entry.state.get() != IN_USE) {
+            // returned twice
+            return;
+        }
+
+        try {
+            this.factory.passivateObject(entry.pooledObject);
+        } catch (Exception e) {
+            this.remove(entry);
+            return;
+        }
+
+        entry.returnedAt = System.nanoTime();
+
+        if (this.closed || !entry.state.compareAndSet(IN_USE, IDLE)) {
+            this.remove(entry);
+            return;
+        }
+
+        // hand off directly to a parked borrower (if none is polling right
+        // now, it finds the connection idle when it next checks)
+        if (this.parked.get() > 0 && this.handoff.offer(entry)) {
+            return;
+        }
+
+        final List<Entry> recentEntries = this.recent.get();
+        if (recentEntries.size() >= MAX_RECENT) {
+            recentEntries.remove(0);
+        }
+        recentEntries.add(entry);
+    }
+
+    @Override
+    protected void returnBrokenResourceObject(Jedis resource) {
+        final Entry entry = this.find(resource);
+
+        if (entry != null) {
+            this.remove(entry);
+        } else {
+            resource.getClient().close();
+        }
+    }
+
+    /**
+     * Closes connections idle for longer than the min evictable idle time
+     * (beyond min idle), validates the rest if test while idle, and opens
+     * connections up to min idle.
+     */
+    void evict() {
+        try {
+            final long now = System.nanoTime();
+            int idle = this.getNumIdle();
+
+            for (Entry entry : this.entries) {
+                if (this.closed) {
+                    return;
+                }
+                if (!entry.state.compareAndSet(IDLE, IN_USE)) {
+                    continue;
+                }
+                if (idle > this.minIdle && now - entry.returnedAt > this.minEvictableIdleNanos) {
+                    this.remove(entry);
+                    idle--;
+                } else if (this.testWhileIdle && !this.validate(entry)) {
+                    this.remove(entry);
+                    idle--;
+                } else if (!entry.state.compareAndSet(IN_USE, IDLE)) {
+                    this.remove(entry);
+                }
+            }
+
+            this.ensureMinIdle();
+        } catch (Exception e) {
+            log.warn("Unable to evict jedis pool: {}", e.getMessage());
+        }
+    }
+
+    private boolean validate(Entry entry) {
+        try {
+            this.factory.activateObject(entry.pooledObject);
+            return this.factory.validateObject(entry.pooledObject);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private void ensureMinIdle() {
+        while (!this.closed && this.getNumIdle() < this.minIdle) {
+            final Entry entry = this.create(IN_USE);
+            if (entry == null) {
+                return;
+            }
+            entry.returnedAt = System.nanoTime();
+            if (!entry.state.compareAndSet(IN_USE, IDLE)) {
+                this.remove(entry);
+            }
+        }
+    }
+
+    @Override
+    public int prewarm() {
+        this.ensureMinIdle();
+        return this.getNumIdle();
+    }
+
+    @Override
+    public void addObjects(int count) {
+        for (int i = 0; i < count; i++) {
+            final Entry entry = this.create(IN_USE);
+            if (entry == null) {
+                return;
+            }
+            entry.returnedAt = System.nanoTime();
+            entry.state.compareAndSet(IN_USE, IDLE);
+        }
+    }
+
+    private int count(int state) {
+        int count = 0;
+        for (Entry entry : this.entries) {
+            if (entry.state.get() == state) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int getNumActive() {
+        return this.count(IN_USE);
+    }
+
+    @Override
+    public int getNumIdle() {
+        return this.count(IDLE);
+    }
+
+    @Override
+    public int getNumWaiters() {
+        return this.waiters.get();
+    }
+
+    @Override
+    public int getMaxTotal() {
+        return this.maxTotal;
+    }
+
+    @Override
+    public long getCreatedCount() {
+        return this.createdCount.sum();
+    }
+
+    @Override
+    public long getDestroyedCount() {
+        return this.destroyedCount.sum();
+    }
+
+    @Override
+    public long getBorrowedCount() {
+        return this.borrowedCount.sum();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    @Override
+    protected void closePool() {
+        this.closed = true;
+
+        if (this.evictor != null) {
+            this.evictor.shutdownNow();
+        }
+
+        for (Entry entry : this.entries) {
+            if (entry.state.compareAndSet(IDLE, REMOVED)) {
+                // idle, so nothing else will claim it
+                this.unregister(entry);
+                this.total.decrementAndGet();
+                this.destroyedCount.increment();
+                try {
+                    this.factory.destroyObject(entry.pooledObject);
+                } catch (Exception e) {
+                    log.debug("Unable to cleanly destroy jedis client: {}", e.getMessage());
+                }
+            } else if (entry.state.get() == IN_USE) {
+                // borrowed, so unblock its user (removed once returned)
+                forceClose(entry.jedis);
+            }
+        }
+
+        // the underlying (empty) commons pool
+        super.closePool();
+    }
+
+}
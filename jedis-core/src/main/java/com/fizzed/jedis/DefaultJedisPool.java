@@ -4,13 +4,18 @@ import com.fizzed.crux.uri.MutableUri;
 import com.fizzed.crux.uri.Uri;
 import java.lang.reflect.Field;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Supplier;
 import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.PooledObjectFactory;
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
 
 public class DefaultJedisPool extends JedisPool {
     static private final Logger log = LoggerFactory.getLogger(DefaultJedisPool.class);
@@ -18,12 +23,26 @@ public class DefaultJedisPool extends JedisPool {
     private final String host;
     private final Integer port;
     private final Integer database;
+    private volatile JedisAsyncClient asyncClient;
+    private volatile JedisBlockingMultiplexer blockingMultiplexer;
+    private volatile Supplier<Jedis> connector;
+    private volatile JedisMetrics metrics = JedisMetrics.NOOP;
+    private volatile boolean tcpNoDelay = true;
+    private volatile boolean tcpKeepAlive = true;
     
     public DefaultJedisPool(GenericObjectPoolConfig poolConfig, String host, Integer port, Integer connectionTimeout, String password, Integer database) {
-        super(poolConfig, host, port, connectionTimeout, password, (database != null ? database : Protocol.DEFAULT_DATABASE));
+        this(poolConfig, host, port, connectionTimeout, connectionTimeout, password, database);
+    }
+    
+    public DefaultJedisPool(GenericObjectPoolConfig poolConfig, String host, Integer port, Integer connectionTimeout, Integer soTimeout, String password, Integer database) {
+        super(poolConfig, host, port, connectionTimeout, soTimeout, password,
+            (database != null ? database : Protocol.DEFAULT_DATABASE), null, false, null, null, null);
         this.host = host;
         this.port = port;
         this.database = database;
+        // re-create the (still empty) internal pool so connections created and
+        // destroyed by it are configured and measured
+        this.initPool(poolConfig, new PoolFactory(this.internalPool.getFactory()));
     }
 
     public Uri getUri() {
@@ -39,6 +58,181 @@ public class DefaultJedisPool extends JedisPool {
         return uri.immutable();
     }
     
+    /**
+     * Gets the async client that shares this pool's configuration.
+     * @return The async client or null if async is not enabled
+     */
+    public JedisAsyncClient getAsyncClient() {
+        return asyncClient;
+    }
+
+    public void setAsyncClient(JedisAsyncClient asyncClient) {
+        this.asyncClient = asyncClient;
+    }
+
+    /**
+     * Gets the multiplexer blocking pops should use instead of borrowing a
+     * connection from this pool.
+     * @return The multiplexer or null if blocking_mode is pooled
+     */
+    public JedisBlockingMultiplexer getBlockingMultiplexer() {
+        return blockingMultiplexer;
+    }
+
+    public void setBlockingMultiplexer(JedisBlockingMultiplexer blockingMultiplexer) {
+        this.blockingMultiplexer = blockingMultiplexer;
+    }
+
+    /**
+     * Gets the connector of dedicated (not pooled) connections with the same
+     * configuration as this pool, e.g. for long-lived subscriptions.
+     * @return The connector or null if not set
+     */
+    public Supplier<Jedis> getConnector() {
+        return connector;
+    }
+
+    public void setConnector(Supplier<Jedis> connector) {
+        this.connector = connector;
+    }
+
+    public JedisMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the metrics borrows, connections and the queue and cache operations
+     * using this pool are measured by.
+     * @param metrics The metrics or null for none
+     */
+    public void setMetrics(JedisMetrics metrics) {
+        this.metrics = (metrics != null ? metrics : JedisMetrics.NOOP);
+    }
+
+    public boolean getTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public boolean getTcpKeepAlive() {
+        return tcpKeepAlive;
+    }
+
+    public void setTcpKeepAlive(boolean tcpKeepAlive) {
+        this.tcpKeepAlive = tcpKeepAlive;
+    }
+
+    /**
+     * Opens connections until the pool holds its min idle number of them, so
+     * the first requests do not pay for connecting.
+     * @return The number of idle connections
+     * @throws JedisConnectionException If a connection could not be opened
+     */
+    public int prewarm() {
+        try {
+            this.internalPool.preparePool();
+        } catch (JedisException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new JedisConnectionException("Unable to prewarm pool", e);
+        }
+        return this.internalPool.getNumIdle();
+    }
+
+    public int getMaxTotal() {
+        return this.internalPool.getMaxTotal();
+    }
+
+    public long getCreatedCount() {
+        return this.internalPool.getCreatedCount();
+    }
+
+    public long getDestroyedCount() {
+        return this.internalPool.getDestroyedCount();
+    }
+
+    public long getBorrowedCount() {
+        return this.internalPool.getBorrowedCount();
+    }
+
+    @Override
+    public Jedis getResource() {
+        final JedisMetrics m = this.metrics;
+        if (m == JedisMetrics.NOOP) {
+            return this.borrowResource();
+        }
+        final long started = System.nanoTime();
+        try {
+            final Jedis jedis = this.borrowResource();
+            m.borrowed(System.nanoTime() - started);
+            return jedis;
+        } catch (JedisException e) {
+            // commons-pool throws NoSuchElementException if none is available in time
+            m.borrowFailed(System.nanoTime() - started, e.getCause() instanceof NoSuchElementException);
+            throw e;
+        }
+    }
+
+    /**
+     * Borrows a connection from the underlying pool.
+     * @return The connection
+     * @throws JedisException If none could be borrowed (caused by a
+     *      NoSuchElementException if none became available in time)
+     */
+    protected Jedis borrowResource() {
+        return super.getResource();
+    }
+
+    private class PoolFactory implements PooledObjectFactory<Jedis> {
+
+        private final PooledObjectFactory<Jedis> factory;
+
+        private PoolFactory(PooledObjectFactory<Jedis> factory) {
+            this.factory = factory;
+        }
+
+        @Override
+        public PooledObject<Jedis> makeObject() throws Exception {
+            final PooledObject<Jedis> pooledObject = this.factory.makeObject();
+            try {
+                JedisFactory.configureSocket(pooledObject.getObject(), tcpNoDelay, tcpKeepAlive);
+            } catch (RuntimeException e) {
+                this.factory.destroyObject(pooledObject);
+                throw e;
+            }
+            metrics.connectionCreated();
+            return pooledObject;
+        }
+
+        @Override
+        public void destroyObject(PooledObject<Jedis> pooledObject) throws Exception {
+            try {
+                this.factory.destroyObject(pooledObject);
+            } finally {
+                metrics.connectionDestroyed();
+            }
+        }
+
+        @Override
+        public boolean validateObject(PooledObject<Jedis> pooledObject) {
+            return this.factory.validateObject(pooledObject);
+        }
+
+        @Override
+        public void activateObject(PooledObject<Jedis> pooledObject) throws Exception {
+            this.factory.activateObject(pooledObject);
+        }
+
+        @Override
+        public void passivateObject(PooledObject<Jedis> pooledObject) throws Exception {
+            this.factory.passivateObject(pooledObject);
+        }
+
+    }
+    
     private Map<?,PooledObject<Jedis>> getAllPooledObjects() {
         try {
             // expose private field of all the objects in the pool
@@ -53,21 +247,45 @@ public class DefaultJedisPool extends JedisPool {
     
     @Override
     public void close() {
+        // always close pool
+        this.closePool();
+        
+        if (this.asyncClient != null) {
+            this.asyncClient.close();
+        }
+        
+        if (this.blockingMultiplexer != null) {
+            this.blockingMultiplexer.close();
+        }
+    }
+    
+    /**
+     * Closes the underlying pool and forcibly closes any connection still
+     * borrowed from it.
+     */
+    protected void closePool() {
         Map<?,PooledObject<Jedis>> allPooledObjects = this.getAllPooledObjects();
         
-        // always call parent
         super.close();
         
         // follow-up by closing anything that is left
         if (allPooledObjects != null) {
-            allPooledObjects.values().forEach(pooledObject -> {
-                try {
-                    // close client to force socket to close and unblock any read()s on it
-                    pooledObject.getObject().getClient().close();
-                } catch (Exception e) {
-                    log.error("Unable to cleanly close jedis client: {}", e.getMessage());
-                }
-            });
+            allPooledObjects.values().forEach(pooledObject -> forceClose(pooledObject.getObject()));
+        }
+    }
+    
+    static void forceClose(Jedis jedis) {
+        try {
+            // a command racing the close would otherwise silently reconnect
+            // (and block forever), so any reconnect is made to fail fast. only
+            // ever called on connections borrowed when their pool was closed:
+            // idle ones were already destroyed by the pool and a borrowed one
+            // is destroyed (rather than pooled again) when returned to it
+            jedis.getClient().setPort(0);
+            // close client to force socket to close and unblock any read()s on it
+            jedis.getClient().close();
+        } catch (Exception e) {
+            log.error("Unable to cleanly close jedis client: {}", e.getMessage());
         }
     }
     
@@ -0,0 +1,514 @@
+package com.fizzed.jedis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.RedisInputStream;
+
+/**
+ * Asynchronous redis client that multiplexes any number of in-flight commands
+ * over a small, fixed number of connections.  Commands are pipelined: callers
+ * only append their encoded command to the connection's write buffer and a
+ * writer thread per connection writes everything buffered so far in a single
+ * write, while a reader thread per connection completes futures in the order
+ * their replies arrive.  Callers never write to the socket themselves, since
+ * an interrupted write to a SocketChannel closes it (failing every other
+ * caller's commands on it).  Commands on a key are always routed to the
+ * same connection so they execute in the order they were sent.
+ *
+ * Blocking commands (BLPOP, etc.) must never be sent through this client since
+ * they would stall every other command on the same connection.
+ *
+ * A reply waited on with await() or join() that does not arrive within the
+ * socket timeout fails with a JedisConnectionException (like a blocking client
+ * would) and its connection is closed, failing every other command in-flight
+ * on it, since the replies on it can no longer be matched to their commands.
+ */
+public class JedisAsyncClient implements Closeable {
+    static private final Logger log = LoggerFactory.getLogger(JedisAsyncClient.class);
+
+    static private final byte[] EX = "EX".getBytes(StandardCharsets.UTF_8);
+    static private final byte[] NX = "NX".getBytes(StandardCharsets.UTF_8);
+
+    private final String host;
+    private final int port;
+    private final String password;
+    private final Integer database;
+    private final int connectTimeout;
+    private final int soTimeout;
+    private final Connection[] connections;
+    private final AtomicInteger next;
+    private volatile boolean closed;
+
+    public JedisAsyncClient(String host, int port, String password, Integer database, int connections, int connectTimeout) {
+        this(host, port, password, database, connections, connectTimeout, connectTimeout);
+    }
+
+    public JedisAsyncClient(String host, int port, String password, Integer database, int connections, int connectTimeout, int soTimeout) {
+        Objects.requireNonNull(host, "host was null");
+        if (connections <= 0) {
+            throw new IllegalArgumentException("connections must be > 0");
+        }
+        this.host = host;
+        this.port = port;
+        this.password = password;
+        this.database = database;
+        this.connectTimeout = connectTimeout;
+        this.soTimeout = soTimeout;
+        this.connections = new Connection[connections];
+        this.next = new AtomicInteger();
+    }
+
+    public int getConnections() {
+        return this.connections.length;
+    }
+
+    public int getSoTimeout() {
+        return soTimeout;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Sends any command and completes the future with its raw reply: byte[]
+     * for bulk and status replies, Long for integer replies, and List for multi
+     * bulk replies. Error replies complete the future exceptionally with a
+     * JedisDataException.
+     * @param command The command name (e.g. "GET")
+     * @param args The command arguments
+     * @return The future reply
+     */
+    public CompletableFuture<Object> send(String command, byte[]... args) {
+        return this.send(-1, reply -> reply, command, args);
+    }
+
+    /**
+     * Sends a command on the connection the key routes to. Commands sent with
+     * the same routing key execute in the order they were sent.
+     * @param key The routing key (usually the first key of the command)
+     * @param command The command name (e.g. "GET")
+     * @param args The command arguments
+     * @return The future reply
+     */
+    public CompletableFuture<Object> send(byte[] key, String command, byte[]... args) {
+        return this.send(key, reply -> reply, command, args);
+    }
+
+    private <T> CompletableFuture<T> send(byte[] key, Function<Object,T> convert, String command, byte[]... args) {
+        Objects.requireNonNull(key, "key was null");
+        return this.send(Arrays.hashCode(key) & 0x7fffffff, convert, command, args);
+    }
+
+    private <T> CompletableFuture<T> send(int route, Function<Object,T> convert, String command, byte[]... args) {
+        // the reply is converted by the reader so the future returned is the
+        // one that is failed if its connection is closed on a timeout
+        final Reply<T> future = new Reply<>(convert);
+
+        if (this.closed) {
+            future.completeExceptionally(new JedisConnectionException("async client is closed"));
+            return future;
+        }
+
+        final byte[] encoded;
+        try {
+            encoded = JedisClients.encodeCommand(command, args);
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        try {
+            this.connection(route).send(encoded, future);
+        } catch (JedisException e) {
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    public CompletableFuture<byte[]> get(byte[] key) {
+        return this.send(key, reply -> (byte[])reply, "GET", key);
+    }
+
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<List<byte[]>> mget(byte[]... keys) {
+        return this.send(-1, reply -> (List<byte[]>)reply, "MGET", keys);
+    }
+
+    public CompletableFuture<Boolean> setex(byte[] key, int seconds, byte[] value) {
+        return this.send(key, JedisAsyncClient::isOk, "SETEX", key, toBytes(seconds), value);
+    }
+
+    public CompletableFuture<Boolean> setnx(byte[] key, int seconds, byte[] value) {
+        return this.send(key, JedisAsyncClient::isOk, "SET", key, value, NX, EX, toBytes(seconds));
+    }
+
+    public CompletableFuture<Long> del(byte[]... keys) {
+        return this.send(keys[0], reply -> (Long)reply, "DEL", keys);
+    }
+
+    public CompletableFuture<Long> expire(byte[] key, int seconds) {
+        return this.send(key, reply -> (Long)reply, "EXPIRE", key, toBytes(seconds));
+    }
+
+    public CompletableFuture<Long> incrBy(byte[] key, long by) {
+        return this.send(key, reply -> (Long)reply, "INCRBY", key, toBytes(by));
+    }
+
+    public CompletableFuture<Long> rpush(byte[] key, byte[]... values) {
+        byte[][] args = new byte[values.length + 1][];
+        args[0] = key;
+        System.arraycopy(values, 0, args, 1, values.length);
+        return this.send(key, reply -> (Long)reply, "RPUSH", args);
+    }
+
+    public CompletableFuture<byte[]> lpop(byte[] key) {
+        return this.send(key, reply -> (byte[])reply, "LPOP", key);
+    }
+
+    /**
+     * Waits for the future and unwraps any exception it completed with so
+     * callers see the same JedisException as they would with a blocking client.
+     * A future returned by this client waits at most the socket timeout (from
+     * when its command was sent), otherwise its connection is closed and a
+     * JedisConnectionException is thrown.  Any other future (e.g. one derived
+     * with thenApply) is waited on without a timeout.
+     * @param <T> The result type
+     * @param future The future
+     * @return The result
+     * @throws InterruptedException If interrupted while waiting
+     */
+    static public <T> T await(CompletableFuture<T> future) throws InterruptedException {
+        try {
+            if (future instanceof Reply) {
+                final Reply<?> reply = (Reply<?>)future;
+                final long remainingNanos = reply.getRemainingNanos();
+                if (remainingNanos >= 0) {
+                    try {
+                        return future.get(remainingNanos, TimeUnit.NANOSECONDS);
+                    } catch (TimeoutException e) {
+                        reply.timeout();
+                    }
+                }
+            }
+            return future.get();
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        }
+    }
+
+    /**
+     * Same as await but for callers that cannot throw InterruptedException.
+     * The thread stays interrupted if interrupted while waiting.
+     * @param <T> The result type
+     * @param future The future
+     * @return The result
+     */
+    static public <T> T join(CompletableFuture<T> future) {
+        if (future instanceof Reply) {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return await(future);
+                    } catch (InterruptedException e) {
+                        // the timeout is from when the command was sent, so
+                        // waiting again does not extend it
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw unwrap(e.getCause());
+        }
+    }
+
+    static private RuntimeException unwrap(Throwable t) {
+        if (t instanceof RuntimeException) {
+            return (RuntimeException)t;
+        }
+        return new JedisException(t);
+    }
+
+    @Override
+    public void close() {
+        this.closed = true;
+        synchronized (this.connections) {
+            for (Connection connection : this.connections) {
+                if (connection != null) {
+                    connection.close(new JedisConnectionException("async client is closed"));
+                }
+            }
+        }
+    }
+
+    private Connection connection(int route) {
+        final int index = Math.floorMod(route >= 0 ? route : this.next.getAndIncrement(), this.connections.length);
+        Connection connection = this.connections[index];
+        if (connection == null || connection.isClosed()) {
+            synchronized (this.connections) {
+                connection = this.connections[index];
+                if (connection == null || connection.isClosed()) {
+                    if (this.closed) {
+                        throw new JedisConnectionException("async client is closed");
+                    }
+                    connection = new Connection(index);
+                    this.connections[index] = connection;
+                }
+            }
+        }
+        return connection;
+    }
+
+    static private boolean isOk(Object reply) {
+        return reply instanceof byte[] && "OK".equalsIgnoreCase(new String((byte[])reply, StandardCharsets.UTF_8));
+    }
+
+    static private byte[] toBytes(long value) {
+        return Long.toString(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private class Reply<T> extends CompletableFuture<T> {
+
+        private final Function<Object,T> convert;
+        private final long sentAt;
+        private volatile Connection connection;
+
+        public Reply(Function<Object,T> convert) {
+            this.convert = convert;
+            this.sentAt = System.nanoTime();
+        }
+
+        /**
+         * Gets the time remaining until the socket timeout.
+         * @return The nanos remaining (0 if elapsed) or -1 if no timeout
+         */
+        public long getRemainingNanos() {
+            if (soTimeout <= 0) {
+                return -1L;
+            }
+            return Math.max(0L, TimeUnit.MILLISECONDS.toNanos(soTimeout) - (System.nanoTime() - this.sentAt));
+        }
+
+        public void completeWith(Object reply) {
+            try {
+                this.complete(this.convert.apply(reply));
+            } catch (RuntimeException e) {
+                this.completeExceptionally(e);
+            }
+        }
+
+        public void timeout() {
+            final JedisConnectionException e = new JedisConnectionException("Read timed out (in " + soTimeout + " ms)");
+            final Connection c = this.connection;
+            if (c != null) {
+                log.warn("Async connection to {}:{} timed out (closing it)", host, port);
+                c.close(e);
+            }
+            this.completeExceptionally(e);
+        }
+
+    }
+
+    private class Connection {
+
+        private final SocketChannel channel;
+        private final RedisInputStream input;
+        private final Object writeLock;
+        private final Queue<Reply<?>> inflight;
+        private ByteArrayOutputStream pending;
+        private volatile boolean closed;
+
+        public Connection(int index) {
+            try {
+                this.channel = SocketChannel.open();
+                this.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                this.channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                this.channel.socket().connect(new InetSocketAddress(host, port), connectTimeout);
+            } catch (IOException e) {
+                throw new JedisConnectionException(e);
+            }
+            this.input = new RedisInputStream(Channels.newInputStream(this.channel));
+            this.writeLock = new Object();
+            this.inflight = new ArrayDeque<>();
+            this.pending = new ByteArrayOutputStream(1024);
+
+            try {
+                // authenticate & select database before anything is pipelined
+                if (password != null) {
+                    this.handshake("AUTH", password.getBytes(StandardCharsets.UTF_8));
+                }
+                if (database != null && database != 0) {
+                    this.handshake("SELECT", toBytes(database));
+                }
+            } catch (RuntimeException e) {
+                this.close(e);
+                throw e;
+            }
+
+            Thread reader = new Thread(this::read, "jedis-async-" + index);
+            reader.setDaemon(true);
+            reader.start();
+
+            Thread writer = new Thread(this::flush, "jedis-async-writer-" + index);
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        private void handshake(String command, byte[]... args) {
+            this.write(JedisClients.encodeCommand(command, args));
+            Protocol.read(this.input);
+        }
+
+        public void send(byte[] encoded, Reply<?> future) {
+            synchronized (this.writeLock) {
+                if (this.closed) {
+                    throw new JedisConnectionException("connection is closed");
+                }
+                future.connection = this;
+                this.inflight.add(future);
+                if (this.pending.size() == 0) {
+                    // otherwise the writer was already woken up
+                    this.writeLock.notify();
+                }
+                this.pending.write(encoded, 0, encoded.length);
+            }
+        }
+
+        private void flush() {
+            try {
+                while (true) {
+                    ByteArrayOutputStream buffer;
+                    synchronized (this.writeLock) {
+                        while (this.pending.size() == 0 && !this.closed) {
+                            this.writeLock.wait();
+                        }
+                        if (this.closed) {
+                            return;
+                        }
+                        buffer = this.pending;
+                        this.pending = new ByteArrayOutputStream(Math.max(1024, buffer.size()));
+                    }
+                    // everything sent while the previous write was in progress
+                    this.write(buffer.toByteArray());
+                }
+            } catch (InterruptedException e) {
+                this.close(new JedisConnectionException("async writer interrupted"));
+            } catch (RuntimeException e) {
+                if (!this.closed) {
+                    log.warn("Async connection to {}:{} failed: {}", host, port, e.getMessage());
+                }
+                this.close(e);
+            }
+        }
+
+        private void write(byte[] bytes) {
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    this.channel.write(buffer);
+                }
+            } catch (IOException e) {
+                throw new JedisConnectionException(e);
+            }
+        }
+
+        private void read() {
+            try {
+                while (!this.closed) {
+                    Object reply;
+                    try {
+                        reply = Protocol.read(this.input);
+                    } catch (JedisConnectionException e) {
+                        throw e;
+                    } catch (JedisDataException e) {
+                        // error reply for just this command
+                        reply = e;
+                    }
+
+                    Reply<?> future;
+                    synchronized (this.writeLock) {
+                        future = this.inflight.poll();
+                    }
+
+                    if (future == null) {
+                        throw new JedisConnectionException("Reply received with no command in-flight");
+                    }
+
+                    if (reply instanceof JedisDataException) {
+                        future.completeExceptionally((JedisDataException)reply);
+                    } else {
+                        future.completeWith(reply);
+                    }
+                }
+            } catch (RuntimeException e) {
+                if (!this.closed) {
+                    log.warn("Async connection to {}:{} failed: {}", host, port, e.getMessage());
+                }
+                this.close(e);
+            }
+        }
+
+        public void close(RuntimeException cause) {
+            synchronized (this.writeLock) {
+                this.closed = true;
+                this.writeLock.notifyAll();
+            }
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            // fail everything in-flight
+            Reply<?> future;
+            while (true) {
+                synchronized (this.writeLock) {
+                    future = this.inflight.poll();
+                }
+                if (future == null) {
+                    break;
+                }
+                future.completeExceptionally(cause);
+            }
+        }
+
+    }
+
+}
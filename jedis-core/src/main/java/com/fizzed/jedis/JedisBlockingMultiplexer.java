@@ -0,0 +1,479 @@
+package com.fizzed.jedis;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Multiplexes blocking pops of any number of waiters (threads) over a small,
+ * fixed number of dedicated connections.  Each connection runs a multi-key
+ * BLPOP on every key that currently has a waiter and hands each popped item
+ * to the longest waiting waiter of that key.  Waiters simply park on a future
+ * rather than pinning a pooled connection, so the number of consumers is no
+ * longer tied to the number of sockets (and they may be virtual threads).
+ *
+ * A key is always served by the same connection.  Every BLPOP also includes a
+ * private wakeup list, so when a waiter arrives for a key the connection is not
+ * yet blocked on a token is pushed onto it and the BLPOP returns right away to
+ * include the new key.  Since the token stays in the list until popped, there
+ * is no race with a BLPOP that has not been sent yet.  An item popped for a
+ * waiter that timed out or was interrupted in the meantime is pushed back onto
+ * the head of its list so nothing is lost and order is preserved.
+ *
+ * Only j.u.c locks are used (never monitors) around blocking I/O so virtual
+ * threads parked on a pop are not pinned to their carrier.
+ */
+public class JedisBlockingMultiplexer implements Closeable {
+    static private final Logger log = LoggerFactory.getLogger(JedisBlockingMultiplexer.class);
+
+    static private final int BLOCK_TIMEOUT_SECONDS = 30;
+    static private final int WAKEUP_EXPIRE_SECONDS = 60;
+    static private final byte[] WAKEUP_TOKEN = bytes("1");
+    static private final long RECONNECT_DELAY_MILLIS = 500L;
+
+    private final Supplier<Jedis> connector;
+    private final Lane[] lanes;
+    private final ReentrantLock controlLock;
+    private Jedis control;
+    private volatile boolean closed;
+
+    /**
+     * Creates a new multiplexer.
+     * @param connector Creates a new, dedicated (not pooled) connection
+     * @param connections The number of connections to block on
+     */
+    public JedisBlockingMultiplexer(Supplier<Jedis> connector, int connections) {
+        Objects.requireNonNull(connector, "connector was null");
+        if (connections <= 0) {
+            throw new IllegalArgumentException("connections must be > 0");
+        }
+        this.connector = connector;
+        this.lanes = new Lane[connections];
+        final String wakeupPrefix = "__jedis:blocking:" + UUID.randomUUID() + ":";
+        for (int i = 0; i < connections; i++) {
+            this.lanes[i] = new Lane(i, bytes(wakeupPrefix + i));
+        }
+        this.controlLock = new ReentrantLock();
+    }
+
+    public int getConnections() {
+        return this.lanes.length;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Gets the number of waiters currently parked on all keys.
+     * @return The number of waiters
+     */
+    public int getWaiting() {
+        int waiting = 0;
+        for (Lane lane : this.lanes) {
+            waiting += lane.waiting();
+        }
+        return waiting;
+    }
+
+    /**
+     * Pops the head of the list, waiting up to the timeout for an item.
+     * @param key The key of the list
+     * @param timeout If greater than 0 then the amount of time to wait or -1
+     *      to wait forever
+     * @param unit The unit of the timeout
+     * @return The item or null if the timeout elapsed
+     * @throws InterruptedException If interrupted while waiting (the item is
+     *      never lost)
+     */
+    public byte[] pop(byte[] key, long timeout, TimeUnit unit) throws InterruptedException {
+        if (timeout > 0) {
+            Objects.requireNonNull(unit, "unit was null");
+        }
+
+        final CompletableFuture<byte[]> future = this.popAsync(key);
+
+        try {
+            if (timeout < 0) {
+                return future.get();
+            } else {
+                return future.get(timeout, unit);
+            }
+        } catch (TimeoutException e) {
+            if (future.cancel(false)) {
+                return null;
+            }
+            // raced with the item being delivered
+            return JedisAsyncClient.join(future);
+        } catch (InterruptedException e) {
+            if (!future.cancel(false) && !future.isCompletedExceptionally()) {
+                // raced with the item being delivered, do not lose it
+                this.restore(key, future.getNow(null));
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new JedisException(e.getCause());
+        }
+    }
+
+    /**
+     * Registers a waiter for the head of the list.  Cancelling the future
+     * removes the waiter.
+     * @param key The key of the list
+     * @return The future completed with the popped item
+     */
+    public CompletableFuture<byte[]> popAsync(byte[] key) {
+        Objects.requireNonNull(key, "key was null");
+
+        final CompletableFuture<byte[]> future = new CompletableFuture<>();
+
+        if (this.closed) {
+            future.completeExceptionally(new JedisConnectionException("blocking multiplexer is closed"));
+            return future;
+        }
+
+        final Lane lane = this.lanes[Math.floorMod(Arrays.hashCode(key), this.lanes.length)];
+        lane.add(ByteBuffer.wrap(key), future);
+        return future;
+    }
+
+    @Override
+    public void close() {
+        this.closed = true;
+        for (Lane lane : this.lanes) {
+            lane.close();
+        }
+        this.controlLock.lock();
+        try {
+            if (this.control != null) {
+                try {
+                    for (Lane lane : this.lanes) {
+                        this.control.del(lane.wakeupKey);
+                    }
+                } catch (JedisException e) {
+                    // ignore, they expire anyway
+                }
+            }
+            closeQuietly(this.control);
+            this.control = null;
+        } finally {
+            this.controlLock.unlock();
+        }
+    }
+
+    private boolean wakeup(byte[] wakeupKey) {
+        this.controlLock.lock();
+        try {
+            if (this.control == null) {
+                this.control = this.connector.get();
+            }
+            this.control.lpush(wakeupKey, WAKEUP_TOKEN);
+            this.control.expire(wakeupKey, WAKEUP_EXPIRE_SECONDS);
+            return true;
+        } catch (JedisException e) {
+            // the new key is picked up once the current BLPOP times out
+            log.warn("Unable to wakeup blocking connection: {}", e.getMessage());
+            closeQuietly(this.control);
+            this.control = null;
+            return false;
+        } finally {
+            this.controlLock.unlock();
+        }
+    }
+
+    private void restore(byte[] key, byte[] value) {
+        if (value == null) {
+            return;
+        }
+        this.controlLock.lock();
+        try {
+            if (this.control == null) {
+                this.control = this.connector.get();
+            }
+            this.control.lpush(key, value);
+        } catch (JedisException e) {
+            log.error("Unable to push item back onto {} (item lost)", new String(key, StandardCharsets.UTF_8), e);
+            closeQuietly(this.control);
+            this.control = null;
+        } finally {
+            this.controlLock.unlock();
+        }
+    }
+
+    static private byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static private void closeQuietly(Jedis jedis) {
+        if (jedis != null) {
+            try {
+                // close the client (not jedis) so it is safe from another thread
+                jedis.getClient().close();
+            } catch (Exception e) {
+                // ignore
+            }
+        }
+    }
+
+    private class Lane {
+
+        private final int index;
+        private final byte[] wakeupKey;
+        private final ReentrantLock lock;
+        private final Condition hasWaiters;
+        private final Map<ByteBuffer,ArrayDeque<CompletableFuture<byte[]>>> waiters;
+        private Set<ByteBuffer> blockedKeys;
+        private boolean wakeupPending;
+        private Thread thread;
+        private volatile Jedis jedis;
+
+        public Lane(int index, byte[] wakeupKey) {
+            this.index = index;
+            this.wakeupKey = wakeupKey;
+            this.lock = new ReentrantLock();
+            this.hasWaiters = this.lock.newCondition();
+            this.waiters = new HashMap<>();
+        }
+
+        public int waiting() {
+            this.lock.lock();
+            try {
+                int waiting = 0;
+                for (ArrayDeque<CompletableFuture<byte[]>> futures : this.waiters.values()) {
+                    waiting += futures.size();
+                }
+                return waiting;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        public void add(ByteBuffer key, CompletableFuture<byte[]> future) {
+            boolean wakeup = false;
+            this.lock.lock();
+            try {
+                if (closed) {
+                    future.completeExceptionally(new JedisConnectionException("blocking multiplexer is closed"));
+                    return;
+                }
+                this.waiters.computeIfAbsent(key, k -> new ArrayDeque<>()).add(future);
+                if (this.thread == null) {
+                    this.thread = new Thread(this::run, "jedis-blocking-" + this.index);
+                    this.thread.setDaemon(true);
+                    this.thread.start();
+                }
+                if (this.blockedKeys == null) {
+                    this.hasWaiters.signal();
+                } else if (!this.blockedKeys.contains(key) && !this.wakeupPending) {
+                    // blocked on other keys, wake it up to include this one
+                    this.wakeupPending = true;
+                    wakeup = true;
+                }
+            } finally {
+                this.lock.unlock();
+            }
+
+            // waiter removes itself if it times out or is interrupted
+            future.whenComplete((value, e) -> {
+                if (future.isCancelled()) {
+                    this.remove(key, future);
+                }
+            });
+
+            if (wakeup && !wakeup(this.wakeupKey)) {
+                this.lock.lock();
+                try {
+                    this.wakeupPending = false;
+                } finally {
+                    this.lock.unlock();
+                }
+            }
+        }
+
+        private void remove(ByteBuffer key, CompletableFuture<byte[]> future) {
+            this.lock.lock();
+            try {
+                ArrayDeque<CompletableFuture<byte[]>> futures = this.waiters.get(key);
+                if (futures != null) {
+                    futures.remove(future);
+                    if (futures.isEmpty()) {
+                        this.waiters.remove(key);
+                    }
+                }
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        private CompletableFuture<byte[]> next(ByteBuffer key) {
+            this.lock.lock();
+            try {
+                ArrayDeque<CompletableFuture<byte[]>> futures = this.waiters.get(key);
+                if (futures == null) {
+                    return null;
+                }
+                CompletableFuture<byte[]> future = futures.poll();
+                if (futures.isEmpty()) {
+                    this.waiters.remove(key);
+                }
+                return future;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        private byte[][] awaitKeys() throws InterruptedException {
+            this.lock.lock();
+            try {
+                while (!closed) {
+                    // purge waiters that are already done
+                    Iterator<ArrayDeque<CompletableFuture<byte[]>>> it = this.waiters.values().iterator();
+                    while (it.hasNext()) {
+                        ArrayDeque<CompletableFuture<byte[]>> futures = it.next();
+                        futures.removeIf(CompletableFuture::isDone);
+                        if (futures.isEmpty()) {
+                            it.remove();
+                        }
+                    }
+                    if (!this.waiters.isEmpty()) {
+                        this.blockedKeys = new HashSet<>(this.waiters.keySet());
+                        byte[][] keys = new byte[this.blockedKeys.size() + 1][];
+                        keys[0] = this.wakeupKey;
+                        int i = 1;
+                        for (ByteBuffer key : this.blockedKeys) {
+                            keys[i++] = key.array();
+                        }
+                        return keys;
+                    }
+                    // any token left behind only causes a spurious wakeup
+                    this.wakeupPending = false;
+                    this.hasWaiters.await();
+                }
+                return null;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        private void run() {
+            while (!closed) {
+                final byte[][] keys;
+                try {
+                    keys = this.awaitKeys();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (keys == null) {
+                    break;
+                }
+
+                List<byte[]> reply = null;
+                try {
+                    if (this.jedis == null) {
+                        this.jedis = connector.get();
+                        if (closed) {
+                            break;
+                        }
+                    }
+                    reply = this.jedis.blpop(BLOCK_TIMEOUT_SECONDS, keys);
+                } catch (JedisException e) {
+                    if (closed) {
+                        break;
+                    }
+                    log.warn("Blocking connection {} failed (will reconnect): {}", this.index, e.getMessage());
+                    closeQuietly(this.jedis);
+                    this.jedis = null;
+                    try {
+                        Thread.sleep(RECONNECT_DELAY_MILLIS);
+                    } catch (InterruptedException ie) {
+                        break;
+                    }
+                } finally {
+                    this.lock.lock();
+                    try {
+                        this.blockedKeys = null;
+                        if (reply != null && reply.size() == 2 && Arrays.equals(reply.get(0), this.wakeupKey)) {
+                            this.wakeupPending = false;
+                            reply = null;
+                        }
+                    } finally {
+                        this.lock.unlock();
+                    }
+                }
+
+                if (reply != null && reply.size() == 2) {
+                    this.deliver(reply.get(0), reply.get(1));
+                }
+            }
+        }
+
+        private void deliver(byte[] key, byte[] value) {
+            final ByteBuffer k = ByteBuffer.wrap(key);
+            CompletableFuture<byte[]> future;
+            while ((future = this.next(k)) != null) {
+                if (future.complete(value)) {
+                    return;
+                }
+            }
+            // every waiter for the key went away while we were blocked
+            try {
+                this.jedis.lpush(key, value);
+            } catch (JedisException e) {
+                restore(key, value);
+            }
+        }
+
+        public void close() {
+            Thread t;
+            this.lock.lock();
+            try {
+                t = this.thread;
+                this.hasWaiters.signalAll();
+                for (ArrayDeque<CompletableFuture<byte[]>> futures : this.waiters.values()) {
+                    for (CompletableFuture<byte[]> future : futures) {
+                        future.completeExceptionally(new JedisConnectionException("blocking multiplexer is closed"));
+                    }
+                }
+                this.waiters.clear();
+            } finally {
+                this.lock.unlock();
+            }
+            // unblocks any BLPOP in progress
+            closeQuietly(this.jedis);
+            if (t != null) {
+                try {
+                    t.join(1000L);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,17 @@
+package com.fizzed.jedis;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Commands executed with a connection borrowed from a pool (see
+ * JedisClients.execute()).  May be called more than once if redirected by a
+ * redis cluster.
+ * @param <R> The result type
+ * @param <E> The checked exception it may throw (or RuntimeException)
+ */
+@FunctionalInterface
+public interface JedisCallable<R,E extends Exception> {
+
+    R call(Jedis jedis) throws E;
+
+}
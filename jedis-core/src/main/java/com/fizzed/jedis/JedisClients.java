@@ -1,16 +1,38 @@
 package com.fizzed.jedis;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Client;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
 
 /**
  * Utility methods for executing commands with a Jedis client.
  */
 public class JedisClients {
+    static private final Logger log = LoggerFactory.getLogger(JedisClients.class);
+    
+    // redis < 6.0 only supports integer timeouts for blocking commands
+    static private volatile boolean floatTimeouts = true;
     
     static public <R> R execute(String name, Jedis jedis, long commandTimeout, long pollingTimeout, TimeUnit unit, Function<Integer,R> executable) throws TimeoutException, InterruptedException {
         Objects.requireNonNull(jedis, "jedis was null");
@@ -52,6 +74,138 @@ public class JedisClients {
         }
     }
     
+    /**
+     * Executes commands on a key with a connection borrowed from the pool
+     * (from the node serving the key, following redirects, if a cluster pool).
+     * @param <R> The result type
+     * @param <E> The checked exception of the callable
+     * @param jedisPool The pool
+     * @param key The key (or any key in the same cluster slot)
+     * @param callable The commands
+     * @return The result of the callable
+     * @throws E If the callable throws it
+     */
+    static public <R,E extends Exception> R execute(JedisPool jedisPool, byte[] key, JedisCallable<R,E> callable) throws E {
+        Objects.requireNonNull(jedisPool, "jedisPool was null");
+        Objects.requireNonNull(callable, "callable was null");
+
+        if (jedisPool instanceof ClusterJedisPool) {
+            return ((ClusterJedisPool)jedisPool).execute(key, callable);
+        }
+
+        try (Jedis jedis = jedisPool.getResource()) {
+            return callable.call(jedis);
+        }
+    }
+
+    /**
+     * Executes read-only commands on a key that tolerate slightly stale data:
+     * on a replica if the pool has healthy ones (retried on the primary if the
+     * replica fails), otherwise the same as execute().
+     * @param <R> The result type
+     * @param <E> The checked exception of the callable
+     * @param jedisPool The pool
+     * @param key The key (or any key in the same cluster slot)
+     * @param callable The (read-only) commands
+     * @return The result of the callable
+     * @throws E If the callable throws it
+     */
+    static public <R,E extends Exception> R executeRead(JedisPool jedisPool, byte[] key, JedisCallable<R,E> callable) throws E {
+        Objects.requireNonNull(jedisPool, "jedisPool was null");
+        Objects.requireNonNull(callable, "callable was null");
+
+        if (jedisPool instanceof ReplicatedJedisPool) {
+            return ((ReplicatedJedisPool)jedisPool).executeRead(callable);
+        }
+
+        return execute(jedisPool, key, callable);
+    }
+
+    /**
+     * Pipelines a command per key in batches of up to batchSize on a single
+     * connection (a connection per node if a cluster pool) and reads their
+     * replies in order.  Commands redirected (their slot is being migrated)
+     * were not executed, so they are retried on their own with execute().  A
+     * failed command does not stop the replies of the others from being read
+     * (by their readers), the first failure is thrown once all are.
+     * @param <R> The reply type
+     * @param jedisPool The pool
+     * @param keys The keys
+     * @param batchSize The max number of commands per round trip
+     * @param command Sends the command of the key at an index on the pipeline
+     *      and returns the reader of its reply
+     * @return The replies in the order of the keys
+     */
+    static public <R> List<R> pipelined(JedisPool jedisPool, List<byte[]> keys, int batchSize, BiFunction<Pipeline,Integer,Supplier<R>> command) {
+        Objects.requireNonNull(jedisPool, "jedisPool was null");
+        Objects.requireNonNull(keys, "keys was null");
+        Objects.requireNonNull(command, "command was null");
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be > 0");
+        }
+        
+        final Map<? extends JedisPool,List<Integer>> groups;
+        if (jedisPool instanceof ClusterJedisPool) {
+            groups = ((ClusterJedisPool)jedisPool).groupByNode(keys);
+        } else {
+            final List<Integer> indexes = new ArrayList<>(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                indexes.add(i);
+            }
+            groups = Collections.singletonMap(jedisPool, indexes);
+        }
+        
+        final List<R> replies = new ArrayList<>(Collections.nCopies(keys.size(), (R)null));
+        final List<Integer> redirected = new ArrayList<>();
+        RuntimeException failure = null;
+        
+        for (Map.Entry<? extends JedisPool,List<Integer>> group : groups.entrySet()) {
+            final List<Integer> indexes = group.getValue();
+            try (Jedis jedis = group.getKey().getResource()) {
+                for (int i = 0; i < indexes.size(); i += batchSize) {
+                    final List<Integer> batch = indexes.subList(i, Math.min(indexes.size(), i + batchSize));
+                    final List<Supplier<R>> readers = new ArrayList<>(batch.size());
+                    final Pipeline pipeline = jedis.pipelined();
+                    for (int index : batch) {
+                        readers.add(command.apply(pipeline, index));
+                    }
+                    pipeline.sync();
+                    for (int j = 0; j < batch.size(); j++) {
+                        try {
+                            replies.set(batch.get(j), readers.get(j).get());
+                        } catch (JedisRedirectionException e) {
+                            redirected.add(batch.get(j));
+                        } catch (RuntimeException e) {
+                            failure = (failure != null ? failure : e);
+                        }
+                    }
+                }
+            } catch (RuntimeException e) {
+                // e.g. the node is down (the rest of its commands are lost)
+                failure = (failure != null ? failure : e);
+            }
+        }
+        
+        for (int index : redirected) {
+            try {
+                replies.set(index, execute(jedisPool, keys.get(index), jedis -> {
+                    final Pipeline pipeline = jedis.pipelined();
+                    final Supplier<R> reader = command.apply(pipeline, index);
+                    pipeline.sync();
+                    return reader.get();
+                }));
+            } catch (RuntimeException e) {
+                failure = (failure != null ? failure : e);
+            }
+        }
+        
+        if (failure != null) {
+            throw failure;
+        }
+        
+        return replies;
+    }
+
     static public byte[] blpop(Jedis jedis, byte[] key, long commandTimeout, long pollingTimeout, TimeUnit unit) throws TimeoutException, InterruptedException {
         Objects.requireNonNull(key, "key was null");
         
@@ -68,4 +222,232 @@ public class JedisClients {
         });
     }
     
+    /**
+     * Blocking pop (BLPOP) with millisecond precision timeouts that wakes up
+     * immediately if the calling thread is interrupted.
+     * @param jedis The jedis client
+     * @param key The key to pop
+     * @param timeout The amount of time to wait or <= 0 to wait forever
+     * @param unit The unit of the timeout
+     * @return The value popped
+     * @throws TimeoutException If the timeout elapsed
+     * @throws InterruptedException If the calling thread was interrupted
+     * @see #executeBlocking(java.lang.String, redis.clients.jedis.Jedis, long, java.util.concurrent.TimeUnit, java.util.function.Function) 
+     */
+    static public byte[] blpop(Jedis jedis, byte[] key, long timeout, TimeUnit unit) throws TimeoutException, InterruptedException {
+        Objects.requireNonNull(key, "key was null");
+        
+        return executeBlocking("blpop", jedis, timeout, unit, (timeoutArg) -> {
+            List<byte[]> items = jedis.blpop(key, timeoutArg);
+            
+            // When a non-zero timeout is specified, and the BLPOP operation timed out
+            // the return value is a nil multi bulk reply.
+            if (items == null || items.isEmpty() || items.size() != 2) {
+                return null;
+            } else {
+                return items.get(1);
+            }
+        });
+    }
+    
+    /**
+     * Executes a single blocking command (e.g. BLPOP, BLMOVE) that takes a
+     * timeout in seconds as an argument. Sub-second timeouts are sent as a
+     * float (redis 6+) or rounded up to the nearest second for older servers.
+     * Unlike execute() there is no polling -- if the calling thread is
+     * interrupted the JedisWatchdog closes the socket to wake it up.
+     * @param <R> The result type
+     * @param name The name of the command (for exception messages)
+     * @param jedis The jedis client
+     * @param timeout The amount of time to wait or <= 0 to wait forever
+     * @param unit The unit of the timeout
+     * @param command Executes the command with the encoded timeout argument and
+     *      returns null if the command timed out
+     * @return The result
+     * @throws TimeoutException If the timeout elapsed
+     * @throws InterruptedException If the calling thread was interrupted
+     */
+    static public <R> R executeBlocking(String name, Jedis jedis, long timeout, TimeUnit unit, Function<byte[],R> command) throws TimeoutException, InterruptedException {
+        Objects.requireNonNull(unit, "unit was null");
+        
+        final long timeoutMillis = (timeout > 0 ? Math.max(1L, unit.toMillis(timeout)) : 0L);
+        final boolean fractional = timeoutMillis % 1000L != 0;
+        
+        R result;
+        try {
+            result = executeInterruptibly(name, jedis, () -> command.apply(encodeTimeout(timeoutMillis)));
+        } catch (JedisDataException e) {
+            if (fractional && floatTimeouts && e.getMessage() != null && e.getMessage().contains("timeout is not")) {
+                log.warn("Redis does not support sub-second timeouts (will round up to seconds from now on)");
+                floatTimeouts = false;
+                result = executeInterruptibly(name, jedis, () -> command.apply(encodeTimeout(timeoutMillis)));
+            } else {
+                throw e;
+            }
+        }
+        
+        if (result == null) {
+            throw new TimeoutException("Redis " + name + " command timeout (in " + timeoutMillis + " ms)");
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Executes a command that may block on the socket for a long time with the
+     * calling thread watched by the JedisWatchdog.  If the thread is interrupted
+     * the socket is closed, which unblocks the command, and an InterruptedException
+     * is thrown.  If the command completed right as the thread was interrupted
+     * then the result is returned (the thread stays interrupted) and the client
+     * is marked as broken so the pool discards it.
+     * @param <R> The result type
+     * @param name The name of the command (for exception messages)
+     * @param jedis The jedis client
+     * @param executable The command to execute
+     * @return The result
+     * @throws InterruptedException If the calling thread was interrupted
+     */
+    static public <R> R executeInterruptibly(String name, Jedis jedis, Supplier<R> executable) throws InterruptedException {
+        Objects.requireNonNull(jedis, "jedis was null");
+        
+        if (Thread.interrupted()) {
+            throw new InterruptedException("Redis " + name + " command interrupted");
+        }
+        
+        final JedisWatchdog.Registration registration = JedisWatchdog.getDefault().watch(jedis);
+        try {
+            R result = executable.get();
+            registration.close();
+            if (registration.isTriggered()) {
+                markBroken(jedis.getClient());
+            }
+            return result;
+        } catch (JedisConnectionException e) {
+            registration.close();
+            if (registration.isTriggered()) {
+                Thread.interrupted();
+                throw new InterruptedException("Redis " + name + " command interrupted");
+            }
+            throw e;
+        } finally {
+            registration.close();
+        }
+    }
+    
+    static byte[] encodeTimeout(long timeoutMillis) {
+        String value;
+        if (timeoutMillis <= 0) {
+            value = "0";
+        } else if (timeoutMillis % 1000L == 0) {
+            value = Long.toString(timeoutMillis / 1000L);
+        } else if (floatTimeouts) {
+            value = String.format(Locale.ROOT, "%.3f", timeoutMillis / 1000d);
+        } else {
+            value = Long.toString((timeoutMillis + 999L) / 1000L);
+        }
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+    
+    static private void markBroken(Client client) {
+        try {
+            // socket is closed so this fails and jedis flags itself as broken
+            client.getOne();
+        } catch (JedisConnectionException e) {
+            // expected
+        }
+    }
+    
+    /**
+     * Sends a command that jedis does not natively support (e.g. BLMOVE, XADD)
+     * and reads its reply.  The reply is the raw jedis protocol object: byte[]
+     * for bulk and status replies, Long for integer replies, and List for multi
+     * bulk replies. Error replies are thrown as a JedisDataException. Must not
+     * be used while the client is in a pipeline or transaction.
+     * @param jedis The jedis client
+     * @param command The command name (e.g. "BLMOVE")
+     * @param args The command arguments
+     * @return The raw reply
+     */
+    static public Object sendCommand(Jedis jedis, String command, byte[]... args) {
+        Objects.requireNonNull(jedis, "jedis was null");
+        Objects.requireNonNull(command, "command was null");
+        
+        final Client client = jedis.getClient();
+        
+        if (!client.isConnected()) {
+            client.connect();
+        }
+        
+        try {
+            OutputStream output = client.getSocket().getOutputStream();
+            output.write(encodeCommand(command, args));
+            output.flush();
+        } catch (IOException e) {
+            // a partial write leaves the connection in an unknown state, by
+            // closing the socket the read below will mark the client as broken
+            // so it is not returned to the pool
+            try {
+                client.getSocket().close();
+            } catch (IOException ignored) { }
+        }
+        
+        try {
+            return client.getOne();
+        } finally {
+            // jedis counts the reply against commands it sent itself, which
+            // would leave later pipelines on the connection a reply short
+            client.resetPipelinedCount();
+        }
+    }
+    
+    /**
+     * Same as sendCommand but disables the socket read timeout while waiting
+     * on the reply (e.g. for BLMOVE or XREADGROUP BLOCK).
+     * @param jedis The jedis client
+     * @param command The command name (e.g. "BLMOVE")
+     * @param args The command arguments
+     * @return The raw reply
+     */
+    static public Object sendBlockingCommand(Jedis jedis, String command, byte[]... args) {
+        final Client client = jedis.getClient();
+        client.setTimeoutInfinite();
+        try {
+            return sendCommand(jedis, command, args);
+        } finally {
+            if (client.isConnected() && !client.isBroken()) {
+                client.rollbackTimeout();
+            }
+        }
+    }
+    
+    static byte[] encodeCommand(String command, byte[]... args) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(64);
+        writeRespHeader(baos, '*', 1 + (args != null ? args.length : 0));
+        writeRespBulk(baos, command.getBytes(StandardCharsets.UTF_8));
+        if (args != null) {
+            for (byte[] arg : args) {
+                if (arg == null) {
+                    throw new IllegalArgumentException("command argument was null");
+                }
+                writeRespBulk(baos, arg);
+            }
+        }
+        return baos.toByteArray();
+    }
+    
+    static private void writeRespHeader(ByteArrayOutputStream baos, char type, int length) {
+        baos.write(type);
+        byte[] bytes = Integer.toString(length).getBytes(StandardCharsets.US_ASCII);
+        baos.write(bytes, 0, bytes.length);
+        baos.write('\r');
+        baos.write('\n');
+    }
+    
+    static private void writeRespBulk(ByteArrayOutputStream baos, byte[] value) {
+        writeRespHeader(baos, '$', value.length);
+        baos.write(value, 0, value.length);
+        baos.write('\r');
+        baos.write('\n');
+    }
+    
 }
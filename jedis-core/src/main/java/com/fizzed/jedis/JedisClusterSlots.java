@@ -0,0 +1,87 @@
+package com.fizzed.jedis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * Maps keys to redis cluster hash slots: CRC16 (XMODEM) of the key modulo
+ * 16384, where only the hash tag of the key is hashed if it has one (the
+ * part between the first "{" and the next "}", if not empty).  Keys with the
+ * same hash tag are always in the same slot, so multi-key commands and
+ * scripts may use them together.
+ */
+public class JedisClusterSlots {
+
+    static public final int SLOTS = 16384;
+
+    static private final int[] CRC16_TABLE = new int[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int j = 0; j < 8; j++) {
+                crc = ((crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1);
+            }
+            CRC16_TABLE[i] = crc & 0xFFFF;
+        }
+    }
+
+    static public int slot(String key) {
+        Objects.requireNonNull(key, "key was null");
+        return slot(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static public int slot(byte[] key) {
+        Objects.requireNonNull(key, "key was null");
+
+        int start = 0;
+        int end = key.length;
+
+        // hash tag?
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] == '{') {
+                for (int j = i + 1; j < key.length; j++) {
+                    if (key[j] == '}') {
+                        if (j > i + 1) {
+                            start = i + 1;
+                            end = j;
+                        }
+                        break;
+                    }
+                }
+                break;
+            }
+        }
+
+        return crc16(key, start, end) & (SLOTS - 1);
+    }
+
+    static int crc16(byte[] bytes, int start, int end) {
+        int crc = 0;
+        for (int i = start; i < end; i++) {
+            crc = ((crc << 8) ^ CRC16_TABLE[((crc >>> 8) ^ bytes[i]) & 0xFF]) & 0xFFFF;
+        }
+        return crc;
+    }
+
+    /**
+     * Gets the key with a hash tag of itself (e.g. "queue" becomes "{queue}")
+     * so keys derived from it (e.g. "{queue}:processing") are in the same slot.
+     * @param key The key
+     * @return The key as is if it already has a hash tag, otherwise the key
+     *      wrapped in "{" and "}"
+     */
+    static public String hashTagged(String key) {
+        Objects.requireNonNull(key, "key was null");
+
+        final int open = key.indexOf('{');
+        if (open >= 0) {
+            final int close = key.indexOf('}', open + 1);
+            if (close > open + 1) {
+                return key;
+            }
+        }
+
+        return "{" + key + "}";
+    }
+
+}
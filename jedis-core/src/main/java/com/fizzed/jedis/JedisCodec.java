@@ -0,0 +1,48 @@
+package com.fizzed.jedis;
+
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * Encodes values to and decodes them from the bytes stored in redis.
+ *
+ * @param <T> The type of value
+ */
+public interface JedisCodec<T> {
+
+    byte[] encode(T value);
+
+    T decode(byte[] bytes);
+
+    /**
+     * Adapts this codec to the encode function queues and caches accept.
+     * @return The encode function
+     */
+    default Function<T,byte[]> asEncoder() {
+        return this::encode;
+    }
+
+    /**
+     * Adapts this codec to the decode function queues and caches accept.
+     * @return The decode function
+     */
+    default Function<byte[],T> asDecoder() {
+        return this::decode;
+    }
+
+    static <T> JedisCodec<T> of(Function<T,byte[]> encode, Function<byte[],T> decode) {
+        Objects.requireNonNull(encode, "encode was null");
+        Objects.requireNonNull(decode, "decode was null");
+        return new JedisCodec<T>() {
+            @Override
+            public byte[] encode(T value) {
+                return encode.apply(value);
+            }
+            @Override
+            public T decode(byte[] bytes) {
+                return decode.apply(bytes);
+            }
+        };
+    }
+
+}
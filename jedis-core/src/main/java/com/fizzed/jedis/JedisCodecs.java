@@ -11,26 +11,33 @@ public class JedisCodecs {
     static public final Function<byte[],String> STRING_DECODE
         = (byte[] bytes) -> new String(bytes, StandardCharsets.UTF_8);
 
-//    static public final Function<Object,byte[]> OJBECT_ENCODE = (Object value) -> {
-//        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-//            ObjectOutput out = new ObjectOutputStream(baos);
-//            out.writeObject(value);
-//            out.flush();
-//            return baos.toByteArray();
-//        } catch (IOException e) {
-//            throw new UncheckedIOException(e);
-//        }
-//    };
-//
-//    static public final Function<byte[],Object> OJBECT_DECODE = (byte[] bytes) -> {
-//        try (ByteArrayInputStream bais = new ByteArrayInputStream(bytes)) {
-//            ObjectInput in = new ObjectInputStream(bais);
-//            return in.readObject();
-//        } catch (ClassNotFoundException e) {
-//            throw new RuntimeException(e);
-//        } catch (IOException e) {
-//            throw new UncheckedIOException(e);
-//        }
-//    };
+    static public final JedisCodec<String> STRING
+        = JedisCodec.of(STRING_ENCODE, STRING_DECODE);
+    
+    static public final JedisCodec<Long> LONG = new JedisCodec<Long>() {
+        @Override
+        public byte[] encode(Long value) {
+            final BinaryWriter writer = BinaryWriter.acquire();
+            try {
+                return writer.writeZigZagLong(value).toByteArray();
+            } finally {
+                BinaryWriter.release(writer);
+            }
+        }
+        @Override
+        public Long decode(byte[] bytes) {
+            return new BinaryReader(bytes).readZigZagLong();
+        }
+    };
+    
+    /**
+     * Shared compact codec for arbitrary objects.  Applications that register
+     * their own types should create their own CompactCodec instead.
+     */
+    static public final CompactCodec OBJECT = new CompactCodec();
+    
+    static public final Function<Object,byte[]> OBJECT_ENCODE = OBJECT.asEncoder();
+
+    static public final Function<byte[],Object> OBJECT_DECODE = OBJECT.asDecoder();
     
 }
@@ -0,0 +1,310 @@
+package com.fizzed.jedis;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Response;
+
+/**
+ * Coalesces increments of hot counters in-process and flushes the summed
+ * deltas to redis with pipelined INCRBYs every few millis, so incrementing a
+ * counter does not cost a round trip.
+ *
+ * The first increment of a counter (or the first after it was idle) is sent
+ * immediately to learn its value. After that incrBy() returns an estimate: the
+ * value redis returned on the last flush plus the deltas not yet flushed
+ * (increments by other processes show up after the next flush). Deltas that
+ * fail to flush are retried on the next flush, and close() flushes everything.
+ */
+public class JedisCounterCoalescer implements Closeable {
+    static private final Logger log = LoggerFactory.getLogger(JedisCounterCoalescer.class);
+
+    static public final int DEFAULT_BATCH_SIZE = 500;
+
+    // counters idle for this many flushes are dropped from memory
+    static private final int IDLE_FLUSHES = 100;
+
+    static private class Counter {
+
+        private final String key;
+        private final byte[] keyBytes;
+        private final LongAdder pending;
+        private volatile long value;
+        private volatile long inflight;
+        private volatile boolean known;
+        private int idle;
+
+        private Counter(String key) {
+            this.key = key;
+            this.keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            this.pending = new LongAdder();
+        }
+
+    }
+
+    static private class Delta {
+
+        private final Counter counter;
+        private final long delta;
+        private boolean flushed;
+
+        private Delta(Counter counter, long delta) {
+            this.counter = counter;
+            this.delta = delta;
+        }
+
+    }
+
+    private final JedisPool jedisPool;
+    private final JedisAsyncClient asyncClient;
+    private final ConcurrentMap<String,Counter> counters;
+    private final ScheduledExecutorService executor;
+    private final int batchSize;
+    private final ReentrantLock flushLock;
+    private List<Counter> retiring;
+    private volatile Consumer<Collection<String>> flushListener;
+    private volatile boolean closed;
+
+    public JedisCounterCoalescer(JedisPool jedisPool, long flushInterval, TimeUnit unit) {
+        this(jedisPool, flushInterval, unit, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Creates a new coalescer and starts flushing.
+     * @param jedisPool The jedis pool
+     * @param flushInterval The interval deltas are flushed at
+     * @param unit The unit of the interval
+     * @param batchSize The max number of INCRBYs per pipeline
+     */
+    public JedisCounterCoalescer(JedisPool jedisPool, long flushInterval, TimeUnit unit, int batchSize) {
+        Objects.requireNonNull(jedisPool, "jedisPool was null");
+        Objects.requireNonNull(unit, "unit was null");
+        if (flushInterval <= 0) {
+            throw new IllegalArgumentException("flushInterval must be > 0");
+        }
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be > 0");
+        }
+        this.jedisPool = jedisPool;
+        this.asyncClient = JedisFactory.getAsyncClient(jedisPool);
+        this.counters = new ConcurrentHashMap<>();
+        this.batchSize = batchSize;
+        this.flushLock = new ReentrantLock();
+        this.retiring = new ArrayList<>();
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "jedis-counter-flush");
+            t.setDaemon(true);
+            return t;
+        });
+        this.executor.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, unit);
+    }
+
+    /**
+     * Sets a listener called with the keys of the counters written by each
+     * flush (e.g. to invalidate cached copies of them).
+     * @param flushListener The listener or null
+     * @return This coalescer
+     */
+    public JedisCounterCoalescer setFlushListener(Consumer<Collection<String>> flushListener) {
+        this.flushListener = flushListener;
+        return this;
+    }
+
+    /**
+     * Gets the number of counters currently held in memory.
+     * @return The number of counters
+     */
+    public int getSize() {
+        return this.counters.size();
+    }
+
+    /**
+     * Increments a counter by a delta.
+     * @param key The key
+     * @param delta The delta (negative to decrement)
+     * @return The (estimated) new value
+     */
+    public long incrBy(String key, long delta) {
+        if (this.closed) {
+            throw new IllegalStateException("Counter coalescer is closed");
+        }
+
+        final Counter counter = this.counters.computeIfAbsent(key, Counter::new);
+
+        if (!counter.known) {
+            // learn the current value (concurrent first increments may each do this)
+            long value = this.incrByNow(counter.keyBytes, delta);
+            counter.value = value;
+            counter.known = true;
+            return value;
+        }
+
+        counter.pending.add(delta);
+
+        return counter.value + counter.inflight + counter.pending.sum();
+    }
+
+    private long incrByNow(byte[] key, long delta) {
+        if (this.asyncClient != null) {
+            return JedisAsyncClient.join(this.asyncClient.incrBy(key, delta));
+        }
+        return JedisClients.execute(this.jedisPool, key, jedis -> jedis.incrBy(key, delta));
+    }
+
+    private void flushQuietly() {
+        try {
+            this.flush();
+        } catch (Exception e) {
+            log.warn("Unable to flush counters (will retry): {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Flushes all pending deltas to redis now.
+     */
+    public void flush() {
+        this.flushLock.lock();
+        try {
+            this.doFlush();
+        } finally {
+            this.flushLock.unlock();
+        }
+    }
+
+    private void doFlush() {
+        final List<Delta> deltas = new ArrayList<>();
+
+        // counters retired on the previous flush had a full interval for any
+        // increment that raced their removal to land
+        for (Counter counter : this.retiring) {
+            long delta = counter.pending.sumThenReset();
+            if (delta != 0) {
+                deltas.add(new Delta(counter, delta));
+            }
+        }
+        this.retiring = new ArrayList<>();
+
+        for (Counter counter : this.counters.values()) {
+            long delta = counter.pending.sumThenReset();
+            if (delta != 0) {
+                counter.inflight = delta;
+                counter.idle = 0;
+                deltas.add(new Delta(counter, delta));
+            } else if (++counter.idle >= IDLE_FLUSHES && this.counters.remove(counter.key, counter)) {
+                this.retiring.add(counter);
+            }
+        }
+
+        if (deltas.isEmpty()) {
+            return;
+        }
+
+        try {
+            if (this.asyncClient != null) {
+                this.flushAsync(deltas);
+            } else {
+                this.flushPipelined(deltas);
+            }
+        } catch (RuntimeException e) {
+            // retry what was not flushed on the next flush
+            for (Delta delta : deltas) {
+                if (!delta.flushed) {
+                    delta.counter.inflight = 0;
+                    this.counters.computeIfAbsent(delta.counter.key, Counter::new).pending.add(delta.delta);
+                }
+            }
+            throw e;
+        }
+
+        final Consumer<Collection<String>> listener = this.flushListener;
+        if (listener != null) {
+            final List<String> keys = new ArrayList<>(deltas.size());
+            for (Delta delta : deltas) {
+                keys.add(delta.counter.key);
+            }
+            listener.accept(keys);
+        }
+    }
+
+    private void flushAsync(List<Delta> deltas) {
+        final List<CompletableFuture<Long>> futures = new ArrayList<>(deltas.size());
+        for (Delta delta : deltas) {
+            futures.add(this.asyncClient.incrBy(delta.counter.keyBytes, delta.delta));
+        }
+        RuntimeException failure = null;
+        for (int i = 0; i < deltas.size(); i++) {
+            try {
+                this.flushed(deltas.get(i), JedisAsyncClient.join(futures.get(i)));
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void flushPipelined(List<Delta> deltas) {
+        final List<byte[]> keys = new ArrayList<>(deltas.size());
+        for (Delta delta : deltas) {
+            keys.add(delta.counter.keyBytes);
+        }
+        // each delta is flushed as its reply is read, so a failure of some
+        // (e.g. a node of a cluster is down) does not retry the others
+        JedisClients.pipelined(this.jedisPool, keys, this.batchSize, (pipeline, index) -> {
+            final Delta delta = deltas.get(index);
+            final Response<Long> response = pipeline.incrBy(delta.counter.keyBytes, delta.delta);
+            return () -> {
+                final long value = response.get();
+                this.flushed(delta, value);
+                return value;
+            };
+        });
+    }
+
+    private void flushed(Delta delta, long value) {
+        delta.flushed = true;
+        delta.counter.value = value;
+        delta.counter.inflight = 0;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stops the periodic flush and flushes everything pending.
+     */
+    @Override
+    public void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // twice so retiring counters are flushed too
+        this.flush();
+        this.flush();
+    }
+
+}
@@ -1,24 +1,41 @@
 package com.fizzed.jedis;
 
 import com.fizzed.crux.uri.Uri;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.HostAndPort;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
 
 public class JedisFactory {
+    static private final Logger log = LoggerFactory.getLogger(JedisFactory.class);
     
     static public JedisPool createJedisPool(String uri) {
-        return createJedisPool(new Uri(uri));
+        // parsed by the options (which support a list of cluster hosts)
+        return createJedisPool(new JedisOptions(uri));
     }
     
     static public JedisPool createJedisPool(Uri uri) {
         return createJedisPool(new JedisOptions().setUri(uri));
     }
     
-    static public JedisPool createJedisPool(JedisOptions options) {
+    static public JedisPool createJedisPool(JedisOptions<?> options) {
         Objects.requireNonNull(options, "jedis options was null");
         Objects.requireNonNull(options.getHost(), "jedis options.host was null");
         Objects.requireNonNull(options.getPort(), "jedis options.port was null");
@@ -28,14 +45,389 @@ public class JedisFactory {
         
         poolConfig.setMinIdle(options.getPoolMinSize());
         poolConfig.setMaxTotal(options.getPoolMaxSize());
+        // by default never close connections returned during a burst
+        poolConfig.setMaxIdle(options.getPoolMaxIdle() != null
+            ? options.getPoolMaxIdle() : options.getPoolMaxSize());
         poolConfig.setMaxWaitMillis(options.getPoolWaitTimeout());
+        poolConfig.setTestOnBorrow(isTrue(options.getPoolTestOnBorrow()));
+        poolConfig.setTestWhileIdle(isTrue(options.getPoolTestWhileIdle()));
+        poolConfig.setLifo(options.getPoolLifo() == null || options.getPoolLifo());
+        poolConfig.setFairness(isTrue(options.getPoolFairness()));
+        if (options.getPoolEvictionInterval() != null) {
+            poolConfig.setTimeBetweenEvictionRunsMillis(options.getPoolEvictionInterval());
+            // test every idle connection on each run
+            poolConfig.setNumTestsPerEvictionRun(-1);
+        }
+        if (options.getPoolMinEvictableIdleTime() != null) {
+            poolConfig.setMinEvictableIdleTimeMillis(options.getPoolMinEvictableIdleTime());
+        }
+        
+        // timeouts are in millis
+        final int connectionTimeout = options.getConnectTimeout().intValue();
+        final int soTimeout = (options.getSocketTimeout() != null
+            ? options.getSocketTimeout().intValue() : connectionTimeout);
+        
+        final DefaultJedisPool jedisPool;
+        if (options.isCluster()) {
+            if (isTrue(options.getAsyncEnabled())) {
+                throw new IllegalArgumentException("Unsupported async_enabled with a redis cluster");
+            }
+            if (JedisOptions.BLOCKING_MODE_MULTIPLEXED.equals(options.getBlockingMode())) {
+                throw new IllegalArgumentException("Unsupported blocking_mode "
+                    + JedisOptions.BLOCKING_MODE_MULTIPLEXED + " with a redis cluster");
+            }
+            if (options.getDatabase() != null && options.getDatabase() != 0) {
+                throw new IllegalArgumentException("Unsupported database " + options.getDatabase()
+                    + " (a redis cluster only has database 0)");
+            }
+            if (options.isReplicated()) {
+                throw new IllegalArgumentException("Unsupported replicas with a redis cluster");
+            }
+            // a pool per node (created as the node is discovered)
+            jedisPool = new ClusterJedisPool(options.getClusterNodes(),
+                (options.getClusterMaxRedirects() != null ? options.getClusterMaxRedirects() : 5),
+                node -> createNodePool(options, poolConfig, node.getHost(), node.getPort(),
+                    connectionTimeout, soTimeout, null));
+        } else if (options.isReplicated()) {
+            final ReplicatedJedisPool.ReadPolicy readPolicy = ReplicatedJedisPool.ReadPolicy.valueOf(
+                (options.getReplicaReadPolicy() != null ? options.getReplicaReadPolicy() : JedisOptions.READ_POLICY_ROUND_ROBIN)
+                    .toUpperCase(Locale.ROOT).replace('-', '_'));
+            final long checkInterval = (options.getReplicaCheckInterval() != null ? options.getReplicaCheckInterval() : 1000L);
+            final long maxLag = (options.getReplicaMaxLag() != null ? options.getReplicaMaxLag() : 2000L);
+            if (options.isSentinel()) {
+                Objects.requireNonNull(options.getSentinelMaster(), "jedis options.sentinel_master was null");
+                if (isTrue(options.getAsyncEnabled())) {
+                    // its connections would not follow a failover
+                    throw new IllegalArgumentException("Unsupported async_enabled with sentinel");
+                }
+                jedisPool = new ReplicatedJedisPool(options.getSentinelMaster(), options.getSentinels(), connectionTimeout,
+                    readPolicy, checkInterval, maxLag, TimeUnit.MILLISECONDS,
+                    node -> createNodePool(options, poolConfig, node.getHost(), node.getPort(),
+                        connectionTimeout, soTimeout, options.getDatabase()));
+            } else {
+                jedisPool = new ReplicatedJedisPool(new HostAndPort(options.getHost(), options.getPort()), options.getReplicas(),
+                    readPolicy, checkInterval, maxLag, TimeUnit.MILLISECONDS,
+                    node -> createNodePool(options, poolConfig, node.getHost(), node.getPort(),
+                        connectionTimeout, soTimeout, options.getDatabase()));
+            }
+        } else {
+            jedisPool = createNodePool(options, poolConfig, options.getHost(), options.getPort(),
+                connectionTimeout, soTimeout, options.getDatabase());
+        }
+        
+        // e.g. for subscriptions (which redis cluster broadcasts to every node)
+        final Supplier<Jedis> connector;
+        if (jedisPool instanceof ReplicatedJedisPool) {
+            // to the current primary (the host of sentinel options is a sentinel)
+            final ReplicatedJedisPool replicatedPool = (ReplicatedJedisPool)jedisPool;
+            connector = () -> {
+                final HostAndPort primary = replicatedPool.getPrimaryAddress();
+                return createJedis(options, primary.getHost(), primary.getPort());
+            };
+        } else {
+            connector = () -> createJedis(options);
+        }
+        jedisPool.setConnector(connector);
+        
+        if (options.getAsyncEnabled() != null && options.getAsyncEnabled()) {
+            // connections are opened lazily on first use
+            jedisPool.setAsyncClient(new JedisAsyncClient(options.getHost(), options.getPort(),
+                options.getPassword(), options.getDatabase(), options.getAsyncConnections(),
+                connectionTimeout, soTimeout));
+        }
+        
+        if (JedisOptions.BLOCKING_MODE_MULTIPLEXED.equals(options.getBlockingMode())) {
+            // connections are opened lazily on first blocking pop
+            jedisPool.setBlockingMultiplexer(new JedisBlockingMultiplexer(
+                connector, options.getBlockingConnections()));
+        }
+        
+        if (isTrue(options.getPoolPrewarm())) {
+            try {
+                jedisPool.prewarm();
+            } catch (JedisException e) {
+                // still usable: connections are opened on demand once redis is up
+                log.warn("Unable to prewarm jedis pool: {}", e.getMessage());
+            }
+        }
+        
+        return jedisPool;
+    }
+    
+    static private DefaultJedisPool createNodePool(JedisOptions<?> options, GenericObjectPoolConfig poolConfig,
+            String host, int port, int connectionTimeout, int soTimeout, Integer database) {
+        
+        final DefaultJedisPool jedisPool;
+        if (JedisOptions.POOL_TYPE_CONCURRENT.equals(options.getPoolType())) {
+            jedisPool = new ConcurrentJedisPool(poolConfig, host, port,
+                connectionTimeout, soTimeout, options.getPassword(), database);
+        } else {
+            jedisPool = new DefaultJedisPool(poolConfig, host, port,
+                connectionTimeout, soTimeout, options.getPassword(), database);
+        }
+        
+        jedisPool.setTcpNoDelay(options.getTcpNoDelay() == null || options.getTcpNoDelay());
+        jedisPool.setTcpKeepAlive(options.getTcpKeepAlive() == null || options.getTcpKeepAlive());
+        
+        return jedisPool;
+    }
+    
+    /**
+     * Gets whether the jedis pool is of a redis cluster, where commands on a
+     * key must use a connection to the node serving it (see
+     * JedisClients.execute(JedisPool, byte[], JedisCallable)).
+     * @param jedisPool The jedis pool
+     * @return True if a cluster pool
+     */
+    static public boolean isCluster(JedisPool jedisPool) {
+        return jedisPool instanceof ClusterJedisPool;
+    }
+    
+    /**
+     * Gets whether the jedis pool has replicas that reads may be routed to
+     * (see JedisClients.executeRead(JedisPool, byte[], JedisCallable)).
+     * @param jedisPool The jedis pool
+     * @return True if a replicated pool
+     */
+    static public boolean isReplicated(JedisPool jedisPool) {
+        return jedisPool instanceof ReplicatedJedisPool;
+    }
+    
+    static private boolean isTrue(Boolean value) {
+        return value != null && value;
+    }
+    
+    /**
+     * Applies socket options to a connected jedis client (jedis itself always
+     * enables both).
+     * @param jedis The connected jedis client
+     * @param tcpNoDelay Whether to disable Nagle's algorithm
+     * @param tcpKeepAlive Whether to enable TCP keepalive
+     */
+    static void configureSocket(Jedis jedis, boolean tcpNoDelay, boolean tcpKeepAlive) {
+        final Socket socket = jedis.getClient().getSocket();
+        if (socket == null) {
+            return;
+        }
+        try {
+            if (socket.getTcpNoDelay() != tcpNoDelay) {
+                socket.setTcpNoDelay(tcpNoDelay);
+            }
+            if (socket.getKeepAlive() != tcpKeepAlive) {
+                socket.setKeepAlive(tcpKeepAlive);
+            }
+        } catch (SocketException e) {
+            throw new JedisConnectionException(e);
+        }
+    }
+    
+    /**
+     * Creates a new, connected (and not pooled) jedis client.  The caller is
+     * responsible for closing it.
+     * @param options The options
+     * @return The connected jedis client
+     */
+    static public Jedis createJedis(JedisOptions options) {
+        Objects.requireNonNull(options, "jedis options was null");
+        Objects.requireNonNull(options.getHost(), "jedis options.host was null");
+        Objects.requireNonNull(options.getPort(), "jedis options.port was null");
+        
+        return createJedis(options, options.getHost(), options.getPort());
+    }
+    
+    static private Jedis createJedis(JedisOptions options, String host, int port) {
+        Objects.requireNonNull(options.getConnectTimeout(), "jedis options.connect_timeout was null");
+        
+        final int connectionTimeout = options.getConnectTimeout().intValue();
+        final int soTimeout = (options.getSocketTimeout() != null
+            ? options.getSocketTimeout().intValue() : connectionTimeout);
+        
+        Jedis jedis = new Jedis(host, port, connectionTimeout, soTimeout);
+        try {
+            jedis.connect();
+            configureSocket(jedis, options.getTcpNoDelay() == null || options.getTcpNoDelay(),
+                options.getTcpKeepAlive() == null || options.getTcpKeepAlive());
+            if (options.getPassword() != null) {
+                jedis.auth(options.getPassword());
+            }
+            if (options.getDatabase() != null && options.getDatabase() != 0) {
+                jedis.select(options.getDatabase());
+            }
+        } catch (RuntimeException e) {
+            jedis.close();
+            throw e;
+        }
+        return jedis;
+    }
+    
+    /**
+     * Gets the async client attached to the jedis pool.
+     * @param jedisPool The jedis pool
+     * @return The async client or null if the pool was not created with
+     *      async_enabled=true
+     */
+    static public JedisAsyncClient getAsyncClient(JedisPool jedisPool) {
+        if (jedisPool instanceof DefaultJedisPool) {
+            return ((DefaultJedisPool)jedisPool).getAsyncClient();
+        }
+        return null;
+    }
+    
+    /**
+     * Gets the blocking multiplexer attached to the jedis pool.
+     * @param jedisPool The jedis pool
+     * @return The multiplexer or null if the pool was not created with
+     *      blocking_mode=multiplexed
+     */
+    static public JedisBlockingMultiplexer getBlockingMultiplexer(JedisPool jedisPool) {
+        if (jedisPool instanceof DefaultJedisPool) {
+            return ((DefaultJedisPool)jedisPool).getBlockingMultiplexer();
+        }
+        return null;
+    }
+    
+    /**
+     * Gets the connector of dedicated (not pooled) connections configured the
+     * same as the jedis pool.
+     * @param jedisPool The jedis pool
+     * @return The connector or null if the pool was not created by this factory
+     */
+    static public Supplier<Jedis> getConnector(JedisPool jedisPool) {
+        if (jedisPool instanceof DefaultJedisPool) {
+            return ((DefaultJedisPool)jedisPool).getConnector();
+        }
+        return null;
+    }
+    
+    /**
+     * Gets the metrics of the jedis pool.
+     * @param jedisPool The jedis pool
+     * @return The metrics or NOOP if none were set
+     */
+    static public JedisMetrics getMetrics(JedisPool jedisPool) {
+        if (jedisPool instanceof DefaultJedisPool) {
+            return ((DefaultJedisPool)jedisPool).getMetrics();
+        }
+        return JedisMetrics.NOOP;
+    }
+    
+    /**
+     * Readies connections of the jedis pool before it takes traffic.  Borrows
+     * them in parallel (which opens, authenticates and selects the database of
+     * any not already idle), PINGs each and then returns them all to the pool.
+     * Failures are counted in the result rather than thrown.
+     * @param jedisPool The jedis pool
+     * @param connections The number of connections (capped at the max size of
+     *      the pool if known)
+     * @param timeout The max time to wait for all of them
+     * @param unit The unit of the timeout
+     * @return The result
+     */
+    static public JedisPrewarmResult prewarmJedisPool(JedisPool jedisPool, int connections, long timeout, TimeUnit unit) {
+        Objects.requireNonNull(jedisPool, "jedis pool was null");
+        Objects.requireNonNull(unit, "unit was null");
+        
+        final long started = System.nanoTime();
+        
+        if (jedisPool instanceof ClusterJedisPool) {
+            // the nodes (and so the max size) are only known once discovered
+            try {
+                ((ClusterJedisPool)jedisPool).getNodes();
+            } catch (JedisException e) {
+                final int requested = Math.max(0, connections);
+                return new JedisPrewarmResult(requested, 0, requested, e, System.nanoTime() - started, 0L, 0L, 0L);
+            }
+        }
+        if (jedisPool instanceof ReplicatedJedisPool) {
+            // reads are served by the primary until replicas are first checked
+            final DefaultJedisPool primary;
+            try {
+                primary = ((ReplicatedJedisPool)jedisPool).getPrimary();
+            } catch (JedisException e) {
+                final int requested = Math.max(0, connections);
+                return new JedisPrewarmResult(requested, 0, requested, e, System.nanoTime() - started, 0L, 0L, 0L);
+            }
+            return prewarmJedisPool(primary, connections, timeout, unit);
+        }
+        if (jedisPool instanceof DefaultJedisPool) {
+            connections = Math.min(connections, ((DefaultJedisPool)jedisPool).getMaxTotal());
+        }
+        final int requested = Math.max(0, connections);
+        
+        if (requested == 0) {
+            return new JedisPrewarmResult(0, 0, 0, null, 0L, 0L, 0L, 0L);
+        }
+        
+        // borrowed connections are held until every one is borrowed (so none
+        // is borrowed twice), then all returned at once
+        final List<Jedis> borrowed = new ArrayList<>(requested);
+        final long[] stats = new long[3];           // max borrow, total ping, max ping
+        final boolean[] done = new boolean[1];
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        final CountDownLatch finished = new CountDownLatch(requested);
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(requested, 16), r -> {
+            Thread t = new Thread(r, "jedis-prewarm-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        
+        try {
+            for (int i = 0; i < requested; i++) {
+                executor.execute(() -> {
+                    try {
+                        final long borrowStarted = System.nanoTime();
+                        final Jedis jedis = jedisPool.getResource();
+                        final long borrowNanos = System.nanoTime() - borrowStarted;
+                        try {
+                            final long pingStarted = System.nanoTime();
+                            jedis.ping();
+                            final long pingNanos = System.nanoTime() - pingStarted;
+                            synchronized (borrowed) {
+                                if (!done[0]) {
+                                    borrowed.add(jedis);
+                                    stats[0] = Math.max(stats[0], borrowNanos);
+                                    stats[1] += pingNanos;
+                                    stats[2] = Math.max(stats[2], pingNanos);
+                                    return;
+                                }
+                            }
+                            // too late to count
+                            jedis.close();
+                        } catch (RuntimeException e) {
+                            jedis.close();
+                            throw e;
+                        }
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        finished.countDown();
+                    }
+                });
+            }
+            
+            try {
+                finished.await(timeout, unit);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        
+        final List<Jedis> ready;
+        synchronized (borrowed) {
+            done[0] = true;
+            ready = new ArrayList<>(borrowed);
+        }
+        
+        // return them to the pool (where they stay idle)
+        ready.forEach(Jedis::close);
         
-        // convert millis timeout to seconds
-        int connectionTimeout = (int)TimeUnit.MILLISECONDS.convert(
-            options.getConnectTimeout(), TimeUnit.SECONDS);
+        final int count = ready.size();
         
-        return new DefaultJedisPool(poolConfig, options.getHost(), options.getPort(),
-            connectionTimeout, options.getPassword(), options.getDatabase());
+        return new JedisPrewarmResult(requested, count, requested - count, failure.get(),
+            System.nanoTime() - started, stats[0], (count > 0 ? stats[1] / count : 0L), stats[2]);
     }
     
     static public void validateJedisPool(Logger log, JedisPool jedisPool) {
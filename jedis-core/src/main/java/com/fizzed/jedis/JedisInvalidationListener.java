@@ -0,0 +1,262 @@
+package com.fizzed.jedis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+
+/**
+ * Listens for invalidated keys on a dedicated connection so an in-process
+ * cache can stay coherent with redis.  Two modes are supported:
+ *
+ * <pre>
+ *   TRACKING  redis 6+ client side caching in broadcast mode: every key (with
+ *             one of the prefixes) written, expired or evicted by any client
+ *             is invalidated
+ *   CHANNEL   keys published to a pub/sub channel by writers (works with any
+ *             redis, but only covers writes that publish)
+ * </pre>
+ *
+ * The connection is re-established (with backoff) if it fails.  Since any
+ * invalidation may have been missed while disconnected, the handler is told
+ * to invalidate everything whenever the connection is (re)established or
+ * lost, and callers must not cache anything while isConnected() is false.
+ */
+public class JedisInvalidationListener implements Closeable {
+    static private final Logger log = LoggerFactory.getLogger(JedisInvalidationListener.class);
+
+    static public final String TRACKING_CHANNEL = "__redis__:invalidate";
+
+    static private final long MIN_BACKOFF_MILLIS = 100L;
+    static private final long MAX_BACKOFF_MILLIS = 30000L;
+
+    public enum Mode {
+        TRACKING,
+        CHANNEL
+    }
+
+    public interface Handler {
+
+        void invalidate(byte[] key);
+
+        void invalidateAll();
+
+    }
+
+    private final Supplier<Jedis> connector;
+    private final Mode mode;
+    private final String channel;
+    private final List<String> prefixes;
+    private final Handler handler;
+    private volatile boolean connected;
+    private volatile boolean closed;
+    private volatile Jedis jedis;
+    private Thread thread;
+
+    /**
+     * Creates a new listener.
+     * @param connector Creates the dedicated connection
+     * @param mode The mode
+     * @param channel The channel keys are published to (CHANNEL mode only)
+     * @param prefixes The key prefixes to track (TRACKING mode only) or empty
+     *      for all keys
+     * @param handler The handler of invalidations
+     */
+    public JedisInvalidationListener(Supplier<Jedis> connector, Mode mode, String channel, List<String> prefixes, Handler handler) {
+        Objects.requireNonNull(connector, "connector was null");
+        Objects.requireNonNull(mode, "mode was null");
+        Objects.requireNonNull(handler, "handler was null");
+        if (mode == Mode.CHANNEL) {
+            Objects.requireNonNull(channel, "channel was null");
+        }
+        this.connector = connector;
+        this.mode = mode;
+        this.channel = (mode == Mode.CHANNEL ? channel : TRACKING_CHANNEL);
+        this.prefixes = (prefixes != null ? new ArrayList<>(prefixes) : Collections.emptyList());
+        this.handler = handler;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    /**
+     * Whether the listener is currently subscribed and receiving invalidations.
+     * @return True if connected
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    synchronized public JedisInvalidationListener start() {
+        if (this.closed) {
+            throw new IllegalStateException("Listener is closed");
+        }
+        if (this.thread == null) {
+            this.thread = new Thread(this::run, "jedis-invalidation");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+        return this;
+    }
+
+    /**
+     * Waits for the listener to connect.
+     * @param timeout The amount of time to wait
+     * @param unit The unit of the timeout
+     * @return True if connected
+     * @throws InterruptedException If the calling thread was interrupted
+     */
+    public boolean awaitConnected(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!this.connected && !this.closed && System.nanoTime() < deadline) {
+            Thread.sleep(10L);
+        }
+        return this.connected;
+    }
+
+    @Override
+    public void close() {
+        this.closed = true;
+        this.closeSocket();
+        final Thread t;
+        synchronized (this) {
+            t = this.thread;
+        }
+        if (t != null) {
+            try {
+                t.join(1000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void closeSocket() {
+        final Jedis j = this.jedis;
+        if (j != null) {
+            try {
+                // safe from another thread and unblocks the read() in run()
+                Socket socket = j.getClient().getSocket();
+                if (socket != null) {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void run() {
+        long backoffMillis = MIN_BACKOFF_MILLIS;
+        while (!this.closed) {
+            try {
+                this.jedis = this.connector.get();
+                if (this.closed) {
+                    break;
+                }
+                this.subscribe(this.jedis);
+                // anything cached before now may have missed an invalidation
+                this.handler.invalidateAll();
+                this.connected = true;
+                backoffMillis = MIN_BACKOFF_MILLIS;
+                log.debug("Listening for invalidations on {} ({} mode)", this.channel, this.mode);
+                this.listen(this.jedis.getClient());
+            } catch (Exception e) {
+                if (!this.closed) {
+                    log.warn("Invalidation listener failed (will reconnect in {} ms): {}", backoffMillis, e.getMessage());
+                }
+            } finally {
+                this.connected = false;
+                this.handler.invalidateAll();
+                final Jedis j = this.jedis;
+                this.jedis = null;
+                if (j != null) {
+                    try {
+                        j.close();
+                    } catch (Exception e) {
+                        // ignore
+                    }
+                }
+            }
+            if (!this.closed) {
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+            }
+        }
+    }
+
+    private void subscribe(Jedis jedis) {
+        if (this.mode == Mode.TRACKING) {
+            // redirect this connection's own invalidations to itself
+            Long id = (Long)JedisClients.sendCommand(jedis, "CLIENT", bytes("ID"));
+            List<byte[]> args = new ArrayList<>();
+            args.addAll(Arrays.asList(bytes("TRACKING"), bytes("ON"), bytes("REDIRECT"), bytes(id.toString()), bytes("BCAST")));
+            for (String prefix : this.prefixes) {
+                args.add(bytes("PREFIX"));
+                args.add(bytes(prefix));
+            }
+            JedisClients.sendCommand(jedis, "CLIENT", args.toArray(new byte[args.size()][]));
+        }
+        JedisClients.sendCommand(jedis, "SUBSCRIBE", bytes(this.channel));
+    }
+
+    private void listen(Client client) {
+        client.setTimeoutInfinite();
+        while (!this.closed) {
+            Object reply = client.getOne();
+            if (!(reply instanceof List)) {
+                continue;
+            }
+            List<?> message = (List<?>)reply;
+            if (message.size() != 3 || !"message".equals(string(message.get(0)))) {
+                continue;
+            }
+            Object payload = message.get(2);
+            if (payload == null) {
+                // redis was flushed (or tracking state was lost)
+                this.handler.invalidateAll();
+            } else if (payload instanceof byte[]) {
+                this.handler.invalidate((byte[])payload);
+            } else if (payload instanceof List) {
+                for (Object key : (List<?>)payload) {
+                    if (key instanceof byte[]) {
+                        this.handler.invalidate((byte[])key);
+                    }
+                }
+            }
+        }
+    }
+
+    static private byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static private String string(Object o) {
+        return (o instanceof byte[] ? new String((byte[])o, StandardCharsets.UTF_8) : null);
+    }
+
+}
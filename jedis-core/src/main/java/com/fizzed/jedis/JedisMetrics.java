@@ -0,0 +1,55 @@
+package com.fizzed.jedis;
+
+/**
+ * Receives measurements of a jedis pool and of the queue and cache operations
+ * that use it.  Set on a pool with DefaultJedisPool.setMetrics() (adapters for
+ * micrometer and dropwizard are in the jedis-metrics-* modules).
+ *
+ * Methods are called on every borrow and operation, so implementations must
+ * be thread safe and must not block.  Every method does nothing by default.
+ */
+public interface JedisMetrics {
+
+    /**
+     * Records nothing (and lets callers skip timing altogether).
+     */
+    JedisMetrics NOOP = new JedisMetrics() { };
+
+    /**
+     * A connection was borrowed from the pool.
+     * @param nanos How long the borrow waited
+     */
+    default void borrowed(long nanos) {
+    }
+
+    /**
+     * A connection could not be borrowed from the pool.
+     * @param nanos How long the borrow waited
+     * @param exhausted True if no connection became available in time (rather
+     *      than one failing to connect)
+     */
+    default void borrowFailed(long nanos, boolean exhausted) {
+    }
+
+    /**
+     * A pooled connection was created.
+     */
+    default void connectionCreated() {
+    }
+
+    /**
+     * A pooled connection was destroyed.
+     */
+    default void connectionDestroyed() {
+    }
+
+    /**
+     * A queue or cache operation completed.
+     * @param operation The operation (e.g. "queue.push" or "cache.get")
+     * @param nanos How long the operation took
+     * @param success False if it threw an exception
+     */
+    default void command(String operation, long nanos, boolean success) {
+    }
+
+}
@@ -3,43 +3,128 @@ package com.fizzed.jedis;
 import com.fizzed.crux.uri.Uri;
 import com.fizzed.crux.util.BindingPropertyMap;
 import com.fizzed.crux.util.BindingPropertySupport;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
+import redis.clients.jedis.HostAndPort;
 
 public class JedisOptions<A extends JedisOptions<A>> implements BindingPropertySupport<A> {
     
+    static public final String BLOCKING_MODE_POOLED = "pooled";
+    static public final String BLOCKING_MODE_MULTIPLEXED = "multiplexed";
+    static public final String POOL_TYPE_COMMONS = "commons";
+    static public final String POOL_TYPE_CONCURRENT = "concurrent";
+    static public final String SCHEME_REDIS = "redis";
+    static public final String SCHEME_REDIS_CLUSTER = "redis-cluster";
+    static public final String SCHEME_REDIS_SENTINEL = "redis-sentinel";
+    static public final String READ_POLICY_NEAREST = "nearest";
+    static public final String READ_POLICY_ROUND_ROBIN = "round-robin";
+    static public final String READ_POLICY_LEAST_OUTSTANDING = "least-outstanding";
+    static public final int DEFAULT_SENTINEL_PORT = 26379;
+    
     protected final BindingPropertyMap<A> bindingPropertyMap = new BindingPropertyMap<A>()
         .bindString("password", A::setPassword)
         .bindInteger("database", A::setDatabase)
         .bindLong("connect_timeout", A::setConnectTimeout)
+        .bindLong("socket_timeout", A::setSocketTimeout)
+        .bindBoolean("tcp_nodelay", A::setTcpNoDelay)
+        .bindBoolean("tcp_keepalive", A::setTcpKeepAlive)
+        .bindString("pool_type", A::setPoolType)
         .bindInteger("pool_min_size", A::setPoolMinSize)
         .bindInteger("pool_max_size", A::setPoolMaxSize)
-        .bindLong("pool_wait_timeout", A::setPoolWaitTimeout);
+        .bindInteger("pool_max_idle", A::setPoolMaxIdle)
+        .bindLong("pool_wait_timeout", A::setPoolWaitTimeout)
+        .bindBoolean("pool_prewarm", A::setPoolPrewarm)
+        .bindBoolean("pool_test_on_borrow", A::setPoolTestOnBorrow)
+        .bindBoolean("pool_test_while_idle", A::setPoolTestWhileIdle)
+        .bindLong("pool_eviction_interval", A::setPoolEvictionInterval)
+        .bindLong("pool_min_evictable_idle_time", A::setPoolMinEvictableIdleTime)
+        .bindBoolean("pool_lifo", A::setPoolLifo)
+        .bindBoolean("pool_fairness", A::setPoolFairness)
+        .bindBoolean("async_enabled", A::setAsyncEnabled)
+        .bindInteger("async_connections", A::setAsyncConnections)
+        .bindString("blocking_mode", A::setBlockingMode)
+        .bindInteger("blocking_connections", A::setBlockingConnections)
+        .bindInteger("cluster_max_redirects", A::setClusterMaxRedirects)
+        .bindString("replicas", A::setReplicas)
+        .bindString("sentinel_master", A::setSentinelMaster)
+        .bindString("replica_read_policy", A::setReplicaReadPolicy)
+        .bindLong("replica_check_interval", A::setReplicaCheckInterval)
+        .bindLong("replica_max_lag", A::setReplicaMaxLag);
 
     private String host;
     private Integer port;
     private Integer database;
     private String password;
     private Long connectTimeout;
+    private Long socketTimeout;
+    private Boolean tcpNoDelay;
+    private Boolean tcpKeepAlive;
     // pool configuration
+    private String poolType;
     private Integer poolMinSize;
     private Integer poolMaxSize;
+    private Integer poolMaxIdle;
     private Long poolWaitTimeout;
+    private Boolean poolPrewarm;
+    private Boolean poolTestOnBorrow;
+    private Boolean poolTestWhileIdle;
+    private Long poolEvictionInterval;
+    private Long poolMinEvictableIdleTime;
+    private Boolean poolLifo;
+    private Boolean poolFairness;
+    // async (multiplexed) client configuration
+    private Boolean asyncEnabled;
+    private Integer asyncConnections;
+    // blocking command configuration (pooled or multiplexed)
+    private String blockingMode;
+    private Integer blockingConnections;
+    // redis cluster configuration
+    private List<HostAndPort> clusterNodes;
+    private Integer clusterMaxRedirects;
+    // primary/replica configuration (static replicas or sentinels)
+    private List<HostAndPort> replicas;
+    private List<HostAndPort> sentinels;
+    private String sentinelMaster;
+    private String replicaReadPolicy;
+    private Long replicaCheckInterval;
+    private Long replicaMaxLag;
 
     public JedisOptions() {
         this((Uri)null);
     }
     
     public JedisOptions(String uri) {
-        this(new Uri(uri));
+        this((Uri)null);
+        this.setUri(uri);
     }
     
     public JedisOptions(Uri uri) {
         // defaults
         this.port = 6379;
         this.connectTimeout = 60000L;
+        this.tcpNoDelay = true;
+        this.tcpKeepAlive = true;
+        this.poolType = POOL_TYPE_COMMONS;
         this.poolMinSize = 1;
         this.poolMaxSize = 5;
         this.poolWaitTimeout = 5000L;
+        this.poolPrewarm = false;
+        this.poolTestOnBorrow = false;
+        this.poolTestWhileIdle = true;
+        this.poolEvictionInterval = 30000L;
+        this.poolMinEvictableIdleTime = 60000L;
+        this.poolLifo = true;
+        this.poolFairness = false;
+        this.asyncEnabled = false;
+        this.asyncConnections = 2;
+        this.blockingMode = BLOCKING_MODE_POOLED;
+        this.blockingConnections = 2;
+        this.clusterMaxRedirects = 5;
+        this.replicaReadPolicy = READ_POLICY_ROUND_ROBIN;
+        this.replicaCheckInterval = 1000L;
+        this.replicaMaxLag = 2000L;
         if (uri != null) {
             this.setUri(uri);
         }
@@ -94,6 +179,55 @@ public class JedisOptions<A extends JedisOptions<A>> implements BindingPropertyS
         return this;
     }
 
+    public Long getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    /**
+     * Sets the read timeout of commands (in millis).  Blocking commands wait
+     * without one.
+     * @param socketTimeout The timeout or null for the same as connect_timeout
+     */
+    public void setSocketTimeout(Long socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
+    public Boolean getTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public void setTcpNoDelay(Boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public Boolean getTcpKeepAlive() {
+        return tcpKeepAlive;
+    }
+
+    public void setTcpKeepAlive(Boolean tcpKeepAlive) {
+        this.tcpKeepAlive = tcpKeepAlive;
+    }
+
+    public String getPoolType() {
+        return poolType;
+    }
+
+    /**
+     * Sets the implementation of the pool.  The "commons" pool (the default)
+     * is commons-pool's GenericObjectPool.  The "concurrent" pool borrows and
+     * returns connections without locks, which scales better with many
+     * threads (see ConcurrentJedisPool).
+     * @param poolType Either "commons" or "concurrent"
+     */
+    public void setPoolType(String poolType) {
+        if (poolType != null && !POOL_TYPE_COMMONS.equals(poolType)
+                && !POOL_TYPE_CONCURRENT.equals(poolType)) {
+            throw new IllegalArgumentException("Unsupported pool_type " + poolType
+                + " (supported are: " + POOL_TYPE_COMMONS + ", " + POOL_TYPE_CONCURRENT + ")");
+        }
+        this.poolType = poolType;
+    }
+
     public Integer getPoolMinSize() {
         return poolMinSize;
     }
@@ -110,6 +244,20 @@ public class JedisOptions<A extends JedisOptions<A>> implements BindingPropertyS
         this.poolMaxSize = poolMaxSize;
     }
 
+    public Integer getPoolMaxIdle() {
+        return poolMaxIdle;
+    }
+
+    /**
+     * Sets the max number of idle connections kept in the pool.  Connections
+     * returned beyond it are closed, so a value below pool_max_size causes
+     * churn under bursty load.
+     * @param poolMaxIdle The max or null for the same as pool_max_size
+     */
+    public void setPoolMaxIdle(Integer poolMaxIdle) {
+        this.poolMaxIdle = poolMaxIdle;
+    }
+
     public Long getPoolWaitTimeout() {
         return poolWaitTimeout;
     }
@@ -118,12 +266,364 @@ public class JedisOptions<A extends JedisOptions<A>> implements BindingPropertyS
         this.poolWaitTimeout = poolWaitTimeout;
     }
 
+    public Boolean getPoolPrewarm() {
+        return poolPrewarm;
+    }
+
+    /**
+     * Sets whether pool_min_size connections are opened when the pool is
+     * created rather than by the first requests.
+     * @param poolPrewarm True to prewarm the pool
+     */
+    public void setPoolPrewarm(Boolean poolPrewarm) {
+        this.poolPrewarm = poolPrewarm;
+    }
+
+    public Boolean getPoolTestOnBorrow() {
+        return poolTestOnBorrow;
+    }
+
+    /**
+     * Sets whether connections are validated (with a PING) on every borrow.
+     * Costs a round trip per borrow, so pool_test_while_idle is usually
+     * preferred.
+     * @param poolTestOnBorrow True to validate on borrow
+     */
+    public void setPoolTestOnBorrow(Boolean poolTestOnBorrow) {
+        this.poolTestOnBorrow = poolTestOnBorrow;
+    }
+
+    public Boolean getPoolTestWhileIdle() {
+        return poolTestWhileIdle;
+    }
+
+    /**
+     * Sets whether idle connections are validated (with a PING) by the evictor.
+     * @param poolTestWhileIdle True to validate idle connections
+     */
+    public void setPoolTestWhileIdle(Boolean poolTestWhileIdle) {
+        this.poolTestWhileIdle = poolTestWhileIdle;
+    }
+
+    public Long getPoolEvictionInterval() {
+        return poolEvictionInterval;
+    }
+
+    /**
+     * Sets the interval (in millis) the evictor runs at, which closes idle
+     * connections, validates them and tops the pool back up to pool_min_size.
+     * @param poolEvictionInterval The interval or -1 to disable the evictor
+     */
+    public void setPoolEvictionInterval(Long poolEvictionInterval) {
+        this.poolEvictionInterval = poolEvictionInterval;
+    }
+
+    public Long getPoolMinEvictableIdleTime() {
+        return poolMinEvictableIdleTime;
+    }
+
+    /**
+     * Sets how long (in millis) a connection must be idle before the evictor
+     * closes it.  Connections within pool_min_size are kept.
+     * @param poolMinEvictableIdleTime The time or -1 to never close idle
+     *      connections
+     */
+    public void setPoolMinEvictableIdleTime(Long poolMinEvictableIdleTime) {
+        this.poolMinEvictableIdleTime = poolMinEvictableIdleTime;
+    }
+
+    public Boolean getPoolLifo() {
+        return poolLifo;
+    }
+
+    /**
+     * Sets whether the most recently returned connection is borrowed first
+     * (so the rest can go idle and be evicted) rather than the oldest.
+     * @param poolLifo True for last in, first out
+     */
+    public void setPoolLifo(Boolean poolLifo) {
+        this.poolLifo = poolLifo;
+    }
+
+    public Boolean getPoolFairness() {
+        return poolFairness;
+    }
+
+    /**
+     * Sets whether threads waiting on an exhausted pool are served in the
+     * order they started waiting.
+     * @param poolFairness True for fair waiting
+     */
+    public void setPoolFairness(Boolean poolFairness) {
+        this.poolFairness = poolFairness;
+    }
+
+    public Boolean getAsyncEnabled() {
+        return asyncEnabled;
+    }
+
+    public void setAsyncEnabled(Boolean asyncEnabled) {
+        this.asyncEnabled = asyncEnabled;
+    }
+
+    public Integer getAsyncConnections() {
+        return asyncConnections;
+    }
+
+    public void setAsyncConnections(Integer asyncConnections) {
+        this.asyncConnections = asyncConnections;
+    }
+
+    public String getBlockingMode() {
+        return blockingMode;
+    }
+
+    /**
+     * Sets how blocking pops are executed.  In "pooled" mode (the default) each
+     * blocked pop borrows a connection from the pool for as long as it waits.
+     * In "multiplexed" mode blocked pops are parked waiters served by a few
+     * dedicated connections (see blocking_connections).
+     * @param blockingMode Either "pooled" or "multiplexed"
+     */
+    public void setBlockingMode(String blockingMode) {
+        if (blockingMode != null && !BLOCKING_MODE_POOLED.equals(blockingMode)
+                && !BLOCKING_MODE_MULTIPLEXED.equals(blockingMode)) {
+            throw new IllegalArgumentException("Unsupported blocking_mode " + blockingMode
+                + " (supported are: " + BLOCKING_MODE_POOLED + ", " + BLOCKING_MODE_MULTIPLEXED + ")");
+        }
+        this.blockingMode = blockingMode;
+    }
+
+    public Integer getBlockingConnections() {
+        return blockingConnections;
+    }
+
+    public void setBlockingConnections(Integer blockingConnections) {
+        this.blockingConnections = blockingConnections;
+    }
+
+    public List<HostAndPort> getClusterNodes() {
+        return clusterNodes;
+    }
+
+    /**
+     * Sets the nodes of a redis cluster (only a few are needed to discover
+     * the rest).  A redis-cluster uri sets them from its hosts.
+     * @param clusterNodes The nodes or null if not a cluster
+     */
+    public void setClusterNodes(List<HostAndPort> clusterNodes) {
+        this.clusterNodes = clusterNodes;
+    }
+
+    public boolean isCluster() {
+        return this.clusterNodes != null && !this.clusterNodes.isEmpty();
+    }
+
+    public Integer getClusterMaxRedirects() {
+        return clusterMaxRedirects;
+    }
+
+    /**
+     * Sets the max number of MOVED or ASK redirects followed per command while
+     * slots of a cluster are migrated.
+     * @param clusterMaxRedirects The max
+     */
+    public void setClusterMaxRedirects(Integer clusterMaxRedirects) {
+        this.clusterMaxRedirects = clusterMaxRedirects;
+    }
+
+    public List<HostAndPort> getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * Sets static replicas of the primary (host) that reads may be routed to
+     * (see ReplicatedJedisPool).
+     * @param replicas The replicas or null for none
+     */
+    public void setReplicas(List<HostAndPort> replicas) {
+        this.replicas = replicas;
+    }
+
+    /**
+     * Sets static replicas of the primary from a list such as
+     * "host1:6380,host2:6381" (the port defaults to that of the primary).
+     * @param replicas The list or null for none
+     */
+    public void setReplicas(String replicas) {
+        if (replicas == null || replicas.trim().isEmpty()) {
+            this.setReplicas((List<HostAndPort>)null);
+            return;
+        }
+        final List<HostAndPort> nodes = new ArrayList<>();
+        for (String replica : replicas.split(",")) {
+            nodes.add(parseHostAndPort(replica.trim(), this.port));
+        }
+        this.setReplicas(nodes);
+    }
+
+    public List<HostAndPort> getSentinels() {
+        return sentinels;
+    }
+
+    /**
+     * Sets the sentinels the primary and its replicas are discovered from.  A
+     * redis-sentinel uri sets them from its hosts.
+     * @param sentinels The sentinels or null if not using sentinel
+     */
+    public void setSentinels(List<HostAndPort> sentinels) {
+        this.sentinels = sentinels;
+    }
+
+    public boolean isSentinel() {
+        return this.sentinels != null && !this.sentinels.isEmpty();
+    }
+
+    public String getSentinelMaster() {
+        return sentinelMaster;
+    }
+
+    /**
+     * Sets the name the sentinels monitor the primary by.
+     * @param sentinelMaster The name (e.g. "mymaster")
+     */
+    public void setSentinelMaster(String sentinelMaster) {
+        this.sentinelMaster = sentinelMaster;
+    }
+
+    /**
+     * Gets whether reads may be routed to replicas (static or discovered from
+     * sentinels).
+     * @return True if replicated
+     */
+    public boolean isReplicated() {
+        return (this.replicas != null && !this.replicas.isEmpty()) || this.isSentinel();
+    }
+
+    public String getReplicaReadPolicy() {
+        return replicaReadPolicy;
+    }
+
+    /**
+     * Sets how the replica of a read is picked among the healthy ones: the
+     * "nearest" (lowest PING round trip), each in turn ("round-robin", the
+     * default) or the one with the fewest borrowed connections
+     * ("least-outstanding").
+     * @param replicaReadPolicy The policy
+     */
+    public void setReplicaReadPolicy(String replicaReadPolicy) {
+        if (replicaReadPolicy != null && !READ_POLICY_NEAREST.equals(replicaReadPolicy)
+                && !READ_POLICY_ROUND_ROBIN.equals(replicaReadPolicy)
+                && !READ_POLICY_LEAST_OUTSTANDING.equals(replicaReadPolicy)) {
+            throw new IllegalArgumentException("Unsupported replica_read_policy " + replicaReadPolicy
+                + " (supported are: " + READ_POLICY_NEAREST + ", " + READ_POLICY_ROUND_ROBIN
+                + ", " + READ_POLICY_LEAST_OUTSTANDING + ")");
+        }
+        this.replicaReadPolicy = replicaReadPolicy;
+    }
+
+    public Long getReplicaCheckInterval() {
+        return replicaCheckInterval;
+    }
+
+    /**
+     * Sets the interval (in millis) replicas are checked at (and sentinels
+     * asked for the primary and replicas).
+     * @param replicaCheckInterval The interval
+     */
+    public void setReplicaCheckInterval(Long replicaCheckInterval) {
+        this.replicaCheckInterval = replicaCheckInterval;
+    }
+
+    public Long getReplicaMaxLag() {
+        return replicaMaxLag;
+    }
+
+    /**
+     * Sets how far (in millis) a replica may lag the primary before reads are
+     * no longer routed to it.  Lag is only measured as precisely as
+     * replica_check_interval.
+     * @param replicaMaxLag The max lag
+     */
+    public void setReplicaMaxLag(Long replicaMaxLag) {
+        this.replicaMaxLag = replicaMaxLag;
+    }
+
+    /**
+     * Sets the options from a uri such as redis://host:6379/0 or, for a redis
+     * cluster, redis-cluster://host1:7000,host2:7001 or, for a primary and
+     * replicas monitored by sentinels,
+     * redis-sentinel://host1:26379,host2:26379/0?sentinel_master=mymaster.
+     * @param uri The uri
+     * @return This options
+     */
+    public final JedisOptions setUri(String uri) {
+        Objects.requireNonNull(uri);
+        
+        // crux's Uri does not parse a list of hosts, so only the first is
+        // parsed by it and the rest are parsed here
+        String[] hosts = null;
+        final int hostsStart = uri.indexOf("://") + 3;
+        if (hostsStart > 2) {
+            int hostsEnd = hostsStart;
+            while (hostsEnd < uri.length() && "/?#".indexOf(uri.charAt(hostsEnd)) < 0) {
+                hostsEnd++;
+            }
+            final String authority = uri.substring(hostsStart, hostsEnd);
+            final String userInfo = authority.substring(0, authority.lastIndexOf('@') + 1);
+            final String hostList = authority.substring(userInfo.length());
+            if (hostList.indexOf(',') >= 0) {
+                hosts = hostList.split(",");
+                uri = uri.substring(0, hostsStart) + userInfo + hosts[0] + uri.substring(hostsEnd);
+            }
+        }
+        
+        this.setUri(new Uri(uri));
+        
+        if (hosts != null) {
+            if (!this.isCluster() && !this.isSentinel()) {
+                throw new IllegalArgumentException("Multiple hosts are only supported by schemes "
+                    + SCHEME_REDIS_CLUSTER + ", " + SCHEME_REDIS_SENTINEL);
+            }
+            final int defaultPort = (this.isSentinel() ? DEFAULT_SENTINEL_PORT : this.port);
+            final List<HostAndPort> nodes = new ArrayList<>();
+            for (String host : hosts) {
+                nodes.add(parseHostAndPort(host.trim(), defaultPort));
+            }
+            if (this.isCluster()) {
+                this.setClusterNodes(nodes);
+            } else {
+                this.setSentinels(nodes);
+            }
+        }
+        
+        return this;
+    }
+    
+    static private HostAndPort parseHostAndPort(String value, int defaultPort) {
+        final int colon = value.lastIndexOf(':');
+        if (value.isEmpty() || colon == 0) {
+            throw new IllegalArgumentException("Invalid host " + value);
+        }
+        if (colon < 0) {
+            return new HostAndPort(value, defaultPort);
+        }
+        try {
+            return new HostAndPort(value.substring(0, colon), Integer.parseInt(value.substring(colon + 1)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid port of host " + value);
+        }
+    }
+    
     public final JedisOptions setUri(Uri uri) {
         Objects.requireNonNull(uri);
         
-        // scheme should be redis
-        if (!Objects.equals(uri.getScheme(), "redis")) {
-            throw new IllegalArgumentException("Unsupported scheme " + uri.getScheme() + " (supported are: redis)");
+        // scheme should be redis, redis-cluster or redis-sentinel
+        final boolean cluster = Objects.equals(uri.getScheme(), SCHEME_REDIS_CLUSTER);
+        final boolean sentinel = Objects.equals(uri.getScheme(), SCHEME_REDIS_SENTINEL);
+        if (!cluster && !sentinel && !Objects.equals(uri.getScheme(), SCHEME_REDIS)) {
+            throw new IllegalArgumentException("Unsupported scheme " + uri.getScheme()
+                + " (supported are: " + SCHEME_REDIS + ", " + SCHEME_REDIS_CLUSTER + ", " + SCHEME_REDIS_SENTINEL + ")");
         }
         
         if (uri.getHost() != null) {
@@ -132,10 +632,33 @@ public class JedisOptions<A extends JedisOptions<A>> implements BindingPropertyS
         
         if (uri.getPort() != null) {
             this.setPort(uri.getPort());
+        } else if (sentinel) {
+            this.setPort(DEFAULT_SENTINEL_PORT);
+        }
+        
+        if (cluster) {
+            if (this.host == null) {
+                throw new IllegalArgumentException("Scheme " + SCHEME_REDIS_CLUSTER + " requires a host");
+            }
+            this.setClusterNodes(Collections.singletonList(new HostAndPort(this.host, this.port)));
+        } else {
+            this.setClusterNodes(null);
+        }
+        
+        if (sentinel) {
+            if (this.host == null) {
+                throw new IllegalArgumentException("Scheme " + SCHEME_REDIS_SENTINEL + " requires a host");
+            }
+            this.setSentinels(Collections.singletonList(new HostAndPort(this.host, this.port)));
+        } else {
+            this.setSentinels(null);
         }
         
         String rel0 = uri.getRel(0);
         if (rel0 != null) {
+            if (cluster) {
+                throw new IllegalArgumentException("Unsupported database " + rel0 + " (a redis cluster only has database 0)");
+            }
             try {
                 Integer db = Integer.valueOf(rel0);
                 this.setDatabase(db);
@@ -0,0 +1,91 @@
+package com.fizzed.jedis;
+
+/**
+ * The outcome of prewarming a jedis pool with JedisFactory.prewarmJedisPool():
+ * how many connections were readied and how long they took to borrow (which
+ * includes connecting, AUTH and SELECT) and to PING.
+ */
+public class JedisPrewarmResult {
+
+    private final int requested;
+    private final int connections;
+    private final int failures;
+    private final Exception failure;
+    private final long elapsedNanos;
+    private final long maxBorrowNanos;
+    private final long averagePingNanos;
+    private final long maxPingNanos;
+
+    JedisPrewarmResult(int requested, int connections, int failures, Exception failure,
+            long elapsedNanos, long maxBorrowNanos, long averagePingNanos, long maxPingNanos) {
+        this.requested = requested;
+        this.connections = connections;
+        this.failures = failures;
+        this.failure = failure;
+        this.elapsedNanos = elapsedNanos;
+        this.maxBorrowNanos = maxBorrowNanos;
+        this.averagePingNanos = averagePingNanos;
+        this.maxPingNanos = maxPingNanos;
+    }
+
+    /**
+     * Gets the number of connections that were to be readied.
+     * @return The number requested
+     */
+    public int getRequested() {
+        return requested;
+    }
+
+    /**
+     * Gets the number of connections that were borrowed and answered a PING
+     * in time.
+     * @return The number of ready connections
+     */
+    public int getConnections() {
+        return connections;
+    }
+
+    /**
+     * Gets the number of connections that failed (or did not finish in time).
+     * @return The number of failures
+     */
+    public int getFailures() {
+        return failures;
+    }
+
+    /**
+     * Gets the first exception a connection failed with.
+     * @return The exception or null if none failed with one
+     */
+    public Exception getFailure() {
+        return failure;
+    }
+
+    public boolean isComplete() {
+        return this.connections >= this.requested;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedNanos / 1000000L;
+    }
+
+    public long getMaxBorrowMillis() {
+        return maxBorrowNanos / 1000000L;
+    }
+
+    public double getAveragePingMillis() {
+        return averagePingNanos / 1000000.0d;
+    }
+
+    public double getMaxPingMillis() {
+        return maxPingNanos / 1000000.0d;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d/%d connections ready in %d ms (max borrow %d ms, ping avg %.2f ms, max %.2f ms)",
+            this.connections, this.requested, this.getElapsedMillis(), this.getMaxBorrowMillis(),
+            this.getAveragePingMillis(), this.getMaxPingMillis());
+    }
+
+}
@@ -0,0 +1,60 @@
+package com.fizzed.jedis;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Objects;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+
+/**
+ * A lua script that is executed by its SHA1 digest (EVALSHA) so the script
+ * body is only sent to redis the first time (or after a SCRIPT FLUSH / restart)
+ * when redis replies with NOSCRIPT.
+ */
+public class JedisScript {
+    
+    private final String source;
+    private final byte[] sourceBytes;
+    private final byte[] sha1;
+
+    public JedisScript(String source) {
+        Objects.requireNonNull(source, "source was null");
+        this.source = source;
+        this.sourceBytes = source.getBytes(StandardCharsets.UTF_8);
+        this.sha1 = sha1Hex(this.sourceBytes).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public String getSha1() {
+        return new String(this.sha1, StandardCharsets.US_ASCII);
+    }
+    
+    public Object eval(Jedis jedis, List<byte[]> keys, List<byte[]> args) {
+        try {
+            return jedis.evalsha(this.sha1, keys, args);
+        } catch (JedisNoScriptException e) {
+            // eval also caches the script for the next evalsha
+            return jedis.eval(this.sourceBytes, keys, args);
+        }
+    }
+    
+    static private String sha1Hex(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(bytes);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+}
@@ -0,0 +1,137 @@
+package com.fizzed.jedis;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+
+/**
+ * Watches threads blocked on a jedis command (e.g. BLPOP) and closes the
+ * underlying socket as soon as the thread is interrupted, since jedis will
+ * otherwise block forever on a socket read() and does not honor interrupts.
+ * A single daemon thread checks the registered threads every few millis and
+ * parks entirely while nothing is registered.
+ */
+public class JedisWatchdog {
+    static private final Logger log = LoggerFactory.getLogger(JedisWatchdog.class);
+
+    static private final JedisWatchdog DEFAULT = new JedisWatchdog(10L, TimeUnit.MILLISECONDS);
+
+    static public JedisWatchdog getDefault() {
+        return DEFAULT;
+    }
+
+    static private final int WATCHING = 0;
+    static private final int TRIGGERED = 1;
+    static private final int DONE = 2;
+
+    public class Registration implements AutoCloseable {
+
+        private final Jedis jedis;
+        private final Thread thread;
+        private final AtomicInteger state;
+
+        private Registration(Jedis jedis, Thread thread) {
+            this.jedis = jedis;
+            this.thread = thread;
+            this.state = new AtomicInteger(WATCHING);
+        }
+
+        /**
+         * Whether the watched thread was interrupted and its socket closed.
+         * @return True if triggered
+         */
+        public boolean isTriggered() {
+            return this.state.get() == TRIGGERED;
+        }
+
+        private synchronized void trigger() {
+            if (this.state.compareAndSet(WATCHING, TRIGGERED)) {
+                try {
+                    // close the socket (not the client) since it is safe to
+                    // do from another thread and unblocks any read() on it
+                    Socket socket = this.jedis.getClient().getSocket();
+                    if (socket != null) {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    log.warn("Unable to close socket of interrupted jedis client: {}", e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Stops watching the thread.  If the watchdog already closed the socket
+         * (even if the command did complete) the socket is closed by the time
+         * this returns.
+         */
+        @Override
+        public synchronized void close() {
+            this.state.compareAndSet(WATCHING, DONE);
+            registrations.remove(this);
+        }
+
+    }
+
+    private final long intervalNanos;
+    private final Set<Registration> registrations;
+    private volatile Thread thread;
+
+    public JedisWatchdog(long interval, TimeUnit unit) {
+        this.intervalNanos = unit.toNanos(interval);
+        this.registrations = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Watches the current thread while it executes a command with the client.
+     * @param jedis The jedis client the current thread will block on
+     * @return The registration that must be closed once the command completes
+     */
+    public Registration watch(Jedis jedis) {
+        Objects.requireNonNull(jedis, "jedis was null");
+        Registration registration = new Registration(jedis, Thread.currentThread());
+        this.registrations.add(registration);
+        LockSupport.unpark(this.start());
+        return registration;
+    }
+
+    private Thread start() {
+        Thread t = this.thread;
+        if (t == null) {
+            synchronized (this) {
+                t = this.thread;
+                if (t == null) {
+                    t = new Thread(this::run, "jedis-watchdog");
+                    t.setDaemon(true);
+                    t.start();
+                    this.thread = t;
+                }
+            }
+        }
+        return t;
+    }
+
+    private void run() {
+        while (true) {
+            if (this.registrations.isEmpty()) {
+                LockSupport.park(this);
+            } else {
+                for (Registration registration : this.registrations) {
+                    if (registration.thread.isInterrupted()) {
+                        registration.trigger();
+                        this.registrations.remove(registration);
+                    }
+                }
+                LockSupport.parkNanos(this, this.intervalNanos);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,677 @@
+package com.fizzed.jedis;
+
+import com.fizzed.crux.uri.MutableUri;
+import com.fizzed.crux.uri.Uri;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * A jedis pool for a redis primary and its replicas: a pool per node, with
+ * the primary and replicas either static or discovered from sentinels (and
+ * rediscovered on each check, so a failover is followed).
+ *
+ * Connections borrowed with getResource() are always to the primary, so
+ * writes, scripts and queues are unaffected by replicas.  Reads that may be
+ * slightly stale (e.g. of a cache) can instead use executeRead() or
+ * getReadResource(), which borrow from a replica picked by the read policy
+ * and fall back to the primary if none is healthy.
+ *
+ * A daemon thread checks every replica on an interval: it must answer a PING,
+ * be a replica with its link to the primary up and not lag it by more than
+ * max lag.  Lag is estimated by comparing the replication offset of the
+ * replica with those the primary had at previous checks, so it is only as
+ * precise as the check interval.  Replicas are excluded until their first
+ * check and whenever a check (or a read) fails.
+ */
+public class ReplicatedJedisPool extends DefaultJedisPool {
+    static private final Logger log = LoggerFactory.getLogger(ReplicatedJedisPool.class);
+
+    public enum ReadPolicy {
+        /** the healthy replica with the lowest (smoothed) PING round trip */
+        NEAREST,
+        /** each healthy replica in turn */
+        ROUND_ROBIN,
+        /** the healthy replica with the fewest borrowed connections */
+        LEAST_OUTSTANDING
+    }
+
+    static private class Replica {
+
+        private final HostAndPort hostAndPort;
+        private final DefaultJedisPool pool;
+        private volatile boolean healthy;
+        private volatile long pingNanos;
+        private volatile long lagNanos;
+
+        private Replica(HostAndPort hostAndPort, DefaultJedisPool pool) {
+            this.hostAndPort = hostAndPort;
+            this.pool = pool;
+        }
+
+    }
+
+    private final String masterName;
+    private final List<HostAndPort> sentinels;
+    private final int sentinelTimeout;
+    private final ReadPolicy readPolicy;
+    private final long checkIntervalNanos;
+    private final long maxLagNanos;
+    private final Function<HostAndPort,DefaultJedisPool> nodePoolFactory;
+    private final AtomicInteger nextReplica;
+    // [nanos, offset] of the primary at recent checks (oldest first), also
+    // the lock checks are made with
+    private final Deque<long[]> primaryOffsets;
+    private DefaultJedisPool sampledPrimary;
+    private final Object topologyLock;
+    private final ScheduledExecutorService checker;
+    private volatile HostAndPort primaryAddress;
+    private volatile DefaultJedisPool primary;
+    private volatile List<Replica> replicas;
+    private volatile boolean closed;
+
+    /**
+     * Creates a new pool of a static primary and replicas.  Nothing is
+     * connected until used (or checked).
+     * @param primary The primary
+     * @param replicas The replicas of the primary
+     * @param readPolicy The policy picking the replica of a read
+     * @param checkInterval The interval replicas are checked at
+     * @param maxLag The max lag of a replica before it is excluded
+     * @param unit The unit of the interval and max lag
+     * @param nodePoolFactory Creates the pool of a node
+     */
+    public ReplicatedJedisPool(HostAndPort primary, Collection<HostAndPort> replicas, ReadPolicy readPolicy,
+            long checkInterval, long maxLag, TimeUnit unit, Function<HostAndPort,DefaultJedisPool> nodePoolFactory) {
+        this(Objects.requireNonNull(primary, "primary was null"), null, null, 0,
+            readPolicy, checkInterval, maxLag, unit, nodePoolFactory);
+        this.updateTopology(primary, Objects.requireNonNull(replicas, "replicas was null"));
+        this.startChecker();
+    }
+
+    /**
+     * Creates a new pool of the primary and replicas monitored by sentinels.
+     * Nothing is connected until used (or checked).
+     * @param masterName The name the sentinels monitor the primary by
+     * @param sentinels The sentinels
+     * @param sentinelTimeout The connect and read timeout of sentinels (in
+     *      millis)
+     * @param readPolicy The policy picking the replica of a read
+     * @param checkInterval The interval replicas are checked (and sentinels
+     *      asked for the primary and replicas) at
+     * @param maxLag The max lag of a replica before it is excluded
+     * @param unit The unit of the interval and max lag
+     * @param nodePoolFactory Creates the pool of a node
+     */
+    public ReplicatedJedisPool(String masterName, Collection<HostAndPort> sentinels, int sentinelTimeout, ReadPolicy readPolicy,
+            long checkInterval, long maxLag, TimeUnit unit, Function<HostAndPort,DefaultJedisPool> nodePoolFactory) {
+        this(first(sentinels), Objects.requireNonNull(masterName, "masterName was null"), sentinels, sentinelTimeout,
+            readPolicy, checkInterval, maxLag, unit, nodePoolFactory);
+        this.startChecker();
+    }
+
+    private ReplicatedJedisPool(HostAndPort first, String masterName, Collection<HostAndPort> sentinels, int sentinelTimeout,
+            ReadPolicy readPolicy, long checkInterval, long maxLag, TimeUnit unit, Function<HostAndPort,DefaultJedisPool> nodePoolFactory) {
+        super(ConcurrentJedisPool.unusedPoolConfig(), first.getHost(), first.getPort(),
+            Protocol.DEFAULT_TIMEOUT, Protocol.DEFAULT_TIMEOUT, null, null);
+        Objects.requireNonNull(readPolicy, "readPolicy was null");
+        Objects.requireNonNull(unit, "unit was null");
+        Objects.requireNonNull(nodePoolFactory, "nodePoolFactory was null");
+        if (checkInterval <= 0) {
+            throw new IllegalArgumentException("checkInterval must be > 0");
+        }
+        this.masterName = masterName;
+        this.sentinels = (sentinels != null ? new ArrayList<>(sentinels) : Collections.emptyList());
+        this.sentinelTimeout = sentinelTimeout;
+        this.readPolicy = readPolicy;
+        this.checkIntervalNanos = unit.toNanos(checkInterval);
+        this.maxLagNanos = unit.toNanos(maxLag);
+        this.nodePoolFactory = nodePoolFactory;
+        this.nextReplica = new AtomicInteger();
+        this.primaryOffsets = new ArrayDeque<>();
+        this.topologyLock = new Object();
+        this.replicas = Collections.emptyList();
+        this.checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "jedis-replica-checker");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    static private HostAndPort first(Collection<HostAndPort> sentinels) {
+        Objects.requireNonNull(sentinels, "sentinels was null");
+        if (sentinels.isEmpty()) {
+            throw new IllegalArgumentException("sentinels was empty");
+        }
+        return sentinels.iterator().next();
+    }
+
+    private void startChecker() {
+        final long intervalMillis = Math.max(1L, TimeUnit.NANOSECONDS.toMillis(this.checkIntervalNanos));
+        this.checker.scheduleWithFixedDelay(() -> {
+            try {
+                this.checkReplicas();
+            } catch (RuntimeException e) {
+                // never stop checking
+                log.warn("Unable to check replicas: {}", e.getMessage());
+            }
+        }, 0L, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Uri getUri() {
+        if (this.masterName == null) {
+            return this.getPrimary().getUri();
+        }
+        final HostAndPort sentinel = this.sentinels.get(0);
+        return new MutableUri()
+            .scheme("redis-sentinel")
+            .host(sentinel.getHost())
+            .port(sentinel.getPort())
+            .immutable();
+    }
+
+    public String getMasterName() {
+        return masterName;
+    }
+
+    public List<HostAndPort> getSentinels() {
+        return sentinels;
+    }
+
+    public ReadPolicy getReadPolicy() {
+        return readPolicy;
+    }
+
+    /**
+     * Gets the pool of the primary (asking the sentinels for it if not yet
+     * known).
+     * @return The pool of the primary
+     */
+    public DefaultJedisPool getPrimary() {
+        DefaultJedisPool pool = this.primary;
+        if (pool == null) {
+            synchronized (this.topologyLock) {
+                if (this.primary == null) {
+                    this.discover();
+                }
+                pool = this.primary;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Gets the address of the primary (asking the sentinels for it if not yet
+     * known), e.g. for dedicated connections to it.
+     * @return The address of the primary
+     */
+    public HostAndPort getPrimaryAddress() {
+        this.getPrimary();
+        return this.primaryAddress;
+    }
+
+    /**
+     * Gets the replicas reads are currently routed to.
+     * @return The healthy replicas
+     */
+    public List<HostAndPort> getHealthyReplicas() {
+        final List<HostAndPort> healthy = new ArrayList<>();
+        for (Replica replica : this.replicas) {
+            if (replica.healthy) {
+                healthy.add(replica.hostAndPort);
+            }
+        }
+        return healthy;
+    }
+
+    /**
+     * Asks the sentinels (in order, until one answers) for the address of the
+     * primary and its replicas.
+     */
+    private void discover() {
+        JedisException failure = null;
+        for (HostAndPort sentinel : this.sentinels) {
+            try (Jedis jedis = new Jedis(sentinel.getHost(), sentinel.getPort(), this.sentinelTimeout)) {
+                final List<String> master = jedis.sentinelGetMasterAddrByName(this.masterName);
+                if (master == null || master.size() < 2) {
+                    failure = new JedisDataException("Sentinel " + sentinel + " does not monitor master " + this.masterName);
+                    continue;
+                }
+                final List<HostAndPort> replicaAddresses = new ArrayList<>();
+                for (Map<String,String> replica : jedis.sentinelSlaves(this.masterName)) {
+                    // replicas sentinel considers down are not even checked
+                    final String flags = replica.getOrDefault("flags", "");
+                    if (!flags.contains("s_down") && !flags.contains("o_down") && !flags.contains("disconnected")) {
+                        replicaAddresses.add(new HostAndPort(replica.get("ip"), Integer.parseInt(replica.get("port"))));
+                    }
+                }
+                this.updateTopology(new HostAndPort(master.get(0), Integer.parseInt(master.get(1))), replicaAddresses);
+                return;
+            } catch (JedisException | NumberFormatException e) {
+                if (this.closed) {
+                    throw new JedisConnectionException("Could not get a resource from the pool",
+                        new IllegalStateException("Pool not open"));
+                }
+                log.debug("Unable to get master {} from sentinel {}: {}", this.masterName, sentinel, e.getMessage());
+                failure = (e instanceof JedisException ? (JedisException)e : new JedisDataException(e.getMessage()));
+            }
+        }
+
+        throw new JedisConnectionException("Unable to discover master " + this.masterName
+            + " from sentinels " + this.sentinels, failure);
+    }
+
+    private void updateTopology(HostAndPort primaryAddress, Collection<HostAndPort> replicaAddresses) {
+        final List<DefaultJedisPool> removed = new ArrayList<>();
+
+        synchronized (this.topologyLock) {
+            if (this.closed) {
+                return;
+            }
+
+            if (!primaryAddress.equals(this.primaryAddress)) {
+                if (this.primary != null) {
+                    log.info("Primary {} failed over to {}", this.primaryAddress, primaryAddress);
+                    removed.add(this.primary);
+                }
+                final DefaultJedisPool pool = this.nodePoolFactory.apply(primaryAddress);
+                pool.setMetrics(this.getMetrics());
+                this.primaryAddress = primaryAddress;
+                this.primary = pool;
+            }
+
+            final Map<HostAndPort,Replica> existing = new HashMap<>();
+            for (Replica replica : this.replicas) {
+                existing.put(replica.hostAndPort, replica);
+            }
+            final Set<HostAndPort> addresses = new LinkedHashSet<>(replicaAddresses);
+            addresses.remove(primaryAddress);
+            final List<Replica> updated = new ArrayList<>(addresses.size());
+            for (HostAndPort address : addresses) {
+                Replica replica = existing.remove(address);
+                if (replica == null) {
+                    final DefaultJedisPool pool = this.nodePoolFactory.apply(address);
+                    pool.setMetrics(this.getMetrics());
+                    replica = new Replica(address, pool);
+                }
+                updated.add(replica);
+            }
+            for (Replica replica : existing.values()) {
+                log.info("Replica {} removed", replica.hostAndPort);
+                removed.add(replica.pool);
+            }
+            this.replicas = Collections.unmodifiableList(updated);
+        }
+
+        // only closed once nothing new can be borrowed from them
+        for (DefaultJedisPool pool : removed) {
+            pool.close();
+        }
+    }
+
+    /**
+     * Checks every replica now (also done by a daemon thread on the check
+     * interval), rediscovering the primary and replicas first if monitored by
+     * sentinels.
+     */
+    public void checkReplicas() {
+        synchronized (this.primaryOffsets) {
+            if (this.closed) {
+                return;
+            }
+
+            if (this.masterName != null) {
+                try {
+                    synchronized (this.topologyLock) {
+                        this.discover();
+                    }
+                } catch (JedisException e) {
+                    // keep using what was last discovered
+                    log.warn("{}", e.getMessage());
+                }
+            }
+
+            final boolean sampled = this.samplePrimaryOffset();
+
+            for (Replica replica : this.replicas) {
+                this.check(replica, sampled);
+            }
+        }
+    }
+
+    private boolean samplePrimaryOffset() {
+        final DefaultJedisPool pool = this.getPrimary();
+        if (pool != this.sampledPrimary) {
+            // offsets of a previous primary say nothing of the lag
+            this.primaryOffsets.clear();
+            this.sampledPrimary = pool;
+        }
+        try (Jedis jedis = pool.getResource()) {
+            final Map<String,String> info = parseInfo(jedis.info("replication"));
+            final long now = System.nanoTime();
+            this.primaryOffsets.addLast(new long[] { now, Long.parseLong(info.get("master_repl_offset")) });
+            // enough to tell a replica lags by more than max lag
+            while (now - this.primaryOffsets.peekFirst()[0] > this.maxLagNanos + this.checkIntervalNanos) {
+                this.primaryOffsets.removeFirst();
+            }
+            return true;
+        } catch (JedisException | NumberFormatException e) {
+            log.debug("Unable to get replication offset of primary: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    private void check(Replica replica, boolean primarySampled) {
+        String excluded = null;
+        try (Jedis jedis = replica.pool.getResource()) {
+            final long started = System.nanoTime();
+            jedis.ping();
+            final long pingNanos = System.nanoTime() - started;
+            replica.pingNanos = (replica.pingNanos == 0L ? pingNanos : (3L * replica.pingNanos + pingNanos) / 4L);
+
+            final Map<String,String> info = parseInfo(jedis.info("replication"));
+            excluded = replicationProblem(info);
+            if (excluded == null && primarySampled) {
+                replica.lagNanos = lagNanos(this.primaryOffsets, Long.parseLong(info.get("slave_repl_offset")), System.nanoTime());
+                if (replica.lagNanos > this.maxLagNanos) {
+                    excluded = "lagging primary by " + TimeUnit.NANOSECONDS.toMillis(replica.lagNanos) + " ms";
+                }
+            }
+        } catch (JedisException | NumberFormatException e) {
+            excluded = e.getMessage();
+        }
+
+        if (excluded != null) {
+            this.exclude(replica, excluded);
+        } else if (!replica.healthy) {
+            replica.healthy = true;
+            log.info("Replica {} included (ping {} us, lag {} ms)", replica.hostAndPort,
+                TimeUnit.NANOSECONDS.toMicros(replica.pingNanos), TimeUnit.NANOSECONDS.toMillis(replica.lagNanos));
+        }
+    }
+
+    private void exclude(Replica replica, String reason) {
+        if (replica.healthy) {
+            replica.healthy = false;
+            log.warn("Replica {} excluded: {}", replica.hostAndPort, reason);
+        }
+    }
+
+    /**
+     * Checks the replication state of a node that should be a replica (its lag
+     * aside).
+     * @param info The fields of its INFO replication
+     * @return Why it is not fit for reads or null if it is
+     */
+    static String replicationProblem(Map<String,String> info) {
+        if (!"slave".equals(info.get("role"))) {
+            return "not a replica";
+        } else if (!"up".equals(info.get("master_link_status"))) {
+            return "link to primary is down";
+        } else if ("1".equals(info.get("master_sync_in_progress"))) {
+            return "syncing with primary";
+        }
+        return null;
+    }
+
+    /**
+     * Estimates how far a replica lags its primary: the time since the primary
+     * first had data the replica does not.
+     * @param primaryOffsets The [nanos, offset] of the primary at recent checks
+     *      (oldest first)
+     * @param replicaOffset The replication offset of the replica
+     * @param now The current nanos
+     * @return The lag in nanos (at least the age of the oldest sample if even
+     *      it is ahead of the replica)
+     */
+    static long lagNanos(Collection<long[]> primaryOffsets, long replicaOffset, long now) {
+        for (long[] sample : primaryOffsets) {
+            if (sample[1] > replicaOffset) {
+                return Math.max(0L, now - sample[0]);
+            }
+        }
+        return 0L;
+    }
+
+    static Map<String,String> parseInfo(String info) {
+        final Map<String,String> fields = new HashMap<>();
+        for (String line : info.split("\r?\n")) {
+            final int colon = line.indexOf(':');
+            if (colon > 0 && !line.startsWith("#")) {
+                fields.put(line.substring(0, colon), line.substring(colon + 1).trim());
+            }
+        }
+        return fields;
+    }
+
+    private Replica selectReplica() {
+        final List<Replica> candidates = this.replicas;
+        final int size = candidates.size();
+        if (size == 0) {
+            return null;
+        }
+
+        // starting at the next replica in turn also spreads ties
+        final int start = Math.floorMod(this.nextReplica.getAndIncrement(), size);
+        Replica selected = null;
+        long lowest = Long.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            final Replica replica = candidates.get((start + i) % size);
+            if (!replica.healthy) {
+                continue;
+            }
+            if (this.readPolicy == ReadPolicy.ROUND_ROBIN) {
+                return replica;
+            }
+            final long cost = (this.readPolicy == ReadPolicy.NEAREST
+                ? replica.pingNanos : replica.pool.getNumActive());
+            if (cost < lowest) {
+                lowest = cost;
+                selected = replica;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Borrows a connection to the primary.
+     * @return The connection (closed to return it to its node)
+     */
+    @Override
+    public Jedis getResource() {
+        // each node measures its own borrows
+        return this.getPrimary().getResource();
+    }
+
+    /**
+     * Borrows a connection for reads: to a replica picked by the read policy or
+     * the primary if none is healthy.  Unlike executeRead() a failed read is
+     * not retried.
+     * @return The connection (closed to return it to its node)
+     */
+    public Jedis getReadResource() {
+        final Replica replica = this.selectReplica();
+        if (replica != null) {
+            try {
+                return replica.pool.getResource();
+            } catch (JedisConnectionException e) {
+                this.exclude(replica, e.getMessage());
+            }
+        }
+        return this.getPrimary().getResource();
+    }
+
+    /**
+     * Executes read-only commands with a connection to a replica picked by the
+     * read policy (or the primary if none is healthy).  If the replica fails,
+     * it is excluded and the commands are retried once on the primary.
+     * @param <R> The result type
+     * @param <E> The checked exception of the callable
+     * @param callable The (read-only) commands
+     * @return The result of the callable
+     * @throws E If the callable throws it
+     */
+    public <R,E extends Exception> R executeRead(JedisCallable<R,E> callable) throws E {
+        final Replica replica = this.selectReplica();
+        if (replica != null) {
+            try (Jedis jedis = replica.pool.getResource()) {
+                return callable.call(jedis);
+            } catch (JedisConnectionException e) {
+                this.exclude(replica, e.getMessage());
+            } catch (JedisDataException e) {
+                // e.g. a replica loading its dataset or refusing stale reads
+                final String message = (e.getMessage() != null ? e.getMessage() : "");
+                if (!message.startsWith("LOADING") && !message.startsWith("MASTERDOWN")) {
+                    throw e;
+                }
+                this.exclude(replica, message);
+            }
+        }
+        try (Jedis jedis = this.getPrimary().getResource()) {
+            return callable.call(jedis);
+        }
+    }
+
+    private List<DefaultJedisPool> nodes() {
+        final List<DefaultJedisPool> nodes = new ArrayList<>();
+        final DefaultJedisPool pool = this.primary;
+        if (pool != null) {
+            nodes.add(pool);
+        }
+        for (Replica replica : this.replicas) {
+            nodes.add(replica.pool);
+        }
+        return nodes;
+    }
+
+    @Override
+    public void setMetrics(JedisMetrics metrics) {
+        super.setMetrics(metrics);
+        for (DefaultJedisPool node : this.nodes()) {
+            node.setMetrics(metrics);
+        }
+    }
+
+    @Override
+    public int prewarm() {
+        int idle = this.getPrimary().prewarm();
+        for (Replica replica : this.replicas) {
+            try {
+                idle += replica.pool.prewarm();
+            } catch (JedisException e) {
+                // reads fall back to the primary
+                log.warn("Unable to prewarm replica {}: {}", replica.hostAndPort, e.getMessage());
+            }
+        }
+        return idle;
+    }
+
+    @Override
+    public int getNumActive() {
+        int count = 0;
+        for (DefaultJedisPool node : this.nodes()) {
+            count += node.getNumActive();
+        }
+        return count;
+    }
+
+    @Override
+    public int getNumIdle() {
+        int count = 0;
+        for (DefaultJedisPool node : this.nodes()) {
+            count += node.getNumIdle();
+        }
+        return count;
+    }
+
+    @Override
+    public int getNumWaiters() {
+        int count = 0;
+        for (DefaultJedisPool node : this.nodes()) {
+            count += node.getNumWaiters();
+        }
+        return count;
+    }
+
+    @Override
+    public int getMaxTotal() {
+        int count = 0;
+        for (DefaultJedisPool node : this.nodes()) {
+            count += node.getMaxTotal();
+        }
+        return count;
+    }
+
+    @Override
+    public long getCreatedCount() {
+        long count = 0;
+        for (DefaultJedisPool node : this.nodes()) {
+            count += node.getCreatedCount();
+        }
+        return count;
+    }
+
+    @Override
+    public long getDestroyedCount() {
+        long count = 0;
+        for (DefaultJedisPool node : this.nodes()) {
+            count += node.getDestroyedCount();
+        }
+        return count;
+    }
+
+    @Override
+    public long getBorrowedCount() {
+        long count = 0;
+        for (DefaultJedisPool node : this.nodes()) {
+            count += node.getBorrowedCount();
+        }
+        return count;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    @Override
+    protected void closePool() {
+        final List<DefaultJedisPool> nodes;
+        synchronized (this.topologyLock) {
+            this.closed = true;
+            nodes = this.nodes();
+        }
+
+        this.checker.shutdownNow();
+
+        for (DefaultJedisPool node : nodes) {
+            node.close();
+        }
+
+        // the underlying (empty) commons pool
+        super.closePool();
+    }
+
+}
@@ -0,0 +1,391 @@
+package com.fizzed.jedis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import static org.hamcrest.CoreMatchers.is;
+import org.junit.After;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.BuilderFactory;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisAskDataException;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisMovedDataException;
+
+public class ClusterJedisPoolTest {
+
+    static private final HostAndPort NODE1 = new HostAndPort("node1", 7000);
+    static private final HostAndPort NODE2 = new HostAndPort("node2", 7000);
+    static private final HostAndPort NODE3 = new HostAndPort("node3", 7000);
+    static private final HostAndPort DOWN = new HostAndPort("down", 7000);
+
+    /**
+     * A node that is never connected to: its single connection answers
+     * CLUSTER SLOTS with the slots of the fake cluster and GET (also
+     * pipelined) with MOVED and ASK redirects like a cluster node would.
+     */
+    private class FakeNode extends DefaultJedisPool {
+
+        private final HostAndPort address;
+        private final Jedis jedis;
+        private final Map<String,String> data;
+        private volatile boolean down;
+        private volatile boolean asking;
+        private volatile int slotsRequests;
+        private volatile int askings;
+        private volatile int pipelines;
+        private volatile int gets;
+
+        private FakeNode(HostAndPort address) {
+            super(ConcurrentJedisPool.unusedPoolConfig(), address.getHost(), address.getPort(), 100, 100, null, null);
+            this.address = address;
+            this.data = new ConcurrentHashMap<>();
+            this.down = address.equals(DOWN);
+            this.jedis = new Jedis(address.getHost(), address.getPort()) {
+                @Override
+                public List<Object> clusterSlots() {
+                    checkUp();
+                    slotsRequests++;
+                    return ClusterJedisPoolTest.this.clusterSlots();
+                }
+
+                @Override
+                public String asking() {
+                    checkUp();
+                    askings++;
+                    asking = true;
+                    return "OK";
+                }
+
+                @Override
+                public String get(String key) {
+                    checkUp();
+                    return FakeNode.this.get(key);
+                }
+
+                @Override
+                public Pipeline pipelined() {
+                    checkUp();
+                    pipelines++;
+                    return new Pipeline() {
+                        @Override
+                        public Response<String> get(String key) {
+                            final Response<String> response = new Response<>(BuilderFactory.STRING);
+                            try {
+                                final String value = FakeNode.this.get(key);
+                                response.set(value != null ? value.getBytes(StandardCharsets.UTF_8) : null);
+                            } catch (JedisDataException e) {
+                                response.set(e);
+                            }
+                            return response;
+                        }
+
+                        @Override
+                        public void sync() {
+                            // replies were set as the commands were queued
+                        }
+                    };
+                }
+            };
+        }
+
+        private void checkUp() {
+            if (this.down) {
+                throw new JedisConnectionException("Connection refused");
+            }
+        }
+
+        private String get(String key) {
+            final boolean wasAsking = this.asking;
+            this.asking = false;
+            this.gets++;
+            final int slot = JedisClusterSlots.slot(key);
+            final HostAndPort importing = migrating.get(slot);
+            if (importing != null && this.address.equals(owners[slot]) && !this.data.containsKey(key)) {
+                throw new JedisAskDataException("ASK " + slot + " " + importing, importing, slot);
+            }
+            if (!this.address.equals(owners[slot]) && !(wasAsking && this.address.equals(importing))) {
+                throw new JedisMovedDataException("MOVED " + slot + " " + owners[slot], owners[slot], slot);
+            }
+            return this.data.get(key);
+        }
+
+        @Override
+        protected Jedis borrowResource() {
+            this.checkUp();
+            return this.jedis;
+        }
+
+    }
+
+    // which node serves each slot and slots being migrated to another node
+    private final HostAndPort[] owners = new HostAndPort[JedisClusterSlots.SLOTS];
+    private final Map<Integer,HostAndPort> migrating = new ConcurrentHashMap<>();
+    private final Map<HostAndPort,FakeNode> nodes = new ConcurrentHashMap<>();
+    private ClusterJedisPool jedisPool;
+
+    @Before
+    public void before() {
+        this.assign(0, 5460, NODE1);
+        this.assign(5461, 10922, NODE2);
+        this.assign(10923, 16383, NODE3);
+    }
+
+    @After
+    public void after() {
+        if (this.jedisPool != null) {
+            this.jedisPool.close();
+        }
+    }
+
+    private FakeNode node(HostAndPort address) {
+        return this.nodes.computeIfAbsent(address, FakeNode::new);
+    }
+
+    private ClusterJedisPool createJedisPool(int maxRedirects, HostAndPort... seeds) {
+        this.jedisPool = new ClusterJedisPool(Arrays.asList(seeds), maxRedirects, this::node);
+        return this.jedisPool;
+    }
+
+    private void assign(int start, int end, HostAndPort node) {
+        for (int slot = start; slot <= end; slot++) {
+            this.owners[slot] = node;
+        }
+    }
+
+    /**
+     * Moves the slot of a key (and its value) to another node.
+     */
+    private void move(String key, HostAndPort to) {
+        final int slot = JedisClusterSlots.slot(key);
+        final String value = this.node(this.owners[slot]).data.remove(key);
+        this.owners[slot] = to;
+        if (value != null) {
+            this.node(to).data.put(key, value);
+        }
+    }
+
+    private void put(String key, String value) {
+        this.node(this.owners[JedisClusterSlots.slot(key)]).data.put(key, value);
+    }
+
+    private List<Object> clusterSlots() {
+        // [start, end, [host, port, id]] per run of slots on the same node
+        final List<Object> reply = new ArrayList<>();
+        int start = 0;
+        for (int slot = 1; slot <= this.owners.length; slot++) {
+            if (slot == this.owners.length || !this.owners[slot].equals(this.owners[start])) {
+                final HostAndPort owner = this.owners[start];
+                reply.add(Arrays.asList((long)start, (long)(slot - 1),
+                    Arrays.asList(owner.getHost().getBytes(StandardCharsets.UTF_8), (long)owner.getPort(),
+                        "id".getBytes(StandardCharsets.UTF_8))));
+                start = slot;
+            }
+        }
+        return reply;
+    }
+
+    private HostAndPort addressOf(Jedis jedis) {
+        for (Map.Entry<HostAndPort,FakeNode> entry : this.nodes.entrySet()) {
+            if (entry.getValue().jedis == jedis) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException("Not a connection of a node");
+    }
+
+    private HostAndPort routedTo(String key) {
+        try (Jedis jedis = this.jedisPool.getResource(key)) {
+            return this.addressOf(jedis);
+        }
+    }
+
+    /**
+     * Finds a key in a slot served by the node.
+     */
+    private String keyOn(HostAndPort node, String prefix) {
+        for (int i = 0; ; i++) {
+            final String key = prefix + i;
+            if (this.owners[JedisClusterSlots.slot(key)].equals(node)) {
+                return key;
+            }
+        }
+    }
+
+    @Test
+    public void discoversSlotsFromSeeds() {
+        this.createJedisPool(5, DOWN, NODE1);
+
+        assertThat(new HashSet<>(this.jedisPool.getNodes()),
+            is(new HashSet<>(Arrays.asList(this.node(NODE1), this.node(NODE2), this.node(NODE3)))));
+
+        assertThat(this.routedTo(this.keyOn(NODE1, "a")), is(NODE1));
+        assertThat(this.routedTo(this.keyOn(NODE2, "a")), is(NODE2));
+        assertThat(this.routedTo(this.keyOn(NODE3, "a")), is(NODE3));
+
+        // keys with the same hash tag are in the same slot
+        assertThat(this.routedTo("{user1}:a"), is(this.routedTo("{user1}:b")));
+
+        // discovered once
+        assertThat(this.node(NODE1).slotsRequests, is(1));
+        assertThat(this.node(NODE2).slotsRequests, is(0));
+    }
+
+    @Test
+    public void undiscoverableCluster() {
+        this.createJedisPool(5, DOWN);
+
+        try {
+            this.jedisPool.getResource("a");
+            fail();
+        } catch (JedisConnectionException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void movedRefreshesSlots() throws Exception {
+        this.createJedisPool(5, NODE1);
+        final String key = this.keyOn(NODE2, "a");
+        this.put(key, "1");
+
+        assertThat(JedisClients.execute(this.jedisPool, key.getBytes(StandardCharsets.UTF_8), jedis -> jedis.get(key)), is("1"));
+        assertThat(this.node(NODE2).gets, is(1));
+
+        // every slot of node2 is moved to node3
+        Thread.sleep(150L);
+        this.move(key, NODE3);
+        for (int slot = 0; slot < this.owners.length; slot++) {
+            if (this.owners[slot].equals(NODE2)) {
+                this.owners[slot] = NODE3;
+            }
+        }
+
+        assertThat(JedisClients.execute(this.jedisPool, key.getBytes(StandardCharsets.UTF_8), jedis -> jedis.get(key)), is("1"));
+        assertThat(this.node(NODE2).gets, is(2));
+        assertThat(this.node(NODE3).gets, is(1));
+
+        // the whole slot map was refreshed, not just the slot redirected
+        assertThat(this.routedTo(this.keyOn(NODE3, "b")), is(NODE3));
+        assertThat(new HashSet<>(this.jedisPool.getNodes()),
+            is(new HashSet<>(Arrays.asList(this.node(NODE1), this.node(NODE3)))));
+
+        // no more redirects
+        assertThat(JedisClients.execute(this.jedisPool, key.getBytes(StandardCharsets.UTF_8), jedis -> jedis.get(key)), is("1"));
+        assertThat(this.node(NODE2).gets, is(2));
+    }
+
+    @Test
+    public void movedBeyondMaxRedirects() {
+        this.createJedisPool(0, NODE1);
+        final String key = this.keyOn(NODE2, "a");
+        this.jedisPool.getNodes();
+
+        this.move(key, NODE3);
+
+        try {
+            this.jedisPool.execute(key.getBytes(StandardCharsets.UTF_8), jedis -> jedis.get(key));
+            fail();
+        } catch (JedisMovedDataException e) {
+            assertThat(e.getTargetNode(), is(NODE3));
+        }
+    }
+
+    @Test
+    public void askRetriesOnImportingNode() {
+        this.createJedisPool(5, NODE1);
+        final String migrated = this.keyOn(NODE1, "a");
+        final int slot = JedisClusterSlots.slot(migrated);
+        final String notMigrated = this.keyOn(NODE1, "b");
+        this.jedisPool.getNodes();
+
+        // the slot is being migrated to node2 and the key already was
+        this.migrating.put(slot, NODE2);
+        this.node(NODE2).data.put(migrated, "1");
+
+        assertThat(this.jedisPool.execute(migrated.getBytes(StandardCharsets.UTF_8), jedis -> jedis.get(migrated)), is("1"));
+        assertThat(this.node(NODE2).askings, is(1));
+
+        // only that command was redirected, the slot map is unchanged
+        assertThat(this.routedTo(migrated), is(NODE1));
+        assertThat(this.node(NODE1).slotsRequests, is(1));
+
+        // a key in another slot is not redirected
+        this.put(notMigrated, "2");
+        assertThat(this.jedisPool.execute(notMigrated.getBytes(StandardCharsets.UTF_8), jedis -> jedis.get(notMigrated)), is("2"));
+        assertThat(this.node(NODE2).askings, is(1));
+    }
+
+    @Test
+    public void pipelinedGroupsKeysByNodeAndRetriesRedirects() throws Exception {
+        this.createJedisPool(5, NODE1);
+
+        final List<String> keys = new ArrayList<>();
+        final List<byte[]> keyBytes = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            keys.add("key" + i);
+            keyBytes.add(keys.get(i).getBytes(StandardCharsets.UTF_8));
+            this.put(keys.get(i), "value" + i);
+        }
+
+        final Map<DefaultJedisPool,List<Integer>> groups = this.jedisPool.groupByNode(keyBytes);
+        assertThat(groups.size(), is(3));
+        for (Map.Entry<DefaultJedisPool,List<Integer>> group : groups.entrySet()) {
+            for (int index : group.getValue()) {
+                assertThat(group.getKey(), is(this.node(this.owners[JedisClusterSlots.slot(keys.get(index))])));
+            }
+        }
+
+        // one slot moves (for good) and another is being migrated
+        final String moved = keys.get(0);
+        final HostAndPort movedFrom = this.owners[JedisClusterSlots.slot(moved)];
+        final HostAndPort movedTo = (movedFrom.equals(NODE1) ? NODE2 : NODE1);
+        final String asked = keys.get(1);
+        final HostAndPort askedFrom = this.owners[JedisClusterSlots.slot(asked)];
+        final HostAndPort askedTo = (askedFrom.equals(NODE3) ? NODE2 : NODE3);
+        assertThat(JedisClusterSlots.slot(moved) != JedisClusterSlots.slot(asked), is(true));
+        Thread.sleep(150L);
+        this.move(moved, movedTo);
+        this.migrating.put(JedisClusterSlots.slot(asked), askedTo);
+        this.node(askedTo).data.put(asked, this.node(askedFrom).data.remove(asked));
+
+        final int[] pipelines = new int[3];
+        for (int i = 0; i < 3; i++) {
+            pipelines[i] = this.node(Arrays.asList(NODE1, NODE2, NODE3).get(i)).pipelines;
+        }
+
+        final List<String> values = JedisClients.pipelined(this.jedisPool, keyBytes, 4,
+            (pipeline, index) -> pipeline.get(keys.get(index))::get);
+
+        for (int i = 0; i < keys.size(); i++) {
+            assertThat(values.get(i), is("value" + i));
+        }
+
+        // a pipeline per batch of up to 4 keys on each node (as grouped before
+        // the redirects) plus two per redirected key (retried with execute()
+        // on the node it was redirected from and then to)
+        int expected = 4;
+        for (List<Integer> group : groups.values()) {
+            expected += (group.size() + 3) / 4;
+        }
+        int actual = 0;
+        for (int i = 0; i < 3; i++) {
+            actual += this.node(Arrays.asList(NODE1, NODE2, NODE3).get(i)).pipelines - pipelines[i];
+        }
+        assertThat(actual, is(expected));
+        assertThat(this.node(askedTo).askings, is(1));
+        assertThat(this.routedTo(moved), is(movedTo));
+    }
+
+}
@@ -0,0 +1,312 @@
+package com.fizzed.jedis;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class CompactCodecTest {
+
+    static public class Point {
+
+        private final int x;
+        private final int y;
+
+        public Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+
+    }
+
+    static public class Tags extends ArrayList<String> {
+        static private final long serialVersionUID = 1L;
+
+        private String owner;
+
+    }
+
+    static public class Legacy implements java.io.Serializable {
+        static private final long serialVersionUID = 1L;
+
+        private final String name;
+
+        public Legacy(String name) {
+            this.name = name;
+        }
+
+    }
+
+    private Object roundTrip(CompactCodec codec, Object value) {
+        byte[] bytes = codec.encode(value);
+        int tag = bytes[0] & 0xFF;
+        assertThat(tag <= 0x1F, is(true));
+        return codec.decode(bytes);
+    }
+
+    @Test
+    public void primitives() {
+        CompactCodec codec = new CompactCodec();
+
+        assertThat(roundTrip(codec, null), is(nullValue()));
+        assertThat(roundTrip(codec, true), is(true));
+        assertThat(roundTrip(codec, false), is(false));
+        assertThat(roundTrip(codec, 0), is(0));
+        assertThat(roundTrip(codec, -1), is(-1));
+        assertThat(roundTrip(codec, Integer.MAX_VALUE), is(Integer.MAX_VALUE));
+        assertThat(roundTrip(codec, Integer.MIN_VALUE), is(Integer.MIN_VALUE));
+        assertThat(roundTrip(codec, Long.MAX_VALUE), is(Long.MAX_VALUE));
+        assertThat(roundTrip(codec, Long.MIN_VALUE), is(Long.MIN_VALUE));
+        assertThat(roundTrip(codec, 1.5d), is(1.5d));
+        assertThat(roundTrip(codec, -2.5f), is(-2.5f));
+        assertThat(roundTrip(codec, (short)-300), is((short)-300));
+        assertThat(roundTrip(codec, (byte)-7), is((byte)-7));
+        assertThat(roundTrip(codec, 'Z'), is('Z'));
+        assertThat(roundTrip(codec, ""), is(""));
+        assertThat(roundTrip(codec, "hello"), is("hello"));
+        assertThat(roundTrip(codec, "h\u00e9llo \u2603"), is("h\u00e9llo \u2603"));
+        assertArrayEquals((byte[])roundTrip(codec, new byte[] { 1, 2, 3 }), new byte[] { 1, 2, 3 });
+
+        // small ints are tiny
+        assertThat(codec.encode(5).length, is(2));
+    }
+
+    @Test
+    public void jdkTypes() {
+        CompactCodec codec = new CompactCodec();
+
+        UUID uuid = UUID.randomUUID();
+        assertThat(roundTrip(codec, uuid), is(uuid));
+        assertThat(roundTrip(codec, new Date(1234567890L)), is(new Date(1234567890L)));
+        assertThat(roundTrip(codec, Instant.ofEpochSecond(-5, 999)), is(Instant.ofEpochSecond(-5, 999)));
+        assertThat(roundTrip(codec, new BigInteger("-123456789012345678901234567890")), is(new BigInteger("-123456789012345678901234567890")));
+        assertThat(roundTrip(codec, new BigDecimal("3.14159")), is(new BigDecimal("3.14159")));
+    }
+
+    @Test
+    public void collections() {
+        CompactCodec codec = new CompactCodec();
+
+        List<Object> list = new ArrayList<>(Arrays.asList(1, "two", null, 3L, new ArrayList<>(Arrays.asList("nested"))));
+        assertThat(roundTrip(codec, list), is(list));
+        assertThat(codec.encode(list)[0], is((byte)0x0C));
+
+        LinkedHashSet<String> set = new LinkedHashSet<>(Arrays.asList("b", "a", "c"));
+        assertThat(roundTrip(codec, set), is(set));
+
+        Map<String,Object> map = new LinkedHashMap<>();
+        map.put("a", 1);
+        map.put("b", Arrays.asList(true, false));
+        map.put("c", null);
+        assertThat(roundTrip(codec, map), is(map));
+
+        Map<String,Object> hashMap = new HashMap<>(map);
+        assertThat(roundTrip(codec, hashMap), is(hashMap));
+        assertThat(codec.encode(hashMap)[0], is((byte)0x0E));
+    }
+
+    @Test
+    public void corruptCollectionSizesAreRejected() {
+        CompactCodec codec = new CompactCodec();
+
+        for (int tag : new int[] { 0x0C, 0x0D, 0x0E }) {
+            // negative size
+            try {
+                codec.decode(new BinaryWriter(8).writeByte(tag).writeVarInt(-1).toByteArray());
+                fail();
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+
+            // huge size with a single element is not preallocated
+            try {
+                codec.decode(new BinaryWriter(8).writeByte(tag).writeVarInt(Integer.MAX_VALUE)
+                    .writeByte(0x00).toByteArray());
+                fail();
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void otherCollectionsKeepTheirType() {
+        CompactCodec codec = new CompactCodec();
+
+        TreeMap<String,Integer> treeMap = new TreeMap<>(Comparator.reverseOrder());
+        treeMap.put("a", 1);
+        treeMap.put("c", 3);
+        treeMap.put("b", 2);
+        Object decoded = roundTrip(codec, treeMap);
+        assertThat(decoded, instanceOf(TreeMap.class));
+        assertThat(decoded, is(treeMap));
+        assertThat(((TreeMap<?,?>)decoded).firstKey(), is("c"));
+
+        List<String> unmodifiable = Collections.unmodifiableList(new ArrayList<>(Arrays.asList("a", "b")));
+        @SuppressWarnings("unchecked")
+        List<String> decodedList = (List<String>)roundTrip(codec, unmodifiable);
+        assertThat(decodedList, is(unmodifiable));
+        try {
+            decodedList.add("c");
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // expected, still unmodifiable
+        }
+
+        Tags tags = new Tags();
+        tags.owner = "joe";
+        tags.add("x");
+        decoded = roundTrip(codec, tags);
+        assertThat(decoded, instanceOf(Tags.class));
+        assertThat(((Tags)decoded).owner, is("joe"));
+        assertThat(decoded, is(tags));
+
+        // a collection that is not serializable is still written compactly
+        List<Integer> view = new ArrayList<>(Arrays.asList(1, 2, 3, 4)).subList(1, 3);
+        assertThat(roundTrip(codec, view), is(Arrays.asList(2, 3)));
+    }
+
+    @Test
+    public void registeredTypes() {
+        CompactCodec codec = new CompactCodec()
+            .register(1, Point.class, new CompactCodec.Serializer<Point>() {
+                @Override
+                public void write(BinaryWriter writer, Point value) {
+                    writer.writeZigZagInt(value.x).writeZigZagInt(value.y);
+                }
+                @Override
+                public Point read(BinaryReader reader) {
+                    return new Point(reader.readZigZagInt(), reader.readZigZagInt());
+                }
+            });
+
+        Point point = (Point)roundTrip(codec, new Point(3, -4));
+        assertThat(point.x, is(3));
+        assertThat(point.y, is(-4));
+
+        // nested in a collection too
+        List<?> points = (List<?>)roundTrip(codec, new ArrayList<>(Arrays.asList(new Point(1, 2), new Point(5, 6))));
+        assertThat(((Point)points.get(1)).y, is(6));
+
+        try {
+            codec.register(1, String.class, null);
+            fail();
+        } catch (NullPointerException e) {
+            // expected
+        }
+
+        try {
+            new CompactCodec().encode(new Point(1, 1));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected, not registered & not serializable
+        }
+    }
+
+    @Test
+    public void javaSerializationFallback() {
+        CompactCodec codec = new CompactCodec();
+
+        Legacy legacy = (Legacy)roundTrip(codec, new Legacy("old"));
+        assertThat(legacy.name, is("old"));
+
+        List<?> nested = (List<?>)roundTrip(codec, Arrays.asList(new Legacy("a"), "b"));
+        assertThat(((Legacy)nested.get(0)).name, is("a"));
+        assertThat(nested.get(1), is("b"));
+    }
+
+    @Test
+    public void decodesValuesWrittenWithJavaSerialization() {
+        CompactCodec codec = new CompactCodec();
+
+        byte[] bytes = CompactCodec.javaSerialize(Arrays.asList("a", 1));
+
+        assertThat(codec.decode(bytes), is(Arrays.asList("a", 1)));
+    }
+
+    @Test
+    public void smallerThanJavaSerialization() {
+        CompactCodec codec = new CompactCodec();
+
+        Map<String,Object> map = new LinkedHashMap<>();
+        map.put("id", 123456L);
+        map.put("name", "Joe Lauer");
+        map.put("active", true);
+        map.put("tags", new ArrayList<>(Arrays.asList("a", "b", "c")));
+
+        byte[] compact = codec.encode(map);
+        byte[] java = CompactCodec.javaSerialize(new LinkedHashMap<>(map));
+
+        assertThat(compact.length * 4, lessThan(java.length));
+    }
+
+    @Test
+    public void nestedEncodeOnSameThread() {
+        CompactCodec inner = new CompactCodec();
+        CompactCodec outer = new CompactCodec()
+            .register(7, Point.class, new CompactCodec.Serializer<Point>() {
+                @Override
+                public void write(BinaryWriter writer, Point value) {
+                    // encodes with another codec while the thread's writer is in use
+                    writer.writeLengthPrefixed(inner.encode(value.x + "," + value.y));
+                }
+                @Override
+                public Point read(BinaryReader reader) {
+                    String[] xy = ((String)inner.decode(reader.readLengthPrefixed())).split(",");
+                    return new Point(Integer.parseInt(xy[0]), Integer.parseInt(xy[1]));
+                }
+            });
+
+        Point point = (Point)outer.decode(outer.encode(new Point(8, 9)));
+        assertThat(point.x, is(8));
+        assertThat(point.y, is(9));
+    }
+
+    @Test
+    public void varints() {
+        BinaryWriter writer = new BinaryWriter(1);
+        writer.writeVarInt(0).writeVarInt(127).writeVarInt(128).writeVarInt(-1)
+            .writeVarLong(Long.MIN_VALUE).writeZigZagInt(-64).writeZigZagLong(Long.MIN_VALUE)
+            .writeString("abc").writeLong(-2L).writeInt(Integer.MIN_VALUE);
+
+        BinaryReader reader = new BinaryReader(writer.toByteArray());
+        assertThat(reader.readVarInt(), is(0));
+        assertThat(reader.readVarInt(), is(127));
+        assertThat(reader.readVarInt(), is(128));
+        assertThat(reader.readVarInt(), is(-1));
+        assertThat(reader.readVarLong(), is(Long.MIN_VALUE));
+        assertThat(reader.readZigZagInt(), is(-64));
+        assertThat(reader.readZigZagLong(), is(Long.MIN_VALUE));
+        assertThat(reader.readString(), is("abc"));
+        assertThat(reader.readLong(), is(-2L));
+        assertThat(reader.readInt(), is(Integer.MIN_VALUE));
+        assertThat(reader.remaining(), is(0));
+
+        try {
+            reader.readByte();
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,226 @@
+package com.fizzed.jedis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Test;
+
+public class CompressingCodecTest {
+
+    static private final JedisCodec<byte[]> BYTES = JedisCodec.of(v -> v, v -> v);
+
+    static private String json(int records) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < records; i++) {
+            if (i > 0) {
+                sb.append(",");
+            }
+            sb.append("{\"id\":").append(i)
+                .append(",\"name\":\"user").append(i)
+                .append("\",\"email\":\"user").append(i).append("@example.com\",\"active\":true}");
+        }
+        return sb.append("]").toString();
+    }
+
+    @Test
+    public void deflate() {
+        CompressingCodec<String> codec = CompressingCodec.deflate(JedisCodecs.STRING);
+
+        String value = json(1000);
+        byte[] bytes = codec.encode(value);
+
+        assertThat(bytes[0] & 0xFF, is(0xF9));
+        assertThat(bytes.length, lessThan(value.length() / 4));
+        assertThat(codec.decode(bytes), is(value));
+        assertThat(CompressingCodec.deflate(BYTES).encode(null), is(nullValue()));
+    }
+
+    @Test
+    public void belowThresholdIsNotCompressed() {
+        CompressingCodec<String> codec = CompressingCodec.deflate(JedisCodecs.STRING)
+            .setThreshold(100);
+
+        String value = json(1);
+        byte[] bytes = codec.encode(value);
+
+        assertArrayEquals(value.getBytes(StandardCharsets.UTF_8), bytes);
+        assertThat(codec.decode(bytes), is(value));
+    }
+
+    @Test
+    public void valuesWrittenBeforeCompressionStillDecode() {
+        CompressingCodec<String> codec = CompressingCodec.deflate(JedisCodecs.STRING)
+            .setThreshold(0);
+
+        String value = json(100);
+
+        assertThat(codec.decode(value.getBytes(StandardCharsets.UTF_8)), is(value));
+        assertThat(codec.decode(JedisCodecs.STRING.encode("")), is(""));
+    }
+
+    @Test
+    public void valuesThatLookCompressedAreEscaped() {
+        CompressingCodec<byte[]> codec = CompressingCodec.deflate(BYTES);
+
+        for (int header = 0xF8; header <= 0xFB; header++) {
+            byte[] value = new byte[] { (byte)header, 1, 2, 3 };
+            byte[] bytes = codec.encode(value);
+            assertThat(bytes.length, is(value.length + 1));
+            assertArrayEquals(value, codec.decode(bytes));
+        }
+    }
+
+    @Test
+    public void stringsStartingWithAnEmojiAreNotMistakenForHeaders() {
+        CompressingCodec<String> codec = CompressingCodec.deflate(JedisCodecs.STRING);
+
+        // 4-byte UTF-8 sequences lead with 0xF0-0xF4
+        String value = "\uD83D\uDE00 smile";
+        byte[] bytes = codec.encode(value);
+
+        assertArrayEquals(value.getBytes(StandardCharsets.UTF_8), bytes);
+        assertThat(codec.decode(bytes), is(value));
+    }
+
+    @Test
+    public void incompressibleValuesAreStoredRaw() {
+        CompressingCodec<byte[]> codec = CompressingCodec.deflate(BYTES)
+            .setThreshold(0);
+
+        byte[] value = new byte[4096];
+        new Random(1L).nextBytes(value);
+        value[0] = 0;
+
+        byte[] bytes = codec.encode(value);
+
+        assertArrayEquals(value, bytes);
+        assertArrayEquals(value, codec.decode(bytes));
+    }
+
+    @Test
+    public void dictionary() {
+        byte[] dictionary = json(3).getBytes(StandardCharsets.UTF_8);
+
+        CompressingCodec<String> plain = CompressingCodec.deflate(JedisCodecs.STRING)
+            .setThreshold(0);
+        CompressingCodec<String> codec = CompressingCodec.deflate(JedisCodecs.STRING)
+            .setThreshold(0)
+            .setDictionary(dictionary);
+
+        String value = "{\"id\":7,\"name\":\"user7\",\"email\":\"user7@example.com\",\"active\":true}";
+        byte[] bytes = codec.encode(value);
+
+        assertThat(bytes[0] & 0xFF, is(0xFA));
+        assertThat(bytes.length, lessThan(plain.encode(value).length));
+        assertThat(codec.decode(bytes), is(value));
+
+        // values written with a dictionary require it
+        try {
+            plain.decode(bytes);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // but values written without one still decode
+        assertThat(codec.decode(plain.encode(json(10))), is(json(10)));
+    }
+
+    @Test
+    public void corruptValue() {
+        CompressingCodec<String> codec = CompressingCodec.deflate(JedisCodecs.STRING);
+
+        byte[] bytes = codec.encode(json(100));
+        byte[] truncated = new byte[bytes.length / 2];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+
+        try {
+            codec.decode(truncated);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void declaredLengthAboveMaxLengthIsRejected() {
+        CompressingCodec<String> codec = CompressingCodec.deflate(JedisCodecs.STRING);
+
+        // a header declaring ~2 GB followed by garbage
+        byte[] hostile = new BinaryWriter(16).writeByte(0xF9).writeVarInt(Integer.MAX_VALUE)
+            .writeByte(1).writeByte(2).toByteArray();
+        try {
+            codec.decode(hostile);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected, nothing allocated
+        }
+
+        byte[] negative = new BinaryWriter(16).writeByte(0xF9).writeVarInt(-1).toByteArray();
+        try {
+            codec.decode(negative);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        String value = json(100);
+        byte[] bytes = codec.encode(value);
+        assertThat(codec.decode(bytes), is(value));
+
+        codec.setMaxLength(value.length() - 1);
+        try {
+            codec.decode(bytes);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void wrapsCompactCodecAndEncoderFunctions() {
+        CompressingCodec<Object> codec = CompressingCodec.deflate(JedisCodecs.OBJECT);
+
+        String value = json(100);
+        assertThat(JedisCodecs.OBJECT.decode(JedisCodecs.OBJECT.encode(value)), is(value));
+        assertThat(codec.decode(codec.encode(value)), is(value));
+
+        CompressingCodec<String> functions = CompressingCodec.deflate(
+            JedisCodecs.STRING_ENCODE, JedisCodecs.STRING_DECODE);
+        assertThat(functions.asDecoder().apply(functions.asEncoder().apply(value)), is(value));
+    }
+
+    @Test
+    public void lz4() {
+        assumeTrue(CompressingCodec.isLz4Available());
+
+        CompressingCodec<String> codec = CompressingCodec.lz4(JedisCodecs.STRING);
+
+        String value = json(1000);
+        byte[] bytes = codec.encode(value);
+
+        assertThat(bytes[0] & 0xFF, is(0xFB));
+        assertThat(bytes.length, lessThan(value.length() / 2));
+        assertThat(codec.decode(bytes), is(value));
+
+        // deflate and lz4 values may be mixed
+        assertThat(codec.decode(CompressingCodec.deflate(JedisCodecs.STRING).encode(value)), is(value));
+
+        // corrupt values fail without reading past the value
+        byte[] truncated = new byte[bytes.length / 2];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        try {
+            codec.decode(truncated);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+}
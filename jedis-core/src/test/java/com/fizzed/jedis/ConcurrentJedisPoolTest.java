@@ -0,0 +1,309 @@
+package com.fizzed.jedis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import org.junit.After;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+
+public class ConcurrentJedisPoolTest {
+
+    private JedisPool jedisPool;
+
+    private JedisPool createJedisPool(String params) {
+        this.jedisPool = JedisFactory.createJedisPool("redis://localhost:26379?pool_type=concurrent&" + params);
+        return this.jedisPool;
+    }
+
+    @After
+    public void after() throws Exception {
+        if (this.jedisPool != null) {
+            this.jedisPool.close();
+        }
+    }
+
+    @Test
+    public void borrowAndReturn() {
+        this.createJedisPool("pool_max_size=5");
+
+        assertThat(this.jedisPool, instanceOf(ConcurrentJedisPool.class));
+
+        final Jedis jedis1;
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            jedis1 = jedis;
+            assertThat(jedis.ping(), is("PONG"));
+            assertThat(this.jedisPool.getNumActive(), is(1));
+            assertThat(this.jedisPool.getNumIdle(), is(0));
+        }
+
+        assertThat(this.jedisPool.getNumActive(), is(0));
+        assertThat(this.jedisPool.getNumIdle(), is(1));
+
+        // same thread gets the connection it returned
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            assertThat(jedis, sameInstance(jedis1));
+
+            try (Jedis jedis2 = this.jedisPool.getResource()) {
+                assertThat(jedis2, not(sameInstance(jedis1)));
+            }
+        }
+
+        final DefaultJedisPool pool = (DefaultJedisPool)this.jedisPool;
+
+        assertThat(pool.getCreatedCount(), is(2L));
+        assertThat(pool.getBorrowedCount(), is(3L));
+        assertThat(pool.getNumIdle(), is(2));
+    }
+
+    @Test
+    public void database() {
+        this.jedisPool = JedisFactory.createJedisPool("redis://localhost:26379/2?pool_type=concurrent");
+
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            assertThat(jedis.getDB(), is(2L));
+            jedis.select(3);
+        }
+
+        // database is restored when borrowed again
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            assertThat(jedis.getDB(), is(2L));
+        }
+    }
+
+    @Test
+    public void waitTimeout() {
+        this.createJedisPool("pool_max_size=1&pool_wait_timeout=100");
+
+        try (Jedis jedis1 = this.jedisPool.getResource()) {
+            final long started = System.nanoTime();
+            try (Jedis jedis2 = this.jedisPool.getResource()) {
+                fail("should have failed with timeout");
+            } catch (JedisException e) {
+                assertThat(e.getCause(), instanceOf(NoSuchElementException.class));
+            }
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started), greaterThanOrEqualTo(100L));
+        }
+    }
+
+    @Test
+    public void handoffToWaiter() throws Exception {
+        this.createJedisPool("pool_max_size=1&pool_wait_timeout=5000");
+
+        final Jedis jedis1 = this.jedisPool.getResource();
+        final AtomicReference<Jedis> borrowed = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        new Thread(() -> {
+            try (Jedis jedis = this.jedisPool.getResource()) {
+                borrowed.set(jedis);
+            } finally {
+                done.countDown();
+            }
+        }).start();
+
+        // wait for it to wait
+        for (int i = 0; i < 100 && this.jedisPool.getNumWaiters() == 0; i++) {
+            Thread.sleep(10L);
+        }
+        assertThat(this.jedisPool.getNumWaiters(), is(1));
+
+        jedis1.close();
+
+        assertThat(done.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(borrowed.get(), sameInstance(jedis1));
+        assertThat(this.jedisPool.getNumWaiters(), is(0));
+    }
+
+    @Test
+    public void brokenConnectionsAreDestroyed() {
+        this.createJedisPool("pool_max_size=2");
+
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            jedis.getClient().close();
+            try {
+                jedis.getClient().setPort(0);
+                jedis.ping();
+                fail();
+            } catch (JedisConnectionException e) {
+                // expected, client now broken
+            }
+        }
+
+        final DefaultJedisPool pool = (DefaultJedisPool)this.jedisPool;
+
+        assertThat(pool.getNumIdle(), is(0));
+        assertThat(pool.getDestroyedCount(), is(1L));
+
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            assertThat(jedis.ping(), is("PONG"));
+        }
+    }
+
+    @Test
+    public void concurrency() throws Exception {
+        this.createJedisPool("pool_max_size=8&pool_wait_timeout=10000");
+
+        final int threads = 64;
+        final int borrows = 500;
+        final Set<Jedis> inUse = ConcurrentHashMap.newKeySet();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < borrows; j++) {
+                        try (Jedis jedis = this.jedisPool.getResource()) {
+                            // no connection is ever borrowed twice at once
+                            if (!inUse.add(jedis)) {
+                                overlaps.incrementAndGet();
+                            }
+                            if (j % 50 == 0) {
+                                jedis.ping();
+                            }
+                            inUse.remove(jedis);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        final DefaultJedisPool pool = (DefaultJedisPool)this.jedisPool;
+
+        assertThat(overlaps.get(), is(0));
+        assertThat(pool.getBorrowedCount(), is((long)threads * borrows));
+        assertThat(pool.getCreatedCount(), lessThanOrEqualTo(8L));
+        assertThat(pool.getNumActive(), is(0));
+        assertThat(pool.getNumIdle(), is((int)pool.getCreatedCount()));
+    }
+
+    @Test
+    public void closeForciblyClosesBorrowed() throws Exception {
+        this.createJedisPool("pool_max_size=2");
+
+        final Jedis jedis = this.jedisPool.getResource();
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+
+        new Thread(() -> {
+            try {
+                // blocks forever unless its socket is closed
+                jedis.blpop(0, "concurrent-pool-test-never");
+            } catch (Exception e) {
+                failure.set(e);
+            } finally {
+                done.countDown();
+            }
+        }).start();
+
+        Thread.sleep(100L);
+
+        this.jedisPool.close();
+
+        assertThat(done.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(failure.get(), instanceOf(JedisConnectionException.class));
+        assertThat(this.jedisPool.isClosed(), is(true));
+
+        try {
+            this.jedisPool.getResource();
+            fail();
+        } catch (JedisConnectionException e) {
+            // expected
+        }
+
+        // returning it after the close is harmless
+        jedis.close();
+    }
+
+    @Test
+    public void evictionAndMinIdle() throws Exception {
+        this.createJedisPool("pool_min_size=2&pool_max_size=6"
+            + "&pool_eviction_interval=50&pool_min_evictable_idle_time=100");
+
+        final List<Jedis> resources = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            resources.add(this.jedisPool.getResource());
+        }
+        resources.forEach(Jedis::close);
+
+        assertThat(this.jedisPool.getNumIdle(), is(6));
+
+        // idle connections beyond min idle are closed
+        for (int i = 0; i < 100 && this.jedisPool.getNumIdle() > 2; i++) {
+            Thread.sleep(10L);
+        }
+        assertThat(this.jedisPool.getNumIdle(), is(2));
+    }
+
+    @Test
+    public void prewarm() {
+        this.createJedisPool("pool_min_size=3&pool_max_size=5&pool_prewarm=true");
+
+        assertThat(this.jedisPool.getNumIdle(), is(3));
+
+        final JedisPrewarmResult result = JedisFactory.prewarmJedisPool(this.jedisPool, 5, 5, TimeUnit.SECONDS);
+
+        assertThat(result.getConnections(), is(5));
+        assertThat(this.jedisPool.getNumIdle(), is(5));
+    }
+
+    @Test
+    public void metrics() {
+        this.createJedisPool("pool_max_size=1&pool_wait_timeout=50");
+
+        final AtomicInteger created = new AtomicInteger();
+        final AtomicInteger exhausted = new AtomicInteger();
+        ((DefaultJedisPool)this.jedisPool).setMetrics(new JedisMetrics() {
+            @Override
+            public void connectionCreated() {
+                created.incrementAndGet();
+            }
+            @Override
+            public void borrowFailed(long nanos, boolean e) {
+                if (e) {
+                    exhausted.incrementAndGet();
+                }
+            }
+        });
+
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            try {
+                this.jedisPool.getResource();
+                fail();
+            } catch (JedisException e) {
+                // expected
+            }
+        }
+
+        assertThat(created.get(), is(1));
+        assertThat(exhausted.get(), is(1));
+    }
+
+}
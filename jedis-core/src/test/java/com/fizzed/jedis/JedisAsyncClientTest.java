@@ -0,0 +1,258 @@
+package com.fizzed.jedis;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import org.junit.After;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+public class JedisAsyncClientTest {
+
+    private JedisPool jedisPool;
+
+    @Before
+    public void before() throws Exception {
+        this.jedisPool = JedisFactory.createJedisPool("redis://localhost:26379?async_enabled=true&async_connections=3");
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            jedis.flushAll();
+        }
+    }
+
+    @After
+    public void after() throws Exception {
+        this.jedisPool.close();
+    }
+
+    static private byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static private String string(byte[] b) {
+        return (b != null ? new String(b, StandardCharsets.UTF_8) : null);
+    }
+
+    @Test
+    public void createdFromOptions() {
+        JedisAsyncClient client = JedisFactory.getAsyncClient(this.jedisPool);
+
+        assertThat(client.getConnections(), is(3));
+
+        JedisPool blockingOnly = JedisFactory.createJedisPool("redis://localhost:26379");
+        try {
+            assertThat(JedisFactory.getAsyncClient(blockingOnly), is(nullValue()));
+        } finally {
+            blockingOnly.close();
+        }
+    }
+
+    @Test
+    public void commands() throws Exception {
+        JedisAsyncClient client = JedisFactory.getAsyncClient(this.jedisPool);
+
+        assertThat(client.get(bytes("a")).get(), is(nullValue()));
+        assertThat(client.setex(bytes("a"), 60, bytes("1")).get(), is(true));
+        assertThat(string(client.get(bytes("a")).get()), is("1"));
+        assertThat(client.setnx(bytes("a"), 60, bytes("2")).get(), is(false));
+        assertThat(client.incrBy(bytes("a"), 5L).get(), is(6L));
+        assertThat(client.del(bytes("a")).get(), is(1L));
+
+        assertThat(client.rpush(bytes("list"), bytes("x"), bytes("y")).get(), is(2L));
+        assertThat(client.expire(bytes("list"), 60).get(), is(1L));
+        assertThat(string(client.lpop(bytes("list")).get()), is("x"));
+
+        assertThat(string((byte[])client.send("PING").get()), is("PONG"));
+    }
+
+    @Test
+    public void errorReplyOnlyFailsItsCommand() throws Exception {
+        JedisAsyncClient client = JedisFactory.getAsyncClient(this.jedisPool);
+
+        client.setex(bytes("a"), 60, bytes("not-a-number"));
+        CompletableFuture<Long> bad = client.incrBy(bytes("a"), 1L);
+        CompletableFuture<byte[]> good = client.get(bytes("a"));
+
+        try {
+            JedisAsyncClient.await(bad);
+            fail();
+        } catch (JedisDataException e) {
+            // expected
+        }
+
+        assertThat(string(good.get()), is("not-a-number"));
+    }
+
+    @Test
+    public void pipelinedCommandsOnKeyExecuteInOrder() throws Exception {
+        JedisAsyncClient client = JedisFactory.getAsyncClient(this.jedisPool);
+
+        List<CompletableFuture<Long>> replies = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            replies.add(client.rpush(bytes("list"), bytes("" + i)));
+        }
+
+        for (int i = 0; i < replies.size(); i++) {
+            assertThat(replies.get(i).get(5, TimeUnit.SECONDS), is((long)i + 1));
+        }
+
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            assertThat(jedis.lindex("list", 9999), is("9999"));
+        }
+    }
+
+    @Test
+    public void concurrentCallers() throws Exception {
+        JedisAsyncClient client = JedisFactory.getAsyncClient(this.jedisPool);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                List<CompletableFuture<Long>> replies = new ArrayList<>();
+                for (int i = 0; i < 1000; i++) {
+                    replies.add(client.incrBy(bytes("counter" + (i % 10)), 1L));
+                }
+                replies.forEach(CompletableFuture::join);
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join(10000L);
+        }
+
+        long total = 0;
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            for (int i = 0; i < 10; i++) {
+                total += Long.valueOf(jedis.get("counter" + i));
+            }
+        }
+
+        assertThat(total, is(8000L));
+    }
+
+    @Test
+    public void interruptedCallerDoesNotBreakOtherCallers() throws Exception {
+        JedisAsyncClient client = JedisFactory.getAsyncClient(this.jedisPool);
+        byte[] key = bytes("a");
+
+        // connect before anyone is interrupted
+        assertThat(client.incrBy(key, 1L).get(), is(1L));
+
+        List<CompletableFuture<Long>> others = new CopyOnWriteArrayList<>();
+        Thread other = new Thread(() -> {
+            for (int i = 0; i < 1000; i++) {
+                others.add(client.incrBy(key, 1L));
+            }
+        });
+        other.start();
+
+        List<CompletableFuture<Long>> interrupted = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Thread.currentThread().interrupt();
+            interrupted.add(client.incrBy(key, 1L));
+        }
+        assertThat(Thread.interrupted(), is(true));
+
+        other.join(10000L);
+        for (CompletableFuture<Long> future : interrupted) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        for (CompletableFuture<Long> future : others) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+
+        assertThat(client.get(key).get(), is(bytes("1101")));
+    }
+
+    @Test
+    public void closeFailsCommands() throws Exception {
+        JedisAsyncClient client = JedisFactory.getAsyncClient(this.jedisPool);
+
+        assertThat(client.setex(bytes("a"), 60, bytes("1")).get(), is(true));
+
+        this.jedisPool.close();
+
+        assertThat(client.isClosed(), is(true));
+
+        try {
+            JedisAsyncClient.await(client.get(bytes("a")));
+            fail();
+        } catch (Exception e) {
+            assertThat(e, instanceOf(JedisConnectionException.class));
+        }
+    }
+
+    @Test
+    public void awaitTimesOutAndClosesConnection() throws Exception {
+        // a server that accepts connections but never replies
+        List<Socket> accepted = new CopyOnWriteArrayList<>();
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        accepted.add(server.accept());
+                    }
+                } catch (Exception e) {
+                    // closed
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            JedisAsyncClient client = new JedisAsyncClient("localhost", server.getLocalPort(), null, null, 1, 1000, 200);
+            try {
+                CompletableFuture<byte[]> a = client.get(bytes("a"));
+                CompletableFuture<Long> b = client.expire(bytes("a"), 60);
+
+                final long started = System.currentTimeMillis();
+                try {
+                    JedisAsyncClient.await(a);
+                    fail();
+                } catch (JedisConnectionException e) {
+                    // expected
+                }
+                final long elapsed = System.currentTimeMillis() - started;
+                assertThat(elapsed, greaterThanOrEqualTo(150L));
+                assertThat(elapsed, lessThan(1000L));
+
+                // every other command in-flight on the connection failed too
+                assertThat(b.isCompletedExceptionally(), is(true));
+                try {
+                    JedisAsyncClient.join(b);
+                    fail();
+                } catch (JedisConnectionException e) {
+                    // expected
+                }
+
+                // and the next command is sent on a new connection
+                CompletableFuture<byte[]> c = client.get(bytes("a"));
+                try {
+                    JedisAsyncClient.join(c);
+                    fail();
+                } catch (JedisConnectionException e) {
+                    // expected
+                }
+                assertThat(accepted.size(), is(2));
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,172 @@
+package com.fizzed.jedis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import org.junit.After;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+public class JedisBlockingMultiplexerTest {
+
+    private JedisPool jedisPool;
+    private JedisBlockingMultiplexer multiplexer;
+
+    @Before
+    public void before() throws Exception {
+        this.jedisPool = JedisFactory.createJedisPool(
+            "redis://localhost:26379?blocking_mode=multiplexed&blocking_connections=2&pool_max_size=2");
+        this.multiplexer = JedisFactory.getBlockingMultiplexer(this.jedisPool);
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            jedis.flushAll();
+        }
+    }
+
+    @After
+    public void after() throws Exception {
+        this.jedisPool.close();
+    }
+
+    static private byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static private String string(byte[] b) {
+        return (b != null ? new String(b, StandardCharsets.UTF_8) : null);
+    }
+
+    private void rpush(String key, String value) {
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            jedis.rpush(key, value);
+        }
+    }
+
+    private long llen(String key) {
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            return jedis.llen(key);
+        }
+    }
+
+    @Test
+    public void createdFromOptions() {
+        assertThat(this.multiplexer.getConnections(), is(2));
+
+        JedisPool pooled = JedisFactory.createJedisPool("redis://localhost:26379");
+        try {
+            assertThat(JedisFactory.getBlockingMultiplexer(pooled), is(nullValue()));
+        } finally {
+            pooled.close();
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void unsupportedBlockingMode() {
+        new JedisOptions("redis://localhost:26379?blocking_mode=bad");
+    }
+
+    @Test
+    public void popAlreadyAvailable() throws Exception {
+        this.rpush("a", "1");
+
+        assertThat(string(this.multiplexer.pop(bytes("a"), 1, TimeUnit.SECONDS)), is("1"));
+    }
+
+    @Test
+    public void popTimesOutAndNothingIsLost() throws Exception {
+        assertThat(this.multiplexer.pop(bytes("a"), 200, TimeUnit.MILLISECONDS), is(nullValue()));
+        assertThat(this.multiplexer.getWaiting(), is(0));
+
+        // the connection may still be blocked on "a" with no waiter left
+        this.rpush("a", "1");
+        Thread.sleep(200L);
+
+        assertThat(llen("a"), is(1L));
+    }
+
+    @Test
+    public void newKeyWakesUpBlockedConnection() throws Exception {
+        // both connections blocked on some other keys
+        CompletableFuture<byte[]> other1 = this.multiplexer.popAsync(bytes("other1"));
+        CompletableFuture<byte[]> other2 = this.multiplexer.popAsync(bytes("other2"));
+        Thread.sleep(200L);
+
+        CompletableFuture<byte[]> a = this.multiplexer.popAsync(bytes("a"));
+        Thread.sleep(200L);
+        this.rpush("a", "1");
+
+        // well under the blocking timeout
+        assertThat(string(a.get(2, TimeUnit.SECONDS)), is("1"));
+
+        other1.cancel(false);
+        other2.cancel(false);
+    }
+
+    @Test
+    public void manyMoreWaitersThanConnections() throws Exception {
+        int waiters = 200;
+        ExecutorService executor = Executors.newFixedThreadPool(waiters);
+        CountDownLatch started = new CountDownLatch(waiters);
+        AtomicInteger popped = new AtomicInteger();
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < waiters; i++) {
+            final String key = "q" + (i % 10);
+            futures.add(executor.submit(() -> {
+                started.countDown();
+                byte[] value = this.multiplexer.pop(bytes(key), 10, TimeUnit.SECONDS);
+                if (value != null) {
+                    popped.incrementAndGet();
+                }
+                return null;
+            }));
+        }
+
+        started.await();
+
+        for (int i = 0; i < waiters; i++) {
+            this.rpush("q" + (i % 10), "" + i);
+        }
+
+        for (Future<?> future : futures) {
+            future.get(15, TimeUnit.SECONDS);
+        }
+
+        assertThat(popped.get(), is(waiters));
+        for (int i = 0; i < 10; i++) {
+            assertThat(llen("q" + i), is(0L));
+        }
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void closeFailsWaiters() throws Exception {
+        CompletableFuture<byte[]> a = this.multiplexer.popAsync(bytes("a"));
+        Thread.sleep(100L);
+
+        this.jedisPool.close();
+
+        try {
+            JedisAsyncClient.join(a);
+            fail();
+        } catch (Exception e) {
+            assertThat(e, instanceOf(JedisConnectionException.class));
+        }
+    }
+
+}
@@ -1,5 +1,6 @@
 package com.fizzed.jedis;
 
+import com.fizzed.crux.util.StopWatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -8,6 +9,7 @@ import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicReference;
 import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.lessThan;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 import org.junit.Before;
@@ -125,4 +127,68 @@ public class JedisClientsTest {
         }
     }
     
+    @Test
+    public void blockingBlpopItemPopped() throws Exception {
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            jedis.rpush("test".getBytes(), "value1".getBytes());
+
+            byte[] value = JedisClients.blpop(jedis, "test".getBytes(), 250L, TimeUnit.MILLISECONDS);
+            
+            assertThat(value, is("value1".getBytes()));
+        }
+    }
+    
+    @Test
+    public void blockingBlpopSubSecondTimeout() throws Exception {
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            StopWatch timer = StopWatch.timeMillis();
+            try {
+                JedisClients.blpop(jedis, "test".getBytes(), 250L, TimeUnit.MILLISECONDS);
+                fail("expected timeout");
+            } catch (TimeoutException e) {
+                // expected
+            }
+            
+            // previously rounded up to at least 1 sec
+            assertThat(timer.elapsedMillis(), lessThan(900d));
+            
+            // connection still usable
+            assertThat(jedis.ping(), is("PONG"));
+        }
+    }
+    
+    @Test
+    public void blockingBlpopInterruptedImmediately() throws Exception {
+        AtomicReference<Exception> exceptionRef = new AtomicReference<>();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> task = executor.submit(() -> {
+            try (Jedis jedis = this.jedisPool.getResource()) {
+                // block forever
+                JedisClients.blpop(jedis, "test".getBytes(), -1L, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                exceptionRef.set(e);
+            }
+        });
+
+        // wait a bit to make sure we're waiting on redis
+        Thread.sleep(500L);
+
+        StopWatch timer = StopWatch.timeMillis();
+        
+        task.cancel(true);
+
+        executor.shutdown();
+        boolean terminated = executor.awaitTermination(5000L, TimeUnit.MILLISECONDS);
+
+        assertThat(terminated, is(true));
+        assertThat(exceptionRef.get(), instanceOf(InterruptedException.class));
+        // previously up to the 1 sec polling timeout
+        assertThat(timer.elapsedMillis(), lessThan(500d));
+        
+        // the broken connection was discarded and the pool still works
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            assertThat(jedis.ping(), is("PONG"));
+        }
+    }
+    
 }
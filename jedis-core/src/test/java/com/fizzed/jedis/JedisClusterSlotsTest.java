@@ -0,0 +1,50 @@
+package com.fizzed.jedis;
+
+import java.nio.charset.StandardCharsets;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+import org.junit.Test;
+
+public class JedisClusterSlotsTest {
+
+    @Test
+    public void crc16() {
+        // the check value of CRC16/XMODEM (as in the redis cluster spec)
+        byte[] bytes = "123456789".getBytes(StandardCharsets.US_ASCII);
+        assertThat(JedisClusterSlots.crc16(bytes, 0, bytes.length), is(0x31C3));
+    }
+
+    @Test
+    public void slot() {
+        // CLUSTER KEYSLOT
+        assertThat(JedisClusterSlots.slot("foo"), is(12182));
+        assertThat(JedisClusterSlots.slot("bar"), is(5061));
+        assertThat(JedisClusterSlots.slot(""), is(0));
+        assertThat(JedisClusterSlots.slot("foo".getBytes(StandardCharsets.UTF_8)), is(12182));
+    }
+
+    @Test
+    public void hashTags() {
+        assertThat(JedisClusterSlots.slot("{user1000}.following"), is(JedisClusterSlots.slot("{user1000}.followers")));
+        assertThat(JedisClusterSlots.slot("{user1000}.following"), is(JedisClusterSlots.slot("user1000")));
+        // only the first tag counts
+        assertThat(JedisClusterSlots.slot("foo{bar}{zap}"), is(JedisClusterSlots.slot("bar")));
+        // an empty tag or no closing brace hashes the whole key
+        assertThat(JedisClusterSlots.slot("foo{}{bar}"), is(not(JedisClusterSlots.slot("bar"))));
+        assertThat(JedisClusterSlots.slot("foo{}{bar}"), is(JedisClusterSlots.slot("foo{}{bar}".getBytes(StandardCharsets.UTF_8))));
+        assertThat(JedisClusterSlots.slot("foo{bar"), is(not(JedisClusterSlots.slot("bar"))));
+        assertThat(JedisClusterSlots.slot("{{bar}}"), is(JedisClusterSlots.slot("{bar")));
+    }
+
+    @Test
+    public void hashTagged() {
+        assertThat(JedisClusterSlots.hashTagged("jobs"), is("{jobs}"));
+        assertThat(JedisClusterSlots.hashTagged("{jobs}"), is("{jobs}"));
+        assertThat(JedisClusterSlots.hashTagged("app:{jobs}:high"), is("app:{jobs}:high"));
+        assertThat(JedisClusterSlots.hashTagged("foo{}"), is("{foo{}}"));
+        assertThat(JedisClusterSlots.slot(JedisClusterSlots.hashTagged("jobs") + ":processing:a"),
+            is(JedisClusterSlots.slot("jobs")));
+    }
+
+}
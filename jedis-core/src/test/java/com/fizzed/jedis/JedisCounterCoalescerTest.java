@@ -0,0 +1,119 @@
+package com.fizzed.jedis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.hasItem;
+import org.junit.After;
+import static org.junit.Assert.assertThat;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+public class JedisCounterCoalescerTest {
+
+    private JedisPool jedisPool;
+
+    @Before
+    public void before() throws Exception {
+        this.jedisPool = JedisFactory.createJedisPool("redis://localhost:26379");
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            jedis.flushAll();
+        }
+    }
+
+    @After
+    public void after() throws Exception {
+        this.jedisPool.close();
+    }
+
+    private String get(String key) {
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            return jedis.get(key);
+        }
+    }
+
+    @Test
+    public void firstIncrementIsImmediate() throws Exception {
+        try (JedisCounterCoalescer coalescer = new JedisCounterCoalescer(this.jedisPool, 1, TimeUnit.HOURS)) {
+            try (Jedis jedis = this.jedisPool.getResource()) {
+                jedis.set("views", "10");
+            }
+
+            assertThat(coalescer.incrBy("views", 1), is(11L));
+            assertThat(this.get("views"), is("11"));
+
+            // coalesced until flushed
+            assertThat(coalescer.incrBy("views", 5), is(16L));
+            assertThat(coalescer.incrBy("views", -2), is(14L));
+            assertThat(this.get("views"), is("11"));
+
+            coalescer.flush();
+
+            assertThat(this.get("views"), is("14"));
+            assertThat(coalescer.incrBy("views", 1), is(15L));
+        }
+    }
+
+    @Test
+    public void flushesPeriodicallyAndOnClose() throws Exception {
+        final List<String> flushed = new CopyOnWriteArrayList<>();
+
+        JedisCounterCoalescer coalescer = new JedisCounterCoalescer(this.jedisPool, 20, TimeUnit.MILLISECONDS)
+            .setFlushListener((Collection<String> keys) -> flushed.addAll(keys));
+
+        coalescer.incrBy("a", 1);
+        coalescer.incrBy("a", 1);
+        coalescer.incrBy("b", 1);
+        coalescer.incrBy("b", 1);
+
+        Thread.sleep(200L);
+
+        assertThat(this.get("a"), is("2"));
+        assertThat(this.get("b"), is("2"));
+        assertThat(flushed, hasItem("a"));
+
+        coalescer.incrBy("a", 3);
+        coalescer.close();
+
+        assertThat(this.get("a"), is("5"));
+    }
+
+    @Test
+    public void concurrentIncrements() throws Exception {
+        final int threads = 8;
+        final int increments = 10000;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (JedisCounterCoalescer coalescer = new JedisCounterCoalescer(this.jedisPool, 5, TimeUnit.MILLISECONDS)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(() -> {
+                    long last = 0;
+                    for (int j = 0; j < increments; j++) {
+                        long value = coalescer.incrBy("hits", 1);
+                        assertThat(value, greaterThanOrEqualTo(1L));
+                        last = value;
+                    }
+                    return last;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(this.get("hits"), is(Integer.toString(threads * increments)));
+    }
+
+}
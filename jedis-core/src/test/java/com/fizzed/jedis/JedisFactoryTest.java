@@ -1,7 +1,9 @@
 package com.fizzed.jedis;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import static org.hamcrest.CoreMatchers.is;
 import org.junit.After;
 import static org.junit.Assert.assertThat;
@@ -10,8 +12,10 @@ import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import redis.clients.jedis.HostAndPort;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 import redis.clients.jedis.exceptions.JedisException;
 
 public class JedisFactoryTest {
@@ -45,6 +49,31 @@ public class JedisFactoryTest {
         assertThat(jedisPool.getNumIdle(), is(1));
     }
     
+    @Test
+    public void closeOnlyDisarmsBorrowedConnections() {
+        final Jedis idle = this.jedisPool.getResource();
+        final Jedis borrowed = this.jedisPool.getResource();
+        idle.close();
+        
+        this.jedisPool.close();
+        
+        // idle connections are destroyed by the pool itself, untouched
+        assertThat(idle.isConnected(), is(false));
+        assertThat(idle.getClient().getPort(), is(26379));
+        
+        // a borrowed connection fails rather than silently reconnecting
+        try {
+            borrowed.ping();
+            fail();
+        } catch (JedisConnectionException e) {
+            // expected
+        }
+        
+        // and is destroyed once returned, so it is never pooled again
+        borrowed.close();
+        assertThat(((DefaultJedisPool)this.jedisPool).getDestroyedCount(), is(2L));
+    }
+    
     @Test
     public void database() {
         this.jedisPool.close();
@@ -96,5 +125,276 @@ public class JedisFactoryTest {
             }
         }
     }
+    
+    @Test
+    public void maxIdleDefaultsToMaxSize() {
+        this.jedisPool.close();
+        this.jedisPool = JedisFactory.createJedisPool("redis://localhost:26379/1?pool_max_size=10");
+        
+        List<Jedis> resources = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            resources.add(jedisPool.getResource());
+        }
+        resources.forEach(Jedis::close);
+        
+        // none were closed when returned
+        assertThat(this.jedisPool.getNumIdle(), is(10));
+    }
+    
+    @Test
+    public void maxIdle() {
+        this.jedisPool.close();
+        this.jedisPool = JedisFactory.createJedisPool("redis://localhost:26379/1?pool_max_size=10&pool_max_idle=2");
+        
+        List<Jedis> resources = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            resources.add(jedisPool.getResource());
+        }
+        resources.forEach(Jedis::close);
+        
+        assertThat(this.jedisPool.getNumIdle(), is(2));
+    }
+    
+    @Test
+    public void timeouts() {
+        this.jedisPool.close();
+        this.jedisPool = JedisFactory.createJedisPool("redis://localhost:26379?connect_timeout=250&socket_timeout=1500");
+        
+        try (Jedis jedis = jedisPool.getResource()) {
+            assertThat(jedis.getClient().getConnectionTimeout(), is(250));
+            assertThat(jedis.getClient().getSoTimeout(), is(1500));
+        }
+        
+        this.jedisPool.close();
+        this.jedisPool = JedisFactory.createJedisPool("redis://localhost:26379?connect_timeout=250");
+        
+        // socket timeout defaults to the connect timeout (both in millis)
+        try (Jedis jedis = jedisPool.getResource()) {
+            assertThat(jedis.getClient().getConnectionTimeout(), is(250));
+            assertThat(jedis.getClient().getSoTimeout(), is(250));
+        }
+    }
+    
+    @Test
+    public void socketOptions() throws Exception {
+        try (Jedis jedis = jedisPool.getResource()) {
+            assertThat(jedis.getClient().getSocket().getTcpNoDelay(), is(true));
+            assertThat(jedis.getClient().getSocket().getKeepAlive(), is(true));
+        }
+        
+        this.jedisPool.close();
+        this.jedisPool = JedisFactory.createJedisPool("redis://localhost:26379?tcp_nodelay=false&tcp_keepalive=false");
+        
+        try (Jedis jedis = jedisPool.getResource()) {
+            assertThat(jedis.getClient().getSocket().getTcpNoDelay(), is(false));
+            assertThat(jedis.getClient().getSocket().getKeepAlive(), is(false));
+        }
+        
+        try (Jedis jedis = JedisFactory.createJedis(new JedisOptions("redis://localhost:26379?tcp_nodelay=false"))) {
+            assertThat(jedis.getClient().getSocket().getTcpNoDelay(), is(false));
+        }
+    }
+    
+    @Test
+    public void prewarm() {
+        this.jedisPool.close();
+        this.jedisPool = JedisFactory.createJedisPool("redis://localhost:26379/1?pool_min_size=3&pool_prewarm=true");
+        
+        assertThat(this.jedisPool.getNumIdle(), is(3));
+        
+        this.jedisPool.close();
+        // nothing listening, but the pool is still created
+        this.jedisPool = JedisFactory.createJedisPool("redis://localhost:1?pool_min_size=3&pool_prewarm=true&connect_timeout=250");
+        
+        assertThat(this.jedisPool.getNumIdle(), is(0));
+    }
+    
+    @Test
+    public void prewarmJedisPool() {
+        this.jedisPool.close();
+        this.jedisPool = JedisFactory.createJedisPool("redis://localhost:26379/1?pool_min_size=0&pool_max_size=8");
+        
+        JedisPrewarmResult result = JedisFactory.prewarmJedisPool(this.jedisPool, 6, 5, TimeUnit.SECONDS);
+        
+        assertThat(result.isComplete(), is(true));
+        assertThat(result.getConnections(), is(6));
+        assertThat(result.getFailures(), is(0));
+        assertThat(this.jedisPool.getNumIdle(), is(6));
+        assertThat(this.jedisPool.getNumActive(), is(0));
+        
+        // capped at the max size of the pool
+        result = JedisFactory.prewarmJedisPool(this.jedisPool, 20, 5, TimeUnit.SECONDS);
+        
+        assertThat(result.getRequested(), is(8));
+        assertThat(result.getConnections(), is(8));
+        assertThat(this.jedisPool.getNumIdle(), is(8));
+    }
+    
+    @Test
+    public void prewarmJedisPoolFailures() {
+        this.jedisPool.close();
+        // nothing listening
+        this.jedisPool = JedisFactory.createJedisPool("redis://localhost:1?connect_timeout=250");
+        
+        JedisPrewarmResult result = JedisFactory.prewarmJedisPool(this.jedisPool, 3, 5, TimeUnit.SECONDS);
+        
+        assertThat(result.isComplete(), is(false));
+        assertThat(result.getConnections(), is(0));
+        assertThat(result.getFailures(), is(3));
+        assertThat(result.getFailure() instanceof JedisException, is(true));
+    }
+    
+    @Test
+    public void clusterOptions() {
+        JedisOptions options = new JedisOptions("redis-cluster://node1:7000,node2,node3:7002?cluster_max_redirects=3&pool_max_size=2");
+        
+        assertThat(options.isCluster(), is(true));
+        assertThat(options.getHost(), is("node1"));
+        assertThat(options.getPort(), is(7000));
+        assertThat(options.getClusterNodes(), is(Arrays.asList(
+            new HostAndPort("node1", 7000), new HostAndPort("node2", 7000), new HostAndPort("node3", 7002))));
+        assertThat(options.getClusterMaxRedirects(), is(3));
+        assertThat(options.getPoolMaxSize(), is(2));
+        
+        options = new JedisOptions("redis-cluster://node1:7000");
+        
+        assertThat(options.getClusterNodes(), is(Arrays.asList(new HostAndPort("node1", 7000))));
+        
+        options = new JedisOptions("redis://localhost:26379/1");
+        
+        assertThat(options.isCluster(), is(false));
+        assertThat(options.getDatabase(), is(1));
+        
+        try {
+            new JedisOptions("redis://node1:7000,node2:7001");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        
+        try {
+            // a cluster only has database 0
+            new JedisOptions("redis-cluster://node1:7000,node2:7001/1");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        
+        try {
+            JedisFactory.createJedisPool("redis-cluster://node1:7000?async_enabled=true");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void clusterPool() {
+        // nodes are discovered on first use
+        try (JedisPool pool = JedisFactory.createJedisPool("redis-cluster://localhost:1,localhost:2?connect_timeout=250")) {
+            assertThat(JedisFactory.isCluster(pool), is(true));
+            assertThat(((DefaultJedisPool)pool).getUri().toString(), is("redis-cluster://localhost:1"));
+            
+            try {
+                JedisClients.execute(pool, "foo".getBytes(), jedis -> jedis.get("foo"));
+                fail();
+            } catch (JedisConnectionException e) {
+                // expected
+            }
+        }
+        
+        assertThat(JedisFactory.isCluster(this.jedisPool), is(false));
+        
+        // not a cluster, so any connection of the pool
+        assertThat(JedisClients.execute(this.jedisPool, "foo".getBytes(), jedis -> jedis.set("foo", "bar")), is("OK"));
+    }
+
+    @Test
+    public void replicaOptions() {
+        JedisOptions options = new JedisOptions("redis://primary:6380/2?replicas=replica1,replica2:6381&replica_read_policy=nearest&replica_max_lag=500");
+
+        assertThat(options.isReplicated(), is(true));
+        assertThat(options.isSentinel(), is(false));
+        assertThat(options.getHost(), is("primary"));
+        assertThat(options.getDatabase(), is(2));
+        assertThat(options.getReplicas(), is(Arrays.asList(
+            new HostAndPort("replica1", 6380), new HostAndPort("replica2", 6381))));
+        assertThat(options.getReplicaReadPolicy(), is(JedisOptions.READ_POLICY_NEAREST));
+        assertThat(options.getReplicaCheckInterval(), is(1000L));
+        assertThat(options.getReplicaMaxLag(), is(500L));
+
+        options = new JedisOptions("redis-sentinel://sentinel1,sentinel2:26380/1?sentinel_master=mymaster");
+
+        assertThat(options.isReplicated(), is(true));
+        assertThat(options.isSentinel(), is(true));
+        assertThat(options.isCluster(), is(false));
+        assertThat(options.getSentinels(), is(Arrays.asList(
+            new HostAndPort("sentinel1", 26379), new HostAndPort("sentinel2", 26380))));
+        assertThat(options.getSentinelMaster(), is("mymaster"));
+        assertThat(options.getDatabase(), is(1));
+
+        assertThat(new JedisOptions("redis://localhost:26379").isReplicated(), is(false));
+
+        try {
+            new JedisOptions("redis://primary?replica_read_policy=random");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        try {
+            JedisFactory.createJedisPool("redis-cluster://node1:7000?replicas=node2:7001");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        try {
+            JedisFactory.createJedisPool("redis-sentinel://sentinel1?sentinel_master=mymaster&async_enabled=true");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        try {
+            JedisFactory.createJedisPool("redis-sentinel://sentinel1");
+            fail();
+        } catch (NullPointerException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void replicatedPool() {
+        // a replica that is not one (or is unreachable) is never read from
+        try (JedisPool pool = JedisFactory.createJedisPool(
+                "redis://localhost:26379?replicas=localhost:26379,localhost:1&connect_timeout=250&replica_check_interval=60000")) {
+            final ReplicatedJedisPool replicatedPool = (ReplicatedJedisPool)pool;
+            assertThat(JedisFactory.isReplicated(pool), is(true));
+
+            replicatedPool.checkReplicas();
+
+            assertThat(replicatedPool.getHealthyReplicas().isEmpty(), is(true));
+            assertThat(JedisClients.execute(pool, "foo".getBytes(), jedis -> jedis.set("foo", "bar")), is("OK"));
+            assertThat(JedisClients.executeRead(pool, "foo".getBytes(), jedis -> jedis.get("foo")), is("bar"));
+        }
+
+        // sentinels are asked on first use
+        try (JedisPool pool = JedisFactory.createJedisPool("redis-sentinel://localhost:1?sentinel_master=mymaster&connect_timeout=250")) {
+            assertThat(((DefaultJedisPool)pool).getUri().toString(), is("redis-sentinel://localhost:1"));
+
+            try {
+                pool.getResource();
+                fail();
+            } catch (JedisConnectionException e) {
+                // expected
+            }
+        }
+
+        assertThat(JedisFactory.isReplicated(this.jedisPool), is(false));
+
+        // no replicas, so the same as execute
+        assertThat(JedisClients.executeRead(this.jedisPool, "foo".getBytes(), jedis -> jedis.get("foo")), is("bar"));
+    }
 
 }
@@ -0,0 +1,134 @@
+package com.fizzed.jedis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.Matchers.greaterThan;
+import org.junit.After;
+import static org.junit.Assert.assertThat;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+public class JedisInvalidationListenerTest {
+
+    private JedisPool jedisPool;
+    private BlockingQueue<String> invalidated;
+    private AtomicInteger invalidatedAll;
+    private JedisInvalidationListener listener;
+
+    @Before
+    public void before() throws Exception {
+        this.jedisPool = JedisFactory.createJedisPool("redis://localhost:26379");
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            jedis.flushAll();
+        }
+        this.invalidated = new LinkedBlockingQueue<>();
+        this.invalidatedAll = new AtomicInteger();
+    }
+
+    @After
+    public void after() throws Exception {
+        if (this.listener != null) {
+            this.listener.close();
+        }
+        this.jedisPool.close();
+    }
+
+    static private byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private JedisInvalidationListener.Handler handler() {
+        return new JedisInvalidationListener.Handler() {
+            @Override
+            public void invalidate(byte[] key) {
+                invalidated.add(new String(key, StandardCharsets.UTF_8));
+            }
+            @Override
+            public void invalidateAll() {
+                invalidatedAll.incrementAndGet();
+            }
+        };
+    }
+
+    private String nextInvalidated() throws InterruptedException {
+        return this.invalidated.poll(2, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void tracking() throws Exception {
+        this.listener = new JedisInvalidationListener(JedisFactory.getConnector(this.jedisPool),
+            JedisInvalidationListener.Mode.TRACKING, null, Arrays.asList("cache:"), this.handler()).start();
+
+        assertThat(this.listener.awaitConnected(5, TimeUnit.SECONDS), is(true));
+        assertThat(this.invalidatedAll.get(), is(1));
+
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            jedis.set("other:a", "1");
+            jedis.set("cache:a", "1");
+            jedis.del("cache:a");
+            jedis.psetex("cache:b", 10L, "1");
+        }
+
+        // writes, deletes and expirations of prefixed keys only
+        assertThat(this.nextInvalidated(), is("cache:a"));
+        assertThat(this.nextInvalidated(), is("cache:a"));
+        assertThat(this.nextInvalidated(), is("cache:b"));
+        assertThat(this.nextInvalidated(), is("cache:b"));
+
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            jedis.flushAll();
+        }
+
+        Thread.sleep(200L);
+        assertThat(this.invalidatedAll.get(), is(2));
+        assertThat(this.invalidated.poll(), is(nullValue()));
+    }
+
+    @Test
+    public void channel() throws Exception {
+        this.listener = new JedisInvalidationListener(JedisFactory.getConnector(this.jedisPool),
+            JedisInvalidationListener.Mode.CHANNEL, "test:invalidate", Collections.emptyList(), this.handler()).start();
+
+        assertThat(this.listener.awaitConnected(5, TimeUnit.SECONDS), is(true));
+
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            jedis.set("a", "1");
+            jedis.publish("test:invalidate", "a");
+        }
+
+        assertThat(this.nextInvalidated(), is("a"));
+        assertThat(this.invalidated.poll(), is(nullValue()));
+    }
+
+    @Test
+    public void reconnectsAndInvalidatesAll() throws Exception {
+        this.listener = new JedisInvalidationListener(JedisFactory.getConnector(this.jedisPool),
+            JedisInvalidationListener.Mode.TRACKING, null, null, this.handler()).start();
+
+        assertThat(this.listener.awaitConnected(5, TimeUnit.SECONDS), is(true));
+
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            JedisClients.sendCommand(jedis, "CLIENT", bytes("KILL"), bytes("TYPE"), bytes("pubsub"));
+        }
+
+        Thread.sleep(50L);
+        assertThat(this.listener.awaitConnected(5, TimeUnit.SECONDS), is(true));
+        assertThat(this.invalidatedAll.get(), greaterThan(2));
+
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            jedis.set("a", "1");
+        }
+
+        assertThat(this.nextInvalidated(), is("a"));
+    }
+
+}
@@ -0,0 +1,96 @@
+package com.fizzed.jedis;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisException;
+
+public class JedisMetricsTest {
+
+    static private class RecordingMetrics implements JedisMetrics {
+
+        private final AtomicInteger borrowed = new AtomicInteger();
+        private final List<Boolean> borrowFailures = new CopyOnWriteArrayList<>();
+        private final AtomicInteger created = new AtomicInteger();
+        private final AtomicInteger destroyed = new AtomicInteger();
+
+        @Override
+        public void borrowed(long nanos) {
+            this.borrowed.incrementAndGet();
+        }
+
+        @Override
+        public void borrowFailed(long nanos, boolean exhausted) {
+            this.borrowFailures.add(exhausted);
+        }
+
+        @Override
+        public void connectionCreated() {
+            this.created.incrementAndGet();
+        }
+
+        @Override
+        public void connectionDestroyed() {
+            this.destroyed.incrementAndGet();
+        }
+
+    }
+
+    @Test
+    public void noopByDefault() throws Exception {
+        try (DefaultJedisPool jedisPool = (DefaultJedisPool)JedisFactory.createJedisPool("redis://localhost:26379")) {
+            assertThat(jedisPool.getMetrics() == JedisMetrics.NOOP, is(true));
+            assertThat(JedisFactory.getMetrics(jedisPool) == JedisMetrics.NOOP, is(true));
+        }
+    }
+
+    @Test
+    public void borrowsAndConnections() throws Exception {
+        final RecordingMetrics metrics = new RecordingMetrics();
+
+        DefaultJedisPool jedisPool = (DefaultJedisPool)JedisFactory.createJedisPool(
+            "redis://localhost:26379?pool_max_size=1&pool_wait_timeout=50");
+        jedisPool.setMetrics(metrics);
+
+        try (Jedis jedis = jedisPool.getResource()) {
+            jedis.ping();
+
+            assertThat(metrics.borrowed.get(), is(1));
+            assertThat(metrics.created.get(), is(1));
+            assertThat(jedisPool.getNumActive(), is(1));
+            assertThat(jedisPool.getMaxTotal(), is(1));
+
+            // pool is exhausted
+            try {
+                jedisPool.getResource();
+                fail();
+            } catch (JedisException e) {
+                // expected
+            }
+
+            assertThat(metrics.borrowFailures.size(), is(1));
+            assertThat(metrics.borrowFailures.get(0), is(true));
+        }
+
+        try (Jedis jedis = jedisPool.getResource()) {
+            jedis.ping();
+        }
+
+        // connection was reused
+        assertThat(metrics.borrowed.get(), is(2));
+        assertThat(metrics.created.get(), is(1));
+        assertThat(jedisPool.getBorrowedCount(), greaterThanOrEqualTo(2L));
+
+        jedisPool.close();
+
+        assertThat(metrics.destroyed.get(), greaterThan(0));
+    }
+
+}
@@ -0,0 +1,300 @@
+package com.fizzed.jedis;
+
+import com.fizzed.jedis.ReplicatedJedisPool.ReadPolicy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import org.junit.After;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+public class ReplicatedJedisPoolTest {
+
+    static private final HostAndPort PRIMARY = new HostAndPort("primary", 6379);
+    static private final HostAndPort REPLICA1 = new HostAndPort("replica1", 6379);
+    static private final HostAndPort REPLICA2 = new HostAndPort("replica2", 6379);
+    static private final HostAndPort REPLICA3 = new HostAndPort("replica3", 6379);
+
+    static private final String PRIMARY_INFO = "# Replication\r\nrole:master\r\nmaster_repl_offset:100\r\n";
+    static private final String REPLICA_INFO = "# Replication\r\nrole:slave\r\nmaster_link_status:up\r\n"
+        + "master_sync_in_progress:0\r\nslave_repl_offset:100\r\n";
+
+    /**
+     * A node that is never connected to: its single connection answers PING
+     * and INFO replication as configured.
+     */
+    static private class FakeNode extends DefaultJedisPool {
+
+        private final Jedis jedis;
+        private volatile String info;
+        private volatile long pingMillis;
+        private volatile boolean down;
+        private volatile int active;
+
+        private FakeNode(HostAndPort address) {
+            super(ConcurrentJedisPool.unusedPoolConfig(), address.getHost(), address.getPort(), 100, 100, null, null);
+            this.info = (address.equals(PRIMARY) ? PRIMARY_INFO : REPLICA_INFO);
+            this.jedis = new Jedis(address.getHost(), address.getPort()) {
+                @Override
+                public String ping() {
+                    checkUp();
+                    try {
+                        Thread.sleep(pingMillis);
+                    } catch (InterruptedException e) {
+                        throw new JedisConnectionException(e);
+                    }
+                    return "PONG";
+                }
+
+                @Override
+                public String info(String section) {
+                    checkUp();
+                    return info;
+                }
+            };
+        }
+
+        private void checkUp() {
+            if (this.down) {
+                throw new JedisConnectionException("Connection refused");
+            }
+        }
+
+        @Override
+        protected Jedis borrowResource() {
+            this.checkUp();
+            return this.jedis;
+        }
+
+        @Override
+        public int getNumActive() {
+            return this.active;
+        }
+
+    }
+
+    private final Map<HostAndPort,FakeNode> nodes = new ConcurrentHashMap<>();
+    private ReplicatedJedisPool jedisPool;
+
+    @After
+    public void after() {
+        if (this.jedisPool != null) {
+            this.jedisPool.close();
+        }
+    }
+
+    private FakeNode node(HostAndPort address) {
+        return this.nodes.computeIfAbsent(address, FakeNode::new);
+    }
+
+    private ReplicatedJedisPool createJedisPool(ReadPolicy readPolicy) throws InterruptedException {
+        // only checked once at start (in the background) and when asked to
+        this.jedisPool = new ReplicatedJedisPool(PRIMARY, Arrays.asList(REPLICA1, REPLICA2, REPLICA3),
+            readPolicy, 1, 2, TimeUnit.HOURS, this::node);
+        for (int i = 0; i < 500 && this.jedisPool.getHealthyReplicas().size() < 3; i++) {
+            Thread.sleep(10L);
+        }
+        assertThat(this.jedisPool.getHealthyReplicas().size(), is(3));
+        return this.jedisPool;
+    }
+
+    private HostAndPort read() {
+        try (Jedis jedis = this.jedisPool.getReadResource()) {
+            return this.addressOf(jedis);
+        }
+    }
+
+    private HostAndPort addressOf(Jedis jedis) {
+        for (Map.Entry<HostAndPort,FakeNode> entry : this.nodes.entrySet()) {
+            if (entry.getValue().jedis == jedis) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException("Not a connection of a node");
+    }
+
+    private Map<HostAndPort,Integer> reads(int count) {
+        final Map<HostAndPort,Integer> reads = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            reads.merge(this.read(), 1, Integer::sum);
+        }
+        return reads;
+    }
+
+    static private long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Test
+    public void lagNanos() {
+        // the primary's offset at checks 3000, 2000 and 1000 ms ago
+        final List<long[]> primaryOffsets = new ArrayList<>();
+        primaryOffsets.add(new long[] { millis(1000L), 100L });
+        primaryOffsets.add(new long[] { millis(2000L), 200L });
+        primaryOffsets.add(new long[] { millis(3000L), 300L });
+        final long now = millis(4000L);
+
+        // caught up with (or ahead of) the last check
+        assertThat(ReplicatedJedisPool.lagNanos(primaryOffsets, 300L, now), is(0L));
+        assertThat(ReplicatedJedisPool.lagNanos(primaryOffsets, 350L, now), is(0L));
+        // missing what the primary had 1000 ms ago
+        assertThat(ReplicatedJedisPool.lagNanos(primaryOffsets, 250L, now), is(millis(1000L)));
+        assertThat(ReplicatedJedisPool.lagNanos(primaryOffsets, 200L, now), is(millis(1000L)));
+        assertThat(ReplicatedJedisPool.lagNanos(primaryOffsets, 150L, now), is(millis(2000L)));
+        // behind even the oldest check
+        assertThat(ReplicatedJedisPool.lagNanos(primaryOffsets, 0L, now), is(millis(3000L)));
+        // nothing sampled yet
+        assertThat(ReplicatedJedisPool.lagNanos(Collections.emptyList(), 0L, now), is(0L));
+    }
+
+    @Test
+    public void replicationProblem() {
+        assertThat(ReplicatedJedisPool.replicationProblem(ReplicatedJedisPool.parseInfo(REPLICA_INFO)), is(nullValue()));
+        assertThat(ReplicatedJedisPool.replicationProblem(ReplicatedJedisPool.parseInfo(PRIMARY_INFO)), is("not a replica"));
+        assertThat(ReplicatedJedisPool.replicationProblem(ReplicatedJedisPool.parseInfo(
+            REPLICA_INFO.replace("master_link_status:up", "master_link_status:down"))), is("link to primary is down"));
+        assertThat(ReplicatedJedisPool.replicationProblem(ReplicatedJedisPool.parseInfo(
+            REPLICA_INFO.replace("master_sync_in_progress:0", "master_sync_in_progress:1"))), is("syncing with primary"));
+    }
+
+    @Test
+    public void roundRobin() throws Exception {
+        this.createJedisPool(ReadPolicy.ROUND_ROBIN);
+
+        assertThat(this.jedisPool.getHealthyReplicas(), is(Arrays.asList(REPLICA1, REPLICA2, REPLICA3)));
+
+        final Map<HostAndPort,Integer> reads = this.reads(6);
+        assertThat(reads.get(REPLICA1), is(2));
+        assertThat(reads.get(REPLICA2), is(2));
+        assertThat(reads.get(REPLICA3), is(2));
+        assertThat(reads.get(PRIMARY), is(nullValue()));
+
+        // everything else is on the primary
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            assertThat(this.addressOf(jedis), is(PRIMARY));
+        }
+    }
+
+    @Test
+    public void nearest() throws Exception {
+        this.node(REPLICA1).pingMillis = 20L;
+        this.node(REPLICA2).pingMillis = 0L;
+        this.node(REPLICA3).pingMillis = 20L;
+        this.createJedisPool(ReadPolicy.NEAREST);
+
+        assertThat(this.reads(6).get(REPLICA2), is(6));
+    }
+
+    @Test
+    public void leastOutstanding() throws Exception {
+        this.createJedisPool(ReadPolicy.LEAST_OUTSTANDING);
+
+        this.node(REPLICA1).active = 5;
+        this.node(REPLICA2).active = 3;
+        this.node(REPLICA3).active = 1;
+        assertThat(this.reads(6).get(REPLICA3), is(6));
+
+        this.node(REPLICA3).active = 4;
+        assertThat(this.reads(6).get(REPLICA2), is(6));
+    }
+
+    @Test
+    public void failedChecksExcludeReplicas() throws Exception {
+        this.createJedisPool(ReadPolicy.ROUND_ROBIN);
+
+        this.node(REPLICA1).down = true;
+        this.node(REPLICA2).info = REPLICA_INFO.replace("master_link_status:up", "master_link_status:down");
+        this.jedisPool.checkReplicas();
+
+        assertThat(this.jedisPool.getHealthyReplicas(), is(Arrays.asList(REPLICA3)));
+        assertThat(this.reads(3).get(REPLICA3), is(3));
+
+        // included again once a check passes
+        this.node(REPLICA1).down = false;
+        this.node(REPLICA2).info = REPLICA_INFO;
+        this.jedisPool.checkReplicas();
+
+        assertThat(this.jedisPool.getHealthyReplicas(), is(Arrays.asList(REPLICA1, REPLICA2, REPLICA3)));
+    }
+
+    @Test
+    public void fallsBackToPrimary() throws Exception {
+        this.createJedisPool(ReadPolicy.ROUND_ROBIN);
+
+        for (HostAndPort replica : Arrays.asList(REPLICA1, REPLICA2, REPLICA3)) {
+            this.node(replica).info = PRIMARY_INFO;
+        }
+        this.jedisPool.checkReplicas();
+
+        assertThat(this.jedisPool.getHealthyReplicas().isEmpty(), is(true));
+        assertThat(this.reads(3).get(PRIMARY), is(3));
+        assertThat(this.jedisPool.executeRead(this::addressOf), is(PRIMARY));
+    }
+
+    @Test
+    public void failedBorrowExcludesReplica() throws Exception {
+        this.createJedisPool(ReadPolicy.ROUND_ROBIN);
+
+        // down since the last check
+        this.node(REPLICA1).down = true;
+        this.node(REPLICA2).down = true;
+        this.node(REPLICA3).down = true;
+
+        assertThat(this.reads(3).get(PRIMARY), is(3));
+        assertThat(this.jedisPool.getHealthyReplicas().isEmpty(), is(true));
+    }
+
+    @Test
+    public void executeReadRetriesOnPrimary() throws Exception {
+        this.createJedisPool(ReadPolicy.ROUND_ROBIN);
+
+        // a connection lost mid read
+        assertThat(this.jedisPool.executeRead(jedis -> {
+            if (!PRIMARY.equals(this.addressOf(jedis))) {
+                throw new JedisConnectionException("Unexpected end of stream");
+            }
+            return PRIMARY;
+        }), is(PRIMARY));
+        assertThat(this.jedisPool.getHealthyReplicas().size(), is(2));
+
+        // a replica loading its dataset or refusing stale reads
+        for (String error : Arrays.asList("LOADING Redis is loading the dataset in memory",
+                "MASTERDOWN Link with MASTER is down and replica-serve-stale-data is set to 'no'.")) {
+            assertThat(this.jedisPool.executeRead(jedis -> {
+                if (!PRIMARY.equals(this.addressOf(jedis))) {
+                    throw new JedisDataException(error);
+                }
+                return PRIMARY;
+            }), is(PRIMARY));
+        }
+        assertThat(this.jedisPool.getHealthyReplicas().isEmpty(), is(true));
+    }
+
+    @Test
+    public void executeReadDoesNotRetryOtherErrors() throws Exception {
+        this.createJedisPool(ReadPolicy.ROUND_ROBIN);
+
+        try {
+            this.jedisPool.executeRead(jedis -> {
+                throw new JedisDataException("WRONGTYPE Operation against a key holding the wrong kind of value");
+            });
+            fail();
+        } catch (JedisDataException e) {
+            assertThat(e.getMessage().startsWith("WRONGTYPE"), is(true));
+        }
+        assertThat(this.jedisPool.getHealthyReplicas().size(), is(3));
+    }
+
+}
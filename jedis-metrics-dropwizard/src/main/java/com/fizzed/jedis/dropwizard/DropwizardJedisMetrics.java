@@ -0,0 +1,122 @@
+package com.fizzed.jedis.dropwizard;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.fizzed.jedis.DefaultJedisPool;
+import com.fizzed.jedis.JedisMetrics;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a jedis pool (and the queues and caches using it) with dropwizard
+ * metrics.  Timers record into an HdrHistogramReservoir.
+ *
+ * <pre>
+ *   {prefix}.pool.borrow                   timer
+ *   {prefix}.pool.borrow.failures          meter
+ *   {prefix}.pool.borrow.exhausted         meter
+ *   {prefix}.pool.connections.created      meter
+ *   {prefix}.pool.connections.destroyed    meter
+ *   {prefix}.pool.active/idle/waiters/max  gauges
+ *   {prefix}.operations.{operation}        timer
+ *   {prefix}.operations.{operation}.failures meter
+ * </pre>
+ */
+public class DropwizardJedisMetrics implements JedisMetrics {
+
+    private final MetricRegistry registry;
+    private final String prefix;
+    private final Timer borrows;
+    private final Meter borrowFailures;
+    private final Meter borrowsExhausted;
+    private final Meter connectionsCreated;
+    private final Meter connectionsDestroyed;
+    private final ConcurrentMap<String,Timer> operations;
+    private final ConcurrentMap<String,Meter> operationFailures;
+
+    public DropwizardJedisMetrics(MetricRegistry registry) {
+        this(registry, "jedis");
+    }
+
+    /**
+     * Creates new metrics.
+     * @param registry The registry metrics are registered with
+     * @param prefix The prefix of the name of every metric
+     */
+    public DropwizardJedisMetrics(MetricRegistry registry, String prefix) {
+        Objects.requireNonNull(registry, "registry was null");
+        Objects.requireNonNull(prefix, "prefix was null");
+        this.registry = registry;
+        this.prefix = prefix;
+        this.borrows = this.timer(MetricRegistry.name(prefix, "pool", "borrow"));
+        this.borrowFailures = registry.meter(MetricRegistry.name(prefix, "pool", "borrow", "failures"));
+        this.borrowsExhausted = registry.meter(MetricRegistry.name(prefix, "pool", "borrow", "exhausted"));
+        this.connectionsCreated = registry.meter(MetricRegistry.name(prefix, "pool", "connections", "created"));
+        this.connectionsDestroyed = registry.meter(MetricRegistry.name(prefix, "pool", "connections", "destroyed"));
+        this.operations = new ConcurrentHashMap<>();
+        this.operationFailures = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Registers gauges of the utilization of the pool and starts measuring it.
+     * @param pool The pool
+     * @return These metrics
+     */
+    public DropwizardJedisMetrics bindTo(DefaultJedisPool pool) {
+        this.registry.register(MetricRegistry.name(this.prefix, "pool", "active"), (Gauge<Integer>)pool::getNumActive);
+        this.registry.register(MetricRegistry.name(this.prefix, "pool", "idle"), (Gauge<Integer>)pool::getNumIdle);
+        this.registry.register(MetricRegistry.name(this.prefix, "pool", "waiters"), (Gauge<Integer>)pool::getNumWaiters);
+        this.registry.register(MetricRegistry.name(this.prefix, "pool", "max"), (Gauge<Integer>)pool::getMaxTotal);
+        pool.setMetrics(this);
+        return this;
+    }
+
+    private Timer timer(String name) {
+        return this.registry.timer(name, () -> new Timer(new HdrHistogramReservoir()));
+    }
+
+    @Override
+    public void borrowed(long nanos) {
+        this.borrows.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void borrowFailed(long nanos, boolean exhausted) {
+        this.borrows.update(nanos, TimeUnit.NANOSECONDS);
+        (exhausted ? this.borrowsExhausted : this.borrowFailures).mark();
+    }
+
+    @Override
+    public void connectionCreated() {
+        this.connectionsCreated.mark();
+    }
+
+    @Override
+    public void connectionDestroyed() {
+        this.connectionsDestroyed.mark();
+    }
+
+    @Override
+    public void command(String operation, long nanos, boolean success) {
+        // get() first since computeIfAbsent() locks even if present (java 8)
+        Timer timer = this.operations.get(operation);
+        if (timer == null) {
+            timer = this.operations.computeIfAbsent(operation,
+                op -> this.timer(MetricRegistry.name(this.prefix, "operations", op)));
+        }
+        timer.update(nanos, TimeUnit.NANOSECONDS);
+        if (!success) {
+            Meter meter = this.operationFailures.get(operation);
+            if (meter == null) {
+                meter = this.operationFailures.computeIfAbsent(operation,
+                    op -> this.registry.meter(MetricRegistry.name(this.prefix, "operations", op, "failures")));
+            }
+            meter.mark();
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.fizzed.jedis.dropwizard;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+import org.HdrHistogram.Recorder;
+
+/**
+ * A reservoir recording every value (rather than a sample) in an HdrHistogram
+ * with 3 significant digits.  Recording is wait-free and each snapshot covers
+ * the values recorded since the previous one, so it should be read by a
+ * single reporter.
+ */
+public class HdrHistogramReservoir implements Reservoir {
+
+    private final Recorder recorder;
+    private final LongAdder count;
+    private Histogram interval;
+
+    public HdrHistogramReservoir() {
+        // auto-resizing so any value can be recorded
+        this.recorder = new Recorder(3);
+        this.count = new LongAdder();
+    }
+
+    @Override
+    public int size() {
+        return (int)Math.min(this.count.sum(), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void update(long value) {
+        this.recorder.recordValue(Math.max(0L, value));
+        this.count.increment();
+    }
+
+    @Override
+    synchronized public Snapshot getSnapshot() {
+        this.interval = this.recorder.getIntervalHistogram(this.interval);
+        this.count.reset();
+        return new HistogramSnapshot(this.interval.copy());
+    }
+
+    static private class HistogramSnapshot extends Snapshot {
+
+        private final Histogram histogram;
+
+        private HistogramSnapshot(Histogram histogram) {
+            this.histogram = histogram;
+        }
+
+        @Override
+        public double getValue(double quantile) {
+            return this.histogram.getValueAtPercentile(quantile * 100.0d);
+        }
+
+        @Override
+        public long[] getValues() {
+            final long[] values = new long[this.size()];
+            int i = 0;
+            for (HistogramIterationValue value : this.histogram.recordedValues()) {
+                for (long j = 0; j < value.getCountAtValueIteratedTo() && i < values.length; j++) {
+                    values[i++] = value.getValueIteratedTo();
+                }
+            }
+            return values;
+        }
+
+        @Override
+        public int size() {
+            return (int)Math.min(this.histogram.getTotalCount(), Integer.MAX_VALUE);
+        }
+
+        @Override
+        public long getMax() {
+            return this.histogram.getMaxValue();
+        }
+
+        @Override
+        public double getMean() {
+            return this.histogram.getMean();
+        }
+
+        @Override
+        public long getMin() {
+            return this.histogram.getMinValue();
+        }
+
+        @Override
+        public double getStdDev() {
+            return this.histogram.getStdDeviation();
+        }
+
+        @Override
+        public void dump(OutputStream output) {
+            try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+                for (long value : this.getValues()) {
+                    writer.println(value);
+                }
+            }
+        }
+
+    }
+
+}
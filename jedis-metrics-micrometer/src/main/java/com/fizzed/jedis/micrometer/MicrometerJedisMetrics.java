@@ -0,0 +1,141 @@
+package com.fizzed.jedis.micrometer;
+
+import com.fizzed.jedis.DefaultJedisPool;
+import com.fizzed.jedis.JedisMetrics;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a jedis pool (and the queues and caches using it) with micrometer.
+ *
+ * <pre>
+ *   jedis.pool.borrow                   timer (with a percentile histogram)
+ *   jedis.pool.borrow.failures          counter (tag exhausted=true|false)
+ *   jedis.pool.borrows                  counter
+ *   jedis.pool.connections.created      counter
+ *   jedis.pool.connections.destroyed    counter
+ *   jedis.pool.active/idle/waiters/max  gauges
+ *   jedis.operations                    timer (tags operation, success)
+ * </pre>
+ *
+ * Every meter is tagged with pool=name.
+ */
+public class MicrometerJedisMetrics implements JedisMetrics {
+
+    private final MeterRegistry registry;
+    private final Tags tags;
+    private final Timer borrows;
+    private final Counter borrowFailures;
+    private final Counter borrowsExhausted;
+    private final Counter connectionsCreated;
+    private final Counter connectionsDestroyed;
+    private final ConcurrentMap<String,Timer> successes;
+    private final ConcurrentMap<String,Timer> failures;
+
+    public MicrometerJedisMetrics(MeterRegistry registry) {
+        this(registry, "default");
+    }
+
+    /**
+     * Creates new metrics.
+     * @param registry The registry meters are registered with
+     * @param name The name of the pool (the value of the pool tag)
+     */
+    public MicrometerJedisMetrics(MeterRegistry registry, String name) {
+        Objects.requireNonNull(registry, "registry was null");
+        Objects.requireNonNull(name, "name was null");
+        this.registry = registry;
+        this.tags = Tags.of("pool", name);
+        this.borrows = Timer.builder("jedis.pool.borrow")
+            .description("Time waited to borrow a connection")
+            .tags(this.tags)
+            .publishPercentileHistogram()
+            .register(registry);
+        this.borrowFailures = Counter.builder("jedis.pool.borrow.failures")
+            .tags(this.tags)
+            .tag("exhausted", "false")
+            .register(registry);
+        this.borrowsExhausted = Counter.builder("jedis.pool.borrow.failures")
+            .tags(this.tags)
+            .tag("exhausted", "true")
+            .register(registry);
+        this.connectionsCreated = Counter.builder("jedis.pool.connections.created")
+            .tags(this.tags)
+            .register(registry);
+        this.connectionsDestroyed = Counter.builder("jedis.pool.connections.destroyed")
+            .tags(this.tags)
+            .register(registry);
+        this.successes = new ConcurrentHashMap<>();
+        this.failures = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Registers gauges of the utilization of the pool and starts measuring it.
+     * @param pool The pool
+     * @return These metrics
+     */
+    public MicrometerJedisMetrics bindTo(DefaultJedisPool pool) {
+        Gauge.builder("jedis.pool.active", pool, DefaultJedisPool::getNumActive)
+            .tags(this.tags)
+            .register(this.registry);
+        Gauge.builder("jedis.pool.idle", pool, DefaultJedisPool::getNumIdle)
+            .tags(this.tags)
+            .register(this.registry);
+        Gauge.builder("jedis.pool.waiters", pool, DefaultJedisPool::getNumWaiters)
+            .tags(this.tags)
+            .register(this.registry);
+        Gauge.builder("jedis.pool.max", pool, DefaultJedisPool::getMaxTotal)
+            .tags(this.tags)
+            .register(this.registry);
+        FunctionCounter.builder("jedis.pool.borrows", pool, DefaultJedisPool::getBorrowedCount)
+            .tags(this.tags)
+            .register(this.registry);
+        pool.setMetrics(this);
+        return this;
+    }
+
+    @Override
+    public void borrowed(long nanos) {
+        this.borrows.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void borrowFailed(long nanos, boolean exhausted) {
+        this.borrows.record(nanos, TimeUnit.NANOSECONDS);
+        (exhausted ? this.borrowsExhausted : this.borrowFailures).increment();
+    }
+
+    @Override
+    public void connectionCreated() {
+        this.connectionsCreated.increment();
+    }
+
+    @Override
+    public void connectionDestroyed() {
+        this.connectionsDestroyed.increment();
+    }
+
+    @Override
+    public void command(String operation, long nanos, boolean success) {
+        final ConcurrentMap<String,Timer> timers = (success ? this.successes : this.failures);
+        // get() first since computeIfAbsent() locks even if present (java 8)
+        Timer timer = timers.get(operation);
+        if (timer == null) {
+            timer = timers.computeIfAbsent(operation, op -> Timer.builder("jedis.operations")
+                .tags(this.tags)
+                .tag("operation", op)
+                .tag("success", Boolean.toString(success))
+                .register(this.registry));
+        }
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+}
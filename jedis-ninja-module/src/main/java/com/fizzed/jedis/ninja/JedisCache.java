@@ -1,34 +1,498 @@
 package com.fizzed.jedis.ninja;
 
 import com.fizzed.crux.util.StopWatch;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.ObjectStreamClass;
+import com.fizzed.jedis.BinaryReader;
+import com.fizzed.jedis.BinaryWriter;
+import com.fizzed.jedis.ClusterJedisPool;
+import com.fizzed.jedis.CompactCodec;
+import com.fizzed.jedis.JedisAsyncClient;
+import com.fizzed.jedis.JedisCallable;
+import com.fizzed.jedis.JedisClients;
+import com.fizzed.jedis.JedisClusterSlots;
+import com.fizzed.jedis.JedisCodec;
+import com.fizzed.jedis.JedisCodecs;
+import com.fizzed.jedis.JedisCounterCoalescer;
+import com.fizzed.jedis.JedisFactory;
+import com.fizzed.jedis.JedisInvalidationListener;
+import com.fizzed.jedis.JedisMetrics;
+import com.fizzed.jedis.JedisScript;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
 import javax.inject.Inject;
+import javax.inject.Singleton;
 import ninja.cache.Cache;
+import ninja.lifecycle.Dispose;
+import ninja.utils.NinjaProperties;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.exceptions.JedisDataException;
 
+@Singleton
 public class JedisCache implements Cache {
     static private final Logger log = LoggerFactory.getLogger(JedisCache.class);
 
     static private final byte[] NX = serialize("NX");
     static private final byte[] XX = serialize("XX");
     static private final byte[] EX = serialize("EX");
+    static private final byte[] PX = serialize("PX");
+    static private final byte[] SCAN_START = serialize("0");
+    
+    // never the start of a CompactCodec, java serialized or utf-8 value
+    static private final int ENVELOPE_MAGIC0 = 0xE0;
+    static private final int ENVELOPE_MAGIC1 = 0x01;
+    // version 2 adds the soft expiration
+    static private final int ENVELOPE_MAGIC2 = 0x02;
+    static private final String LOCK_SUFFIX = ":lock";
+    static private final JedisScript UNLOCK_SCRIPT = new JedisScript(
+        "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end");
+    
+    static public final int DEFAULT_BATCH_SIZE = 100;
+    static public final int DEFAULT_PARALLEL_DECODE_THRESHOLD = 64;
+    static public final long DEFAULT_NEAR_MAX_BYTES = 64L * 1024L * 1024L;
+    static public final int DEFAULT_NEAR_MAX_TTL = 60;
+    static public final String DEFAULT_NEAR_CHANNEL = "__jedis:cache:invalidate";
+    static public final double DEFAULT_EARLY_REFRESH_BETA = 1.0d;
+    static public final int DEFAULT_REFRESH_THREADS = 2;
+    static public final int DEFAULT_REFRESH_QUEUE_SIZE = 1000;
+    static public final int DEFAULT_CLEAR_KEYS_PER_SECOND = 10000;
+    static public final int DEFAULT_GENERATION_REFRESH_MILLIS = 1000;
+    
+    /**
+     * A value written by getOrCompute() along with how long it took to compute,
+     * when it expires and when it should be refreshed in the background (its
+     * soft expiration, which is its expiration if refresh-ahead was disabled).
+     */
+    static private class Envelope {
+        
+        private final Object value;
+        private final long computeMillis;
+        private final long expiresAt;
+        private final long softExpiresAt;
+
+        private Envelope(Object value, long computeMillis, long expiresAt, long softExpiresAt) {
+            this.value = value;
+            this.computeMillis = computeMillis;
+            this.expiresAt = expiresAt;
+            this.softExpiresAt = softExpiresAt;
+        }
+        
+        private boolean isRefreshAhead() {
+            return this.softExpiresAt < this.expiresAt;
+        }
+        
+    }
     
     private final JedisPool jedisPool;
+    private final JedisAsyncClient asyncClient;
+    private final JedisCodec<Object> codec;
+    private final boolean counters;
+    private final JedisNearCache nearCache;
+    private int batchSize;
+    private int parallelDecodeThreshold;
+    private boolean replicaReads;
+    private JedisCounterCoalescer counterCoalescer;
+    private final ConcurrentMap<String,CompletableFuture<Object>> computing;
+    private long computeLockMillis;
+    private double earlyRefreshBeta;
+    private double refreshAheadFactor;
+    private ThreadPoolExecutor refreshExecutor;
+    private final JedisCacheMetrics metrics;
+    private String namespace;
+    private int clearKeysPerSecond;
+    private List<String> regions;
+    private long generationRefreshMillis;
+    private volatile JedisCacheGenerations generations;
 
+    /**
+     * Creates a cache configured by the "redis.cache.*" properties.
+     * @param jedisPool The jedis pool
+     * @param ninjaProperties The ninja properties
+     */
     @Inject
+    public JedisCache(JedisPool jedisPool, NinjaProperties ninjaProperties) {
+        this(jedisPool, JedisCodecs.OBJECT, createNearCache(jedisPool, ninjaProperties));
+        this.setNamespace(ninjaProperties.get("redis.cache.namespace"));
+        this.setClearKeysPerSecond(ninjaProperties.getIntegerWithDefault(
+            "redis.cache.clear_keys_per_second", DEFAULT_CLEAR_KEYS_PER_SECOND));
+        final List<String> regions = new ArrayList<>();
+        if (ninjaProperties.getBooleanWithDefault("redis.cache.generational", Boolean.FALSE)) {
+            regions.add("");
+        }
+        final String[] namedRegions = ninjaProperties.getStringArray("redis.cache.regions");
+        if (namedRegions != null) {
+            regions.addAll(Arrays.asList(namedRegions));
+        }
+        this.setGenerations(regions, ninjaProperties.getIntegerWithDefault(
+            "redis.cache.generation_refresh_millis", DEFAULT_GENERATION_REFRESH_MILLIS), TimeUnit.MILLISECONDS);
+        this.setBatchSize(ninjaProperties.getIntegerWithDefault(
+            "redis.cache.batch_size", DEFAULT_BATCH_SIZE));
+        this.setParallelDecodeThreshold(ninjaProperties.getIntegerWithDefault(
+            "redis.cache.parallel_decode_threshold", DEFAULT_PARALLEL_DECODE_THRESHOLD));
+        this.setReplicaReads(ninjaProperties.getBooleanWithDefault(
+            "redis.cache.replica_reads", Boolean.TRUE));
+        final int counterFlushMillis = ninjaProperties.getIntegerWithDefault(
+            "redis.cache.counter_flush_millis", 0);
+        if (counterFlushMillis > 0) {
+            this.setCounterCoalescing(counterFlushMillis, TimeUnit.MILLISECONDS);
+        }
+        this.setComputeLock(ninjaProperties.getIntegerWithDefault(
+            "redis.cache.compute_lock_millis", 0), TimeUnit.MILLISECONDS);
+        this.setEarlyRefreshBeta(Double.parseDouble(ninjaProperties.getWithDefault(
+            "redis.cache.early_refresh_beta", Double.toString(DEFAULT_EARLY_REFRESH_BETA))));
+        final double refreshAheadFactor = Double.parseDouble(ninjaProperties.getWithDefault(
+            "redis.cache.refresh_ahead_factor", "0"));
+        if (refreshAheadFactor > 0) {
+            this.setRefreshAhead(refreshAheadFactor,
+                ninjaProperties.getIntegerWithDefault("redis.cache.refresh_threads", DEFAULT_REFRESH_THREADS),
+                ninjaProperties.getIntegerWithDefault("redis.cache.refresh_queue_size", DEFAULT_REFRESH_QUEUE_SIZE));
+        }
+    }
+    
     public JedisCache(JedisPool jedisPool) {
+        this(jedisPool, JedisCodecs.OBJECT);
+    }
+    
+    /**
+     * Creates a cache with a specific codec for values.  Values previously
+     * written with java serialization are still readable by a CompactCodec.
+     * With a CompactCodec, integer values are stored as plain integers (so
+     * incr/decr work on them) and read back as a Long.  With any other codec
+     * values (including counters) are left to the codec.
+     * @param jedisPool The jedis pool
+     * @param codec The codec for values
+     */
+    public JedisCache(JedisPool jedisPool, JedisCodec<Object> codec) {
+        this(jedisPool, codec, null);
+    }
+    
+    /**
+     * Creates a cache with an in-process near cache in front of redis.
+     * @param jedisPool The jedis pool
+     * @param codec The codec for values
+     * @param nearCache The (started) near cache or null for none
+     */
+    public JedisCache(JedisPool jedisPool, JedisCodec<Object> codec, JedisNearCache nearCache) {
         this.jedisPool = jedisPool;
+        this.asyncClient = JedisFactory.getAsyncClient(jedisPool);
+        this.codec = codec;
+        // its values never start with a digit or '-'
+        this.counters = (codec instanceof CompactCodec);
+        this.nearCache = nearCache;
+        this.batchSize = DEFAULT_BATCH_SIZE;
+        this.parallelDecodeThreshold = DEFAULT_PARALLEL_DECODE_THRESHOLD;
+        this.replicaReads = true;
+        this.computing = new ConcurrentHashMap<>();
+        this.earlyRefreshBeta = DEFAULT_EARLY_REFRESH_BETA;
+        this.metrics = new JedisCacheMetrics();
+        this.namespace = "";
+        this.clearKeysPerSecond = DEFAULT_CLEAR_KEYS_PER_SECOND;
+        this.regions = Collections.emptyList();
+        this.generationRefreshMillis = DEFAULT_GENERATION_REFRESH_MILLIS;
+    }
+    
+    static private JedisNearCache createNearCache(JedisPool jedisPool, NinjaProperties ninjaProperties) {
+        if (!ninjaProperties.getBooleanWithDefault("redis.cache.near.enabled", Boolean.FALSE)) {
+            return null;
+        }
+        
+        if (!isCaffeineAvailable()) {
+            throw new IllegalStateException("Near cache requires com.github.ben-manes.caffeine:caffeine on the classpath");
+        }
+        
+        final Supplier<Jedis> connector = JedisFactory.getConnector(jedisPool);
+        if (connector == null) {
+            log.warn("Near cache disabled (jedis pool was not created by JedisFactory)");
+            return null;
+        }
+        
+        JedisInvalidationListener.Mode mode = JedisInvalidationListener.Mode.valueOf(
+            ninjaProperties.getWithDefault("redis.cache.near.invalidation", "tracking").toUpperCase(Locale.ROOT));
+        if (mode == JedisInvalidationListener.Mode.TRACKING && JedisFactory.isCluster(jedisPool)) {
+            // the listener would only be told of keys on the node it connected to
+            log.warn("Near cache tracking invalidation is not supported with a redis cluster (will use channel)");
+            mode = JedisInvalidationListener.Mode.CHANNEL;
+        }
+        final String channel = ninjaProperties.getWithDefault("redis.cache.near.channel", DEFAULT_NEAR_CHANNEL);
+        String[] prefixes = ninjaProperties.getStringArray("redis.cache.near.prefixes");
+        final String namespace = ninjaProperties.get("redis.cache.namespace");
+        if (prefixes == null && namespace != null && !namespace.isEmpty()) {
+            // only track the keys of this cache
+            prefixes = new String[] { namespace };
+        }
+        final long maxBytes = Long.parseLong(ninjaProperties.getWithDefault(
+            "redis.cache.near.max_bytes", Long.toString(DEFAULT_NEAR_MAX_BYTES)));
+        final int maxTtl = ninjaProperties.getIntegerWithDefault(
+            "redis.cache.near.max_ttl", DEFAULT_NEAR_MAX_TTL);
+        
+        log.info("Using near cache (max {} bytes, max ttl {} s, {} invalidation)", maxBytes, maxTtl, mode);
+        
+        return new JedisNearCache(connector, mode, channel,
+                (prefixes != null ? Arrays.asList(prefixes) : Collections.emptyList()),
+                maxBytes, maxTtl, TimeUnit.SECONDS)
+            .start();
+    }
+    
+    /**
+     * Whether caffeine (an optional dependency only required by the near cache)
+     * is on the classpath.  JedisNearCache is never loaded unless it is.
+     * @return True if available
+     */
+    static public boolean isCaffeineAvailable() {
+        try {
+            Class.forName("com.github.benmanes.caffeine.cache.Caffeine", false, JedisCache.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+    
+    public JedisNearCache getNearCache() {
+        return nearCache;
+    }
+
+    public JedisCounterCoalescer getCounterCoalescer() {
+        return counterCoalescer;
+    }
+
+    /**
+     * Coalesces incr() and decr() in-process and flushes the summed deltas
+     * every interval rather than a round trip per call.  The values returned
+     * are then estimates and get() only sees flushed deltas.
+     * @param flushInterval The flush interval or 0 to disable coalescing
+     * @param unit The unit of the interval
+     * @return This cache
+     */
+    public JedisCache setCounterCoalescing(long flushInterval, TimeUnit unit) {
+        if (this.counterCoalescer != null) {
+            this.counterCoalescer.close();
+            this.counterCoalescer = null;
+        }
+        if (flushInterval > 0) {
+            this.counterCoalescer = new JedisCounterCoalescer(this.jedisPool, flushInterval, unit, this.batchSize)
+                .setFlushListener(this::written);
+        }
+        return this;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the max number of keys sent in a single MGET by get(String[]) and
+     * the max number of SETEX commands per pipeline by setAll().
+     * @param batchSize The max number of keys per batch (must be > 0)
+     * @return This cache
+     */
+    public JedisCache setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be > 0");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public int getParallelDecodeThreshold() {
+        return parallelDecodeThreshold;
+    }
+
+    /**
+     * Sets the min number of values get(String[]) must return before they are
+     * decoded in parallel (on the common fork/join pool, with the context class
+     * loader of the calling thread).
+     * @param parallelDecodeThreshold The min number of values
+     * @return This cache
+     */
+    public JedisCache setParallelDecodeThreshold(int parallelDecodeThreshold) {
+        this.parallelDecodeThreshold = parallelDecodeThreshold;
+        return this;
+    }
+
+    public boolean getReplicaReads() {
+        return replicaReads;
+    }
+
+    /**
+     * Sets whether get() and get(String[]) read from a replica if the jedis
+     * pool has healthy ones (see ReplicatedJedisPool).  Values read may then
+     * lag writes by up to the max lag of replicas.  Reads that fill the near
+     * cache, and those of getOrCompute() locks and generations, always use
+     * the primary.
+     * @param replicaReads True to read from replicas (the default)
+     * @return This cache
+     */
+    public JedisCache setReplicaReads(boolean replicaReads) {
+        this.replicaReads = replicaReads;
+        return this;
+    }
+    
+    public long getComputeLockMillis() {
+        return computeLockMillis;
+    }
+
+    /**
+     * Sets how long the lock in redis that getOrCompute() takes so only one
+     * node computes a missing value is held for at most.  Nodes that do not
+     * acquire it wait up to this long for the value before computing it too.
+     * @param timeout The max time the lock is held or 0 to not lock
+     * @param unit The unit of the timeout
+     * @return This cache
+     */
+    public JedisCache setComputeLock(long timeout, TimeUnit unit) {
+        this.computeLockMillis = unit.toMillis(timeout);
+        return this;
+    }
+
+    public double getEarlyRefreshBeta() {
+        return earlyRefreshBeta;
+    }
+
+    /**
+     * Sets how eagerly getOrCompute() recomputes values before they expire.
+     * Values are recomputed early with a probability that rises as expiration
+     * nears, scaled by how long they took to compute times beta.
+     * @param earlyRefreshBeta The beta (1.0 by default, greater to refresh
+     *      earlier) or 0 to never refresh early
+     * @return This cache
+     */
+    public JedisCache setEarlyRefreshBeta(double earlyRefreshBeta) {
+        this.earlyRefreshBeta = earlyRefreshBeta;
+        return this;
+    }
+    
+    public double getRefreshAheadFactor() {
+        return refreshAheadFactor;
+    }
+
+    /**
+     * Enables refresh-ahead for getOrCompute().  Values are still set to expire
+     * after the expiration given, but once a fraction (the factor) of it has
+     * passed they are soft expired: the current value is returned immediately
+     * and a single background task (per key and process) recomputes it.
+     * @param factor The fraction of the expiration after which values are
+     *      refreshed (e.g. 0.75) or 0 to disable refresh-ahead
+     * @param threads The number of threads values are refreshed on
+     * @param queueSize The max number of refreshes waiting for a thread (any
+     *      more are dropped until there is room)
+     * @return This cache
+     */
+    public JedisCache setRefreshAhead(double factor, int threads, int queueSize) {
+        if (factor < 0 || factor >= 1) {
+            throw new IllegalArgumentException("factor must be >= 0 and < 1");
+        }
+        if (this.refreshExecutor != null) {
+            this.refreshExecutor.shutdown();
+            this.refreshExecutor = null;
+        }
+        this.refreshAheadFactor = factor;
+        if (factor > 0) {
+            final AtomicInteger threadIds = new AtomicInteger();
+            this.refreshExecutor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+                    Thread t = new Thread(r, "jedis-cache-refresh-" + threadIds.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+            this.refreshExecutor.allowCoreThreadTimeOut(true);
+        }
+        return this;
+    }
+    
+    public JedisCacheMetrics getMetrics() {
+        return metrics;
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    /**
+     * Sets the prefix of every key in redis (e.g. "cache:").  Keeps the keys of
+     * this cache apart from other data in the same database and is required by
+     * clear().
+     * @param namespace The prefix or null/empty for none
+     * @return This cache
+     */
+    public JedisCache setNamespace(String namespace) {
+        this.namespace = (namespace != null ? namespace : "");
+        // generations are stored in the namespace
+        return this.setGenerations(this.regions, this.generationRefreshMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public List<String> getRegions() {
+        return regions;
+    }
+
+    /**
+     * Sets the regions whose keys are generational.  A region is a key prefix
+     * (e.g. "users:") and the region "" is every key not in another region.
+     * Keys in a region include its generation (e.g. "users:7:123") and
+     * clearRegion() (or clear() for all regions) just increments the
+     * generation.  Other nodes see the new generation within the refresh
+     * interval.
+     * @param regions The regions or empty for no generational keys
+     * @param refresh How long generations are cached in-process
+     * @param unit The unit of refresh
+     * @return This cache
+     */
+    public JedisCache setGenerations(Collection<String> regions, long refresh, TimeUnit unit) {
+        this.regions = (regions != null ? new ArrayList<>(regions) : Collections.emptyList());
+        this.generationRefreshMillis = unit.toMillis(refresh);
+        this.generations = (this.regions.isEmpty() ? null
+            : new JedisCacheGenerations(this.jedisPool, this.namespace, this.regions, refresh, unit));
+        return this;
+    }
+
+    public int getClearKeysPerSecond() {
+        return clearKeysPerSecond;
+    }
+
+    /**
+     * Sets the max rate clear() deletes keys at so it does not compete with
+     * other clients (keys are scanned and unlinked batchSize at a time).
+     * @param clearKeysPerSecond The max number of keys per second (must be > 0)
+     * @return This cache
+     */
+    public JedisCache setClearKeysPerSecond(int clearKeysPerSecond) {
+        if (clearKeysPerSecond <= 0) {
+            throw new IllegalArgumentException("clearKeysPerSecond must be > 0");
+        }
+        this.clearKeysPerSecond = clearKeysPerSecond;
+        return this;
+    }
+    
+    private String namespaced(String key) {
+        final JedisCacheGenerations g = this.generations;
+        if (g != null) {
+            key = g.generational(key);
+        }
+        return (this.namespace.isEmpty() ? key : this.namespace + key);
     }
     
     @Override
@@ -38,13 +502,26 @@ public class JedisCache implements Cache {
 
     @Override
     public boolean safeAdd(String key, Object value, int expirationInSeconds) {
-        log.trace("add: {} = {} (expire in {} s)", key, value, expirationInSeconds);
+        final String redisKey = this.namespaced(key);
+        log.trace("add: {} = {} (expire in {} s)", redisKey, value, expirationInSeconds);
         
-        try (Jedis jedis = this.jedisPool.getResource()) {
-            String reply = jedis.set(serialize(key), serialize(value), NX, EX, expirationInSeconds);
-            log.trace("add reply: {}", reply);
-            return StringUtils.equalsIgnoreCase("ok", reply);
-        }
+        return this.measured("cache.add", () -> {
+            final boolean added;
+            if (this.asyncClient != null) {
+                added = JedisAsyncClient.join(
+                    this.asyncClient.setnx(serialize(redisKey), expirationInSeconds, this.encode(value)));
+            } else {
+                final byte[] k = serialize(redisKey);
+                final byte[] v = this.encode(value);
+                String reply = this.execute(k, jedis -> jedis.set(k, v, NX, EX, expirationInSeconds));
+                log.trace("add reply: {}", reply);
+                added = StringUtils.equalsIgnoreCase("ok", reply);
+            }
+            if (added) {
+                this.written(Collections.singletonList(redisKey));
+            }
+            return added;
+        });
     }
     
     @Override
@@ -54,33 +531,311 @@ public class JedisCache implements Cache {
 
     @Override
     public boolean safeSet(String key, Object value, int expirationInSeconds) {
-        log.trace("set: {} = {} (expire in {} s)", key, value, expirationInSeconds);
+        final String redisKey = this.namespaced(key);
+        log.trace("set: {} = {} (expire in {} s)", redisKey, value, expirationInSeconds);
         
-        try (Jedis jedis = this.jedisPool.getResource()) {
-            String reply = jedis.setex(serialize(key), expirationInSeconds, serialize(value));
+        final boolean set = this.setex(redisKey, this.encode(value), expirationInSeconds);
+        this.written(Collections.singletonList(redisKey));
+        return set;
+    }
+    
+    private boolean setex(String key, byte[] value, int expirationInSeconds) {
+        return this.measured("cache.set", () -> {
+            if (this.asyncClient != null) {
+                return JedisAsyncClient.join(
+                    this.asyncClient.setex(serialize(key), expirationInSeconds, value));
+            }
+            final byte[] k = serialize(key);
+            String reply = this.execute(k, jedis -> jedis.setex(k, expirationInSeconds, value));
             //log.trace("set reply: {}", reply);      // OK
             //return true;
             return StringUtils.equalsIgnoreCase("ok", reply);
-        }
+        });
     }
 
     @Override
     public Object get(String key) {
         log.trace("get: {}", key);
         
-        try (Jedis jedis = this.jedisPool.getResource()) {
+        return unwrap(this.lookup(this.namespaced(key)));
+    }
+    
+    /**
+     * Gets the entry of a key from the near cache (if enabled) or redis.
+     * @return The decoded value (an Envelope if written by getOrCompute) or
+     *      null if missing
+     */
+    private Object lookup(String key) {
+        if (this.nearCache != null) {
+            Object cached = this.nearCache.get(key);
+            if (cached != null) {
+                log.trace("get: {} present (near)", key);
+                return cached;
+            }
+        }
+        return this.fetch(key);
+    }
+    
+    private Object fetch(String key) {
+        return this.measured("cache.get", () -> {
             final StopWatch timer = StopWatch.timeMillis();
-            byte[] value = jedis.get(serialize(key));
+            // the ttl is only needed if the value may be cached near
+            final Object token = (this.nearCache != null ? this.nearCache.begin(key) : null);
+            final byte[] value;
+            long pttl = -1L;
+            if (this.asyncClient != null) {
+                final byte[] k = serialize(key);
+                final CompletableFuture<byte[]> valueFuture = this.asyncClient.get(k);
+                final CompletableFuture<Object> pttlFuture = (token != null ? this.asyncClient.send(k, "PTTL", k) : null);
+                value = JedisAsyncClient.join(valueFuture);
+                if (pttlFuture != null) {
+                    pttl = (Long)JedisAsyncClient.join(pttlFuture);
+                }
+            } else {
+                final byte[] k = serialize(key);
+                if (token != null) {
+                    // filling the near cache, so read from the primary
+                    final long[] pttls = new long[1];
+                    value = this.execute(k, jedis -> {
+                        final Pipeline pipeline = jedis.pipelined();
+                        final Response<byte[]> valueResponse = pipeline.get(k);
+                        final Response<Long> pttlResponse = pipeline.pttl(k);
+                        pipeline.sync();
+                        pttls[0] = pttlResponse.get();
+                        return valueResponse.get();
+                    });
+                    pttl = pttls[0];
+                } else {
+                    value = this.read(k, jedis -> jedis.get(k));
+                }
+            }
             log.trace("get (in {})", timer);
             if (value == null) {
                 log.trace("get: {} was null", key);
+                if (token != null) {
+                    this.nearCache.complete(key, token, null, 0, pttl);
+                }
                 return null;
             }
             log.trace("get: {} present", key);
-            return deserialize(value);
+            final Object decoded = this.decode(value);
+            if (token != null) {
+                this.nearCache.complete(key, token, decoded, value.length, pttl);
+            }
+            return decoded;
+        });
+    }
+    
+    /**
+     * Gets a value or computes (and sets) it if missing.  Concurrent calls for
+     * the same key in this process wait for a single computation rather than
+     * each calling the loader.  If a compute lock is set, only the node that
+     * acquires a short lock in redis computes and others wait for its value.
+     * 
+     * Values are stored along with how long they took to compute, so a value
+     * that is about to expire may be recomputed early (with a probability that
+     * rises as its expiration nears and the longer it takes to compute) while
+     * every other caller is still served the current value.
+     * @param <T> The type of value
+     * @param key The key
+     * @param expirationInSeconds The expiration of a computed value
+     * @param loader Computes the value (a null value is not cached)
+     * @return The value
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getOrCompute(String key, int expirationInSeconds, Supplier<T> loader) {
+        final String redisKey = this.namespaced(key);
+        log.trace("getOrCompute: {} (expire in {} s)", redisKey, expirationInSeconds);
+        
+        final Object current = this.lookup(redisKey);
+        if (current != null && this.isSoftExpired(current)) {
+            this.metrics.staleHit();
+            this.refreshLater(redisKey, expirationInSeconds, loader, current);
+            return (T)unwrap(current);
+        }
+        if (current != null && !this.isExpiringEarly(current)) {
+            return (T)unwrap(current);
+        }
+        
+        final CompletableFuture<Object> future = new CompletableFuture<>();
+        final CompletableFuture<Object> computing = this.computing.putIfAbsent(redisKey, future);
+        if (computing != null) {
+            if (current != null) {
+                // already being refreshed
+                return (T)unwrap(current);
+            }
+            log.trace("getOrCompute: {} waiting for computation", redisKey);
+            return (T)JedisAsyncClient.join(computing);
+        }
+        
+        try {
+            Object value;
+            try {
+                value = this.compute(redisKey, expirationInSeconds, loader, current);
+            } catch (RuntimeException e) {
+                if (current == null) {
+                    throw e;
+                }
+                log.warn("Unable to refresh {} early (will serve current value): {}", redisKey, e.getMessage());
+                value = unwrap(current);
+            }
+            future.complete(value);
+            return (T)value;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.computing.remove(redisKey, future);
+        }
+    }
+    
+    private Object compute(String key, int expirationInSeconds, Supplier<?> loader, Object current) {
+        if (this.computeLockMillis <= 0) {
+            return this.computeAndSet(key, expirationInSeconds, loader);
+        }
+        
+        final byte[] lockKey = serialize(key + LOCK_SUFFIX);
+        final byte[] token = serialize(UUID.randomUUID().toString());
+        if (!this.lock(lockKey, token)) {
+            if (current != null) {
+                // another node is refreshing it
+                return unwrap(current);
+            }
+            final Object computed = this.awaitComputed(key);
+            if (computed != null) {
+                return unwrap(computed);
+            }
+            log.warn("Timed out waiting for {} to be computed (will compute it)", key);
+            return this.computeAndSet(key, expirationInSeconds, loader);
+        }
+        
+        try {
+            if (current == null) {
+                // may have been computed by the node that last held the lock
+                final Object computed = this.fetch(key);
+                if (computed != null) {
+                    return unwrap(computed);
+                }
+            }
+            return this.computeAndSet(key, expirationInSeconds, loader);
+        } finally {
+            this.unlock(lockKey, token);
         }
     }
     
+    /**
+     * Refreshes a soft expired value on the refresh executor unless it is
+     * already being computed (or refreshed) in this process.
+     */
+    private void refreshLater(String key, int expirationInSeconds, Supplier<?> loader, Object current) {
+        final ThreadPoolExecutor executor = this.refreshExecutor;
+        if (executor == null) {
+            return;
+        }
+        
+        final CompletableFuture<Object> future = new CompletableFuture<>();
+        if (this.computing.putIfAbsent(key, future) != null) {
+            return;
+        }
+        
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(this.compute(key, expirationInSeconds, loader, current));
+                } catch (RuntimeException e) {
+                    this.metrics.refreshFailed();
+                    log.warn("Unable to refresh {} (will serve stale value): {}", key, e.getMessage());
+                    future.complete(unwrap(current));
+                } finally {
+                    this.computing.remove(key, future);
+                }
+            });
+            this.metrics.refreshScheduled();
+        } catch (RejectedExecutionException e) {
+            this.metrics.refreshRejected();
+            log.trace("getOrCompute: {} refresh rejected", key);
+            this.computing.remove(key, future);
+            future.complete(unwrap(current));
+        }
+    }
+    
+    private Object computeAndSet(String key, int expirationInSeconds, Supplier<?> loader) {
+        final long started = System.currentTimeMillis();
+        final Object value;
+        try {
+            value = this.measured("cache.compute", loader);
+        } catch (RuntimeException e) {
+            this.metrics.computeFailed();
+            throw e;
+        }
+        this.metrics.computed();
+        if (value == null) {
+            return null;
+        }
+        final long computed = System.currentTimeMillis();
+        log.trace("getOrCompute: {} computed (in {} ms)", key, computed - started);
+        final long expirationMillis = TimeUnit.SECONDS.toMillis(expirationInSeconds);
+        this.setex(key, this.envelope(value, computed - started, computed + expirationMillis,
+            computed + (long)(expirationMillis * (this.refreshAheadFactor > 0 ? this.refreshAheadFactor : 1.0d))),
+            expirationInSeconds);
+        this.written(Collections.singletonList(key));
+        return value;
+    }
+    
+    private boolean isSoftExpired(Object entry) {
+        return entry instanceof Envelope
+            && ((Envelope)entry).isRefreshAhead()
+            && System.currentTimeMillis() >= ((Envelope)entry).softExpiresAt;
+    }
+    
+    private boolean isExpiringEarly(Object entry) {
+        // refresh-ahead values are refreshed in the background instead
+        if (!(entry instanceof Envelope) || ((Envelope)entry).isRefreshAhead() || this.earlyRefreshBeta <= 0) {
+            return false;
+        }
+        final Envelope envelope = (Envelope)entry;
+        // xfetch: -log(random) is exponentially distributed (mean 1)
+        final double early = envelope.computeMillis * this.earlyRefreshBeta
+            * -Math.log(ThreadLocalRandom.current().nextDouble(Double.MIN_VALUE, 1.0d));
+        return System.currentTimeMillis() + early >= envelope.expiresAt;
+    }
+    
+    private boolean lock(byte[] lockKey, byte[] token) {
+        final byte[] millis = serialize(Long.toString(this.computeLockMillis));
+        if (this.asyncClient != null) {
+            return JedisAsyncClient.join(this.asyncClient.send(lockKey, "SET", lockKey, token, NX, PX, millis)) != null;
+        }
+        return this.execute(lockKey, jedis -> jedis.set(lockKey, token, NX, PX, this.computeLockMillis)) != null;
+    }
+    
+    private void unlock(byte[] lockKey, byte[] token) {
+        try {
+            this.execute(lockKey, jedis -> UNLOCK_SCRIPT.eval(jedis, Collections.singletonList(lockKey), Collections.singletonList(token)));
+        } catch (RuntimeException e) {
+            // expires on its own
+            log.warn("Unable to release compute lock: {}", e.getMessage());
+        }
+    }
+    
+    private Object awaitComputed(String key) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.computeLockMillis);
+        long sleepMillis = 10L;
+        while (System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(sleepMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            final Object computed = this.fetch(key);
+            if (computed != null) {
+                return computed;
+            }
+            sleepMillis = Math.min(sleepMillis * 2L, 100L);
+        }
+        return null;
+    }
+    
     @Override
     public void delete(String key) {
         this.safeDelete(key);
@@ -88,12 +843,24 @@ public class JedisCache implements Cache {
 
     @Override
     public boolean safeDelete(String key) {
-        log.trace("delete: {}", key);
-        try (Jedis jedis = this.jedisPool.getResource()) {
-            Long reply = jedis.del(serialize(key));
-            log.trace("delete reply: {}", reply);
-            return (reply != null && reply > 0);
-        }
+        final String redisKey = this.namespaced(key);
+        log.trace("delete: {}", redisKey);
+        
+        return this.measured("cache.delete", () -> {
+            if (this.asyncClient != null) {
+                Long reply = JedisAsyncClient.join(this.asyncClient.del(serialize(redisKey)));
+                this.written(Collections.singletonList(redisKey));
+                return (reply != null && reply > 0);
+            }
+            try {
+                final byte[] k = serialize(redisKey);
+                Long reply = this.execute(k, jedis -> jedis.del(k));
+                log.trace("delete reply: {}", reply);
+                return (reply != null && reply > 0);
+            } finally {
+                this.written(Collections.singletonList(redisKey));
+            }
+        });
     }
     
     @Override
@@ -106,35 +873,608 @@ public class JedisCache implements Cache {
         throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
     }
 
+    /**
+     * Gets many values with MGETs of up to batchSize keys.  All MGETs are sent
+     * before any reply is read (pipelined on a single pooled connection or
+     * spread across the async client's connections).  Values in the near cache
+     * (if enabled) are not fetched.
+     * @param keys The keys
+     * @return A map of every key requested to its value (null if missing)
+     */
     @Override
     public Map<String,Object> get(String[] keys) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        log.trace("get: {} keys", keys.length);
+        
+        final Map<String,Object> result = new LinkedHashMap<>();
+        final List<String> misses = new ArrayList<>(keys.length);
+        final List<String> missedRedisKeys = new ArrayList<>(keys.length);
+        for (String key : keys) {
+            if (!result.containsKey(key)) {
+                final String redisKey = this.namespaced(key);
+                Object cached = (this.nearCache != null ? this.nearCache.get(redisKey) : null);
+                result.put(key, unwrap(cached));
+                if (cached == null) {
+                    misses.add(key);
+                    missedRedisKeys.add(redisKey);
+                }
+            }
+        }
+        
+        if (misses.isEmpty()) {
+            return result;
+        }
+        
+        final StopWatch timer = StopWatch.timeMillis();
+        final Object[] tokens = new Object[misses.size()];
+        boolean tracked = false;
+        if (this.nearCache != null) {
+            for (int i = 0; i < tokens.length; i++) {
+                tokens[i] = this.nearCache.begin(missedRedisKeys.get(i));
+                tracked |= (tokens[i] != null);
+            }
+        }
+        
+        final List<byte[]> values = new ArrayList<>(misses.size());
+        final List<Long> pttls = (tracked ? new ArrayList<>(misses.size()) : null);
+        this.mget(missedRedisKeys, values, pttls);
+        log.trace("get {} keys (in {})", misses.size(), timer);
+        
+        final Object[] decoded = new Object[values.size()];
+        IntStream indexes = IntStream.range(0, decoded.length);
+        if (decoded.length >= this.parallelDecodeThreshold) {
+            indexes = indexes.parallel();
+        }
+        // threads of the common fork/join pool do not have the context class
+        // loader of the caller (e.g. of a web app) that java deserialization uses
+        final ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        indexes.forEach(i -> {
+            final Thread thread = Thread.currentThread();
+            final ClassLoader previous = thread.getContextClassLoader();
+            if (previous != loader) {
+                thread.setContextClassLoader(loader);
+            }
+            try {
+                byte[] value = values.get(i);
+                decoded[i] = (value != null ? this.decode(value) : null);
+            } finally {
+                if (previous != loader) {
+                    thread.setContextClassLoader(previous);
+                }
+            }
+        });
+        
+        for (int i = 0; i < decoded.length; i++) {
+            result.put(misses.get(i), unwrap(decoded[i]));
+            if (tokens[i] != null) {
+                byte[] value = values.get(i);
+                this.nearCache.complete(missedRedisKeys.get(i), tokens[i], decoded[i],
+                    (value != null ? value.length : 0), pttls.get(i));
+            }
+        }
+        return result;
     }
-
+    
+    private void mget(List<String> keys, List<byte[]> values, List<Long> pttls) {
+        this.measured("cache.getMulti", () -> {
+            final List<byte[][]> batches = this.batches(keys);
+        
+            if (this.asyncClient != null) {
+                final List<CompletableFuture<List<byte[]>>> futures = new ArrayList<>(batches.size());
+                final List<CompletableFuture<Object>> pttlFutures = new ArrayList<>();
+                for (byte[][] batch : batches) {
+                    futures.add(this.asyncClient.mget(batch));
+                    if (pttls != null) {
+                        for (byte[] key : batch) {
+                            pttlFutures.add(this.asyncClient.send(key, "PTTL", key));
+                        }
+                    }
+                }
+                for (CompletableFuture<List<byte[]>> future : futures) {
+                    values.addAll(JedisAsyncClient.join(future));
+                }
+                for (CompletableFuture<Object> future : pttlFutures) {
+                    pttls.add((Long)JedisAsyncClient.join(future));
+                }
+            } else if (JedisFactory.isCluster(this.jedisPool)) {
+                // keys of an MGET must be in one slot, so instead a GET (and
+                // PTTL) per key is pipelined on each node
+                final List<byte[]> redisKeys = new ArrayList<>(keys.size());
+                for (byte[][] batch : batches) {
+                    redisKeys.addAll(Arrays.asList(batch));
+                }
+                final long[] ttls = new long[redisKeys.size()];
+                values.addAll(JedisClients.pipelined(this.jedisPool, redisKeys, this.batchSize, (pipeline, index) -> {
+                    final Response<byte[]> value = pipeline.get(redisKeys.get(index));
+                    final Response<Long> pttl = (pttls != null ? pipeline.pttl(redisKeys.get(index)) : null);
+                    return () -> {
+                        ttls[index] = (pttl != null ? pttl.get() : -1L);
+                        return value.get();
+                    };
+                }));
+                if (pttls != null) {
+                    for (long ttl : ttls) {
+                        pttls.add(ttl);
+                    }
+                }
+            } else if (pttls == null) {
+                // not filling the near cache, so may be read from a replica
+                values.addAll(this.read(batches.get(0)[0], jedis -> {
+                    if (batches.size() == 1) {
+                        return jedis.mget(batches.get(0));
+                    }
+                    final Pipeline pipeline = jedis.pipelined();
+                    final List<Response<List<byte[]>>> responses = new ArrayList<>(batches.size());
+                    for (byte[][] batch : batches) {
+                        responses.add(pipeline.mget(batch));
+                    }
+                    pipeline.sync();
+                    final List<byte[]> read = new ArrayList<>(keys.size());
+                    for (Response<List<byte[]>> response : responses) {
+                        read.addAll(response.get());
+                    }
+                    return read;
+                }));
+            } else {
+                // filling the near cache, so read from the primary (a stale
+                // replica could otherwise refill it after an invalidation)
+                try (Jedis jedis = this.jedisPool.getResource()) {
+                    final Pipeline pipeline = jedis.pipelined();
+                    final List<Response<List<byte[]>>> responses = new ArrayList<>(batches.size());
+                    final List<Response<Long>> pttlResponses = new ArrayList<>();
+                    for (byte[][] batch : batches) {
+                        responses.add(pipeline.mget(batch));
+                        for (byte[] key : batch) {
+                            pttlResponses.add(pipeline.pttl(key));
+                        }
+                    }
+                    pipeline.sync();
+                    for (Response<List<byte[]>> response : responses) {
+                        values.addAll(response.get());
+                    }
+                    for (Response<Long> response : pttlResponses) {
+                        pttls.add(response.get());
+                    }
+                }
+            }
+            return null;
+        });
+    }
+    
+    /**
+     * Sets many values with the same expiration.  SETEX commands are pipelined
+     * in batches of up to batchSize on a single pooled connection (or all sent
+     * at once by the async client) rather than a round trip per value.
+     * @param values The keys and values
+     * @param expirationInSeconds The expiration of every value
+     * @return True if all values were set
+     */
+    public boolean setAll(Map<String,?> values, int expirationInSeconds) {
+        log.trace("setAll: {} values (expire in {} s)", values.size(), expirationInSeconds);
+        
+        return this.measured("cache.setAll", () -> {
+            final StopWatch timer = StopWatch.timeMillis();
+            final List<String> redisKeys = new ArrayList<>(values.size());
+            boolean ok = true;
+        
+            if (this.asyncClient != null) {
+                final List<CompletableFuture<Boolean>> futures = new ArrayList<>(values.size());
+                for (Map.Entry<String,?> entry : values.entrySet()) {
+                    final String redisKey = this.namespaced(entry.getKey());
+                    redisKeys.add(redisKey);
+                    futures.add(this.asyncClient.setex(
+                        serialize(redisKey), expirationInSeconds, this.encode(entry.getValue())));
+                }
+                for (CompletableFuture<Boolean> future : futures) {
+                    ok &= JedisAsyncClient.join(future);
+                }
+            } else if (JedisFactory.isCluster(this.jedisPool)) {
+                // pipelined on each node
+                final List<byte[]> keys = new ArrayList<>(values.size());
+                final List<byte[]> encoded = new ArrayList<>(values.size());
+                for (Map.Entry<String,?> entry : values.entrySet()) {
+                    final String redisKey = this.namespaced(entry.getKey());
+                    redisKeys.add(redisKey);
+                    keys.add(serialize(redisKey));
+                    encoded.add(this.encode(entry.getValue()));
+                }
+                final List<String> replies = JedisClients.pipelined(this.jedisPool, keys, this.batchSize,
+                    (pipeline, index) -> pipeline.setex(keys.get(index), expirationInSeconds, encoded.get(index))::get);
+                for (String reply : replies) {
+                    ok &= StringUtils.equalsIgnoreCase("ok", reply);
+                }
+            } else {
+                try (Jedis jedis = this.jedisPool.getResource()) {
+                    final List<Response<String>> responses = new ArrayList<>(Math.min(values.size(), this.batchSize));
+                    Pipeline pipeline = jedis.pipelined();
+                    for (Map.Entry<String,?> entry : values.entrySet()) {
+                        final String redisKey = this.namespaced(entry.getKey());
+                        redisKeys.add(redisKey);
+                        responses.add(pipeline.setex(
+                            serialize(redisKey), expirationInSeconds, this.encode(entry.getValue())));
+                        if (responses.size() >= this.batchSize) {
+                            ok &= this.syncAll(pipeline, responses);
+                            pipeline = jedis.pipelined();
+                        }
+                    }
+                    if (!responses.isEmpty()) {
+                        ok &= this.syncAll(pipeline, responses);
+                    }
+                }
+            }
+            log.trace("setAll {} values (in {})", values.size(), timer);
+        
+            this.written(redisKeys);
+        
+            return ok;
+        });
+    }
+    
+    private <R> R execute(byte[] key, JedisCallable<R,RuntimeException> callable) {
+        return JedisClients.execute(this.jedisPool, key, callable);
+    }
+    
+    private <R> R read(byte[] key, JedisCallable<R,RuntimeException> callable) {
+        if (this.replicaReads) {
+            return JedisClients.executeRead(this.jedisPool, key, callable);
+        }
+        return JedisClients.execute(this.jedisPool, key, callable);
+    }
+    
+    private boolean syncAll(Pipeline pipeline, List<Response<String>> responses) {
+        pipeline.sync();
+        boolean ok = true;
+        for (Response<String> response : responses) {
+            ok &= StringUtils.equalsIgnoreCase("ok", response.get());
+        }
+        responses.clear();
+        return ok;
+    }
+    
+    private List<byte[][]> batches(List<String> keys) {
+        final List<byte[][]> batches = new ArrayList<>((keys.size() + this.batchSize - 1) / this.batchSize);
+        for (int i = 0; i < keys.size(); i += this.batchSize) {
+            final byte[][] batch = new byte[Math.min(this.batchSize, keys.size() - i)][];
+            for (int j = 0; j < batch.length; j++) {
+                batch[j] = serialize(keys.get(i + j));
+            }
+            batches.add(batch);
+        }
+        return batches;
+    }
+    
+    /**
+     * Drops written keys from the near cache (if enabled) and, if the near
+     * cache is kept coherent over a channel, publishes them to it.
+     */
+    private void written(Collection<String> keys) {
+        if (this.nearCache == null || keys.isEmpty()) {
+            return;
+        }
+        
+        for (String key : keys) {
+            this.nearCache.invalidate(key);
+        }
+        
+        final String channel = this.nearCache.getPublishChannel();
+        if (channel == null) {
+            return;
+        }
+        
+        final byte[] channelBytes = serialize(channel);
+        if (this.asyncClient != null) {
+            final List<CompletableFuture<Object>> futures = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                futures.add(this.asyncClient.send("PUBLISH", channelBytes, serialize(key)));
+            }
+            futures.forEach(JedisAsyncClient::join);
+        } else {
+            try (Jedis jedis = this.jedisPool.getResource()) {
+                final Pipeline pipeline = jedis.pipelined();
+                for (String key : keys) {
+                    pipeline.publish(channelBytes, serialize(key));
+                }
+                pipeline.sync();
+            }
+        }
+    }
+    
     @Override
     public long incr(String key, int by) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        log.trace("incr: {} by {}", key, by);
+        
+        return this.incrBy(this.namespaced(key), by);
     }
 
     @Override
     public long decr(String key, int by) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        log.trace("decr: {} by {}", key, by);
+        
+        return this.incrBy(this.namespaced(key), -(long)by);
+    }
+    
+    /**
+     * Counters are stored as plain integers (what INCRBY requires), which
+     * get() returns as a Long with a CompactCodec.  If the key does not exist
+     * it is created.
+     */
+    private long incrBy(String key, long by) {
+        return this.measured("cache.incr", () -> {
+            final JedisCounterCoalescer coalescer = this.counterCoalescer;
+            if (coalescer != null) {
+                long value = coalescer.incrBy(key, by);
+                if (this.nearCache != null) {
+                    this.nearCache.invalidate(key);
+                }
+                return value;
+            }
+        
+            final long value;
+            if (this.asyncClient != null) {
+                value = JedisAsyncClient.join(this.asyncClient.incrBy(serialize(key), by));
+            } else {
+                final byte[] k = serialize(key);
+                value = this.execute(k, jedis -> (by >= 0 ? jedis.incrBy(k, by) : jedis.decrBy(k, -by)));
+            }
+            this.written(Collections.singletonList(key));
+            return value;
+        });
     }
 
+    /**
+     * Clears a generational region in O(1) by incrementing its generation.
+     * @param region The region (as passed to setGenerations)
+     */
+    public void clearRegion(String region) {
+        final JedisCacheGenerations g = this.generations;
+        if (g == null) {
+            throw new IllegalStateException("No generational regions");
+        }
+        log.trace("clearRegion: {}", region);
+        g.increment(region);
+    }
+    
+    /**
+     * Deletes every key in the namespace.  Keys are found with SCAN (a batch
+     * at a time rather than KEYS) and deleted with UNLINK (reclaimed in the
+     * background by redis 4+, DEL on older servers), sleeping between batches
+     * to stay under clearKeysPerSecond.  Keys written while clearing may or
+     * may not be deleted.  If there are generational regions their generations
+     * are incremented first, and if every key is in a region (the region "")
+     * that is all clear does.
+     * @throws IllegalStateException If no namespace is configured (and not
+     *      every key is generational), since that would delete every key in
+     *      the database
+     */
     @Override
     public void clear() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        this.measured("cache.clear", () -> {
+            final JedisCacheGenerations g = this.generations;
+            if (g != null) {
+                g.incrementAll();
+                if (g.getRegions().contains("")) {
+                    // every key was in a region
+                    return null;
+                }
+            }
+        
+            if (this.namespace.isEmpty()) {
+                throw new IllegalStateException("Clear requires a namespace (would delete every key in the database)");
+            }
+        
+            log.trace("clear: {}*", this.namespace);
+        
+            final StopWatch timer = StopWatch.timeMillis();
+            final ScanParams params = new ScanParams()
+                .match(serialize(escapeGlob(this.namespace) + "*"))
+                .count(this.batchSize);
+            final long nanosPerKey = TimeUnit.SECONDS.toNanos(1) / this.clearKeysPerSecond;
+            // each node of a cluster is scanned for the keys it serves
+            final Collection<? extends JedisPool> nodes = (JedisFactory.isCluster(this.jedisPool)
+                ? ((ClusterJedisPool)this.jedisPool).getNodes() : Collections.singletonList(this.jedisPool));
+            boolean unlink = true;
+            long deleted = 0;
+            for (JedisPool node : nodes) {
+                byte[] cursor = SCAN_START;
+                do {
+                    final long started = System.nanoTime();
+                    final List<byte[]> keys;
+                    try (Jedis jedis = node.getResource()) {
+                        final ScanResult<byte[]> result = jedis.scan(cursor, params);
+                        cursor = result.getCursorAsBytes();
+                        keys = this.withoutGenerations(result.getResult());
+                        for (byte[][] batch : this.sameSlotBatches(keys)) {
+                            if (unlink) {
+                                try {
+                                    deleted += (Long)JedisClients.sendCommand(jedis, "UNLINK", batch);
+                                } catch (JedisDataException e) {
+                                    log.debug("UNLINK not supported (will use DEL): {}", e.getMessage());
+                                    unlink = false;
+                                }
+                            }
+                            if (!unlink) {
+                                deleted += jedis.del(batch);
+                            }
+                        }
+                    }
+                    if (this.nearCache != null && !keys.isEmpty()) {
+                        final List<String> cleared = new ArrayList<>(keys.size());
+                        for (byte[] key : keys) {
+                            cleared.add(new String(key, StandardCharsets.UTF_8));
+                        }
+                        this.written(cleared);
+                    }
+                    final long sleepNanos = (keys.size() * nanosPerKey) - (System.nanoTime() - started);
+                    if (sleepNanos > 0) {
+                        try {
+                            TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IllegalStateException("Interrupted while clearing", e);
+                        }
+                    }
+                } while (!Arrays.equals(cursor, SCAN_START));
+            }
+        
+            log.debug("Cleared {} keys in {} (in {})", deleted, this.namespace, timer);
+            return null;
+        });
+    }
+    
+    /**
+     * Splits keys into batches a multi-key command may be sent with: all of
+     * them, or those in the same slot if a cluster (which rejects commands on
+     * keys in different slots).
+     */
+    private List<byte[][]> sameSlotBatches(List<byte[]> keys) {
+        if (keys.isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (!JedisFactory.isCluster(this.jedisPool)) {
+            return Collections.singletonList(keys.toArray(new byte[keys.size()][]));
+        }
+        final Map<Integer,List<byte[]>> slots = new LinkedHashMap<>();
+        for (byte[] key : keys) {
+            slots.computeIfAbsent(JedisClusterSlots.slot(key), slot -> new ArrayList<>()).add(key);
+        }
+        final List<byte[][]> batches = new ArrayList<>(slots.size());
+        for (List<byte[]> slotKeys : slots.values()) {
+            batches.add(slotKeys.toArray(new byte[slotKeys.size()][]));
+        }
+        return batches;
+    }
+    
+    private List<byte[]> withoutGenerations(List<byte[]> keys) {
+        if (this.generations == null) {
+            return keys;
+        }
+        final String prefix = this.namespace + JedisCacheGenerations.KEY_PREFIX;
+        final List<byte[]> filtered = new ArrayList<>(keys.size());
+        for (byte[] key : keys) {
+            if (!new String(key, StandardCharsets.UTF_8).startsWith(prefix)) {
+                filtered.add(key);
+            }
+        }
+        return filtered;
+    }
+    
+    static private String escapeGlob(String s) {
+        final StringBuilder sb = new StringBuilder(s.length() + 4);
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == ']' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    @Dispose
+    public void close() {
+        if (this.refreshExecutor != null) {
+            this.refreshExecutor.shutdownNow();
+        }
+        if (this.counterCoalescer != null) {
+            this.counterCoalescer.close();
+        }
+        if (this.nearCache != null) {
+            this.nearCache.close();
+        }
     }
 
+    /**
+     * Runs an operation measured by the metrics of the jedis pool.
+     */
+    private <R> R measured(String operation, Supplier<R> supplier) {
+        final JedisMetrics metrics = JedisFactory.getMetrics(this.jedisPool);
+        if (metrics == JedisMetrics.NOOP) {
+            return supplier.get();
+        }
+        final long started = System.nanoTime();
+        boolean success = false;
+        try {
+            final R result = supplier.get();
+            success = true;
+            return result;
+        } finally {
+            metrics.command(operation, System.nanoTime() - started, success);
+        }
+    }
+    
+    private byte[] encode(Object value) {
+        if (this.counters && (value instanceof Long || value instanceof Integer
+                || value instanceof Short || value instanceof Byte)) {
+            // as INCRBY stores them, so a value set or added can be incr'ed
+            return Long.toString(((Number)value).longValue()).getBytes(StandardCharsets.US_ASCII);
+        }
+        return this.codec.encode(value);
+    }
+    
+    private byte[] envelope(Object value, long computeMillis, long expiresAt, long softExpiresAt) {
+        final byte[] encoded = this.encode(value);
+        return new BinaryWriter(encoded.length + 24)
+            .writeByte(ENVELOPE_MAGIC0)
+            .writeByte(ENVELOPE_MAGIC2)
+            .writeVarLong(computeMillis)
+            .writeVarLong(expiresAt)
+            .writeVarLong(expiresAt - softExpiresAt)
+            .writeBytes(encoded)
+            .toByteArray();
+    }
+    
+    static private Object unwrap(Object decoded) {
+        return (decoded instanceof Envelope ? ((Envelope)decoded).value : decoded);
+    }
+    
+    /**
+     * Decodes a value (or an Envelope if written by getOrCompute).
+     */
+    private Object decode(byte[] data) {
+        if (data.length > 2 && (data[0] & 0xFF) == ENVELOPE_MAGIC0
+                && (data[1] == ENVELOPE_MAGIC1 || data[1] == ENVELOPE_MAGIC2)) {
+            try {
+                final BinaryReader reader = new BinaryReader(data, 2, data.length - 2);
+                final long computeMillis = reader.readVarLong();
+                final long expiresAt = reader.readVarLong();
+                final long softExpiresAt = (data[1] == ENVELOPE_MAGIC2 ? expiresAt - reader.readVarLong() : expiresAt);
+                final Object value = this.decode(reader.readBytes(reader.remaining()));
+                return (value != null ? new Envelope(value, computeMillis, expiresAt, softExpiresAt) : null);
+            } catch (Exception e) {
+                log.error("Unable to decode", e);
+                return null;
+            }
+        }
+        if (this.counters && isCounter(data)) {
+            try {
+                return Long.parseLong(new String(data, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                // not a counter after all
+            }
+        }
+        try {
+            return this.codec.decode(data);
+        } catch (Exception e) {
+            log.error("Unable to decode", e);
+        }
+        return null;
+    }
+    
+    static private boolean isCounter(byte[] data) {
+        // never the first byte of a CompactCodec (or java serialized) value
+        if (data.length == 0 || data.length > 20) {
+            return false;
+        }
+        for (int i = (data[0] == '-' && data.length > 1 ? 1 : 0); i < data.length; i++) {
+            if (data[i] < '0' || data[i] > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+    
     static public Object deserialize(byte[] data) {
         try {
-            return new ObjectInputStream(new ByteArrayInputStream(data)) {
-                @Override
-                protected Class<?> resolveClass(ObjectStreamClass desc)
-                        throws IOException, ClassNotFoundException {
-                    return Class.forName(desc.getName(), false, Thread.currentThread().getContextClassLoader());
-                }
-            }.readObject();
+            return CompactCodec.javaDeserialize(data, 0, data.length);
         } catch (Exception e) {
             log.error("Unable to deserialize", e);
         }
@@ -147,10 +1487,8 @@ public class JedisCache implements Cache {
     
     static public byte[] serialize(Object object) {
         try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            new ObjectOutputStream(bos).writeObject(object);
-            return bos.toByteArray();
-        } catch (IOException e) {
+            return CompactCodec.javaSerialize(object);
+        } catch (Exception e) {
             log.error("Unable to serialize", e);
         }
         return null;
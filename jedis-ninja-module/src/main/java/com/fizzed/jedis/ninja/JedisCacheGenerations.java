@@ -0,0 +1,187 @@
+package com.fizzed.jedis.ninja;
+
+import com.fizzed.jedis.JedisAsyncClient;
+import com.fizzed.jedis.JedisClients;
+import com.fizzed.jedis.JedisFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Response;
+
+/**
+ * Generation numbers of the regions of a JedisCache.  A key in a region is
+ * stored as "namespace + region + generation + ':' + rest of key", so a region
+ * is cleared with a single INCR of its generation no matter how many keys it
+ * has (the old keys are never read again and age out via their TTLs).
+ *
+ * Regions are key prefixes (e.g. "users:"), the region "" is every key not in
+ * another region.  Generations are stored in redis as
+ * "namespace + __generation:region" and cached in-process for refreshMillis,
+ * so a region cleared by another node is seen as cleared within that time
+ * (immediately on the node that cleared it).
+ */
+class JedisCacheGenerations {
+    static private final Logger log = LoggerFactory.getLogger(JedisCacheGenerations.class);
+
+    static final String KEY_PREFIX = "__generation:";
+
+    static private class Generation {
+
+        private final String region;
+        private final byte[] redisKey;
+        private final AtomicBoolean refreshing;
+        private volatile long value;
+        private volatile long refreshedAt;
+        private volatile boolean known;
+
+        private Generation(String region, byte[] redisKey) {
+            this.region = region;
+            this.redisKey = redisKey;
+            this.refreshing = new AtomicBoolean();
+        }
+
+    }
+
+    private final JedisPool jedisPool;
+    private final JedisAsyncClient asyncClient;
+    private final Map<String,Generation> generations;
+    // longest prefix first so nested regions match before their parents
+    private final List<Generation> matching;
+    private final long refreshNanos;
+
+    /**
+     * Creates the generations of regions.
+     * @param jedisPool The jedis pool
+     * @param namespace The namespace of the cache
+     * @param regions The regions (key prefixes), "" for every other key
+     * @param refresh How long a generation is cached in-process
+     * @param unit The unit of refresh
+     */
+    JedisCacheGenerations(JedisPool jedisPool, String namespace, Collection<String> regions, long refresh, TimeUnit unit) {
+        Objects.requireNonNull(jedisPool, "jedisPool was null");
+        Objects.requireNonNull(regions, "regions was null");
+        this.jedisPool = jedisPool;
+        this.asyncClient = JedisFactory.getAsyncClient(jedisPool);
+        this.generations = new LinkedHashMap<>();
+        for (String region : regions) {
+            this.generations.put(region, new Generation(region,
+                (namespace + KEY_PREFIX + region).getBytes(StandardCharsets.UTF_8)));
+        }
+        this.matching = new ArrayList<>(this.generations.values());
+        this.matching.sort(Comparator.comparingInt((Generation g) -> g.region.length()).reversed());
+        this.refreshNanos = unit.toNanos(refresh);
+    }
+
+    public Collection<String> getRegions() {
+        return this.generations.keySet();
+    }
+
+    /**
+     * Inserts the generation of the region of a key into it.
+     * @param key The key (without the namespace)
+     * @return The key with the generation inserted after its region or the
+     *      key as-is if it is in no region
+     */
+    public String generational(String key) {
+        for (Generation generation : this.matching) {
+            if (key.startsWith(generation.region)) {
+                final int length = generation.region.length();
+                return new StringBuilder(key.length() + 12)
+                    .append(key, 0, length)
+                    .append(this.current(generation))
+                    .append(':')
+                    .append(key, length, key.length())
+                    .toString();
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Clears a region by incrementing its generation.
+     * @param region The region
+     * @return The new generation
+     */
+    public long increment(String region) {
+        final Generation generation = this.generations.get(region);
+        if (generation == null) {
+            throw new IllegalArgumentException("Region '" + region + "' does not exist");
+        }
+        final long value;
+        if (this.asyncClient != null) {
+            value = JedisAsyncClient.join(this.asyncClient.incrBy(generation.redisKey, 1L));
+        } else {
+            value = JedisClients.execute(this.jedisPool, generation.redisKey, jedis -> jedis.incr(generation.redisKey));
+        }
+        this.refreshed(generation, value);
+        log.debug("Region '{}' now generation {}", region, value);
+        return value;
+    }
+
+    /**
+     * Clears every region (a pipelined INCR per region, per node if a cluster).
+     */
+    public void incrementAll() {
+        final List<Generation> all = new ArrayList<>(this.generations.values());
+        final List<byte[]> keys = new ArrayList<>(all.size());
+        for (Generation generation : all) {
+            keys.add(generation.redisKey);
+        }
+        JedisClients.pipelined(this.jedisPool, keys, Math.max(1, keys.size()), (pipeline, index) -> {
+            final Response<Long> response = pipeline.incr(keys.get(index));
+            return () -> {
+                final long value = response.get();
+                this.refreshed(all.get(index), value);
+                return value;
+            };
+        });
+    }
+
+    private long current(Generation generation) {
+        if (!generation.known) {
+            // nothing to fall back on yet
+            this.refresh(generation);
+        } else if (System.nanoTime() - generation.refreshedAt >= this.refreshNanos
+                && generation.refreshing.compareAndSet(false, true)) {
+            // one thread refreshes while the others keep using the last value
+            try {
+                this.refresh(generation);
+            } catch (RuntimeException e) {
+                log.warn("Unable to refresh generation of region '{}' (will retry): {}", generation.region, e.getMessage());
+            } finally {
+                generation.refreshing.set(false);
+            }
+        }
+        return generation.value;
+    }
+
+    private void refresh(Generation generation) {
+        final byte[] reply;
+        if (this.asyncClient != null) {
+            reply = JedisAsyncClient.join(this.asyncClient.get(generation.redisKey));
+        } else {
+            reply = JedisClients.execute(this.jedisPool, generation.redisKey, jedis -> jedis.get(generation.redisKey));
+        }
+        this.refreshed(generation, (reply != null ? Long.parseLong(new String(reply, StandardCharsets.US_ASCII)) : 0L));
+    }
+
+    private void refreshed(Generation generation, long value) {
+        // never go back to an older generation (e.g. a refresh racing an increment)
+        if (!generation.known || value > generation.value) {
+            generation.value = value;
+        }
+        generation.refreshedAt = System.nanoTime();
+        generation.known = true;
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.fizzed.jedis.ninja;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts of the values JedisCache.getOrCompute() computed, served stale and
+ * refreshed in the background.
+ */
+public class JedisCacheMetrics {
+
+    private final LongAdder computes = new LongAdder();
+    private final LongAdder computeFailures = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder refreshesScheduled = new LongAdder();
+    private final LongAdder refreshesRejected = new LongAdder();
+    private final LongAdder refreshFailures = new LongAdder();
+
+    void computed() {
+        this.computes.increment();
+    }
+
+    void computeFailed() {
+        this.computeFailures.increment();
+    }
+
+    void staleHit() {
+        this.staleHits.increment();
+    }
+
+    void refreshScheduled() {
+        this.refreshesScheduled.increment();
+    }
+
+    void refreshRejected() {
+        this.refreshesRejected.increment();
+    }
+
+    void refreshFailed() {
+        this.refreshFailures.increment();
+    }
+
+    /**
+     * Gets the number of times a loader computed a value.
+     * @return The count
+     */
+    public long getComputes() {
+        return this.computes.sum();
+    }
+
+    /**
+     * Gets the number of times a loader threw an exception.
+     * @return The count
+     */
+    public long getComputeFailures() {
+        return this.computeFailures.sum();
+    }
+
+    /**
+     * Gets the number of values served past their soft expiration.
+     * @return The count
+     */
+    public long getStaleHits() {
+        return this.staleHits.sum();
+    }
+
+    /**
+     * Gets the number of background refreshes submitted.
+     * @return The count
+     */
+    public long getRefreshesScheduled() {
+        return this.refreshesScheduled.sum();
+    }
+
+    /**
+     * Gets the number of background refreshes dropped since the refresh
+     * queue was full.
+     * @return The count
+     */
+    public long getRefreshesRejected() {
+        return this.refreshesRejected.sum();
+    }
+
+    /**
+     * Gets the number of background refreshes that failed (the stale value
+     * is kept until its hard expiration).
+     * @return The count
+     */
+    public long getRefreshFailures() {
+        return this.refreshFailures.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "computes=" + this.getComputes()
+            + ", computeFailures=" + this.getComputeFailures()
+            + ", staleHits=" + this.getStaleHits()
+            + ", refreshesScheduled=" + this.getRefreshesScheduled()
+            + ", refreshesRejected=" + this.getRefreshesRejected()
+            + ", refreshFailures=" + this.getRefreshFailures();
+    }
+
+}
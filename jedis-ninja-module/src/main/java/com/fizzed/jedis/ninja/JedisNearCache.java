@@ -0,0 +1,196 @@
+package com.fizzed.jedis.ninja;
+
+import com.fizzed.jedis.JedisInvalidationListener;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import redis.clients.jedis.Jedis;
+
+/**
+ * Bounded in-process (L1) tier in front of JedisCache.  Eviction is by the
+ * encoded size of values (W-TinyLFU via caffeine) and every entry expires no
+ * later than its key does in redis (and never later than maxTtl).  Entries
+ * are dropped as invalidations arrive from a JedisInvalidationListener, and
+ * nothing is cached or served while the listener is disconnected.
+ *
+ * Values are cached as decoded objects and returned as-is, so they must not
+ * be mutated by callers.
+ *
+ * Requires the optional com.github.ben-manes.caffeine:caffeine dependency.
+ */
+public class JedisNearCache implements AutoCloseable {
+
+    static private final int ENTRY_OVERHEAD = 64;
+
+    static private class Entry {
+
+        private final Object value;
+        private final int weight;
+        private final long ttlNanos;
+
+        private Entry(Object value, int weight, long ttlNanos) {
+            this.value = value;
+            this.weight = weight;
+            this.ttlNanos = ttlNanos;
+        }
+
+    }
+
+    private final Cache<String,Entry> cache;
+    private final ConcurrentMap<String,Object> loading;
+    private final long maxTtlMillis;
+    private final JedisInvalidationListener listener;
+
+    /**
+     * Creates a new near cache.
+     * @param connector Creates the dedicated connection invalidations are
+     *      received on
+     * @param mode TRACKING (redis 6+) or CHANNEL
+     * @param channel The channel writers publish keys to (CHANNEL mode only)
+     * @param prefixes The key prefixes to track or empty for all keys
+     * @param maxWeight The max total size of cached values (in bytes)
+     * @param maxTtl The max amount of time a value is cached
+     * @param unit The unit of maxTtl
+     */
+    public JedisNearCache(Supplier<Jedis> connector, JedisInvalidationListener.Mode mode, String channel,
+            List<String> prefixes, long maxWeight, long maxTtl, TimeUnit unit) {
+        Objects.requireNonNull(unit, "unit was null");
+        this.maxTtlMillis = unit.toMillis(maxTtl);
+        this.cache = Caffeine.newBuilder()
+            .maximumWeight(maxWeight)
+            .weigher((String key, Entry entry) -> entry.weight)
+            .expireAfter(new Expiry<String,Entry>() {
+                @Override
+                public long expireAfterCreate(String key, Entry entry, long currentTime) {
+                    return entry.ttlNanos;
+                }
+                @Override
+                public long expireAfterUpdate(String key, Entry entry, long currentTime, long currentDuration) {
+                    return entry.ttlNanos;
+                }
+                @Override
+                public long expireAfterRead(String key, Entry entry, long currentTime, long currentDuration) {
+                    return currentDuration;
+                }
+            })
+            .build();
+        this.loading = new ConcurrentHashMap<>();
+        this.listener = new JedisInvalidationListener(connector, mode, channel, prefixes,
+            new JedisInvalidationListener.Handler() {
+                @Override
+                public void invalidate(byte[] key) {
+                    JedisNearCache.this.invalidate(new String(key, StandardCharsets.UTF_8));
+                }
+                @Override
+                public void invalidateAll() {
+                    JedisNearCache.this.invalidateAll();
+                }
+            });
+    }
+
+    public JedisNearCache start() {
+        this.listener.start();
+        return this;
+    }
+
+    public JedisInvalidationListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Gets the channel writers must publish the keys they write to (in TRACKING
+     * mode redis sends invalidations itself).
+     * @return The channel or null if nothing needs to be published
+     */
+    public String getPublishChannel() {
+        return (this.listener.getMode() == JedisInvalidationListener.Mode.CHANNEL ? this.listener.getChannel() : null);
+    }
+
+    public long estimatedSize() {
+        return this.cache.estimatedSize();
+    }
+
+    /**
+     * Gets a cached value.
+     * @param key The key
+     * @return The value or null if not cached
+     */
+    public Object get(String key) {
+        if (!this.listener.isConnected()) {
+            return null;
+        }
+        final Entry entry = this.cache.getIfPresent(key);
+        return (entry != null ? entry.value : null);
+    }
+
+    /**
+     * Begins loading a value from redis.  Must be called before the value is
+     * read so an invalidation that arrives while it is read is not lost.
+     * @param key The key
+     * @return The token to complete the load with or null if the value should
+     *      not be cached
+     */
+    public Object begin(String key) {
+        if (!this.listener.isConnected()) {
+            return null;
+        }
+        final Object token = new Object();
+        this.loading.put(key, token);
+        return token;
+    }
+
+    /**
+     * Completes loading a value from redis.  The value is only cached if the
+     * key was not invalidated since begin().
+     * @param key The key
+     * @param token The token returned by begin()
+     * @param value The decoded value (not cached if null)
+     * @param size The encoded size of the value
+     * @param pttl The remaining time to live of the key in redis in millis
+     *      (-1 if none)
+     */
+    public void complete(String key, Object token, Object value, int size, long pttl) {
+        if (token == null) {
+            return;
+        }
+        final long ttlMillis = (pttl < 0 ? this.maxTtlMillis : Math.min(pttl, this.maxTtlMillis));
+        final boolean cacheable = value != null && ttlMillis > 0 && (pttl != -2);
+        // serialized with invalidate() for the same key
+        this.loading.computeIfPresent(key, (k, t) -> {
+            if (t != token) {
+                return t;
+            }
+            if (cacheable) {
+                this.cache.put(k, new Entry(value, size + k.length() + ENTRY_OVERHEAD,
+                    TimeUnit.MILLISECONDS.toNanos(ttlMillis)));
+            }
+            return null;
+        });
+    }
+
+    public void invalidate(String key) {
+        this.loading.compute(key, (k, t) -> {
+            this.cache.invalidate(k);
+            return null;
+        });
+    }
+
+    public void invalidateAll() {
+        this.loading.clear();
+        this.cache.invalidateAll();
+    }
+
+    @Override
+    public void close() {
+        this.listener.close();
+        this.invalidateAll();
+    }
+
+}
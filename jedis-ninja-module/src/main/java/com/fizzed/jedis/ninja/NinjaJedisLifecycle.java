@@ -1,6 +1,8 @@
 package com.fizzed.jedis.ninja;
 
 import com.fizzed.jedis.JedisFactory;
+import com.fizzed.jedis.JedisPrewarmResult;
+import java.util.concurrent.TimeUnit;
 import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.inject.Singleton;
@@ -15,6 +17,10 @@ public class NinjaJedisLifecycle {
     static private final Logger log = LoggerFactory.getLogger(NinjaJedisLifecycle.class);
     
     private final Boolean validateAtStart;
+    private final Integer prewarmConnections;
+    private final Integer prewarmTimeoutMillis;
+    private final Integer prewarmMaxPingMillis;
+    private final Boolean prewarmFailFast;
     private final Provider<JedisPool> jedisPoolProvider;
     
     @Inject 
@@ -22,17 +28,48 @@ public class NinjaJedisLifecycle {
             NinjaProperties ninjaProperties,
             Provider<JedisPool> jedisPoolProvider) {
         this.validateAtStart = ninjaProperties.getBooleanWithDefault("redis.validate_at_start", Boolean.TRUE);
+        this.prewarmConnections = ninjaProperties.getIntegerWithDefault("redis.prewarm_connections", 0);
+        this.prewarmTimeoutMillis = ninjaProperties.getIntegerWithDefault("redis.prewarm_timeout_millis", 10000);
+        this.prewarmMaxPingMillis = ninjaProperties.getIntegerWithDefault("redis.prewarm_max_ping_millis", 0);
+        this.prewarmFailFast = ninjaProperties.getBooleanWithDefault("redis.prewarm_fail_fast", Boolean.FALSE);
         this.jedisPoolProvider = jedisPoolProvider;
     }
 
     @Start(order = 80)
     public void start() {
-        if (!this.validateAtStart) {
+        if (this.validateAtStart) {
+            JedisFactory.validateJedisPool(log, this.jedisPoolProvider.get());
+        }
+        
+        if (this.prewarmConnections > 0) {
+            this.prewarm(this.jedisPoolProvider.get());
+        }
+    }
+    
+    private void prewarm(JedisPool jedisPool) {
+        log.info("Prewarming {} redis connections...", this.prewarmConnections);
+        
+        final JedisPrewarmResult result = JedisFactory.prewarmJedisPool(
+            jedisPool, this.prewarmConnections, this.prewarmTimeoutMillis, TimeUnit.MILLISECONDS);
+        
+        String problem = null;
+        if (!result.isComplete()) {
+            problem = "only " + result.getConnections() + " of " + result.getRequested() + " connections ready";
+        } else if (this.prewarmMaxPingMillis > 0 && result.getMaxPingMillis() > this.prewarmMaxPingMillis) {
+            problem = "ping exceeded " + this.prewarmMaxPingMillis + " ms";
+        }
+        
+        if (problem == null) {
+            log.info("Prewarmed redis: {}", result);
             return;
         }
-
-        final JedisPool jedisPool = this.jedisPoolProvider.get();
-        JedisFactory.validateJedisPool(log, jedisPool);
+        
+        if (this.prewarmFailFast) {
+            throw new IllegalStateException("Redis not ready: " + problem + " (" + result + ")", result.getFailure());
+        }
+        
+        log.warn("Redis not ready: {} ({}){}", problem, result,
+            (result.getFailure() != null ? ": " + result.getFailure().getMessage() : ""));
     }
     
 }
\ No newline at end of file
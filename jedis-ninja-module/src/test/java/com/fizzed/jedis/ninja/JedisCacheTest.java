@@ -0,0 +1,634 @@
+package com.fizzed.jedis.ninja;
+
+import com.fizzed.jedis.JedisCodec;
+import com.fizzed.jedis.JedisFactory;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import org.junit.After;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+public class JedisCacheTest {
+
+    static public class Payload implements Serializable {
+        static private final long serialVersionUID = 1L;
+
+        private final String name;
+
+        public Payload(String name) {
+            this.name = name;
+        }
+
+    }
+
+    private JedisPool jedisPool;
+    private JedisPool asyncJedisPool;
+
+    @Before
+    public void before() throws Exception {
+        this.jedisPool = JedisFactory.createJedisPool("redis://localhost:26379");
+        this.asyncJedisPool = JedisFactory.createJedisPool("redis://localhost:26379?async_enabled=true&async_connections=2");
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            jedis.flushAll();
+        }
+    }
+
+    @After
+    public void after() throws Exception {
+        this.jedisPool.close();
+        this.asyncJedisPool.close();
+    }
+
+    static private void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String[] keys(int count) {
+        String[] keys = new String[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = "k" + i;
+        }
+        return keys;
+    }
+
+    @Test
+    public void multiGetWithMisses() {
+        for (JedisPool pool : Arrays.asList(this.jedisPool, this.asyncJedisPool)) {
+            JedisCache cache = new JedisCache(pool)
+                .setNamespace("test:");
+
+            cache.set("a", "1", 60);
+            cache.set("c", 3, 60);
+
+            Map<String,Object> values = cache.get(new String[] { "a", "b", "c", "a", "d" });
+
+            // every key requested once, in order, with misses as null
+            assertThat(values.keySet().toString(), is("[a, b, c, d]"));
+            assertThat(values.get("a"), is("1"));
+            assertThat(values.get("b"), is(nullValue()));
+            assertThat(values.get("c"), is(3L));
+            assertThat(values.get("d"), is(nullValue()));
+
+            cache.clear();
+            cache.close();
+        }
+    }
+
+    @Test
+    public void multiGetOfMoreThanBatchSizeKeys() {
+        for (JedisPool pool : Arrays.asList(this.jedisPool, this.asyncJedisPool)) {
+            JedisCache cache = new JedisCache(pool)
+                .setNamespace("test:")
+                .setBatchSize(7)
+                .setParallelDecodeThreshold(10);
+
+            String[] keys = this.keys(50);
+            for (int i = 0; i < keys.length; i += 2) {
+                cache.set(keys[i], i, 60);
+            }
+
+            Map<String,Object> values = cache.get(keys);
+
+            assertThat(values.size(), is(50));
+            for (int i = 0; i < keys.length; i++) {
+                assertThat(values.get(keys[i]), is(i % 2 == 0 ? (long)i : null));
+            }
+
+            cache.clear();
+            cache.close();
+        }
+    }
+
+    @Test
+    public void setAllThenGet() {
+        for (JedisPool pool : Arrays.asList(this.jedisPool, this.asyncJedisPool)) {
+            JedisCache cache = new JedisCache(pool)
+                .setNamespace("test:")
+                .setBatchSize(3);
+
+            Map<String,Object> values = new LinkedHashMap<>();
+            for (String key : this.keys(10)) {
+                values.put(key, "value-" + key);
+            }
+
+            assertThat(cache.setAll(values, 60), is(true));
+
+            for (String key : values.keySet()) {
+                assertThat(cache.get(key), is("value-" + key));
+            }
+            assertThat(cache.get(this.keys(10)), is(values));
+
+            try (Jedis jedis = pool.getResource()) {
+                long ttl = jedis.ttl("test:k9");
+                assertThat(ttl > 0 && ttl <= 60, is(true));
+            }
+
+            cache.clear();
+            cache.close();
+        }
+    }
+
+    @Test
+    public void parallelDecodeWithoutContextClassLoader() {
+        JedisCache cache = new JedisCache(this.jedisPool)
+            .setParallelDecodeThreshold(1);
+
+        Map<String,Object> values = new LinkedHashMap<>();
+        for (String key : this.keys(100)) {
+            values.put(key, new Payload(key));
+        }
+        cache.setAll(values, 60);
+
+        final Thread thread = Thread.currentThread();
+        final ClassLoader loader = thread.getContextClassLoader();
+        thread.setContextClassLoader(null);
+        try {
+            Map<String,Object> read = cache.get(this.keys(100));
+            for (String key : this.keys(100)) {
+                assertThat(((Payload)read.get(key)).name, is(key));
+            }
+        } finally {
+            thread.setContextClassLoader(loader);
+        }
+
+        cache.close();
+    }
+
+    @Test
+    public void getOrComputeCallsLoaderOnceForConcurrentCallers() throws Exception {
+        JedisCache cache = new JedisCache(this.jedisPool);
+        AtomicInteger loads = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return cache.getOrCompute("hot", 60, () -> {
+                        loads.incrementAndGet();
+                        sleep(300L);
+                        return "computed";
+                    });
+                }));
+            }
+            start.countDown();
+
+            for (Future<String> result : results) {
+                assertThat(result.get(5, TimeUnit.SECONDS), is("computed"));
+            }
+            assertThat(loads.get(), is(1));
+            assertThat(cache.get("hot"), is("computed"));
+        } finally {
+            executor.shutdownNow();
+            cache.close();
+        }
+    }
+
+    @Test
+    public void getOrComputeFailureReachesAllWaitersAndIsNotCached() throws Exception {
+        JedisCache cache = new JedisCache(this.jedisPool);
+        AtomicInteger loads = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return cache.getOrCompute("failing", 60, () -> {
+                        loads.incrementAndGet();
+                        // so every other caller is waiting on this computation
+                        sleep(300L);
+                        throw new IllegalStateException("boom");
+                    });
+                }));
+            }
+            start.countDown();
+
+            for (Future<String> result : results) {
+                try {
+                    result.get(5, TimeUnit.SECONDS);
+                    fail();
+                } catch (ExecutionException e) {
+                    assertThat(e.getCause(), instanceOf(IllegalStateException.class));
+                    assertThat(e.getCause().getMessage(), is("boom"));
+                }
+            }
+            assertThat(loads.get(), is(1));
+            assertThat(cache.get("failing"), is(nullValue()));
+            assertThat(cache.getMetrics().getComputeFailures(), is(1L));
+
+            // the next call computes again
+            assertThat(cache.getOrCompute("failing", 60, () -> {
+                loads.incrementAndGet();
+                return "recovered";
+            }), is("recovered"));
+            assertThat(loads.get(), is(2));
+        } finally {
+            executor.shutdownNow();
+            cache.close();
+        }
+    }
+
+    @Test
+    public void getOrComputeDoesNotCacheNull() {
+        JedisCache cache = new JedisCache(this.jedisPool);
+        AtomicInteger loads = new AtomicInteger();
+
+        for (int i = 0; i < 2; i++) {
+            assertThat(cache.getOrCompute("missing", 60, () -> {
+                loads.incrementAndGet();
+                return null;
+            }), is(nullValue()));
+        }
+
+        assertThat(loads.get(), is(2));
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            assertThat(jedis.exists("missing"), is(false));
+        }
+
+        cache.close();
+    }
+
+    @Test
+    public void getOrComputeLockMakesOtherNodesWait() throws Exception {
+        // two caches are two nodes: each only knows of its own computations
+        JedisCache node1 = new JedisCache(this.jedisPool)
+            .setComputeLock(5, TimeUnit.SECONDS);
+        JedisCache node2 = new JedisCache(this.jedisPool)
+            .setComputeLock(5, TimeUnit.SECONDS);
+        AtomicInteger loads = new AtomicInteger();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> first = executor.submit(() -> node1.getOrCompute("locked", 60, () -> {
+                loads.incrementAndGet();
+                sleep(500L);
+                return "node1";
+            }));
+
+            // node1 holds the lock by now
+            sleep(100L);
+            try (Jedis jedis = this.jedisPool.getResource()) {
+                assertThat(jedis.exists("locked:lock"), is(true));
+            }
+
+            final long started = System.currentTimeMillis();
+            String second = node2.getOrCompute("locked", 60, () -> {
+                loads.incrementAndGet();
+                return "node2";
+            });
+
+            assertThat(second, is("node1"));
+            assertThat(System.currentTimeMillis() - started >= 300L, is(true));
+            assertThat(first.get(5, TimeUnit.SECONDS), is("node1"));
+            assertThat(loads.get(), is(1));
+
+            // released once computed
+            try (Jedis jedis = this.jedisPool.getResource()) {
+                assertThat(jedis.exists("locked:lock"), is(false));
+            }
+        } finally {
+            executor.shutdownNow();
+            node1.close();
+            node2.close();
+        }
+    }
+
+    @Test
+    public void refreshAheadServesStaleValueWhileRefreshingOnce() throws Exception {
+        // soft expired after 200 ms
+        JedisCache cache = new JedisCache(this.jedisPool)
+            .setRefreshAhead(0.02d, 2, 10);
+        AtomicInteger loads = new AtomicInteger();
+
+        assertThat(cache.getOrCompute("ahead", 10, () -> "v" + loads.incrementAndGet()), is("v1"));
+        sleep(250L);
+
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return cache.getOrCompute("ahead", 10, () -> {
+                        sleep(300L);
+                        return "v" + loads.incrementAndGet();
+                    });
+                }));
+            }
+            final long started = System.currentTimeMillis();
+            start.countDown();
+
+            for (Future<String> result : results) {
+                assertThat(result.get(5, TimeUnit.SECONDS), is("v1"));
+            }
+            // without waiting for the refresh
+            assertThat(System.currentTimeMillis() - started < 300L, is(true));
+
+            final long deadline = System.currentTimeMillis() + 5000L;
+            while (!"v2".equals(cache.get("ahead")) && System.currentTimeMillis() < deadline) {
+                sleep(20L);
+            }
+            assertThat(cache.get("ahead"), is("v2"));
+            assertThat(loads.get(), is(2));
+
+            JedisCacheMetrics metrics = cache.getMetrics();
+            assertThat(metrics.getStaleHits(), is(10L));
+            assertThat(metrics.getRefreshesScheduled(), is(1L));
+            assertThat(metrics.getRefreshesRejected(), is(0L));
+            assertThat(metrics.getComputes(), is(2L));
+        } finally {
+            executor.shutdownNow();
+            cache.close();
+        }
+    }
+
+    @Test
+    public void refreshAheadRejectsRefreshesWhenQueueIsFull() throws Exception {
+        // a single thread and room for a single waiting refresh
+        JedisCache cache = new JedisCache(this.jedisPool)
+            .setRefreshAhead(0.02d, 1, 1);
+
+        for (String key : keys(3)) {
+            cache.getOrCompute(key, 10, () -> "old");
+        }
+        sleep(250L);
+
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            for (String key : keys(3)) {
+                assertThat(cache.getOrCompute(key, 10, () -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return "new";
+                }), is("old"));
+            }
+
+            JedisCacheMetrics metrics = cache.getMetrics();
+            assertThat(metrics.getStaleHits(), is(3L));
+            // k0 is refreshing, k1 is waiting and k2 is dropped
+            assertThat(metrics.getRefreshesScheduled(), is(2L));
+            assertThat(metrics.getRefreshesRejected(), is(1L));
+        } finally {
+            release.countDown();
+        }
+
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (!"new".equals(cache.get("k1")) && System.currentTimeMillis() < deadline) {
+            sleep(20L);
+        }
+        assertThat(cache.get("k0"), is("new"));
+        assertThat(cache.get("k1"), is("new"));
+        assertThat(cache.get("k2"), is("old"));
+
+        // a rejected refresh is retried by the next read
+        assertThat(cache.getOrCompute("k2", 10, () -> "new"), is("old"));
+        assertThat(cache.getMetrics().getRefreshesScheduled(), is(3L));
+
+        cache.close();
+    }
+
+    @Test
+    public void clearOnlyDeletesKeysInNamespace() {
+        // more keys than a single scan returns
+        JedisCache cache = new JedisCache(this.jedisPool)
+            .setNamespace("test:")
+            .setBatchSize(10);
+
+        for (String key : keys(50)) {
+            cache.set(key, key, 60);
+        }
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            jedis.set("k0", "other");
+            jedis.set("other:k0", "other");
+            jedis.set("test", "other");
+            jedis.set("testk0", "other");
+        }
+
+        cache.clear();
+
+        for (String key : keys(50)) {
+            assertThat(cache.get(key), is(nullValue()));
+        }
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            assertThat(jedis.dbSize(), is(4L));
+            assertThat(jedis.get("k0"), is("other"));
+            assertThat(jedis.get("other:k0"), is("other"));
+            assertThat(jedis.get("test"), is("other"));
+            assertThat(jedis.get("testk0"), is("other"));
+        }
+
+        cache.close();
+    }
+
+    @Test
+    public void clearEscapesGlobCharactersInNamespace() {
+        JedisCache cache = new JedisCache(this.jedisPool)
+            .setNamespace("te*st[1]:");
+
+        cache.set("a", "1", 60);
+        cache.set("b", "2", 60);
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            // all matched by the namespace if it were a pattern
+            jedis.set("test1:a", "other");
+            jedis.set("te-st1:a", "other");
+            jedis.set("teXXst1:b", "other");
+        }
+
+        cache.clear();
+
+        assertThat(cache.get("a"), is(nullValue()));
+        assertThat(cache.get("b"), is(nullValue()));
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            assertThat(jedis.dbSize(), is(3L));
+            assertThat(jedis.get("test1:a"), is("other"));
+            assertThat(jedis.get("te-st1:a"), is("other"));
+            assertThat(jedis.get("teXXst1:b"), is("other"));
+        }
+
+        cache.close();
+    }
+
+    @Test
+    public void incrValuesSetOrAdded() {
+        JedisCache cache = new JedisCache(this.jedisPool);
+
+        cache.set("a", 5L, 60);
+        assertThat(cache.incr("a", 2), is(7L));
+        assertThat(cache.get("a"), is(7L));
+
+        cache.add("b", 0, 60);
+        assertThat(cache.incr("b", 1), is(1L));
+        assertThat(cache.decr("b", 3), is(-2L));
+        assertThat(cache.get("b"), is(-2L));
+
+        cache.close();
+    }
+
+    @Test
+    public void digitStringsAreLeftToTheCodec() {
+        JedisCache cache = new JedisCache(this.jedisPool, JedisCodec.of(
+            (Object value) -> ((String)value).getBytes(StandardCharsets.UTF_8),
+            (byte[] bytes) -> new String(bytes, StandardCharsets.UTF_8)));
+
+        cache.set("a", "123", 60);
+        assertThat(cache.get("a"), is("123"));
+
+        assertThat(cache.incr("b", 5), is(5L));
+        assertThat(cache.get("b"), is("5"));
+
+        cache.close();
+
+        // and with the default codec a digit string is not a counter either
+        JedisCache defaultCache = new JedisCache(this.jedisPool);
+        defaultCache.set("c", "123", 60);
+        assertThat(defaultCache.get("c"), is("123"));
+        defaultCache.close();
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void clearRequiresNamespace() {
+        JedisCache cache = new JedisCache(this.jedisPool);
+        try {
+            cache.set("a", "1", 60);
+            cache.clear();
+        } finally {
+            try (Jedis jedis = this.jedisPool.getResource()) {
+                assertThat(jedis.get("a"), is(notNullValue()));
+            }
+            cache.close();
+        }
+    }
+
+    @Test
+    public void clearRegionMakesOldKeysUnreadable() {
+        JedisCache cache = new JedisCache(this.jedisPool)
+            .setNamespace("test:")
+            .setGenerations(Arrays.asList("users:"), 1, TimeUnit.SECONDS);
+
+        cache.set("users:1", "a", 60);
+        cache.set("products:1", "b", 60);
+
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            // namespace + region + generation + ':' + rest of key
+            assertThat(jedis.exists("test:users:0:1"), is(true));
+            assertThat(jedis.exists("test:products:1"), is(true));
+        }
+
+        cache.clearRegion("users:");
+
+        assertThat(cache.get("users:1"), is(nullValue()));
+        assertThat(cache.get("products:1"), is("b"));
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            // not deleted, just never read again
+            assertThat(jedis.exists("test:users:0:1"), is(true));
+            assertThat(jedis.get("test:__generation:users:"), is("1"));
+        }
+
+        cache.set("users:1", "c", 60);
+        assertThat(cache.get("users:1"), is("c"));
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            assertThat(jedis.exists("test:users:1:1"), is(true));
+        }
+
+        // increments every generation and deletes the other keys, but not
+        // the generations themselves
+        cache.clear();
+
+        assertThat(cache.get("users:1"), is(nullValue()));
+        assertThat(cache.get("products:1"), is(nullValue()));
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            assertThat(jedis.get("test:__generation:users:"), is("2"));
+        }
+
+        cache.close();
+    }
+
+    @Test
+    public void clearRegionIsSeenByOtherNodesAfterRefresh() {
+        JedisCache node1 = new JedisCache(this.jedisPool)
+            .setNamespace("test:")
+            .setGenerations(Arrays.asList("users:"), 200, TimeUnit.MILLISECONDS);
+        JedisCache node2 = new JedisCache(this.jedisPool)
+            .setNamespace("test:")
+            .setGenerations(Arrays.asList("users:"), 200, TimeUnit.MILLISECONDS);
+
+        node1.set("users:1", "a", 60);
+        assertThat(node2.get("users:1"), is("a"));
+
+        node1.clearRegion("users:");
+        assertThat(node1.get("users:1"), is(nullValue()));
+
+        sleep(300L);
+        assertThat(node2.get("users:1"), is(nullValue()));
+
+        node1.close();
+        node2.close();
+    }
+
+    @Test
+    public void clearWithEveryKeyGenerationalDoesNotScan() {
+        // no namespace: clear() would refuse to scan
+        JedisCache cache = new JedisCache(this.jedisPool)
+            .setGenerations(Arrays.asList(""), 1, TimeUnit.SECONDS);
+
+        cache.set("a", "1", 60);
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            jedis.set("other", "other");
+        }
+
+        cache.clear();
+
+        assertThat(cache.get("a"), is(nullValue()));
+        try (Jedis jedis = this.jedisPool.getResource()) {
+            assertThat(jedis.exists("0:a"), is(true));
+            assertThat(jedis.get("other"), is("other"));
+            assertThat(jedis.get("__generation:"), is("1"));
+        }
+
+        cache.close();
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void clearRegionRequiresGenerations() {
+        JedisCache cache = new JedisCache(this.jedisPool);
+        try {
+            cache.clearRegion("users:");
+        } finally {
+            cache.close();
+        }
+    }
+
+}
@@ -1,6 +1,8 @@
 package com.fizzed.jedis.queue;
 
 import com.fizzed.crux.util.StopWatch;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
@@ -45,6 +47,23 @@ public class JedisConcurrentQueue<E> extends JedisQueue<E> {
     
     @Override
     protected byte[] doPop(long timeout, TimeUnit unit) throws InterruptedException {
+        return this.withPermit(timeout, unit, super::doPop);
+    }
+    
+    @Override
+    protected List<byte[]> doPopMany(int max, long timeout, TimeUnit unit) throws InterruptedException {
+        // a single permit is held for the entire batch
+        List<byte[]> values = this.withPermit(timeout, unit,
+            (remainingTimeout, remainingUnit) -> super.doPopMany(max, remainingTimeout, remainingUnit));
+        return (values != null ? values : Collections.emptyList());
+    }
+    
+    @FunctionalInterface
+    protected interface PermittedPop<T> {
+        T apply(long timeout, TimeUnit unit) throws InterruptedException;
+    }
+    
+    protected <T> T withPermit(long timeout, TimeUnit unit, PermittedPop<T> pop) throws InterruptedException {
         StopWatch timer = StopWatch.timeMillis();
         
         // only permit 1 thread to actually pop the jedis queue at time
@@ -56,9 +75,9 @@ public class JedisConcurrentQueue<E> extends JedisQueue<E> {
         //log.debug("Acquired pop lock (in {})", timer);
         try {
             if (timeout < 0) {
-                return super.doPop(timeout, unit);
+                return pop.apply(timeout, unit);
             } else if (timeout == 0) {
-                return super.doPop(timeout, unit);
+                return pop.apply(timeout, unit);
             } else {
                 // calculate timeout remaining
                 double remaining = TimeUnit.MILLISECONDS.convert(timeout, unit)
@@ -69,11 +88,11 @@ public class JedisConcurrentQueue<E> extends JedisQueue<E> {
                 // if nothing is left try an immediate pop at least
                 if (remaining < 0) {
                     //log.debug("Timeout remaining < 0, trying an immediate pop");
-                    return super.doPop(0, null);
+                    return pop.apply(0, null);
                 } else {
                     long remainingMillis = (long)remaining;
                     //log.debug("Timeout remaining {} ms, doing doPop", remainingMillis);
-                    return super.doPop(remainingMillis, TimeUnit.MILLISECONDS);
+                    return pop.apply(remainingMillis, TimeUnit.MILLISECONDS);
                 }
             }
         } finally {
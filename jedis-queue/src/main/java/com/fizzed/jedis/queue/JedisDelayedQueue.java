@@ -0,0 +1,341 @@
+package com.fizzed.jedis.queue;
+
+import com.fizzed.jedis.JedisScript;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.JedisPool;
+
+/**
+ * Redis-backed queue of items that are delivered at a later time (e.g. retries
+ * with a backoff or scheduled jobs).  Delayed items wait in a sorted set scored
+ * by when they are due and a mover promotes due items onto the tail of the
+ * queue (a plain list popped like a JedisQueue) in batches.
+ *
+ * Each batch is a single script: a ZRANGEBYSCORE of at most the batch size
+ * from the lowest score, so its cost does not depend on how many items are
+ * scheduled. It also returns when the next item is due so the mover sleeps
+ * until then (or the move interval, whichever is sooner, since other
+ * producers may schedule sooner items) rather than polling.
+ *
+ * The mover runs in the background once this queue pops (or is started),
+ * and any number of movers may run at once.  Due times are from the clocks
+ * of the producers and movers, which should therefore be in sync.
+ *
+ * @author jjlauer
+ * @param <E>
+ */
+public class JedisDelayedQueue<E> extends JedisQueue<E> {
+    static private final Logger log = LoggerFactory.getLogger(JedisDelayedQueue.class);
+
+    static public final int DEFAULT_MOVE_BATCH_SIZE = 500;
+    static public final long DEFAULT_MOVE_INTERVAL_MILLIS = 1000L;
+    // lua unpack() has a limit on the number of values
+    static protected final int MOVE_LIMIT = 1000;
+    // members are prefixed with a unique id (16 hex chars) so the same item
+    // may be scheduled more than once, and items due at the same time are
+    // ordered by it (in the order they were pushed by the same process)
+    static protected final int ID_LENGTH = 16;
+    static private final int PROCESS_ID = ThreadLocalRandom.current().nextInt();
+    static private final AtomicInteger SEQUENCE = new AtomicInteger();
+
+    // KEYS: delayed, queue
+    // ARGV: now, limit
+    static protected final JedisScript MOVE_SCRIPT = new JedisScript(
+        "local due = redis.call('zrangebyscore', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, tonumber(ARGV[2]))\n" +
+        "if #due > 0 then\n" +
+        "  local values = {}\n" +
+        "  for i, member in ipairs(due) do\n" +
+        "    values[i] = string.sub(member, " + (ID_LENGTH + 1) + ")\n" +
+        "  end\n" +
+        "  redis.call('rpush', KEYS[2], unpack(values))\n" +
+        // the due members are the lowest ranked
+        "  redis.call('zremrangebyrank', KEYS[1], 0, #due - 1)\n" +
+        "end\n" +
+        "local upcoming = redis.call('zrange', KEYS[1], 0, 0, 'WITHSCORES')\n" +
+        "return {#due, upcoming[2] or '-1'}");
+
+    protected final String delayedKeyName;
+    protected final byte[] delayedKey;
+    protected int moveBatchSize;
+    protected long moveIntervalMillis;
+    protected ScheduledExecutorService mover;
+    protected ScheduledFuture<?> nextMove;
+    protected long nextMoveMillis;
+
+    public JedisDelayedQueue(String name, JedisPool jedisPool, Function<E,byte[]> encode, Function<byte[],E> decode) {
+        super(name, jedisPool, encode, decode);
+        // derived from the key so it is in its slot if a cluster
+        this.delayedKeyName = this.keyName + ":delayed";
+        this.delayedKey = this.delayedKeyName.getBytes(StandardCharsets.UTF_8);
+        this.moveBatchSize = DEFAULT_MOVE_BATCH_SIZE;
+        this.moveIntervalMillis = DEFAULT_MOVE_INTERVAL_MILLIS;
+    }
+
+    /**
+     * Gets the key of the sorted set of delayed items in redis.
+     * @return The key
+     */
+    public String getDelayedKeyName() {
+        return this.delayedKeyName;
+    }
+
+    public int getMoveBatchSize() {
+        return moveBatchSize;
+    }
+
+    /**
+     * Sets the max number of due items promoted in a single round trip.
+     * @param moveBatchSize The max number of items per batch (must be > 0 and
+     *      <= 1000)
+     * @return This queue
+     */
+    public JedisDelayedQueue<E> setMoveBatchSize(int moveBatchSize) {
+        if (moveBatchSize <= 0 || moveBatchSize > MOVE_LIMIT) {
+            throw new IllegalArgumentException("moveBatchSize must be > 0 and <= " + MOVE_LIMIT);
+        }
+        this.moveBatchSize = moveBatchSize;
+        return this;
+    }
+
+    public long getMoveIntervalMillis() {
+        return moveIntervalMillis;
+    }
+
+    /**
+     * Sets the max amount of time the mover sleeps, which is how late an item
+     * scheduled by another producer to be due sooner than all others may be.
+     * @param moveInterval The interval (must be > 0)
+     * @param unit The unit of the interval
+     * @return This queue
+     */
+    public JedisDelayedQueue<E> setMoveInterval(long moveInterval, TimeUnit unit) {
+        if (moveInterval <= 0) {
+            throw new IllegalArgumentException("moveInterval must be > 0");
+        }
+        this.moveIntervalMillis = unit.toMillis(moveInterval);
+        return this;
+    }
+
+    /**
+     * Pushes an item that is delivered (pushed onto the queue) once due.
+     * @param e The item
+     * @param deliverAt When the item is due (if now or in the past then the item
+     *      is pushed onto the queue right away)
+     * @throws InterruptedException
+     */
+    public void push(E e, Instant deliverAt) throws InterruptedException {
+        this.pushAll(Collections.singletonList(e), deliverAt);
+    }
+
+    /**
+     * Pushes an item that is delivered after a delay.
+     * @param e The item
+     * @param delay The delay
+     * @param unit The unit of the delay
+     * @throws InterruptedException
+     * @see #push(java.lang.Object, java.time.Instant)
+     */
+    public void pushDelayed(E e, long delay, TimeUnit unit) throws InterruptedException {
+        this.push(e, Instant.now().plusMillis(unit.toMillis(delay)));
+    }
+
+    /**
+     * Pushes all items to be delivered at the same time, in batches of
+     * pushBatchSize per ZADD.
+     * @param items The items
+     * @param deliverAt When the items are due (if now or in the past then the
+     *      items are pushed onto the queue right away)
+     * @return The number of items pushed
+     * @throws InterruptedException
+     */
+    public int pushAll(Collection<E> items, Instant deliverAt) throws InterruptedException {
+        Objects.requireNonNull(items, "items was null");
+        Objects.requireNonNull(deliverAt, "deliverAt was null");
+        this.checkNotClosed();
+
+        final long deliverAtMillis = deliverAt.toEpochMilli();
+        if (deliverAtMillis <= System.currentTimeMillis()) {
+            return this.pushAll(items);
+        }
+
+        if (items.isEmpty()) {
+            return 0;
+        }
+
+        final long started = System.nanoTime();
+        boolean success = false;
+        try {
+            // in batches of pushBatchSize on a single connection
+            final Iterator<E> iterator = items.iterator();
+            final Map<byte[],Double> members = new HashMap<>();
+            this.execute(jedis -> {
+                while (!members.isEmpty() || iterator.hasNext()) {
+                    while (members.size() < this.pushBatchSize && iterator.hasNext()) {
+                        members.put(this.toMember(this.encode.apply(iterator.next())), (double)deliverAtMillis);
+                    }
+                    jedis.zadd(this.delayedKey, members);
+                    members.clear();
+                }
+                return null;
+            });
+            success = true;
+        } finally {
+            this.measured("queue.pushDelayed", started, success);
+        }
+
+        // the mover may be sleeping past when these are due
+        this.scheduleMove(deliverAtMillis - System.currentTimeMillis());
+
+        return items.size();
+    }
+
+    /**
+     * Gets the number of items waiting to be due.
+     * @return The number of delayed items
+     */
+    public long getDelayedCount() {
+        return this.execute(jedis -> jedis.zcard(this.delayedKey));
+    }
+
+    /**
+     * Promotes a single batch of due items onto the queue.  Called by the mover
+     * in the background but may also be called directly.
+     * @return The number of items promoted
+     */
+    public int move() {
+        return (int)this.moveBatch()[0];
+    }
+
+    /**
+     * Starts the mover in the background (if not yet started).  Called by the
+     * first pop.
+     */
+    public synchronized void start() {
+        if (this.mover == null && !this.isClosed()) {
+            this.mover = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "jedis-mover-" + this.name);
+                t.setDaemon(true);
+                return t;
+            });
+            this.scheduleMove(0L);
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (this.mover != null) {
+                this.mover.shutdownNow();
+            }
+        }
+        super.close();
+    }
+
+    @Override
+    protected byte[] doPop(long timeout, TimeUnit unit) throws InterruptedException {
+        this.start();
+        return super.doPop(timeout, unit);
+    }
+
+    @Override
+    protected List<byte[]> doPopMany(int max, long timeout, TimeUnit unit) throws InterruptedException {
+        this.start();
+        return super.doPopMany(max, timeout, unit);
+    }
+
+    /**
+     * Promotes a single batch of due items onto the queue.
+     * @return The number of items promoted and when the next item is due (or -1
+     *      if none)
+     */
+    protected long[] moveBatch() {
+        final long started = System.nanoTime();
+        boolean success = false;
+        try {
+            final List<?> reply = (List<?>)this.execute(jedis -> MOVE_SCRIPT.eval(jedis,
+                Arrays.asList(this.delayedKey, this.key),
+                Arrays.asList(toBytes(System.currentTimeMillis()), toBytes(this.moveBatchSize))));
+            success = true;
+            final long moved = (Long)reply.get(0);
+            final long nextDueMillis = (long)Double.parseDouble(new String((byte[])reply.get(1), StandardCharsets.UTF_8));
+            return new long[] { moved, nextDueMillis };
+        } finally {
+            this.measured("queue.move", started, success);
+        }
+    }
+
+    protected void runMover() {
+        synchronized (this) {
+            this.nextMove = null;
+        }
+
+        long delayMillis = this.moveIntervalMillis;
+        try {
+            final long[] result = this.moveBatch();
+            if (result[0] >= this.moveBatchSize) {
+                // likely more due right now
+                delayMillis = 0L;
+            } else if (result[1] >= 0) {
+                delayMillis = Math.min(delayMillis, Math.max(0L, result[1] - System.currentTimeMillis()));
+            }
+        } catch (Exception e) {
+            if (this.isClosed() || this.jedisPool.isClosed()) {
+                return;
+            }
+            log.error("Unable to move due items", e);
+        }
+
+        this.scheduleMove(delayMillis);
+    }
+
+    /**
+     * Schedules the mover to run after a delay unless it is already scheduled to
+     * run sooner.
+     * @param delayMillis The delay
+     */
+    protected synchronized void scheduleMove(long delayMillis) {
+        if (this.mover == null || this.mover.isShutdown()) {
+            return;
+        }
+        delayMillis = Math.max(0L, delayMillis);
+        final long moveMillis = System.currentTimeMillis() + delayMillis;
+        if (this.nextMove != null) {
+            if (this.nextMoveMillis <= moveMillis) {
+                return;
+            }
+            this.nextMove.cancel(false);
+        }
+        this.nextMoveMillis = moveMillis;
+        this.nextMove = this.mover.schedule(this::runMover, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    protected byte[] toMember(byte[] value) {
+        final String id = String.format("%08x%08x", PROCESS_ID, SEQUENCE.getAndIncrement());
+        final byte[] member = new byte[ID_LENGTH + value.length];
+        System.arraycopy(id.getBytes(StandardCharsets.US_ASCII), 0, member, 0, ID_LENGTH);
+        System.arraycopy(value, 0, member, ID_LENGTH, value.length);
+        return member;
+    }
+
+    static protected byte[] toBytes(long value) {
+        return Long.toString(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+}
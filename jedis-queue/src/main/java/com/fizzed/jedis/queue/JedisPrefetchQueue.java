@@ -0,0 +1,306 @@
+package com.fizzed.jedis.queue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.JedisPool;
+
+/**
+ * Queue where a single background fetcher keeps a bounded local buffer filled
+ * from a redis-backed queue in batches and pop() is served from the local
+ * buffer.  Unlike the JedisConcurrentQueue, consumer threads never wait on a
+ * permit for their turn at redis -- if the buffer has items they are returned
+ * immediately without any locks or network calls.
+ *
+ * The fetcher refills the buffer up to the high watermark whenever it drops
+ * to (or below) the low watermark.  It is only started by the first pop so a
+ * queue used only for pushing never prefetches.  On close() the fetcher is
+ * stopped cooperatively rather than interrupted (which would close its socket
+ * and lose any items redis already popped for it), so a fetch in flight is
+ * finished first, taking up to a second.  Then any items still in the local
+ * buffer are pushed back onto the head of the redis queue (in their original
+ * order) so nothing is lost.
+ *
+ * @author jjlauer
+ * @param <E>
+ */
+public class JedisPrefetchQueue<E> extends JedisQueue<E> {
+    static private final Logger log = LoggerFactory.getLogger(JedisPrefetchQueue.class);
+
+    static protected final long FETCH_TIMEOUT_MILLIS = 1000L;
+    static protected final long FETCH_ERROR_BACKOFF_MILLIS = 1000L;
+
+    protected final int lowWatermark;
+    protected final int highWatermark;
+    protected final MpmcRingBuffer<byte[]> buffer;
+    protected final AtomicBoolean started;
+    protected final AtomicBoolean running;
+    protected final AtomicBoolean pushedBack;
+    protected final ReentrantLock lock;
+    protected final Condition notEmpty;
+    protected final Condition belowLowWatermark;
+    protected final AtomicInteger consumersWaiting;
+    protected volatile boolean fetcherWaiting;
+    protected volatile Thread fetcher;
+
+    public JedisPrefetchQueue(String name, JedisPool jedisPool, Function<E,byte[]> encode, Function<byte[],E> decode) {
+        this(name, jedisPool, encode, decode, 25, 100);
+    }
+
+    public JedisPrefetchQueue(String name, JedisPool jedisPool, Function<E,byte[]> encode, Function<byte[],E> decode, int lowWatermark, int highWatermark) {
+        super(name, jedisPool, encode, decode);
+        if (lowWatermark < 0) {
+            throw new IllegalArgumentException("lowWatermark must be >= 0");
+        }
+        if (highWatermark <= lowWatermark) {
+            throw new IllegalArgumentException("highWatermark must be > lowWatermark");
+        }
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.buffer = new MpmcRingBuffer<>(highWatermark);
+        this.started = new AtomicBoolean();
+        this.running = new AtomicBoolean(true);
+        this.pushedBack = new AtomicBoolean();
+        this.lock = new ReentrantLock();
+        this.notEmpty = this.lock.newCondition();
+        this.belowLowWatermark = this.lock.newCondition();
+        this.consumersWaiting = new AtomicInteger();
+    }
+
+    public int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    /**
+     * Gets the approximate number of items prefetched into the local buffer.
+     * @return The number of items buffered locally
+     */
+    public int getBufferedSize() {
+        return this.buffer.size();
+    }
+
+    @Override
+    protected byte[] doPop(long timeout, TimeUnit unit) throws InterruptedException {
+        this.startFetcher();
+
+        // fast path: no locks, no network
+        byte[] bytes = this.buffer.poll();
+        if (bytes != null) {
+            this.afterTake();
+            return bytes;
+        }
+
+        if (timeout == 0) {
+            return null;
+        }
+
+        long nanos = (timeout > 0 ? unit.toNanos(timeout) : Long.MAX_VALUE);
+
+        this.lock.lockInterruptibly();
+        try {
+            this.consumersWaiting.incrementAndGet();
+            try {
+                while ((bytes = this.buffer.poll()) == null) {
+                    if (!this.running.get()) {
+                        return null;
+                    }
+                    if (timeout < 0) {
+                        this.notEmpty.await();
+                    } else {
+                        if (nanos <= 0) {
+                            return null;
+                        }
+                        nanos = this.notEmpty.awaitNanos(nanos);
+                    }
+                }
+            } finally {
+                this.consumersWaiting.decrementAndGet();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+
+        this.afterTake();
+        return bytes;
+    }
+
+    @Override
+    protected List<byte[]> doPopMany(int max, long timeout, TimeUnit unit) throws InterruptedException {
+        byte[] first = this.doPop(timeout, unit);
+        if (first == null) {
+            return Collections.emptyList();
+        }
+
+        List<byte[]> values = new ArrayList<>(Math.min(max, this.highWatermark));
+        values.add(first);
+        byte[] bytes;
+        while (values.size() < max && (bytes = this.buffer.poll()) != null) {
+            values.add(bytes);
+        }
+
+        this.afterTake();
+        return values;
+    }
+
+    @Override
+    public void close() {
+        if (this.running.compareAndSet(true, false)) {
+            Thread t = this.fetcher;
+            if (t != null) {
+                // not interrupted: it sees it is closed once its fetch in
+                // flight (at most FETCH_TIMEOUT_MILLIS) returns
+                this.signal(this.belowLowWatermark);
+                try {
+                    t.join(FETCH_TIMEOUT_MILLIS * 2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            // wake up any consumers so they see we're closed
+            this.signal(this.notEmpty);
+
+            if (t != null && t.isAlive()) {
+                // the fetcher pushes back on its way out, including whatever
+                // it is still fetching
+                log.warn("Prefetch queue {} fetcher did not stop in time (it will push back what it fetches)", this.keyName);
+            } else {
+                this.pushBackOnce();
+            }
+        }
+        super.close();
+    }
+
+    protected void afterTake() {
+        // only bother the fetcher if its waiting on us
+        if (this.fetcherWaiting && this.buffer.size() <= this.lowWatermark) {
+            this.signal(this.belowLowWatermark);
+        }
+    }
+
+    protected void signal(Condition condition) {
+        this.lock.lock();
+        try {
+            condition.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    protected void startFetcher() {
+        if (this.started.compareAndSet(false, true)) {
+            Thread t = new Thread(this::fetch, "jedis-prefetch-" + this.keyName);
+            t.setDaemon(true);
+            this.fetcher = t;
+            t.start();
+        }
+    }
+
+    protected void fetch() {
+        try {
+            while (this.running.get()) {
+                int size = this.buffer.size();
+
+                if (size > this.lowWatermark) {
+                    this.awaitBelowLowWatermark();
+                    continue;
+                }
+
+                List<byte[]> values;
+                try {
+                    // calls JedisQueue.doPopMany directly against redis
+                    values = super.doPopMany(this.highWatermark - size, FETCH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                } catch (Exception e) {
+                    if (!this.running.get()) {
+                        break;
+                    }
+                    log.error("Prefetch queue {} unable to fetch (will retry in {} ms)", this.keyName, FETCH_ERROR_BACKOFF_MILLIS, e);
+                    Thread.sleep(FETCH_ERROR_BACKOFF_MILLIS);
+                    continue;
+                }
+
+                if (values.isEmpty()) {
+                    continue;
+                }
+
+                for (byte[] bytes : values) {
+                    // only the fetcher offers and it never asks for more than
+                    // there is room for, so this will not fail
+                    this.buffer.offer(bytes);
+                }
+
+                if (this.consumersWaiting.get() > 0) {
+                    this.signal(this.notEmpty);
+                }
+            }
+        } catch (InterruptedException e) {
+            // we're done
+        } finally {
+            if (!this.running.get()) {
+                this.pushBackOnce();
+            }
+        }
+    }
+
+    protected void awaitBelowLowWatermark() throws InterruptedException {
+        this.lock.lockInterruptibly();
+        try {
+            this.fetcherWaiting = true;
+            // re-check under lock so a consumer's signal cannot be missed
+            while (this.running.get() && this.buffer.size() > this.lowWatermark) {
+                this.belowLowWatermark.await(FETCH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            this.fetcherWaiting = false;
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Pushes back the local buffer once closed, by either close() or the
+     * fetcher (if it did not stop in time) but never both, so items are not
+     * pushed back while the other side is still polling the buffer.
+     */
+    protected void pushBackOnce() {
+        if (this.pushedBack.compareAndSet(false, true)) {
+            this.pushBack();
+        }
+    }
+
+    protected void pushBack() {
+        List<byte[]> values = new ArrayList<>();
+        byte[] bytes;
+        while ((bytes = this.buffer.poll()) != null) {
+            values.add(bytes);
+        }
+
+        if (values.isEmpty()) {
+            return;
+        }
+
+        // lpush adds each value to the head in turn, so reverse to keep order
+        Collections.reverse(values);
+
+        try {
+            this.execute(jedis -> jedis.lpush(this.key, values.toArray(new byte[values.size()][])));
+            log.debug("Prefetch queue {} pushed back {} items", this.keyName, values.size());
+        } catch (Exception e) {
+            log.error("Prefetch queue {} unable to push back {} items", this.keyName, values.size(), e);
+        }
+    }
+
+}
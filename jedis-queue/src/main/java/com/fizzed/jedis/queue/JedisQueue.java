@@ -1,41 +1,97 @@
 package com.fizzed.jedis.queue;
 
 import com.fizzed.queue.AbstractQueue;
+import com.fizzed.jedis.JedisAsyncClient;
+import com.fizzed.jedis.JedisBlockingMultiplexer;
+import com.fizzed.jedis.JedisCallable;
 import com.fizzed.jedis.JedisClients;
+import com.fizzed.jedis.JedisClusterSlots;
+import com.fizzed.jedis.JedisFactory;
+import com.fizzed.jedis.JedisMetrics;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
+import redis.clients.jedis.Client;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
 import redis.clients.jedis.exceptions.JedisException;
 
 /**
  * Implement of a redis-backed queue.
  * 
+ * With a redis cluster pool the key of the queue is hash tagged (e.g. "{jobs}"
+ * for a queue named "jobs") so any other keys of it (e.g. processing lists)
+ * are in the same slot and may be used together in scripts.
+ * 
  * @author jjlauer
  * @param <E> 
  */
 public class JedisQueue<E> extends AbstractQueue<E> {
 //    static private final Logger log = LoggerFactory.getLogger(JedisQueue.class);
 
+    static public final int DEFAULT_PUSH_BATCH_SIZE = 500;
+    
     protected final JedisPool jedisPool;
+    protected final JedisAsyncClient asyncClient;
+    protected final JedisBlockingMultiplexer blockingMultiplexer;
+    protected final String keyName;
     protected final byte[] key;
     protected final Function<E,byte[]> encode;
     protected final Function<byte[],E> decode;
+    protected int pushBatchSize;
     
     public JedisQueue(String name, JedisPool jedisPool, Function<E,byte[]> encode, Function<byte[],E> decode) {
         super(name);
         this.jedisPool = jedisPool;
-        this.key = name.getBytes(StandardCharsets.UTF_8);
+        this.asyncClient = JedisFactory.getAsyncClient(jedisPool);
+        this.blockingMultiplexer = JedisFactory.getBlockingMultiplexer(jedisPool);
+        this.keyName = (JedisFactory.isCluster(jedisPool) ? JedisClusterSlots.hashTagged(name) : name);
+        this.key = this.keyName.getBytes(StandardCharsets.UTF_8);
         this.encode = encode;
         this.decode = decode;
+        this.pushBatchSize = DEFAULT_PUSH_BATCH_SIZE;
     }
 
     public JedisPool getJedisPool() {
         return this.jedisPool;
     }
+
+    /**
+     * Gets the key of the queue in redis (the name, hash tagged if a cluster).
+     * @return The key
+     */
+    public String getKeyName() {
+        return this.keyName;
+    }
+
+    public int getPushBatchSize() {
+        return pushBatchSize;
+    }
+
+    /**
+     * Sets the max number of items sent in a single multi-value RPUSH by
+     * pushAll() and push(Iterator).
+     * @param pushBatchSize The max number of items per batch (must be > 0)
+     * @return This queue
+     */
+    public JedisQueue<E> setPushBatchSize(int pushBatchSize) {
+        if (pushBatchSize <= 0) {
+            throw new IllegalArgumentException("pushBatchSize must be > 0");
+        }
+        this.pushBatchSize = pushBatchSize;
+        return this;
+    }
     
     @Override
     public void push(E e) throws InterruptedException {
@@ -55,27 +111,257 @@ public class JedisQueue<E> extends AbstractQueue<E> {
      */
     public void push(E e, long ttl, TimeUnit unit) throws InterruptedException {
         this.checkNotClosed();
-        byte[] bytes = this.encode.apply(e);
-        try (Jedis jedis = this.jedisPool.getResource()) {
-            jedis.rpush(key, bytes);
-            if (ttl > 0) {
-                int seconds = (int)TimeUnit.SECONDS.convert(ttl, unit);
-                if (seconds < 1) {
-                    seconds = 1;    // 1-second minimum
+        final long started = System.nanoTime();
+        boolean success = false;
+        try {
+            byte[] bytes = this.encode.apply(e);
+            if (this.asyncClient != null) {
+                for (CompletableFuture<?> reply : this.doPushAsync(new byte[][] { bytes }, ttl, unit)) {
+                    JedisAsyncClient.await(reply);
+                }
+            } else {
+                this.execute(jedis -> {
+                    this.doPush(jedis, new byte[][] { bytes }, ttl, unit);
+                    return null;
+                });
+            }
+            success = true;
+        } finally {
+            this.measured("queue.push", started, success);
+        }
+    }
+    
+    /**
+     * Pushes all items onto the queue and does not set the ttl.
+     * @param items The items to push onto the queue
+     * @return The number of items pushed
+     * @throws InterruptedException 
+     * @see #push(java.util.Iterator, long, java.util.concurrent.TimeUnit) 
+     */
+    public int pushAll(Collection<E> items) throws InterruptedException {
+        return this.pushAll(items, -1, TimeUnit.SECONDS);
+    }
+    
+    /**
+     * Pushes all items onto the queue.
+     * @param items The items to push onto the queue
+     * @param ttl If greater than 0 then the amount of expiration to set on this key
+     *      or 0 or -1 for no expiration.
+     * @param unit The unit of the ttl
+     * @return The number of items pushed
+     * @throws InterruptedException 
+     * @see #push(java.util.Iterator, long, java.util.concurrent.TimeUnit) 
+     */
+    public int pushAll(Collection<E> items, long ttl, TimeUnit unit) throws InterruptedException {
+        Objects.requireNonNull(items, "items was null");
+        return this.push(items.iterator(), ttl, unit);
+    }
+    
+    /**
+     * Pushes all items of the iterator onto the queue and does not set the ttl.
+     * @param items The items to push onto the queue
+     * @return The number of items pushed
+     * @throws InterruptedException 
+     * @see #push(java.util.Iterator, long, java.util.concurrent.TimeUnit) 
+     */
+    public int push(Iterator<E> items) throws InterruptedException {
+        return this.push(items, -1, TimeUnit.SECONDS);
+    }
+    
+    /**
+     * Pushes all items of the iterator onto the queue.  Items are encoded in
+     * batches of pushBatchSize and each batch is sent as a single multi-value
+     * RPUSH pipelined with the EXPIRE (if a ttl is set) so that each batch only
+     * costs a single round trip to redis.  A single connection is borrowed from
+     * the pool for all batches (or if the pool has an async client then all
+     * batches are pipelined on it without waiting on each other). Batches are
+     * not atomic -- if a batch fails then all prior batches will have been pushed.
+     * @param items The items to push onto the queue
+     * @param ttl If greater than 0 then the amount of expiration to set on this key
+     *      or 0 or -1 for no expiration.
+     * @param unit The unit of the ttl
+     * @return The number of items pushed
+     * @throws InterruptedException 
+     */
+    public int push(Iterator<E> items, long ttl, TimeUnit unit) throws InterruptedException {
+        Objects.requireNonNull(items, "items was null");
+        this.checkNotClosed();
+        
+        if (!items.hasNext()) {
+            return 0;
+        }
+        
+        final long started = System.nanoTime();
+        boolean success = false;
+        try {
+            final int pushed = (this.asyncClient != null ? this.pushAsync(items, ttl, unit) : this.pushPooled(items, ttl, unit));
+            success = true;
+            return pushed;
+        } finally {
+            this.measured("queue.pushAll", started, success);
+        }
+    }
+    
+    private int pushPooled(Iterator<E> items, long ttl, TimeUnit unit) throws InterruptedException {
+        // outside the callable so a batch redirected by a cluster is resent
+        final List<byte[]> batch = new ArrayList<>(this.pushBatchSize);
+        final int[] pushed = new int[1];
+        this.execute(jedis -> {
+            while (!batch.isEmpty() || items.hasNext()) {
+                while (batch.size() < this.pushBatchSize && items.hasNext()) {
+                    batch.add(this.encode.apply(items.next()));
                 }
-                jedis.expire(key, seconds);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException("Redis push interrupted");
+                }
+                this.doPush(jedis, batch.toArray(new byte[batch.size()][]), ttl, unit);
+                pushed[0] += batch.size();
+                batch.clear();
             }
+            return null;
+        });
+        return pushed[0];
+    }
+    
+    protected void doPush(Jedis jedis, byte[][] values, long ttl, TimeUnit unit) {
+        if (ttl > 0) {
+            // rpush and expire pipelined together for a single round trip
+            Pipeline pipeline = jedis.pipelined();
+            Response<Long> reply = pipeline.rpush(key, values);
+            pipeline.expire(key, toTtlSeconds(ttl, unit));
+            pipeline.sync();
+            reply.get();    // throws if the rpush failed
+        } else {
+            jedis.rpush(key, values);
         }
     }
+    
+    private int pushAsync(Iterator<E> items, long ttl, TimeUnit unit) throws InterruptedException {
+        final List<CompletableFuture<?>> replies = new ArrayList<>();
+        final List<byte[]> batch = new ArrayList<>(this.pushBatchSize);
+        int pushed = 0;
+        while (items.hasNext()) {
+            batch.add(this.encode.apply(items.next()));
+            if (batch.size() >= this.pushBatchSize || !items.hasNext()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException("Redis push interrupted");
+                }
+                replies.addAll(this.doPushAsync(batch.toArray(new byte[batch.size()][]), ttl, unit));
+                pushed += batch.size();
+                batch.clear();
+            }
+        }
+        for (CompletableFuture<?> reply : replies) {
+            JedisAsyncClient.await(reply);
+        }
+        return pushed;
+    }
+    
+    /**
+     * Sends the commands to push values with the async client.
+     * @param values The values to push
+     * @param ttl The ttl (if > 0)
+     * @param unit The unit of the ttl
+     * @return The replies of every command sent, all of which must be awaited
+     *      so a failed command (e.g. the expire) is not missed
+     */
+    protected List<CompletableFuture<?>> doPushAsync(byte[][] values, long ttl, TimeUnit unit) {
+        // commands on the same connection are pipelined so the expire does not
+        // wait on the rpush reply
+        final List<CompletableFuture<?>> replies = new ArrayList<>(2);
+        replies.add(this.asyncClient.rpush(key, values));
+        if (ttl > 0) {
+            replies.add(this.asyncClient.expire(key, toTtlSeconds(ttl, unit)));
+        }
+        return replies;
+    }
+    
+    /**
+     * Executes commands with a connection to redis borrowed from the pool (to
+     * the node serving the key of the queue if a cluster).
+     * @param <R> The result type
+     * @param <X> The checked exception of the callable
+     * @param callable The commands
+     * @return The result of the callable
+     * @throws X If the callable throws it
+     */
+    protected <R,X extends Exception> R execute(JedisCallable<R,X> callable) throws X {
+        return JedisClients.execute(this.jedisPool, this.key, callable);
+    }
+    
+    /**
+     * Records how long an operation took with the metrics of the jedis pool.
+     * @param operation The operation (e.g. "queue.push")
+     * @param started When it started (System.nanoTime())
+     * @param success False if it threw an exception
+     */
+    protected void measured(String operation, long started, boolean success) {
+        final JedisMetrics metrics = JedisFactory.getMetrics(this.jedisPool);
+        if (metrics != JedisMetrics.NOOP) {
+            metrics.command(operation, System.nanoTime() - started, success);
+        }
+    }
+    
+    static protected int toTtlSeconds(long ttl, TimeUnit unit) {
+        int seconds = (int)TimeUnit.SECONDS.convert(ttl, unit);
+        if (seconds < 1) {
+            seconds = 1;    // 1-second minimum
+        }
+        return seconds;
+    }
 
     @Override
     public E pop(long timeout, TimeUnit unit) throws InterruptedException {
         this.checkNotClosed();
-        byte[] bytes = doPop(timeout, unit);
-        if (bytes != null) {
-            return this.decode.apply(bytes);
+        final long started = System.nanoTime();
+        boolean success = false;
+        try {
+            byte[] bytes = doPop(timeout, unit);
+            success = true;
+            if (bytes != null) {
+                return this.decode.apply(bytes);
+            }
+            return null;
+        } finally {
+            this.measured("queue.pop", started, success);
+        }
+    }
+    
+    /**
+     * Pops up to max items from the queue.  Blocks (with the same semantics as
+     * pop) until at least 1 item is available and then drains up to max-1 more
+     * items in a single round trip.  A single connection is borrowed for the
+     * entire batch.
+     * @param max The max number of items to pop (must be > 0)
+     * @param timeout If greater than 0 then the amount of time to wait for the
+     *      first item, 0 to not wait at all, or -1 to wait forever.
+     * @param unit The unit of the timeout
+     * @return The items popped in queue order or an empty list if none were
+     *      available in time
+     * @throws InterruptedException 
+     */
+    public List<E> popMany(int max, long timeout, TimeUnit unit) throws InterruptedException {
+        if (max <= 0) {
+            throw new IllegalArgumentException("max must be > 0");
+        }
+        this.checkNotClosed();
+        final long started = System.nanoTime();
+        boolean success = false;
+        final List<byte[]> values;
+        try {
+            values = doPopMany(max, timeout, unit);
+            success = true;
+        } finally {
+            this.measured("queue.popMany", started, success);
+        }
+        if (values.isEmpty()) {
+            return Collections.emptyList();
         }
-        return null;
+        List<E> items = new ArrayList<>(values.size());
+        for (byte[] bytes : values) {
+            items.add(this.decode.apply(bytes));
+        }
+        return items;
     }
     
     protected byte[] doPop(long timeout, TimeUnit unit) throws InterruptedException {
@@ -85,24 +371,18 @@ public class JedisQueue<E> extends AbstractQueue<E> {
         if (timeout <= 0 && unit == null) {
             unit = TimeUnit.MILLISECONDS;
         }
-        //log.debug("Acquiring jedis resource...");
-        try (Jedis jedis = this.jedisPool.getResource()) {
-            //log.debug("Acquired jedis resource...");
+        if (this.isMultiplexedPopSupported()) {
+            if (timeout == 0 && this.asyncClient != null) {
+                return JedisAsyncClient.await(this.asyncClient.lpop(key));
+            }
+            if (timeout != 0 && this.blockingMultiplexer != null) {
+                return this.doMultiplexedPop(timeout, unit);
+            }
+        }
+        final TimeUnit timeoutUnit = unit;
+        return this.execute(jedis -> {
             try {
-                if (timeout == 0) {
-                    // do not block - pop and immediately return null or element
-                    return jedis.lpop(key);
-                } else if (timeout < 0) {
-                    // block forever - but only poll every X millis so we can be interrupted
-                    return JedisClients.blpop(
-                        jedis, key, -1, 1000L, TimeUnit.MILLISECONDS);
-                } else {
-                    // block but be interruptible (round up at least 1000ms since
-                    // jedis client does not allow anything under 1 sec)
-                    long timeoutMillis = Math.max(unit.toMillis(timeout), 1000L);
-                    return JedisClients.blpop(
-                        jedis, key, timeoutMillis, 1000L, TimeUnit.MILLISECONDS);
-                }
+                return this.doPop(jedis, timeout, timeoutUnit);
             } catch (TimeoutException e) {
                 return null;
             } catch (JedisException e) {
@@ -111,6 +391,170 @@ public class JedisQueue<E> extends AbstractQueue<E> {
                 }
                 throw e;
             }
+        });
+    }
+    
+    /**
+     * Whether pops are a plain LPOP/BLPOP of the key and may therefore be served
+     * without borrowing a connection from the pool: non-blocking pops by the
+     * async client (if async_enabled) and blocking pops by the blocking
+     * multiplexer (if blocking_mode is multiplexed).
+     * @return True if pops may be multiplexed
+     */
+    protected boolean isMultiplexedPopSupported() {
+        return true;
+    }
+    
+    private byte[] doMultiplexedPop(long timeout, TimeUnit unit) throws InterruptedException {
+        try {
+            return this.blockingMultiplexer.pop(key, timeout, unit);
+        } catch (JedisException e) {
+            if (this.jedisPool.isClosed()) {
+                throw new InterruptedException("jedis pool is closed");
+            }
+            throw e;
+        }
+    }
+    
+    protected List<byte[]> doPopMany(int max, long timeout, TimeUnit unit) throws InterruptedException {
+        if (timeout > 0) {
+            Objects.requireNonNull(unit, "unit was null");
+        }
+        if (timeout <= 0 && unit == null) {
+            unit = TimeUnit.MILLISECONDS;
+        }
+        if (timeout != 0 && this.blockingMultiplexer != null && this.isMultiplexedPopSupported()) {
+            return this.doMultiplexedPopMany(max, timeout, unit);
         }
+        final TimeUnit timeoutUnit = unit;
+        return this.execute(jedis -> {
+            try {
+                // optimistically drain what is available in a single round trip
+                List<byte[]> values = this.drain(jedis, max);
+                if (!values.isEmpty() || timeout == 0) {
+                    return values;
+                }
+                
+                if (this.isMultiplexedPopSupported()) {
+                    return this.blockingDrain(jedis, max, timeout, timeoutUnit);
+                }
+                
+                // block for the first item, then drain the rest on the same connection
+                byte[] first = this.doPop(jedis, timeout, timeoutUnit);
+                if (first == null) {
+                    return Collections.emptyList();
+                }
+                
+                values = new ArrayList<>(max);
+                values.add(first);
+                if (max > 1) {
+                    values.addAll(this.drain(jedis, max - 1));
+                }
+                return values;
+            } catch (TimeoutException e) {
+                return Collections.emptyList();
+            } catch (JedisException e) {
+                if (this.jedisPool.isClosed()) {
+                    throw new InterruptedException("jedis pool is closed");
+                }
+                throw e;
+            }
+        });
+    }
+    
+    /**
+     * Blocks (BLPOP) until at least 1 item is available and then drains up to
+     * max-1 more items, with the BLPOP and the drain (LRANGE + LTRIM in a MULTI)
+     * pipelined together in a single round trip.  Redis runs the drain right
+     * after the BLPOP is served (or times out).
+     * @param jedis The jedis client
+     * @param max The max number of items
+     * @param timeout The amount of time to wait or < 0 to wait forever
+     * @param unit The unit of the timeout
+     * @return The items
+     * @throws TimeoutException If the timeout elapsed before any item was available
+     * @throws InterruptedException If the calling thread was interrupted
+     */
+    protected List<byte[]> blockingDrain(Jedis jedis, int max, long timeout, TimeUnit unit) throws TimeoutException, InterruptedException {
+        return JedisClients.executeBlocking("blpop", jedis, timeout, unit, (timeoutArg) -> {
+            final Client client = jedis.getClient();
+            // the reply of BLPOP may take longer than the socket timeout
+            client.setTimeoutInfinite();
+            try {
+                Pipeline pipeline = jedis.pipelined();
+                Response<List<byte[]>> popped = pipeline.blpop(key, timeoutArg);
+                Response<List<byte[]>> drained = null;
+                if (max > 1) {
+                    pipeline.multi();
+                    drained = pipeline.lrange(key, 0, max - 2);
+                    pipeline.ltrim(key, max - 1, -1);
+                    pipeline.exec();
+                }
+                pipeline.sync();
+                
+                final List<byte[]> values = new ArrayList<>(max);
+                // a nil multi bulk reply if the BLPOP timed out
+                final List<byte[]> items = popped.get();
+                if (items != null && items.size() == 2) {
+                    values.add(items.get(1));
+                }
+                // items pushed right after the BLPOP timed out are popped too
+                if (drained != null && drained.get() != null) {
+                    values.addAll(drained.get());
+                }
+                return (values.isEmpty() ? null : values);
+            } finally {
+                if (client.isConnected() && !client.isBroken()) {
+                    client.rollbackTimeout();
+                }
+            }
+        });
+    }
+    
+    private List<byte[]> doMultiplexedPopMany(int max, long timeout, TimeUnit unit) throws InterruptedException {
+        // the pooled connection is only borrowed while draining, never while blocked
+        List<byte[]> values = this.execute(jedis -> this.drain(jedis, max));
+        if (!values.isEmpty()) {
+            return values;
+        }
+        
+        byte[] first = this.doMultiplexedPop(timeout, unit);
+        if (first == null) {
+            return Collections.emptyList();
+        }
+        
+        values = new ArrayList<>(max);
+        values.add(first);
+        if (max > 1) {
+            values.addAll(this.execute(jedis -> this.drain(jedis, max - 1)));
+        }
+        return values;
+    }
+    
+    protected byte[] doPop(Jedis jedis, long timeout, TimeUnit unit) throws TimeoutException, InterruptedException {
+        if (timeout == 0) {
+            // do not block - pop and immediately return null or element
+            return jedis.lpop(key);
+        } else {
+            // block forever (timeout < 0) or up to the timeout, either way the
+            // watchdog will wake us up if interrupted
+            return JedisClients.blpop(jedis, key, timeout, unit);
+        }
+    }
+    
+    /**
+     * Atomically removes and returns up to max items from the head of the queue
+     * (LRANGE + LTRIM in a MULTI) in a single round trip without blocking.
+     * @param jedis The jedis client
+     * @param max The max number of items
+     * @return The items or an empty list
+     */
+    protected List<byte[]> drain(Jedis jedis, int max) {
+        Transaction tx = jedis.multi();
+        Response<List<byte[]>> reply = tx.lrange(key, 0, max - 1);
+        tx.ltrim(key, max, -1);
+        tx.exec();
+        List<byte[]> values = reply.get();
+        return (values != null ? values : Collections.emptyList());
     }
 }
\ No newline at end of file
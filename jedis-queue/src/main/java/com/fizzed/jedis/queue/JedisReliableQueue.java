@@ -0,0 +1,344 @@
+package com.fizzed.jedis.queue;
+
+import com.fizzed.jedis.JedisClients;
+import com.fizzed.jedis.JedisScript;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+/**
+ * Redis-backed queue with at-least-once delivery.  Every item popped is
+ * atomically moved from the queue into a processing list owned by this
+ * consumer and stays there until it is ack'ed (removed) or nack'ed (requeued).
+ *
+ * Every item popped has its own deadline (the visibility timeout from when
+ * it was popped) in a sorted set next to the processing list.  A reaper (run
+ * in the background by every consumer) requeues the items whose deadline has
+ * passed -- e.g. their consumer crashed or is stuck on them -- onto the head of
+ * the queue in the order they were popped, while the other items of the same
+ * consumer stay in its processing list.
+ *
+ * Since items are matched by their encoded bytes, the encoder must be
+ * deterministic, and identical items popped by the same consumer share the
+ * deadline of the one popped last.  Blocking pops use BLMOVE and require
+ * redis 6.2+.
+ *
+ * @author jjlauer
+ * @param <E>
+ */
+public class JedisReliableQueue<E> extends JedisQueue<E> {
+    static private final Logger log = LoggerFactory.getLogger(JedisReliableQueue.class);
+
+    static protected final byte[] LEFT = "LEFT".getBytes(StandardCharsets.UTF_8);
+    static protected final byte[] RIGHT = "RIGHT".getBytes(StandardCharsets.UTF_8);
+    static protected final byte[] ONE = toBytes(1);
+    static protected final byte[] ZERO = toBytes(0);
+    static protected final int REAP_LIMIT = 100;
+    // how often a blocked consumer touches its last seen time
+    static protected final long SEEN_INTERVAL_MILLIS = 10000L;
+    // lua unpack() has a limit on the number of values
+    static protected final int DRAIN_LIMIT = 1000;
+
+    // KEYS: queue, processing, deadlines, consumers
+    // ARGV: deadline, consumer id, now, count
+    static protected final JedisScript POP_SCRIPT = new JedisScript(
+        "redis.call('zadd', KEYS[4], ARGV[3], ARGV[2])\n" +
+        "local values = redis.call('lrange', KEYS[1], 0, tonumber(ARGV[4]) - 1)\n" +
+        "if #values > 0 then\n" +
+        "  redis.call('ltrim', KEYS[1], #values, -1)\n" +
+        "  redis.call('rpush', KEYS[2], unpack(values))\n" +
+        "  for _, value in ipairs(values) do\n" +
+        "    redis.call('zadd', KEYS[3], ARGV[1], value)\n" +
+        "  end\n" +
+        "end\n" +
+        "return values");
+
+    // KEYS: processing, deadlines, queue (only used by nack)
+    // ARGV: value, requeue (1 or 0)
+    static protected final JedisScript ACK_SCRIPT = new JedisScript(
+        "local removed = redis.call('lrem', KEYS[1], 1, ARGV[1])\n" +
+        "if removed > 0 then\n" +
+        "  if ARGV[2] == '1' then\n" +
+        "    redis.call('rpush', KEYS[3], ARGV[1])\n" +
+        "  end\n" +
+        // an identical item may still be processing
+        "  if not redis.call('lpos', KEYS[1], ARGV[1]) then\n" +
+        "    redis.call('zrem', KEYS[2], ARGV[1])\n" +
+        "  end\n" +
+        "end\n" +
+        "return removed");
+
+    // reaps a single consumer, so every key it touches is declared
+    // KEYS: queue, processing, deadlines, consumers
+    // ARGV: now, consumer id, deadline, limit, prune consumer last seen before
+    static protected final JedisScript REAP_SCRIPT = new JedisScript(
+        "local length = redis.call('llen', KEYS[2])\n" +
+        "if length == 0 then\n" +
+        "  redis.call('del', KEYS[3])\n" +
+        "  local seen = redis.call('zscore', KEYS[4], ARGV[2])\n" +
+        "  if seen and tonumber(seen) < tonumber(ARGV[5]) then\n" +
+        "    redis.call('zrem', KEYS[4], ARGV[2])\n" +
+        "  end\n" +
+        "  return 0\n" +
+        "end\n" +
+        "if redis.call('zcard', KEYS[3]) < length then\n" +
+        // items moved by a blocking pop that crashed before setting their deadline
+        "  for _, value in ipairs(redis.call('lrange', KEYS[2], 0, -1)) do\n" +
+        "    redis.call('zadd', KEYS[3], 'NX', ARGV[3], value)\n" +
+        "  end\n" +
+        "end\n" +
+        "local expired = redis.call('zrangebyscore', KEYS[3], '-inf', ARGV[1], 'LIMIT', 0, tonumber(ARGV[4]))\n" +
+        "if #expired == 0 then\n" +
+        "  return 0\n" +
+        "end\n" +
+        "local isExpired = {}\n" +
+        "for _, value in ipairs(expired) do\n" +
+        "  isExpired[value] = true\n" +
+        "  redis.call('zrem', KEYS[3], value)\n" +
+        "end\n" +
+        // onto the head in the order they were popped
+        "local values = redis.call('lrange', KEYS[2], 0, -1)\n" +
+        "local requeued = 0\n" +
+        "for i = #values, 1, -1 do\n" +
+        "  if isExpired[values[i]] then\n" +
+        "    redis.call('lpush', KEYS[1], values[i])\n" +
+        "    requeued = requeued + 1\n" +
+        "  end\n" +
+        "end\n" +
+        "for value, _ in pairs(isExpired) do\n" +
+        "  redis.call('lrem', KEYS[2], 0, value)\n" +
+        "end\n" +
+        "return requeued");
+
+    protected final String consumerId;
+    protected final long visibilityTimeoutMillis;
+    protected final byte[] consumerIdBytes;
+    protected final byte[] processingKey;
+    protected final byte[] deadlinesKey;
+    protected final byte[] consumersKey;
+    protected final AtomicBoolean reaperStarted;
+    protected volatile ScheduledExecutorService reaper;
+
+    public JedisReliableQueue(String name, JedisPool jedisPool, Function<E,byte[]> encode, Function<byte[],E> decode, String consumerId) {
+        this(name, jedisPool, encode, decode, consumerId, 5, TimeUnit.MINUTES);
+    }
+
+    public JedisReliableQueue(String name, JedisPool jedisPool, Function<E,byte[]> encode, Function<byte[],E> decode, String consumerId, long visibilityTimeout, TimeUnit unit) {
+        super(name, jedisPool, encode, decode);
+        Objects.requireNonNull(consumerId, "consumerId was null");
+        Objects.requireNonNull(unit, "unit was null");
+        if (visibilityTimeout <= 0) {
+            throw new IllegalArgumentException("visibilityTimeout must be > 0");
+        }
+        this.consumerId = consumerId;
+        this.visibilityTimeoutMillis = unit.toMillis(visibilityTimeout);
+        this.consumerIdBytes = consumerId.getBytes(StandardCharsets.UTF_8);
+        // derived from the key so they are in its slot if a cluster
+        this.processingKey = this.processingKey(consumerId);
+        this.deadlinesKey = this.deadlinesKey(consumerId);
+        this.consumersKey = (this.keyName + ":consumers").getBytes(StandardCharsets.UTF_8);
+        this.reaperStarted = new AtomicBoolean();
+    }
+
+    public String getConsumerId() {
+        return consumerId;
+    }
+
+    public long getVisibilityTimeoutMillis() {
+        return visibilityTimeoutMillis;
+    }
+
+    /**
+     * Acknowledges an item popped by this consumer was processed and removes
+     * it from this consumer's processing list.
+     * @param e The item
+     * @return True if acknowledged or false if the item was not in the
+     *      processing list (e.g. its deadline passed and it was requeued)
+     */
+    public boolean ack(E e) {
+        return this.complete(e, false);
+    }
+
+    /**
+     * Negatively acknowledges an item popped by this consumer, which moves it
+     * from this consumer's processing list back onto the tail of the queue.
+     * @param e The item
+     * @return True if requeued or false if the item was not in the processing
+     *      list (e.g. its deadline passed and it was already requeued)
+     */
+    public boolean nack(E e) {
+        return this.complete(e, true);
+    }
+
+    protected boolean complete(E e, boolean requeue) {
+        this.checkNotClosed();
+        final long started = System.nanoTime();
+        boolean success = false;
+        byte[] bytes = this.encode.apply(e);
+        try {
+            Object reply = this.execute(jedis -> ACK_SCRIPT.eval(jedis,
+                Arrays.asList(this.processingKey, this.deadlinesKey, this.key),
+                Arrays.asList(bytes, (requeue ? ONE : ZERO))));
+            success = true;
+            return ((Long)reply) > 0;
+        } finally {
+            this.measured((requeue ? "queue.nack" : "queue.ack"), started, success);
+        }
+    }
+
+    /**
+     * Requeues the items of all consumers whose deadline has passed (up to 100
+     * per consumer), a consumer at a time.  Called periodically in the
+     * background once this consumer pops, but may also be called directly.
+     * @return The number of items requeued
+     */
+    public int reap() {
+        final long now = System.currentTimeMillis();
+        // consumers are pruned once they have been gone long enough they
+        // clearly are not blocked in a pop
+        final long pruneBefore = now - Math.max(TimeUnit.MINUTES.toMillis(1), this.visibilityTimeoutMillis * 10);
+        final long started = System.nanoTime();
+        boolean success = false;
+        try {
+            final int requeued = this.execute(jedis -> {
+                int count = 0;
+                for (byte[] consumer : jedis.zrange(this.consumersKey, 0, -1)) {
+                    final String id = new String(consumer, StandardCharsets.UTF_8);
+                    count += ((Long)REAP_SCRIPT.eval(jedis,
+                        Arrays.asList(this.key, this.processingKey(id), this.deadlinesKey(id), this.consumersKey),
+                        Arrays.asList(toBytes(now), consumer, this.deadline(),
+                            toBytes(REAP_LIMIT), toBytes(pruneBefore)))).intValue();
+                }
+                return count;
+            });
+            success = true;
+            if (requeued > 0) {
+                log.warn("Requeued {} items past their deadline", requeued);
+            }
+            return requeued;
+        } finally {
+            this.measured("queue.reap", started, success);
+        }
+    }
+
+    @Override
+    public void close() {
+        ScheduledExecutorService executor = this.reaper;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        super.close();
+    }
+
+    @Override
+    protected boolean isMultiplexedPopSupported() {
+        // pops must move into the processing list
+        return false;
+    }
+    
+    @Override
+    protected byte[] doPop(Jedis jedis, long timeout, TimeUnit unit) throws TimeoutException, InterruptedException {
+        final long deadline = (timeout > 0 ? System.nanoTime() + unit.toNanos(timeout) : -1L);
+        
+        while (true) {
+            // also keeps this consumer "seen" while it waits
+            List<byte[]> values = this.drain(jedis, 1);
+            if (!values.isEmpty()) {
+                return values.get(0);
+            }
+
+            if (timeout == 0) {
+                return null;
+            }
+
+            long waitMillis = SEEN_INTERVAL_MILLIS;
+            if (deadline > 0) {
+                long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMillis <= 0) {
+                    throw new TimeoutException("Redis blmove command timeout");
+                }
+                waitMillis = Math.min(waitMillis, remainingMillis);
+            }
+
+            try {
+                byte[] value = JedisClients.executeBlocking("blmove", jedis, waitMillis, TimeUnit.MILLISECONDS, (timeoutArg) -> {
+                    return (byte[])JedisClients.sendBlockingCommand(jedis, "BLMOVE",
+                        this.key, this.processingKey, LEFT, RIGHT, timeoutArg);
+                });
+
+                if (value != null) {
+                    jedis.zadd(this.deadlinesKey, this.deadlineMillis(), value);
+                }
+
+                return value;
+            } catch (TimeoutException e) {
+                // loop around
+            }
+        }
+    }
+
+    @Override
+    protected List<byte[]> drain(Jedis jedis, int max) {
+        this.startReaper();
+
+        @SuppressWarnings("unchecked")
+        List<byte[]> values = (List<byte[]>)POP_SCRIPT.eval(jedis,
+            Arrays.asList(this.key, this.processingKey, this.deadlinesKey, this.consumersKey),
+            Arrays.asList(this.deadline(), this.consumerIdBytes,
+                toBytes(System.currentTimeMillis()), toBytes(Math.min(max, DRAIN_LIMIT))));
+
+        return (values != null ? values : Collections.emptyList());
+    }
+
+    protected void startReaper() {
+        if (this.reaperStarted.compareAndSet(false, true)) {
+            long intervalMillis = Math.max(1000L, this.visibilityTimeoutMillis / 2);
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "jedis-reaper-" + this.consumerId);
+                t.setDaemon(true);
+                return t;
+            });
+            executor.scheduleWithFixedDelay(() -> {
+                try {
+                    this.reap();
+                } catch (Exception e) {
+                    log.error("Unable to reap items past their deadline", e);
+                }
+            }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+            this.reaper = executor;
+        }
+    }
+
+    protected byte[] processingKey(String consumerId) {
+        return (this.keyName + ":processing:" + consumerId).getBytes(StandardCharsets.UTF_8);
+    }
+
+    protected byte[] deadlinesKey(String consumerId) {
+        return (this.keyName + ":deadlines:" + consumerId).getBytes(StandardCharsets.UTF_8);
+    }
+
+    protected double deadlineMillis() {
+        return System.currentTimeMillis() + this.visibilityTimeoutMillis;
+    }
+
+    protected byte[] deadline() {
+        return toBytes((long)this.deadlineMillis());
+    }
+
+    static protected byte[] toBytes(long value) {
+        return Long.toString(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+}
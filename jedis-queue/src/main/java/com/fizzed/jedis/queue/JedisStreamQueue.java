@@ -0,0 +1,564 @@
+package com.fizzed.jedis.queue;
+
+import com.fizzed.jedis.JedisClients;
+import com.fizzed.jedis.JedisScript;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Redis-backed queue on a stream read by a consumer group, so competing
+ * consumers (in any number of processes) each get different items.  Items are
+ * appended with XADD, optionally trimmed to about a max length (MAXLEN ~), and
+ * read with XREADGROUP in batches of up to COUNT items per round trip.
+ *
+ * Items taken with pop() or popMany() are not acknowledged (XREADGROUP NOACK)
+ * -- like a JedisQueue they are gone once popped.  Items taken with read() stay
+ * pending until ack'ed, and items pending longer than the min idle time (e.g.
+ * their consumer crashed or is stuck) are claimed by the next read() of any
+ * consumer with XAUTOCLAIM.
+ *
+ * Popped and ack'ed items are deleted from the stream (XDEL), so it only holds
+ * items not yet consumed and does not grow without bounds.  A stream is
+ * therefore meant to be read by a single consumer group (another group would
+ * miss the items this one consumed).  A max length additionally caps the
+ * stream should consumers fall far behind, but since trimming does not care
+ * whether items were read, it must be well above the backlog they may fall
+ * behind by.  Requires redis 6.2+.
+ *
+ * @author jjlauer
+ * @param <E>
+ */
+public class JedisStreamQueue<E> extends JedisQueue<E> {
+
+    static public final long DEFAULT_MIN_IDLE_MILLIS = 60000L;
+
+    static protected final byte[] FIELD = "v".getBytes(StandardCharsets.UTF_8);
+    static protected final byte[] NO_ID = "0-0".getBytes(StandardCharsets.UTF_8);
+    static protected final byte[] NEW_IDS = ">".getBytes(StandardCharsets.UTF_8);
+    static protected final byte[] AUTO_ID = "*".getBytes(StandardCharsets.UTF_8);
+    // lua unpack() has a limit on the number of values
+    static protected final int CLAIM_LIMIT = 1000;
+    static protected final int ACK_LIMIT = 1000;
+
+    // KEYS: stream
+    // ARGV: max length (0 for none), ttl seconds (0 for none), values...
+    static protected final JedisScript PUSH_SCRIPT = new JedisScript(
+        "redis.replicate_commands()\n" +
+        "for i = 3, #ARGV do\n" +
+        "  if ARGV[1] == '0' then\n" +
+        "    redis.call('xadd', KEYS[1], '*', 'v', ARGV[i])\n" +
+        "  else\n" +
+        "    redis.call('xadd', KEYS[1], 'MAXLEN', '~', ARGV[1], '*', 'v', ARGV[i])\n" +
+        "  end\n" +
+        "end\n" +
+        "if ARGV[2] ~= '0' then\n" +
+        "  redis.call('expire', KEYS[1], ARGV[2])\n" +
+        "end\n" +
+        "return #ARGV - 2");
+
+    // KEYS: stream
+    // ARGV: group, consumer, min idle millis, cursor, count
+    static protected final JedisScript CLAIM_SCRIPT = new JedisScript(
+        "redis.replicate_commands()\n" +
+        "local claimed = redis.call('xautoclaim', KEYS[1], ARGV[1], ARGV[2], ARGV[3], ARGV[4], 'COUNT', ARGV[5], 'JUSTID')\n" +
+        "local entries = {}\n" +
+        "local deleted = {}\n" +
+        "for _, id in ipairs(claimed[2]) do\n" +
+        "  local entry = redis.call('xrange', KEYS[1], id, id)\n" +
+        "  if #entry > 0 then\n" +
+        "    entries[#entries + 1] = entry[1]\n" +
+        "  else\n" +
+        "    deleted[#deleted + 1] = id\n" +
+        "  end\n" +
+        "end\n" +
+        // trimmed while pending (redis < 7.0 leaves them pending)
+        "if #deleted > 0 then\n" +
+        "  redis.call('xack', KEYS[1], ARGV[1], unpack(deleted))\n" +
+        "end\n" +
+        "return {claimed[1], entries}");
+
+    // KEYS: stream
+    // ARGV: group, consumer, ids...
+    static protected final JedisScript ACK_SCRIPT = new JedisScript(
+        // only ids still pending for the consumer (others may have been claimed)
+        "local owned = {}\n" +
+        "for i = 3, #ARGV do\n" +
+        "  if #redis.call('xpending', KEYS[1], ARGV[1], ARGV[i], ARGV[i], 1, ARGV[2]) > 0 then\n" +
+        "    owned[#owned + 1] = ARGV[i]\n" +
+        "  end\n" +
+        "end\n" +
+        "if #owned == 0 then\n" +
+        "  return 0\n" +
+        "end\n" +
+        "local acked = redis.call('xack', KEYS[1], ARGV[1], unpack(owned))\n" +
+        "redis.call('xdel', KEYS[1], unpack(owned))\n" +
+        "return acked");
+
+    /**
+     * An item read from the stream with the id it is ack'ed by.
+     * @param <E>
+     */
+    static public class Entry<E> {
+
+        private final String id;
+        private final E value;
+
+        public Entry(String id, E value) {
+            this.id = id;
+            this.value = value;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public E getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return this.id + "=" + this.value;
+        }
+    }
+
+    protected final String group;
+    protected final String consumer;
+    protected final long minIdleMillis;
+    protected final byte[] groupBytes;
+    protected final byte[] consumerBytes;
+    protected long maxLength;
+    protected volatile boolean groupCreated;
+    protected volatile byte[] claimCursor;
+    protected volatile long nextClaimMillis;
+
+    public JedisStreamQueue(String name, JedisPool jedisPool, Function<E,byte[]> encode, Function<byte[],E> decode, String group, String consumer) {
+        this(name, jedisPool, encode, decode, group, consumer, DEFAULT_MIN_IDLE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a stream queue.
+     * @param name The name of the queue (the key of the stream)
+     * @param jedisPool The jedis pool
+     * @param encode The encoder of items
+     * @param decode The decoder of items
+     * @param group The consumer group (created on first use)
+     * @param consumer The name of this consumer within the group (should be
+     *      the same after a restart)
+     * @param minIdle How long an item read by a consumer stays pending (not
+     *      ack'ed) before other consumers may claim it
+     * @param unit The unit of the min idle time
+     */
+    public JedisStreamQueue(String name, JedisPool jedisPool, Function<E,byte[]> encode, Function<byte[],E> decode, String group, String consumer, long minIdle, TimeUnit unit) {
+        super(name, jedisPool, encode, decode);
+        Objects.requireNonNull(group, "group was null");
+        Objects.requireNonNull(consumer, "consumer was null");
+        Objects.requireNonNull(unit, "unit was null");
+        if (minIdle <= 0) {
+            throw new IllegalArgumentException("minIdle must be > 0");
+        }
+        this.group = group;
+        this.consumer = consumer;
+        this.minIdleMillis = unit.toMillis(minIdle);
+        this.groupBytes = group.getBytes(StandardCharsets.UTF_8);
+        this.consumerBytes = consumer.getBytes(StandardCharsets.UTF_8);
+        this.maxLength = 0L;
+        this.claimCursor = NO_ID;
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    public String getConsumer() {
+        return consumer;
+    }
+
+    public long getMinIdleMillis() {
+        return minIdleMillis;
+    }
+
+    public long getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * Sets about how many items the stream is trimmed to on every push
+     * (MAXLEN ~), whether or not they were read.  Consumed items are deleted
+     * regardless, so this only caps a backlog of unread (or pending) items.
+     * @param maxLength The max length or 0 to never trim
+     * @return This queue
+     */
+    public JedisStreamQueue<E> setMaxLength(long maxLength) {
+        if (maxLength < 0) {
+            throw new IllegalArgumentException("maxLength must be >= 0");
+        }
+        this.maxLength = maxLength;
+        return this;
+    }
+
+    /**
+     * Reads up to max items that are left pending for this consumer until they
+     * are ack'ed.  Items other consumers have left pending for longer than the
+     * min idle time are claimed and returned first.
+     * @param max The max number of items to read (must be > 0)
+     * @param timeout If greater than 0 then the amount of time to wait for the
+     *      first item, 0 to not wait at all, or -1 to wait forever.
+     * @param unit The unit of the timeout
+     * @return The items read or an empty list if none were available in time
+     * @throws InterruptedException
+     */
+    public List<Entry<E>> read(int max, long timeout, TimeUnit unit) throws InterruptedException {
+        if (max <= 0) {
+            throw new IllegalArgumentException("max must be > 0");
+        }
+        if (timeout > 0) {
+            Objects.requireNonNull(unit, "unit was null");
+        }
+        this.checkNotClosed();
+        final long started = System.nanoTime();
+        boolean success = false;
+        final List<byte[][]> entries;
+        try {
+            entries = this.execute(jedis -> {
+                try {
+                    if (System.currentTimeMillis() >= this.nextClaimMillis) {
+                        List<byte[][]> claimed = this.claim(jedis, max);
+                        if (!claimed.isEmpty()) {
+                            return claimed;
+                        }
+                    }
+                    return this.readGroup(jedis, max, (timeout > 0 ? Math.max(1L, unit.toMillis(timeout)) : timeout), false);
+                } catch (JedisException e) {
+                    if (this.jedisPool.isClosed()) {
+                        throw new InterruptedException("jedis pool is closed");
+                    }
+                    throw e;
+                }
+            });
+            success = true;
+        } finally {
+            this.measured("queue.read", started, success);
+        }
+        return this.toEntries(entries);
+    }
+
+    /**
+     * Claims up to max items other consumers have left pending for longer than
+     * the min idle time (XAUTOCLAIM), continuing where the last claim stopped.
+     * Called by read() but may also be called directly.
+     * @param max The max number of items to claim (must be > 0)
+     * @return The items claimed
+     */
+    public List<Entry<E>> claim(int max) {
+        if (max <= 0) {
+            throw new IllegalArgumentException("max must be > 0");
+        }
+        this.checkNotClosed();
+        final long started = System.nanoTime();
+        boolean success = false;
+        final List<byte[][]> entries;
+        try {
+            entries = this.execute(jedis -> this.claim(jedis, max));
+            success = true;
+        } finally {
+            this.measured("queue.claim", started, success);
+        }
+        return this.toEntries(entries);
+    }
+
+    /**
+     * Acknowledges items read by this consumer were processed so they are no
+     * longer pending (and deletes them from the stream).
+     * @param entries The items
+     * @return The number of items acknowledged (items already ack'ed or
+     *      claimed by another consumer are not)
+     */
+    public long ack(Collection<Entry<E>> entries) {
+        Objects.requireNonNull(entries, "entries was null");
+        final List<String> ids = new ArrayList<>(entries.size());
+        for (Entry<E> entry : entries) {
+            ids.add(entry.getId());
+        }
+        return this.ack(ids.toArray(new String[ids.size()]));
+    }
+
+    /**
+     * Acknowledges (and deletes) items pending for this consumer by their ids,
+     * in batches of up to 1000 per round trip.  Ids pending for another
+     * consumer (e.g. claimed from this one) are left alone.
+     * @param ids The ids
+     * @return The number of items acknowledged
+     * @see #ack(java.util.Collection)
+     */
+    public long ack(String... ids) {
+        this.checkNotClosed();
+        if (ids.length == 0) {
+            return 0L;
+        }
+        final long started = System.nanoTime();
+        boolean success = false;
+        try {
+            final byte[][] args = new byte[ids.length][];
+            for (int i = 0; i < ids.length; i++) {
+                args[i] = ids[i].getBytes(StandardCharsets.UTF_8);
+            }
+            Long acked = this.execute(jedis -> this.ack(jedis, args));
+            success = true;
+            return acked;
+        } finally {
+            this.measured("queue.ack", started, success);
+        }
+    }
+
+    /**
+     * Gets the number of items read by the consumers of the group that have
+     * not yet been ack'ed.
+     * @return The number of pending items
+     */
+    public long getPendingCount() {
+        return this.execute(jedis -> {
+            List<?> reply = (List<?>)this.withGroup(jedis,
+                () -> JedisClients.sendCommand(jedis, "XPENDING", this.key, this.groupBytes));
+            return (Long)reply.get(0);
+        });
+    }
+
+    @Override
+    protected boolean isMultiplexedPopSupported() {
+        // pops must read from the consumer group
+        return false;
+    }
+
+    @Override
+    protected void doPush(Jedis jedis, byte[][] values, long ttl, TimeUnit unit) {
+        // all values added in a single round trip
+        final List<byte[]> args = new ArrayList<>(values.length + 2);
+        args.add(toBytes(this.maxLength));
+        args.add(toBytes(ttl > 0 ? toTtlSeconds(ttl, unit) : 0));
+        args.addAll(Arrays.asList(values));
+        PUSH_SCRIPT.eval(jedis, Collections.singletonList(this.key), args);
+    }
+
+    @Override
+    protected List<CompletableFuture<?>> doPushAsync(byte[][] values, long ttl, TimeUnit unit) {
+        // commands on the same connection are pipelined
+        final List<CompletableFuture<?>> replies = new ArrayList<>(values.length + 1);
+        for (byte[] value : values) {
+            if (this.maxLength > 0) {
+                replies.add(this.asyncClient.send(this.key, "XADD", this.key,
+                    "MAXLEN".getBytes(StandardCharsets.UTF_8), "~".getBytes(StandardCharsets.UTF_8),
+                    toBytes(this.maxLength), AUTO_ID, FIELD, value));
+            } else {
+                replies.add(this.asyncClient.send(this.key, "XADD", this.key, AUTO_ID, FIELD, value));
+            }
+        }
+        if (ttl > 0) {
+            replies.add(this.asyncClient.expire(this.key, toTtlSeconds(ttl, unit)));
+        }
+        return replies;
+    }
+
+    @Override
+    protected byte[] doPop(Jedis jedis, long timeout, TimeUnit unit) throws InterruptedException {
+        final List<byte[][]> entries = this.readGroup(jedis, 1,
+            (timeout > 0 ? Math.max(1L, unit.toMillis(timeout)) : timeout), true);
+        this.delete(jedis, entries);
+        return (entries.isEmpty() ? null : entries.get(0)[1]);
+    }
+
+    @Override
+    protected List<byte[]> drain(Jedis jedis, int max) {
+        try {
+            final List<byte[][]> entries = this.readGroup(jedis, max, 0L, true);
+            this.delete(jedis, entries);
+            final List<byte[]> values = new ArrayList<>(entries.size());
+            for (byte[][] entry : entries) {
+                values.add(entry[1]);
+            }
+            return values;
+        } catch (InterruptedException e) {
+            // not possible without blocking
+            Thread.currentThread().interrupt();
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Reads new items for this consumer (XREADGROUP).
+     * @param jedis The jedis client
+     * @param count The max number of items
+     * @param blockMillis The amount of time to wait, 0 to not wait at all,
+     *      or -1 to wait forever
+     * @param noack True if the items are not left pending
+     * @return The id and value of each item read
+     * @throws InterruptedException If the calling thread was interrupted while
+     *      waiting
+     */
+    protected List<byte[][]> readGroup(Jedis jedis, int count, long blockMillis, boolean noack) throws InterruptedException {
+        final List<byte[]> args = new ArrayList<>();
+        args.add("GROUP".getBytes(StandardCharsets.UTF_8));
+        args.add(this.groupBytes);
+        args.add(this.consumerBytes);
+        args.add("COUNT".getBytes(StandardCharsets.UTF_8));
+        args.add(toBytes(count));
+        if (blockMillis != 0) {
+            args.add("BLOCK".getBytes(StandardCharsets.UTF_8));
+            args.add(toBytes(Math.max(0L, blockMillis)));
+        }
+        if (noack) {
+            args.add("NOACK".getBytes(StandardCharsets.UTF_8));
+        }
+        args.add("STREAMS".getBytes(StandardCharsets.UTF_8));
+        args.add(this.key);
+        args.add(NEW_IDS);
+        final byte[][] argv = args.toArray(new byte[args.size()][]);
+
+        final Object reply;
+        if (blockMillis != 0) {
+            // the watchdog wakes us up if interrupted
+            reply = JedisClients.executeInterruptibly("xreadgroup", jedis,
+                () -> this.withGroup(jedis, () -> JedisClients.sendBlockingCommand(jedis, "XREADGROUP", argv)));
+        } else {
+            reply = this.withGroup(jedis, () -> JedisClients.sendCommand(jedis, "XREADGROUP", argv));
+        }
+
+        if (reply == null) {
+            return Collections.emptyList();
+        }
+
+        // one stream: [[key, [[id, [field, value]], ...]]]
+        final List<?> stream = (List<?>)((List<?>)reply).get(0);
+        return this.parseEntries((List<?>)stream.get(1));
+    }
+
+    protected List<byte[][]> claim(Jedis jedis, int max) {
+        @SuppressWarnings("unchecked")
+        final List<Object> reply = (List<Object>)this.withGroup(jedis, () -> CLAIM_SCRIPT.eval(jedis,
+            Collections.singletonList(this.key),
+            Arrays.asList(this.groupBytes, this.consumerBytes, toBytes(this.minIdleMillis),
+                this.claimCursor, toBytes(Math.min(max, CLAIM_LIMIT)))));
+
+        final byte[] cursor = (byte[])reply.get(0);
+        this.claimCursor = cursor;
+        if (Arrays.equals(cursor, NO_ID)) {
+            // scanned all pending items, none can be idle long enough until then
+            this.nextClaimMillis = System.currentTimeMillis() + Math.max(1L, this.minIdleMillis / 2);
+        }
+
+        return this.parseEntries((List<?>)reply.get(1));
+    }
+
+    protected Long ack(Jedis jedis, byte[][] ids) {
+        long acked = 0L;
+        for (int offset = 0; offset < ids.length; offset += ACK_LIMIT) {
+            final List<byte[]> args = new ArrayList<>(ACK_LIMIT + 2);
+            args.add(this.groupBytes);
+            args.add(this.consumerBytes);
+            args.addAll(Arrays.asList(ids).subList(offset, Math.min(ids.length, offset + ACK_LIMIT)));
+            acked += (Long)ACK_SCRIPT.eval(jedis, Collections.singletonList(this.key), args);
+        }
+        return acked;
+    }
+
+    /**
+     * Deletes items popped (read with NOACK) from the stream.
+     * @param jedis The jedis client
+     * @param entries The id and value of each item popped
+     */
+    protected void delete(Jedis jedis, List<byte[][]> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        final byte[][] args = new byte[entries.size() + 1][];
+        args[0] = this.key;
+        for (int i = 0; i < entries.size(); i++) {
+            args[i + 1] = entries.get(i)[0];
+        }
+        JedisClients.sendCommand(jedis, "XDEL", args);
+    }
+
+    /**
+     * Executes commands of the consumer group, which is created first (along
+     * with the stream) if it does not exist yet.
+     * @param <R> The result type
+     * @param jedis The jedis client
+     * @param command The commands
+     * @return The result of the commands
+     */
+    protected <R> R withGroup(Jedis jedis, Supplier<R> command) {
+        if (!this.groupCreated) {
+            this.createGroup(jedis);
+        }
+        try {
+            return command.get();
+        } catch (JedisDataException e) {
+            // e.g. the stream was deleted (or expired)
+            if (e.getMessage() != null && e.getMessage().contains("NOGROUP")) {
+                this.createGroup(jedis);
+                return command.get();
+            }
+            throw e;
+        }
+    }
+
+    protected void createGroup(Jedis jedis) {
+        try {
+            // from the start of the stream so items pushed before are read
+            JedisClients.sendCommand(jedis, "XGROUP", "CREATE".getBytes(StandardCharsets.UTF_8),
+                this.key, this.groupBytes, "0".getBytes(StandardCharsets.UTF_8), "MKSTREAM".getBytes(StandardCharsets.UTF_8));
+        } catch (JedisDataException e) {
+            if (e.getMessage() == null || !e.getMessage().startsWith("BUSYGROUP")) {
+                throw e;
+            }
+        }
+        this.groupCreated = true;
+    }
+
+    private List<byte[][]> parseEntries(List<?> reply) {
+        final List<byte[][]> entries = new ArrayList<>(reply.size());
+        for (Object item : reply) {
+            final List<?> entry = (List<?>)item;
+            final List<?> fields = (List<?>)entry.get(1);
+            if (fields == null) {
+                continue;       // deleted
+            }
+            for (int i = 0; i + 1 < fields.size(); i += 2) {
+                if (Arrays.equals((byte[])fields.get(i), FIELD)) {
+                    entries.add(new byte[][] { (byte[])entry.get(0), (byte[])fields.get(i + 1) });
+                    break;
+                }
+            }
+        }
+        return entries;
+    }
+
+    private List<Entry<E>> toEntries(List<byte[][]> entries) {
+        if (entries.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<Entry<E>> items = new ArrayList<>(entries.size());
+        for (byte[][] entry : entries) {
+            items.add(new Entry<>(new String(entry[0], StandardCharsets.UTF_8), this.decode.apply(entry[1])));
+        }
+        return items;
+    }
+
+    static protected byte[] toBytes(long value) {
+        return Long.toString(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+}
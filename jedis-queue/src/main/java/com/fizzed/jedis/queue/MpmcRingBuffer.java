@@ -0,0 +1,114 @@
+package com.fizzed.jedis.queue;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free, multi-producer multi-consumer ring buffer (based on
+ * Dmitry Vyukov's bounded MPMC queue).  Each slot carries a sequence number
+ * that tells producers and consumers whether it is free or full for their
+ * position, so offer() and poll() only ever CAS the tail or head.
+ *
+ * @author jjlauer
+ * @param <E>
+ */
+public class MpmcRingBuffer<E> {
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<E> buffer;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head;
+    private final AtomicLong tail;
+
+    public MpmcRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be > 0");
+        }
+        // round up to the next power of 2
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.buffer = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            this.sequences.set(i, i);
+        }
+        this.head = new AtomicLong();
+        this.tail = new AtomicLong();
+    }
+
+    public int capacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Adds an element if there is room for it.
+     * @param e The element
+     * @return True if added or false if the buffer is full
+     */
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException("e was null");
+        }
+        long pos = this.tail.get();
+        while (true) {
+            int index = (int)(pos & this.mask);
+            long diff = this.sequences.get(index) - pos;
+            if (diff == 0) {
+                if (this.tail.compareAndSet(pos, pos + 1)) {
+                    this.buffer.lazySet(index, e);
+                    // publish the slot to consumers
+                    this.sequences.lazySet(index, pos + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false;   // full
+            }
+            pos = this.tail.get();
+        }
+    }
+
+    /**
+     * Removes the element at the head of the buffer.
+     * @return The element or null if the buffer is empty
+     */
+    public E poll() {
+        long pos = this.head.get();
+        while (true) {
+            int index = (int)(pos & this.mask);
+            long diff = this.sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (this.head.compareAndSet(pos, pos + 1)) {
+                    E e = this.buffer.get(index);
+                    this.buffer.lazySet(index, null);
+                    // release the slot to producers for the next lap
+                    this.sequences.lazySet(index, pos + this.mask + 1);
+                    return e;
+                }
+            } else if (diff < 0) {
+                return null;    // empty
+            }
+            pos = this.head.get();
+        }
+    }
+
+    /**
+     * Gets an approximate size of the buffer.  Only exact if there are no
+     * concurrent producers or consumers.
+     * @return The approximate size
+     */
+    public int size() {
+        long size = this.tail.get() - this.head.get();
+        return (int)Math.max(0, Math.min(size, this.capacity));
+    }
+
+    public boolean isEmpty() {
+        return this.size() == 0;
+    }
+
+}
@@ -0,0 +1,417 @@
+package com.fizzed.jedis.queue;
+
+import com.fizzed.queue.AbstractQueue;
+import com.fizzed.jedis.JedisCallable;
+import com.fizzed.jedis.JedisClients;
+import com.fizzed.jedis.JedisFactory;
+import com.fizzed.jedis.JedisMetrics;
+import com.fizzed.jedis.JedisScript;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * A redis-backed queue spread over N lists (shards) so producers and consumers
+ * of a hot queue do not all contend on a single key.  Each shard is a
+ * JedisQueue named after the queue and its index (e.g. "jobs:0" to "jobs:3"),
+ * which with a redis cluster pool are hash tagged separately and therefore
+ * spread over the nodes of the cluster.
+ *
+ * Items are pushed round-robin over the shards, or if a partition key is
+ * given, onto the shard its key hashes to so items with the same key stay in
+ * order.  There is no ordering across shards.
+ *
+ * Each pop starts at the next shard (from a random one per instance so
+ * consumers in different processes do not all start at the same shard) and
+ * takes from the first non-empty one.  Without a cluster that is a single
+ * script (non-blocking) or a multi-key BLPOP (blocking).  With a cluster
+ * each shard is tried in turn, and a blocked pop waits on one shard for up to
+ * the steal interval before trying all shards again.
+ *
+ * @author jjlauer
+ * @param <E>
+ */
+public class ShardedJedisQueue<E> extends AbstractQueue<E> {
+
+    static public final long DEFAULT_STEAL_INTERVAL_MILLIS = 100L;
+
+    // KEYS: shards (in the order to take from)
+    // ARGV: max values
+    static protected final JedisScript DRAIN_SCRIPT = new JedisScript(
+        "local values = {}\n" +
+        "local max = tonumber(ARGV[1])\n" +
+        "for i = 1, #KEYS do\n" +
+        "  local count = max - #values\n" +
+        "  if count <= 0 then\n" +
+        "    break\n" +
+        "  end\n" +
+        "  local taken = redis.call('lrange', KEYS[i], 0, count - 1)\n" +
+        "  if #taken > 0 then\n" +
+        "    redis.call('ltrim', KEYS[i], #taken, -1)\n" +
+        "    for _, value in ipairs(taken) do\n" +
+        "      values[#values + 1] = value\n" +
+        "    end\n" +
+        "  end\n" +
+        "end\n" +
+        "return values");
+
+    protected final JedisPool jedisPool;
+    protected final boolean cluster;
+    protected final List<JedisQueue<E>> shards;
+    protected final Function<E,String> partitionKey;
+    protected final Function<byte[],E> decode;
+    protected final AtomicInteger pushCursor;
+    protected final AtomicInteger popCursor;
+    protected long stealIntervalMillis;
+
+    public ShardedJedisQueue(String name, JedisPool jedisPool, Function<E,byte[]> encode, Function<byte[],E> decode, int shards) {
+        this(name, jedisPool, encode, decode, shards, null);
+    }
+
+    /**
+     * Creates a sharded queue.
+     * @param name The name of the queue (shards are named "name:index")
+     * @param jedisPool The jedis pool
+     * @param encode The encoder of items
+     * @param decode The decoder of items
+     * @param shards The number of shards (must be > 0 and the same for every
+     *      producer and consumer of the queue)
+     * @param partitionKey The partition key of an item (items with the same key
+     *      are pushed onto the same shard) or null to push round-robin
+     */
+    public ShardedJedisQueue(String name, JedisPool jedisPool, Function<E,byte[]> encode, Function<byte[],E> decode, int shards, Function<E,String> partitionKey) {
+        super(name);
+        if (shards <= 0) {
+            throw new IllegalArgumentException("shards must be > 0");
+        }
+        this.jedisPool = jedisPool;
+        this.cluster = JedisFactory.isCluster(jedisPool);
+        final List<JedisQueue<E>> queues = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            queues.add(new JedisQueue<>(name + ":" + i, jedisPool, encode, decode));
+        }
+        this.shards = Collections.unmodifiableList(queues);
+        this.partitionKey = partitionKey;
+        this.decode = decode;
+        this.pushCursor = new AtomicInteger(ThreadLocalRandom.current().nextInt(shards));
+        this.popCursor = new AtomicInteger(ThreadLocalRandom.current().nextInt(shards));
+        this.stealIntervalMillis = DEFAULT_STEAL_INTERVAL_MILLIS;
+    }
+
+    public JedisPool getJedisPool() {
+        return this.jedisPool;
+    }
+
+    public List<JedisQueue<E>> getShards() {
+        return this.shards;
+    }
+
+    public long getStealIntervalMillis() {
+        return stealIntervalMillis;
+    }
+
+    /**
+     * Sets how long a blocked pop on a cluster waits on one shard before trying
+     * all the others again (redis < 6.0 rounds it up to 1 second).  Not used
+     * without a cluster where a blocked pop waits on all shards at once.
+     * @param stealInterval The interval (must be > 0)
+     * @param unit The unit of the interval
+     * @return This queue
+     */
+    public ShardedJedisQueue<E> setStealInterval(long stealInterval, TimeUnit unit) {
+        if (stealInterval <= 0) {
+            throw new IllegalArgumentException("stealInterval must be > 0");
+        }
+        this.stealIntervalMillis = unit.toMillis(stealInterval);
+        return this;
+    }
+
+    /**
+     * Gets the shard an item is pushed onto: the one its partition key hashes
+     * to or, without a partition key, the next one.
+     * @param e The item
+     * @return The shard
+     */
+    public JedisQueue<E> shardOf(E e) {
+        return this.shards.get(this.shardIndex(e));
+    }
+
+    protected int shardIndex(E e) {
+        if (this.partitionKey != null) {
+            // String.hashCode() is the same in every jvm
+            return Math.floorMod(Objects.hashCode(this.partitionKey.apply(e)), this.shards.size());
+        }
+        return Math.floorMod(this.pushCursor.getAndIncrement(), this.shards.size());
+    }
+
+    @Override
+    public void push(E e) throws InterruptedException {
+        this.push(e, -1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Push an item onto its shard.
+     * @param e The item to push onto the queue
+     * @param ttl If greater than 0 then the amount of expiration to set on the
+     *      shard or 0 or -1 for no expiration.
+     * @param unit The unit of the ttl
+     * @throws InterruptedException
+     * @see JedisQueue#push(java.lang.Object, long, java.util.concurrent.TimeUnit)
+     */
+    public void push(E e, long ttl, TimeUnit unit) throws InterruptedException {
+        this.checkNotClosed();
+        this.shardOf(e).push(e, ttl, unit);
+    }
+
+    public int pushAll(Collection<E> items) throws InterruptedException {
+        return this.pushAll(items, -1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Pushes all items onto their shards, each shard in batches.
+     * @param items The items to push onto the queue
+     * @param ttl If greater than 0 then the amount of expiration to set on the
+     *      shards or 0 or -1 for no expiration.
+     * @param unit The unit of the ttl
+     * @return The number of items pushed
+     * @throws InterruptedException
+     * @see JedisQueue#push(java.util.Iterator, long, java.util.concurrent.TimeUnit)
+     */
+    public int pushAll(Collection<E> items, long ttl, TimeUnit unit) throws InterruptedException {
+        Objects.requireNonNull(items, "items was null");
+        this.checkNotClosed();
+
+        final List<List<E>> batches = new ArrayList<>(this.shards.size());
+        for (int i = 0; i < this.shards.size(); i++) {
+            batches.add(new ArrayList<>());
+        }
+        for (E e : items) {
+            batches.get(this.shardIndex(e)).add(e);
+        }
+
+        int pushed = 0;
+        for (int i = 0; i < this.shards.size(); i++) {
+            if (!batches.get(i).isEmpty()) {
+                pushed += this.shards.get(i).pushAll(batches.get(i), ttl, unit);
+            }
+        }
+        return pushed;
+    }
+
+    @Override
+    public E pop(long timeout, TimeUnit unit) throws InterruptedException {
+        this.checkNotClosed();
+        final long started = System.nanoTime();
+        boolean success = false;
+        try {
+            byte[] bytes = this.doPop(timeout, unit);
+            success = true;
+            if (bytes != null) {
+                return this.decode.apply(bytes);
+            }
+            return null;
+        } finally {
+            this.measured("queue.pop", started, success);
+        }
+    }
+
+    /**
+     * Pops up to max items from the shards (starting at the next one).  Blocks
+     * (with the same semantics as pop) until at least 1 item is available and
+     * then takes up to max-1 more from any shard.
+     * @param max The max number of items to pop (must be > 0)
+     * @param timeout If greater than 0 then the amount of time to wait for the
+     *      first item, 0 to not wait at all, or -1 to wait forever.
+     * @param unit The unit of the timeout
+     * @return The items popped or an empty list if none were available in time
+     * @throws InterruptedException
+     */
+    public List<E> popMany(int max, long timeout, TimeUnit unit) throws InterruptedException {
+        if (max <= 0) {
+            throw new IllegalArgumentException("max must be > 0");
+        }
+        this.checkNotClosed();
+        final long started = System.nanoTime();
+        boolean success = false;
+        final List<byte[]> values;
+        try {
+            final int start = this.nextPopShard();
+            List<byte[]> drained = this.drain(start, max);
+            if (drained.isEmpty() && timeout != 0) {
+                byte[] first = this.doPop(start, timeout, unit);
+                if (first != null) {
+                    drained = new ArrayList<>(max);
+                    drained.add(first);
+                    if (max > 1) {
+                        drained.addAll(this.drain(start, max - 1));
+                    }
+                }
+            }
+            values = drained;
+            success = true;
+        } finally {
+            this.measured("queue.popMany", started, success);
+        }
+        if (values.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<E> items = new ArrayList<>(values.size());
+        for (byte[] bytes : values) {
+            items.add(this.decode.apply(bytes));
+        }
+        return items;
+    }
+
+    protected int nextPopShard() {
+        return Math.floorMod(this.popCursor.getAndIncrement(), this.shards.size());
+    }
+
+    protected byte[] doPop(long timeout, TimeUnit unit) throws InterruptedException {
+        final int start = this.nextPopShard();
+        final List<byte[]> values = this.drain(start, 1);
+        if (!values.isEmpty()) {
+            return values.get(0);
+        }
+        if (timeout == 0) {
+            return null;
+        }
+        return this.doPop(start, timeout, unit);
+    }
+
+    protected byte[] doPop(int start, long timeout, TimeUnit unit) throws InterruptedException {
+        if (timeout > 0) {
+            Objects.requireNonNull(unit, "unit was null");
+        }
+        if (timeout <= 0 && unit == null) {
+            unit = TimeUnit.MILLISECONDS;
+        }
+        if (!this.cluster) {
+            return this.doMultiKeyPop(start, timeout, unit);
+        }
+
+        // wait on one shard at a time, then try all of them before waiting again
+        final long timeoutMillis = unit.toMillis(timeout);
+        final long started = System.currentTimeMillis();
+        final JedisQueue<E> home = this.shards.get(start);
+        while (true) {
+            long waitMillis = this.stealIntervalMillis;
+            if (timeout > 0) {
+                long remainingMillis = timeoutMillis - (System.currentTimeMillis() - started);
+                if (remainingMillis <= 0) {
+                    return null;
+                }
+                waitMillis = Math.min(waitMillis, remainingMillis);
+            }
+
+            byte[] value = home.doPop(waitMillis, TimeUnit.MILLISECONDS);
+            if (value != null) {
+                return value;
+            }
+
+            final List<byte[]> values = this.drain(start, 1);
+            if (!values.isEmpty()) {
+                return values.get(0);
+            }
+        }
+    }
+
+    private byte[] doMultiKeyPop(int start, long timeout, TimeUnit unit) throws InterruptedException {
+        // BLPOP returns from the first non-empty key in the order given
+        final List<byte[]> keys = this.keys(start);
+        return this.execute(keys.get(0), jedis -> {
+            try {
+                return JedisClients.executeBlocking("blpop", jedis, timeout, unit, (timeoutArg) -> {
+                    byte[][] args = keys.toArray(new byte[keys.size() + 1][]);
+                    args[keys.size()] = timeoutArg;
+                    List<byte[]> items = jedis.blpop(args);
+                    if (items == null || items.isEmpty() || items.size() != 2) {
+                        return null;
+                    } else {
+                        return items.get(1);
+                    }
+                });
+            } catch (TimeoutException e) {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Removes and returns up to max items without blocking, from the shards in
+     * order starting at the one given.  Without a cluster in a single round
+     * trip.
+     * @param start The index of the first shard
+     * @param max The max number of items
+     * @return The items or an empty list
+     * @throws InterruptedException
+     */
+    @SuppressWarnings("unchecked")
+    protected List<byte[]> drain(int start, int max) throws InterruptedException {
+        if (!this.cluster) {
+            final List<byte[]> keys = this.keys(start);
+            final List<byte[]> args = Arrays.asList(Integer.toString(max).getBytes(StandardCharsets.UTF_8));
+            return (List<byte[]>)this.execute(keys.get(0), jedis -> DRAIN_SCRIPT.eval(jedis, keys, args));
+        }
+
+        final List<byte[]> values = new ArrayList<>();
+        for (int i = 0; i < this.shards.size() && values.size() < max; i++) {
+            final JedisQueue<E> shard = this.shards.get((start + i) % this.shards.size());
+            if (max - values.size() == 1) {
+                byte[] value = shard.doPop(0, null);
+                if (value != null) {
+                    values.add(value);
+                }
+            } else {
+                final int count = max - values.size();
+                values.addAll(shard.execute(jedis -> shard.drain(jedis, count)));
+            }
+        }
+        return values;
+    }
+
+    private List<byte[]> keys(int start) {
+        final List<byte[]> keys = new ArrayList<>(this.shards.size());
+        for (int i = 0; i < this.shards.size(); i++) {
+            keys.add(this.shards.get((start + i) % this.shards.size()).key);
+        }
+        return keys;
+    }
+
+    private <R> R execute(byte[] key, JedisCallable<R,InterruptedException> callable) throws InterruptedException {
+        try {
+            return JedisClients.execute(this.jedisPool, key, callable);
+        } catch (JedisException e) {
+            if (this.jedisPool.isClosed()) {
+                throw new InterruptedException("jedis pool is closed");
+            }
+            throw e;
+        }
+    }
+
+    private void measured(String operation, long started, boolean success) {
+        final JedisMetrics metrics = JedisFactory.getMetrics(this.jedisPool);
+        if (metrics != JedisMetrics.NOOP) {
+            metrics.command(operation, System.nanoTime() - started, success);
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        for (JedisQueue<E> shard : this.shards) {
+            shard.close();
+        }
+    }
+
+}
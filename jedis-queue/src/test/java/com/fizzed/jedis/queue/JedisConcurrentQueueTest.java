@@ -3,6 +3,7 @@ package com.fizzed.jedis.queue;
 import com.fizzed.jedis.queue.JedisConcurrentQueue;
 import com.fizzed.jedis.JedisCodecs;
 import com.fizzed.jedis.JedisFactory;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -128,6 +129,46 @@ public class JedisConcurrentQueueTest {
         assertThat(jedisPool.getNumIdle(), greaterThan(permits));
     }
     
+    @Test
+    public void popManyWithPermits() throws Exception {
+        final JedisConcurrentQueue<String> queue = new JedisConcurrentQueue<>(
+            "test.queue", jedisPool, JedisCodecs.STRING_ENCODE, JedisCodecs.STRING_DECODE, 2);
+        
+        int threads = 5;
+        CountDownLatch latch = new CountDownLatch(threads);
+        AtomicInteger popped = new AtomicInteger();
+        
+        ExecutorService executors = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            executors.submit(() -> {
+                try {
+                    List<String> items;
+                    do {
+                        items = queue.popMany(7, 1L, TimeUnit.SECONDS);
+                        assertThat(items.size() <= 7, is(true));
+                        popped.addAndGet(items.size());
+                    } while (!items.isEmpty());
+                } catch (InterruptedException e) {
+                    fail("interrupted thread");
+                } catch (Throwable t) {
+                    log.error("", t);
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        
+        for (int i = 0; i < 100; i++) {
+            queue.push("" + i);
+        }
+        
+        if (!latch.await(10000L, TimeUnit.MILLISECONDS)) {
+            fail("threads failed to finished im time");
+        }
+        
+        assertThat(popped.get(), is(100));
+    }
+    
     @Test
     public void concurrencyWith1Permit() throws Exception {
         this.concurrencyWithPermits(5, 1);
@@ -0,0 +1,104 @@
+package com.fizzed.jedis.queue;
+
+import com.fizzed.jedis.JedisCodecs;
+import com.fizzed.jedis.JedisFactory;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+public class JedisDelayedQueueTest {
+
+    private JedisPool jedisPool;
+
+    @Before
+    public void before() throws Exception {
+        jedisPool = JedisFactory.createJedisPool("redis://localhost:26379");
+        try (Jedis jedis = jedisPool.getResource()) {
+            jedis.flushAll();
+        }
+    }
+
+    private JedisDelayedQueue<String> queue() {
+        return new JedisDelayedQueue<>("test.queue", jedisPool,
+            JedisCodecs.STRING_ENCODE, JedisCodecs.STRING_DECODE);
+    }
+
+    @Test
+    public void moveOnlyPromotesDueItemsInBatches() throws Exception {
+        JedisDelayedQueue<String> queue = this.queue()
+            .setMoveBatchSize(2);
+
+        final Instant now = Instant.now();
+        queue.pushAll(Arrays.asList("a", "b", "c"), now.plusMillis(200L));
+        queue.push("later", now.plusSeconds(60L));
+        // the same item may be scheduled more than once
+        queue.push("a", now.plusMillis(200L));
+        // already due items are not delayed
+        queue.push("now", now.minusSeconds(1L));
+
+        assertThat(queue.getDelayedCount(), is(5L));
+        assertThat(queue.move(), is(0));
+
+        Thread.sleep(300L);
+
+        assertThat(queue.move(), is(2));
+        assertThat(queue.move(), is(2));
+        assertThat(queue.move(), is(0));
+        assertThat(queue.getDelayedCount(), is(1L));
+
+        // in the order pushed if due at the same time
+        assertThat(queue.popMany(10, 0, null), is(Arrays.asList("now", "a", "b", "c", "a")));
+
+        queue.close();
+    }
+
+    @Test
+    public void popWaitsUntilDue() throws Exception {
+        JedisDelayedQueue<String> queue = this.queue();
+
+        final long started = System.currentTimeMillis();
+        queue.pushDelayed("b", 600L, TimeUnit.MILLISECONDS);
+        queue.pushDelayed("a", 300L, TimeUnit.MILLISECONDS);
+
+        assertThat(queue.pop(0, null), is(nullValue()));
+
+        assertThat(queue.pop(5, TimeUnit.SECONDS), is("a"));
+        assertThat(System.currentTimeMillis() - started, greaterThanOrEqualTo(300L));
+
+        assertThat(queue.pop(5, TimeUnit.SECONDS), is("b"));
+        final long elapsed = System.currentTimeMillis() - started;
+        assertThat(elapsed, greaterThanOrEqualTo(600L));
+        // the mover sleeps until the next item is due, not the move interval
+        assertThat(elapsed, lessThan(1000L));
+
+        queue.close();
+    }
+
+    @Test
+    public void soonerItemWakesUpMover() throws Exception {
+        JedisDelayedQueue<String> queue = this.queue()
+            .setMoveInterval(10, TimeUnit.SECONDS);
+
+        queue.pushDelayed("later", 60L, TimeUnit.SECONDS);
+        assertThat(queue.pop(100, TimeUnit.MILLISECONDS), is(nullValue()));
+
+        // the mover is asleep until the move interval
+        final long started = System.currentTimeMillis();
+        queue.pushDelayed("sooner", 200L, TimeUnit.MILLISECONDS);
+
+        assertThat(queue.pop(5, TimeUnit.SECONDS), is("sooner"));
+        assertThat(System.currentTimeMillis() - started, lessThan(1000L));
+
+        queue.close();
+    }
+
+}
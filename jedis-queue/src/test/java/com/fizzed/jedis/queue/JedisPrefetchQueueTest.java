@@ -0,0 +1,212 @@
+package com.fizzed.jedis.queue;
+
+import com.fizzed.crux.util.WaitFor;
+import com.fizzed.jedis.JedisCodecs;
+import com.fizzed.jedis.JedisFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+public class JedisPrefetchQueueTest {
+    static private final Logger log = LoggerFactory.getLogger(JedisPrefetchQueueTest.class);
+
+    private JedisPool jedisPool;
+
+    @Before
+    public void before() throws Exception {
+        jedisPool = JedisFactory.createJedisPool("redis://localhost:26379");
+        try (Jedis jedis = jedisPool.getResource()) {
+            jedis.flushAll();
+        }
+    }
+
+    @Test
+    public void pushAndPopForever() throws Exception {
+        JedisPrefetchQueue<String> queue = new JedisPrefetchQueue<>(
+            "test.queue", jedisPool, JedisCodecs.STRING_ENCODE, JedisCodecs.STRING_DECODE, 5, 20);
+
+        for (int i = 0; i < 100; i++) {
+            queue.push("" + i);
+        }
+
+        for (int j = 0; j < 100; j++) {
+            assertEquals(queue.pop(-1, null), "" + j);
+        }
+
+        queue.close();
+    }
+
+    @Test
+    public void pushAndPopWaitable() throws Exception {
+        JedisPrefetchQueue<String> queue = new JedisPrefetchQueue<>(
+            "test.queue", jedisPool, JedisCodecs.STRING_ENCODE, JedisCodecs.STRING_DECODE);
+
+        String item;
+
+        item = queue.pop(1, TimeUnit.SECONDS);
+        assertThat(item, is(nullValue()));
+
+        queue.push("test1");
+        item = queue.pop(2, TimeUnit.SECONDS);
+        assertThat(item, is("test1"));
+
+        item = queue.pop(0, null);
+        assertThat(item, is(nullValue()));
+
+        queue.close();
+    }
+
+    @Test
+    public void popManyServedFromBuffer() throws Exception {
+        JedisPrefetchQueue<String> queue = new JedisPrefetchQueue<>(
+            "test.queue", jedisPool, JedisCodecs.STRING_ENCODE, JedisCodecs.STRING_DECODE, 10, 50);
+
+        queue.pushAll(Arrays.asList("a", "b", "c", "d"));
+
+        List<String> items = queue.popMany(3, 2, TimeUnit.SECONDS);
+        assertThat(items.get(0), is("a"));
+
+        queue.close();
+    }
+
+    @Test
+    public void closePushesBackBufferedItemsInOrder() throws Exception {
+        JedisPrefetchQueue<String> queue = new JedisPrefetchQueue<>(
+            "test.queue", jedisPool, JedisCodecs.STRING_ENCODE, JedisCodecs.STRING_DECODE, 5, 20);
+
+        for (int i = 0; i < 50; i++) {
+            queue.push("" + i);
+        }
+
+        assertThat(queue.pop(1, TimeUnit.SECONDS), is("0"));
+
+        // wait for the fetcher to fill the buffer to the high watermark
+        WaitFor.of(() -> queue.getBufferedSize() == 19).requireMillis(2000L, 10L);
+
+        try (Jedis jedis = jedisPool.getResource()) {
+            assertThat(jedis.llen("test.queue"), is(30L));
+        }
+
+        queue.close();
+
+        try (Jedis jedis = jedisPool.getResource()) {
+            assertThat(jedis.llen("test.queue"), is(49L));
+        }
+
+        // nothing lost and order is preserved
+        JedisQueue<String> queue2 = new JedisQueue<>(
+            "test.queue", jedisPool, JedisCodecs.STRING_ENCODE, JedisCodecs.STRING_DECODE);
+
+        for (int j = 1; j < 50; j++) {
+            assertEquals(queue2.pop(0, null), "" + j);
+        }
+    }
+
+    @Test
+    public void closeWhileFetchingLosesNothing() throws Exception {
+        JedisQueue<String> producer = new JedisQueue<>(
+            "test.queue", jedisPool, JedisCodecs.STRING_ENCODE, JedisCodecs.STRING_DECODE);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            for (int i = 0; i < 20; i++) {
+                JedisPrefetchQueue<String> queue = new JedisPrefetchQueue<>(
+                    "test.queue", jedisPool, JedisCodecs.STRING_ENCODE, JedisCodecs.STRING_DECODE, 5, 20);
+
+                // starts the fetcher, which then blocks on the empty queue
+                assertThat(queue.pop(0, null), is(nullValue()));
+                Thread.sleep(50L);
+
+                // popped by the fetcher racing (a few ms either way) its close
+                final long delay = i % 4;
+                Future<?> pushed = executor.submit(() -> {
+                    Thread.sleep(delay);
+                    return producer.pushAll(Arrays.asList("a", "b", "c"));
+                });
+                queue.close();
+                pushed.get();
+
+                try (Jedis jedis = jedisPool.getResource()) {
+                    assertThat(jedis.llen("test.queue"), is(3L));
+                }
+                assertThat(producer.popMany(10, 0, null), is(Arrays.asList("a", "b", "c")));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void pushOnlyDoesNotPrefetch() throws Exception {
+        JedisPrefetchQueue<String> queue = new JedisPrefetchQueue<>(
+            "test.queue", jedisPool, JedisCodecs.STRING_ENCODE, JedisCodecs.STRING_DECODE);
+
+        queue.push("test1");
+
+        Thread.sleep(200L);
+
+        try (Jedis jedis = jedisPool.getResource()) {
+            assertThat(jedis.llen("test.queue"), is(1L));
+        }
+
+        queue.close();
+    }
+
+    @Test
+    public void concurrency() throws Exception {
+        final JedisPrefetchQueue<String> queue = new JedisPrefetchQueue<>(
+            "test.queue", jedisPool, JedisCodecs.STRING_ENCODE, JedisCodecs.STRING_DECODE, 10, 40);
+
+        int threads = 10;
+        CountDownLatch latch = new CountDownLatch(threads);
+        AtomicInteger popped = new AtomicInteger();
+
+        ExecutorService executors = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            executors.submit(() -> {
+                try {
+                    String item;
+                    do {
+                        item = queue.pop(1500L, TimeUnit.MILLISECONDS);
+                        if (item != null) {
+                            popped.incrementAndGet();
+                        }
+                    } while (item != null);
+                } catch (InterruptedException e) {
+                    fail("interrupted thread");
+                } catch (Throwable t) {
+                    log.error("", t);
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            queue.push("" + i);
+        }
+
+        if (!latch.await(10000L, TimeUnit.MILLISECONDS)) {
+            fail("threads failed to finished im time");
+        }
+
+        assertThat(popped.get(), is(1000));
+
+        queue.close();
+    }
+
+}
@@ -6,6 +6,9 @@ import com.fizzed.jedis.JedisFactory;
 import com.fizzed.crux.util.StackTraces;
 import com.fizzed.crux.util.StopWatch;
 import com.fizzed.crux.util.WaitFor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
@@ -92,6 +95,71 @@ public class JedisQueueTest {
         assertThat(pop1, is("1"));
     }
     
+    @Test
+    public void pushAll() throws Exception {
+        JedisQueue<String> queue = new JedisQueue<>(
+            "test.queue", jedisPool, JedisCodecs.STRING_ENCODE, JedisCodecs.STRING_DECODE);
+        
+        List<String> items = new ArrayList<>();
+        for (int i = 0; i < 1050; i++) {
+            items.add("" + i);
+        }
+        
+        int pushed = queue.setPushBatchSize(100).pushAll(items);
+        
+        assertThat(pushed, is(1050));
+        
+        for (int j = 0; j < 1050; j++) {
+            assertEquals(queue.pop(0, null), "" + j);
+        }
+        
+        assertThat(queue.pop(0, null), is(nullValue()));
+        
+        // empty is a no-op
+        assertThat(queue.pushAll(Collections.emptyList()), is(0));
+    }
+    
+    @Test
+    public void pushAllWithTtlBatchesRoundTrips() throws Exception {
+        String name = "test.queue." + UUID.randomUUID();
+        JedisQueue<String> queue = new JedisQueue<>(
+            name, jedisPool, JedisCodecs.STRING_ENCODE, JedisCodecs.STRING_DECODE);
+        
+        List<String> items = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            items.add("" + i);
+        }
+        
+        try (Jedis jedis = jedisPool.getResource()) {
+            jedis.configResetStat();
+        }
+        
+        queue.setPushBatchSize(100).pushAll(items, 5, TimeUnit.SECONDS);
+        
+        // 1000 items would be 2000 commands w/ push() vs. 1 rpush + 1 expire
+        // pipelined per batch of 100
+        assertThat(commandCalls("rpush"), is(10L));
+        assertThat(commandCalls("expire"), is(10L));
+        
+        try (Jedis jedis = jedisPool.getResource()) {
+            assertThat(jedis.llen(name), is(1000L));
+            assertThat(jedis.ttl(name) > 0, is(true));
+        }
+    }
+    
+    private long commandCalls(String command) {
+        try (Jedis jedis = jedisPool.getResource()) {
+            String info = jedis.info("commandstats");
+            String prefix = "cmdstat_" + command + ":calls=";
+            int startPos = info.indexOf(prefix);
+            if (startPos < 0) {
+                return 0L;
+            }
+            int endPos = info.indexOf(",", startPos);
+            return Long.valueOf(info.substring(startPos + prefix.length(), endPos));
+        }
+    }
+    
     @Test
     public void pushAndPopImmediately() throws Exception {
         JedisQueue<String> queue = new JedisQueue<>(
@@ -127,6 +195,140 @@ public class JedisQueueTest {
         item = queue.pop(1, TimeUnit.SECONDS);
         assertThat(item, is(nullValue()));
     }
+
+    @Test
+    public void pushAndPopWithAsyncClient() throws Exception {
+        JedisPool asyncPool = JedisFactory.createJedisPool("redis://localhost:26379?async_enabled=true");
+        try {
+            JedisQueue<String> queue = new JedisQueue<>(
+                "test.queue", asyncPool, JedisCodecs.STRING_ENCODE, JedisCodecs.STRING_DECODE)
+                .setPushBatchSize(7);
+
+            List<String> items = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                items.add("" + i);
+            }
+
+            assertThat(queue.pushAll(items, 60, TimeUnit.SECONDS), is(100));
+            queue.push("100");
+
+            try (Jedis jedis = asyncPool.getResource()) {
+                assertThat(jedis.ttl("test.queue") > 0, is(true));
+            }
+
+            // non-blocking pops go thru async, blocking pops thru the pool
+            assertThat(queue.pop(0, null), is("0"));
+            assertThat(queue.pop(1, TimeUnit.SECONDS), is("1"));
+            for (int i = 2; i <= 100; i++) {
+                assertThat(queue.pop(0, null), is("" + i));
+            }
+            assertThat(queue.pop(0, null), is(nullValue()));
+        } finally {
+            asyncPool.close();
+        }
+    }
+
+    @Test
+    public void moreBlockedConsumersThanPooledConnections() throws Exception {
+        JedisPool multiplexedPool = JedisFactory.createJedisPool(
+            "redis://localhost:26379?blocking_mode=multiplexed&pool_max_size=2&pool_wait_timeout=1000");
+        try {
+            JedisQueue<String> queue = new JedisQueue<>(
+                "test.queue", multiplexedPool, JedisCodecs.STRING_ENCODE, JedisCodecs.STRING_DECODE);
+
+            int consumers = 50;
+            ExecutorService executor = Executors.newFixedThreadPool(consumers);
+            CountDownLatch started = new CountDownLatch(consumers);
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < consumers; i++) {
+                futures.add(executor.submit(() -> {
+                    started.countDown();
+                    return queue.pop(-1, null);
+                }));
+            }
+
+            started.await();
+            Thread.sleep(200L);
+
+            // blocked consumers do not hold any pooled connections
+            for (int i = 0; i < consumers; i++) {
+                queue.push("" + i);
+            }
+
+            List<String> popped = new ArrayList<>();
+            for (Future<String> future : futures) {
+                popped.add(future.get(10, TimeUnit.SECONDS));
+            }
+            Collections.sort(popped, (a, b) -> Integer.compare(Integer.valueOf(a), Integer.valueOf(b)));
+            for (int i = 0; i < consumers; i++) {
+                assertThat(popped.get(i), is("" + i));
+            }
+
+            queue.push("a");
+            assertThat(queue.popMany(5, 1, TimeUnit.SECONDS).get(0), is("a"));
+            assertThat(queue.popMany(5, 200, TimeUnit.MILLISECONDS).isEmpty(), is(true));
+
+            executor.shutdown();
+        } finally {
+            multiplexedPool.close();
+        }
+    }
+
+    @Test
+    public void popMany() throws Exception {
+        JedisQueue<String> queue = new JedisQueue<>(
+            "test.queue", jedisPool, JedisCodecs.STRING_ENCODE, JedisCodecs.STRING_DECODE);
+
+        List<String> items;
+        
+        items = queue.popMany(10, 0, null);
+        assertThat(items.isEmpty(), is(true));
+        
+        for (int i = 0; i < 25; i++) {
+            queue.push("" + i);
+        }
+        
+        items = queue.popMany(10, 0, null);
+        assertThat(items.size(), is(10));
+        assertThat(items.get(0), is("0"));
+        assertThat(items.get(9), is("9"));
+        
+        items = queue.popMany(10, 1, TimeUnit.SECONDS);
+        assertThat(items.size(), is(10));
+        assertThat(items.get(0), is("10"));
+        
+        items = queue.popMany(10, -1, null);
+        assertThat(items.size(), is(5));
+        assertThat(items.get(0), is("20"));
+        assertThat(items.get(4), is("24"));
+        
+        items = queue.popMany(10, 1, TimeUnit.SECONDS);
+        assertThat(items.isEmpty(), is(true));
+    }
+    
+    @Test
+    public void popManyBlocksForFirstItem() throws Exception {
+        JedisQueue<String> queue = new JedisQueue<>(
+            "test.queue", jedisPool, JedisCodecs.STRING_ENCODE, JedisCodecs.STRING_DECODE);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<List<String>> future = executor.submit(() -> queue.popMany(10, 5, TimeUnit.SECONDS));
+        
+        Thread.sleep(200L);
+        
+        try (Jedis jedis = jedisPool.getResource()) {
+            // push all 3 in a single command so they are all available at once
+            jedis.rpush("test.queue", "a", "b", "c");
+        }
+        
+        List<String> items = future.get(5, TimeUnit.SECONDS);
+        
+        assertThat(items.size(), is(3));
+        assertThat(items.get(0), is("a"));
+        assertThat(items.get(2), is("c"));
+        
+        executor.shutdown();
+    }
       
     @Test
     public void closingJedisPoolWillCloseSocketAndThrowInterruptedException() throws Exception {
@@ -0,0 +1,207 @@
+package com.fizzed.jedis.queue;
+
+import com.fizzed.jedis.JedisCodecs;
+import com.fizzed.jedis.JedisFactory;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+public class JedisReliableQueueTest {
+
+    private JedisPool jedisPool;
+
+    @Before
+    public void before() throws Exception {
+        jedisPool = JedisFactory.createJedisPool("redis://localhost:26379");
+        try (Jedis jedis = jedisPool.getResource()) {
+            jedis.flushAll();
+        }
+    }
+
+    private JedisReliableQueue<String> queue(String consumerId, long visibilityTimeoutMillis) {
+        return new JedisReliableQueue<>("test.queue", jedisPool,
+            JedisCodecs.STRING_ENCODE, JedisCodecs.STRING_DECODE,
+            consumerId, visibilityTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private long llen(String key) {
+        try (Jedis jedis = jedisPool.getResource()) {
+            return jedis.llen(key);
+        }
+    }
+
+    @Test
+    public void popMovesToProcessingUntilAcked() throws Exception {
+        JedisReliableQueue<String> queue = this.queue("c1", 60000L);
+
+        queue.push("a");
+        queue.push("b");
+
+        assertThat(queue.pop(0, null), is("a"));
+        assertThat(llen("test.queue"), is(1L));
+        assertThat(llen("test.queue:processing:c1"), is(1L));
+
+        assertThat(queue.ack("a"), is(true));
+        assertThat(queue.ack("a"), is(false));
+        assertThat(llen("test.queue:processing:c1"), is(0L));
+
+        assertThat(queue.pop(1, TimeUnit.SECONDS), is("b"));
+        assertThat(queue.pop(1, TimeUnit.SECONDS), is(nullValue()));
+        assertThat(queue.ack("b"), is(true));
+
+        queue.close();
+    }
+
+    @Test
+    public void nackRequeues() throws Exception {
+        JedisReliableQueue<String> queue = this.queue("c1", 60000L);
+
+        queue.push("a");
+        queue.push("b");
+
+        assertThat(queue.pop(0, null), is("a"));
+        assertThat(queue.nack("a"), is(true));
+
+        assertThat(queue.pop(0, null), is("b"));
+        assertThat(queue.pop(0, null), is("a"));
+        assertThat(llen("test.queue:processing:c1"), is(2L));
+
+        queue.close();
+    }
+
+    @Test
+    public void blockingPopMovesToProcessing() throws Exception {
+        JedisReliableQueue<String> queue = this.queue("c1", 60000L);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<String> future = executor.submit(() -> queue.pop(5, TimeUnit.SECONDS));
+
+        Thread.sleep(300L);
+        queue.push("a");
+
+        assertThat(future.get(5, TimeUnit.SECONDS), is("a"));
+        assertThat(llen("test.queue:processing:c1"), is(1L));
+
+        try (Jedis jedis = jedisPool.getResource()) {
+            assertThat(jedis.zscore("test.queue:deadlines:c1", "a") != null, is(true));
+        }
+
+        executor.shutdown();
+        queue.close();
+    }
+
+    @Test
+    public void popManyMovesToProcessing() throws Exception {
+        JedisReliableQueue<String> queue = this.queue("c1", 60000L);
+
+        for (int i = 0; i < 10; i++) {
+            queue.push("" + i);
+        }
+
+        List<String> items = queue.popMany(4, 0, null);
+        assertThat(items.size(), is(4));
+        assertThat(items.get(0), is("0"));
+        assertThat(llen("test.queue"), is(6L));
+        assertThat(llen("test.queue:processing:c1"), is(4L));
+
+        queue.close();
+    }
+
+    @Test
+    public void expiredItemsAreRequeuedInOrder() throws Exception {
+        JedisReliableQueue<String> crashed = this.queue("crashed", 200L);
+        JedisReliableQueue<String> survivor = this.queue("survivor", 200L);
+
+        for (int i = 0; i < 5; i++) {
+            crashed.push("" + i);
+        }
+
+        // crashed consumer pops 3 items and never acks them
+        assertThat(crashed.pop(0, null), is("0"));
+        assertThat(crashed.pop(0, null), is("1"));
+        assertThat(crashed.pop(0, null), is("2"));
+        crashed.close();
+
+        // deadlines have not passed yet
+        assertThat(survivor.reap(), is(0));
+
+        Thread.sleep(300L);
+
+        assertThat(survivor.reap(), is(3));
+        assertThat(llen("test.queue:processing:crashed"), is(0L));
+
+        // redelivered first and in their original order
+        assertThat(survivor.pop(0, null), is("0"));
+        assertThat(survivor.pop(0, null), is("1"));
+        assertThat(survivor.pop(0, null), is("2"));
+        assertThat(survivor.pop(0, null), is("3"));
+
+        // late ack from the (restarted) crashed consumer after requeue is rejected
+        JedisReliableQueue<String> restarted = this.queue("crashed", 200L);
+        assertThat(restarted.ack("0"), is(false));
+
+        survivor.close();
+    }
+
+    @Test
+    public void stuckItemIsRequeuedWhileOthersAreAcked() throws Exception {
+        JedisReliableQueue<String> stuck = this.queue("stuck", 300L);
+        JedisReliableQueue<String> other = this.queue("other", 300L);
+
+        stuck.push("a");
+        stuck.push("b");
+        stuck.push("c");
+
+        assertThat(stuck.pop(0, null), is("a"));
+
+        // keeps popping and acking other items past the deadline of "a"
+        for (int i = 0; i < 4; i++) {
+            Thread.sleep(100L);
+            if (i == 0) {
+                assertThat(stuck.pop(0, null), is("b"));
+            } else if (i == 2) {
+                assertThat(stuck.ack("b"), is(true));
+            }
+        }
+
+        assertThat(other.reap(), is(1));
+        assertThat(llen("test.queue:processing:stuck"), is(0L));
+        assertThat(other.pop(0, null), is("a"));
+
+        stuck.close();
+        other.close();
+    }
+
+    @Test
+    public void itemPoppedLaterKeepsItsOwnDeadline() throws Exception {
+        JedisReliableQueue<String> consumer = this.queue("c1", 300L);
+        JedisReliableQueue<String> other = this.queue("other", 300L);
+
+        consumer.push("a");
+        consumer.push("b");
+
+        assertThat(consumer.pop(0, null), is("a"));
+        Thread.sleep(200L);
+        assertThat(consumer.pop(0, null), is("b"));
+        Thread.sleep(150L);
+
+        // only "a" is past its deadline
+        assertThat(other.reap(), is(1));
+        assertThat(llen("test.queue:processing:c1"), is(1L));
+        assertThat(consumer.ack("b"), is(true));
+        assertThat(consumer.ack("a"), is(false));
+
+        consumer.close();
+        other.close();
+    }
+
+}
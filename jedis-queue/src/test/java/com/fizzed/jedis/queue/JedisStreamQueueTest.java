@@ -0,0 +1,213 @@
+package com.fizzed.jedis.queue;
+
+import com.fizzed.jedis.JedisClients;
+import com.fizzed.jedis.JedisCodecs;
+import com.fizzed.jedis.JedisFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+public class JedisStreamQueueTest {
+
+    private JedisPool jedisPool;
+
+    @Before
+    public void before() throws Exception {
+        jedisPool = JedisFactory.createJedisPool("redis://localhost:26379");
+        try (Jedis jedis = jedisPool.getResource()) {
+            jedis.flushAll();
+        }
+    }
+
+    private JedisStreamQueue<String> queue(String consumer, long minIdleMillis) {
+        return new JedisStreamQueue<>("test.stream", jedisPool,
+            JedisCodecs.STRING_ENCODE, JedisCodecs.STRING_DECODE,
+            "workers", consumer, minIdleMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private long length() {
+        try (Jedis jedis = jedisPool.getResource()) {
+            return (Long)JedisClients.sendCommand(jedis, "XLEN", "test.stream".getBytes());
+        }
+    }
+
+    private List<String> values(List<JedisStreamQueue.Entry<String>> entries) {
+        List<String> values = new ArrayList<>();
+        for (JedisStreamQueue.Entry<String> entry : entries) {
+            values.add(entry.getValue());
+        }
+        return values;
+    }
+
+    @Test
+    public void pushAndPop() throws Exception {
+        JedisStreamQueue<String> queue = this.queue("c1", 60000L);
+
+        // pushed before the group exists
+        queue.push("a");
+        assertThat(queue.pushAll(Arrays.asList("b", "c", "d")), is(3));
+
+        assertThat(queue.pop(0, null), is("a"));
+        assertThat(queue.popMany(2, 0, null), is(Arrays.asList("b", "c")));
+        assertThat(queue.pop(1, TimeUnit.SECONDS), is("d"));
+        assertThat(queue.pop(0, null), is(nullValue()));
+        assertThat(queue.pop(100, TimeUnit.MILLISECONDS), is(nullValue()));
+
+        // nothing left pending by pops, nor in the stream
+        assertThat(queue.getPendingCount(), is(0L));
+        assertThat(this.length(), is(0L));
+    }
+
+    @Test
+    public void competingConsumersEachGetDifferentItems() throws Exception {
+        JedisStreamQueue<String> c1 = this.queue("c1", 60000L);
+        JedisStreamQueue<String> c2 = this.queue("c2", 60000L);
+
+        for (int i = 0; i < 10; i++) {
+            c1.push("" + i);
+        }
+
+        List<String> values = new ArrayList<>();
+        values.addAll(this.values(c1.read(4, 0, null)));
+        values.addAll(this.values(c2.read(100, 0, null)));
+        assertThat(values.size(), is(10));
+        for (int i = 0; i < 10; i++) {
+            assertThat(values.get(i), is("" + i));
+        }
+    }
+
+    @Test
+    public void blockingPop() throws Exception {
+        JedisStreamQueue<String> queue = this.queue("c1", 60000L);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> future = executor.submit(() -> queue.pop(5, TimeUnit.SECONDS));
+
+            Thread.sleep(300L);
+            queue.push("a");
+
+            assertThat(future.get(5, TimeUnit.SECONDS), is("a"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void readIsPendingUntilAcked() throws Exception {
+        JedisStreamQueue<String> queue = this.queue("c1", 60000L);
+
+        queue.pushAll(Arrays.asList("a", "b"));
+
+        List<JedisStreamQueue.Entry<String>> entries = queue.read(10, 1, TimeUnit.SECONDS);
+        assertThat(this.values(entries), is(Arrays.asList("a", "b")));
+        assertThat(queue.getPendingCount(), is(2L));
+
+        assertThat(queue.ack(entries.get(0).getId()), is(1L));
+        assertThat(this.length(), is(1L));
+        assertThat(queue.ack(entries), is(1L));
+        assertThat(queue.getPendingCount(), is(0L));
+        assertThat(this.length(), is(0L));
+        assertThat(queue.read(10, 0, null), is(Collections.emptyList()));
+    }
+
+    @Test
+    public void stalledItemsAreClaimed() throws Exception {
+        JedisStreamQueue<String> crashed = this.queue("crashed", 200L);
+        JedisStreamQueue<String> survivor = this.queue("survivor", 200L);
+
+        crashed.pushAll(Arrays.asList("0", "1", "2", "3"));
+
+        // crashed consumer reads 3 items and never acks them
+        assertThat(crashed.read(3, 0, null).size(), is(3));
+        crashed.close();
+
+        // not idle long enough yet
+        assertThat(survivor.claim(10), is(Collections.emptyList()));
+
+        Thread.sleep(300L);
+
+        // claimed first and in their original order
+        List<JedisStreamQueue.Entry<String>> entries = survivor.read(10, 0, null);
+        assertThat(this.values(entries), is(Arrays.asList("0", "1", "2")));
+        assertThat(this.values(survivor.read(10, 0, null)), is(Arrays.asList("3")));
+
+        // now pending for the survivor
+        assertThat(survivor.ack(entries), is(3L));
+        assertThat(survivor.getPendingCount(), is(1L));
+        assertThat(this.length(), is(1L));
+    }
+
+    @Test
+    public void lateAckDoesNotDeleteClaimedItems() throws Exception {
+        JedisStreamQueue<String> slow = this.queue("slow", 200L);
+        JedisStreamQueue<String> other = this.queue("other", 200L);
+
+        slow.pushAll(Arrays.asList("0", "1"));
+
+        List<JedisStreamQueue.Entry<String>> slowEntries = slow.read(2, 0, null);
+        assertThat(slowEntries.size(), is(2));
+
+        Thread.sleep(300L);
+
+        List<JedisStreamQueue.Entry<String>> claimed = other.claim(1);
+        assertThat(this.values(claimed), is(Arrays.asList("0")));
+
+        // only "1" is still pending for the slow consumer
+        assertThat(slow.ack(slowEntries), is(1L));
+        assertThat(this.length(), is(1L));
+
+        assertThat(other.ack(claimed), is(1L));
+        assertThat(other.getPendingCount(), is(0L));
+        assertThat(this.length(), is(0L));
+    }
+
+    @Test
+    public void pushTrimsToAboutMaxLength() throws Exception {
+        JedisStreamQueue<String> queue = this.queue("c1", 60000L)
+            .setMaxLength(100L);
+
+        List<String> items = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            items.add("" + i);
+        }
+        queue.pushAll(items);
+
+        // trimmed in whole nodes of the stream so never below max length
+        long length = this.length();
+        assertThat(length >= 100L, is(true));
+        assertThat(length, lessThan(300L));
+    }
+
+    @Test
+    public void ackManyItems() throws Exception {
+        JedisStreamQueue<String> queue = this.queue("c1", 60000L);
+
+        List<String> items = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) {
+            items.add("" + i);
+        }
+        queue.pushAll(items);
+
+        // more than are ack'ed per round trip
+        List<JedisStreamQueue.Entry<String>> entries = queue.read(3000, 0, null);
+        assertThat(entries.size(), is(2500));
+        assertThat(queue.ack(entries), is(2500L));
+        assertThat(queue.getPendingCount(), is(0L));
+        assertThat(this.length(), is(0L));
+    }
+
+}
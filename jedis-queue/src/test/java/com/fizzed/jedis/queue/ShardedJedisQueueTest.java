@@ -0,0 +1,122 @@
+package com.fizzed.jedis.queue;
+
+import com.fizzed.jedis.JedisCodecs;
+import com.fizzed.jedis.JedisFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+public class ShardedJedisQueueTest {
+
+    private JedisPool jedisPool;
+
+    @Before
+    public void before() throws Exception {
+        jedisPool = JedisFactory.createJedisPool("redis://localhost:26379");
+        try (Jedis jedis = jedisPool.getResource()) {
+            jedis.flushAll();
+        }
+    }
+
+    @Test
+    public void pushRoundRobinAndPopAll() throws Exception {
+        ShardedJedisQueue<String> queue = new ShardedJedisQueue<>(
+            "test.queue", jedisPool, JedisCodecs.STRING_ENCODE, JedisCodecs.STRING_DECODE, 4);
+
+        for (int i = 0; i < 100; i++) {
+            queue.push("" + i);
+        }
+
+        try (Jedis jedis = jedisPool.getResource()) {
+            for (int i = 0; i < 4; i++) {
+                assertThat(jedis.llen("test.queue:" + i), is(25L));
+            }
+        }
+
+        List<String> popped = new ArrayList<>();
+        for (int j = 0; j < 100; j++) {
+            popped.add(queue.pop(0, null));
+        }
+        assertThat(queue.pop(0, null), is(nullValue()));
+
+        Collections.sort(popped, (a, b) -> Integer.parseInt(a) - Integer.parseInt(b));
+        for (int j = 0; j < 100; j++) {
+            assertThat(popped.get(j), is("" + j));
+        }
+    }
+
+    @Test
+    public void pushAllByPartitionKeyKeepsOrderPerKey() throws Exception {
+        ShardedJedisQueue<String> queue = new ShardedJedisQueue<>(
+            "test.queue", jedisPool, JedisCodecs.STRING_ENCODE, JedisCodecs.STRING_DECODE, 3, s -> s.substring(0, 1));
+
+        List<String> items = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            for (String key : Arrays.asList("a", "b", "c", "d")) {
+                items.add(key + i);
+            }
+        }
+
+        assertThat(queue.pushAll(items), is(80));
+        assertThat(queue.shardOf("a1"), is(queue.shardOf("a99")));
+
+        List<String> popped = queue.popMany(100, 0, null);
+        assertThat(popped.size(), is(80));
+
+        for (String key : Arrays.asList("a", "b", "c", "d")) {
+            int next = 0;
+            for (String item : popped) {
+                if (item.startsWith(key)) {
+                    assertThat(item, is(key + next++));
+                }
+            }
+            assertThat(next, is(20));
+        }
+    }
+
+    @Test
+    public void popBlocksOnAllShards() throws Exception {
+        ShardedJedisQueue<String> queue = new ShardedJedisQueue<>(
+            "test.queue", jedisPool, JedisCodecs.STRING_ENCODE, JedisCodecs.STRING_DECODE, 4);
+
+        assertThat(queue.pop(100, TimeUnit.MILLISECONDS), is(nullValue()));
+        assertThat(queue.popMany(10, 100, TimeUnit.MILLISECONDS), is(Collections.emptyList()));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> pops = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                pops.add(executor.submit(() -> queue.pop(5, TimeUnit.SECONDS)));
+            }
+
+            Thread.sleep(200L);
+
+            // every consumer is woken up no matter which shard it is pushed on
+            for (int i = 0; i < 4; i++) {
+                queue.getShards().get(i).push("test" + i);
+            }
+
+            List<String> popped = new ArrayList<>();
+            for (Future<String> pop : pops) {
+                popped.add(pop.get(2, TimeUnit.SECONDS));
+            }
+            Collections.sort(popped);
+            assertThat(popped, is(Arrays.asList("test0", "test1", "test2", "test3")));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}